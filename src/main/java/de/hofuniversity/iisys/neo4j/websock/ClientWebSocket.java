@@ -82,7 +82,7 @@ public class ClientWebSocket
         fSession = null;
         fLogger.log(Level.INFO, closeReason.getReasonPhrase());
 
-        fWatchdog.disconnected();
+        fWatchdog.disconnected(this);
     }
 
     /**
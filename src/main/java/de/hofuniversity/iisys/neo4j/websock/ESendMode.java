@@ -0,0 +1,47 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock;
+
+/**
+ * Ways of writing outgoing messages to a websocket connection.
+ */
+public enum ESendMode
+{
+    /**
+     * Sending threads write directly and block until a message is written.
+     */
+    BLOCKING,
+
+    /**
+     * Messages are put into a bounded queue and written through the
+     * asynchronous remote endpoint, one at a time and in order.
+     */
+    ASYNC,
+
+    /**
+     * Messages are put into a bounded lock-free queue and written back-to-back
+     * by a writer per connection. Each writer occupies a thread while its
+     * connection is open, so this costs one thread per connection.
+     */
+    WRITER,
+
+    /**
+     * Like WRITER, but letting the connection batch messages written in
+     * quick succession, flushing whenever the queue runs empty.
+     */
+    COALESCING_WRITER
+}
@@ -19,17 +19,29 @@ package de.hofuniversity.iisys.neo4j.websock;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.websocket.DeploymentException;
 import javax.websocket.Session;
+import javax.websocket.WebSocketContainer;
 
 import de.hofuniversity.iisys.neo4j.websock.queries.IQueryHandler;
 import de.hofuniversity.iisys.neo4j.websock.queries.MultiConnQueryHandler;
 import de.hofuniversity.iisys.neo4j.websock.util.ConnectionWatchdog;
+import de.hofuniversity.iisys.neo4j.websock.util.ContainerFactory;
 import de.hofuniversity.iisys.neo4j.websock.util.HashUtil;
+import de.hofuniversity.iisys.neo4j.websock.util.NamedThreadFactory;
 import de.hofuniversity.iisys.neo4j.websock.util.PingWatchdog;
+import de.hofuniversity.iisys.neo4j.websock.util.QueuedAsyncRemote;
+import de.hofuniversity.iisys.neo4j.websock.util.ReconnectPolicy;
 
 /**
  * Utility class for connecting to a remote websocket and starting a query
@@ -37,6 +49,11 @@ import de.hofuniversity.iisys.neo4j.websock.util.PingWatchdog;
  */
 public class MultiWebSocketConnector
 {
+    public static final int DEFAULT_CONNECT_PARALLELISM = 8;
+
+    private static final long CONNECT_THREAD_IDLE_MS = 60000;
+    public static final int DEFAULT_SCHEDULER_THREADS = 2;
+
     private final List<String> fUris;
     private final int fConnCount;
 
@@ -53,8 +70,90 @@ public class MultiWebSocketConnector
     private boolean fFailOnError = false;
     private boolean fWatchdogEnabled = true;
 
+    private ESendMode fSendMode = ESendMode.BLOCKING;
+    private int fQueueSize = QueuedAsyncRemote.DEFAULT_QUEUE_SIZE;
+
+    private Executor fDecoder;
+    private Executor fWriter;
+
+    private ScheduledExecutorService fScheduler;
+    private boolean fOwnScheduler;
+
+    private WebSocketContainer fContainer;
+    private ReconnectPolicy fReconnectPolicy;
+
     private PingWatchdog fPingWatchdog;
 
+    private int fConnectParallelism = DEFAULT_CONNECT_PARALLELISM;
+    private int fReadyConnections = 0;
+
+    private ConnectProgress fProgress;
+    private ExecutorService fConnectPool;
+
+    /**
+     * Progress of establishing the initial connections, which connect waits
+     * for.
+     */
+    private static final class ConnectProgress
+    {
+        private int fUp, fDone;
+        private Exception fError;
+        private boolean fAborted;
+
+        private synchronized void finished(final boolean up,
+            final Exception error)
+        {
+            if(up)
+            {
+                ++fUp;
+            }
+            if(fError == null)
+            {
+                fError = error;
+            }
+            ++fDone;
+
+            notifyAll();
+        }
+
+        private synchronized Exception await(final int ready, final int total,
+            final boolean failOnError) throws IOException
+        {
+            try
+            {
+                while(fUp < ready && fDone < total
+                    && !(failOnError && fError != null))
+                {
+                    wait();
+                }
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                fAborted = true;
+                throw new IOException("interrupted while connecting", e);
+            }
+
+            if(failOnError && fError != null)
+            {
+                fAborted = true;
+                return fError;
+            }
+
+            return null;
+        }
+
+        private synchronized boolean isAborted()
+        {
+            return fAborted;
+        }
+
+        private synchronized void abort()
+        {
+            fAborted = true;
+        }
+    }
+
     /**
      * Creates a websocket connector that will connect to the given URIs,
      * sending and receiving using the given default format.
@@ -99,6 +198,196 @@ public class MultiWebSocketConnector
         fWatchdogEnabled = enabled;
     }
 
+    /**
+     * @return how outgoing messages are written
+     */
+    public ESendMode getSendMode()
+    {
+        return fSendMode;
+    }
+
+    /**
+     * @return maximum number of queued outgoing messages per connection
+     */
+    public int getSendQueueSize()
+    {
+        return fQueueSize;
+    }
+
+    /**
+     * Sets how outgoing messages are written and the maximum number of
+     * queued outgoing messages per connection, if the mode uses a queue.
+     * Must be set before connecting, the mode must not be null.
+     *
+     * @param mode how to write outgoing messages
+     * @param queueSize maximum number of queued outgoing messages
+     */
+    public void setSendMode(ESendMode mode, int queueSize)
+    {
+        if(mode == null)
+        {
+            throw new NullPointerException("send mode was null");
+        }
+
+        fSendMode = mode;
+        fQueueSize = queueSize;
+    }
+
+    /**
+     * @return executor decoding incoming messages or null
+     */
+    public Executor getDecoderExecutor()
+    {
+        return fDecoder;
+    }
+
+    /**
+     * Sets the executor that decodes incoming messages and converts results
+     * for all connections, instead of the container's I/O threads.
+     * If it is null, messages are decoded on the receiving I/O thread.
+     * Must be set before connecting. The executor is not shut down when
+     * disconnecting.
+     *
+     * @param executor executor for incoming messages or null
+     */
+    public void setDecoderExecutor(Executor executor)
+    {
+        fDecoder = executor;
+    }
+
+    /**
+     * @return executor running connection writers or null
+     */
+    public Executor getWriterExecutor()
+    {
+        return fWriter;
+    }
+
+    /**
+     * Sets the executor running the writer of each connection in the WRITER
+     * and COALESCING_WRITER send modes. Each writer occupies one of its
+     * threads while its connection is open, so it needs a thread per
+     * connection. If it is null, each connection starts a dedicated thread.
+     * Must be set before connecting. The executor is not shut down when
+     * disconnecting.
+     *
+     * @param executor executor for connection writers or null
+     */
+    public void setWriterExecutor(Executor executor)
+    {
+        fWriter = executor;
+    }
+
+    /**
+     * @return scheduler running the handler's and watchdogs' periodic tasks
+     *      or null if none has been set or created yet
+     */
+    public ScheduledExecutorService getScheduler()
+    {
+        return fScheduler;
+    }
+
+    /**
+     * Sets the scheduler running the query handler's timeout checks and the
+     * watchdogs' connection checks and pings. It can be shared by several
+     * connectors and is not shut down when disconnecting.
+     * If it is null, the connector creates its own scheduler with
+     * DEFAULT_SCHEDULER_THREADS threads, which is shut down when
+     * disconnecting. Must be set before connecting.
+     *
+     * @param scheduler scheduler for periodic tasks or null
+     */
+    public void setScheduler(ScheduledExecutorService scheduler)
+    {
+        fScheduler = scheduler;
+        fOwnScheduler = false;
+    }
+
+    /**
+     * @return maximum number of connections established concurrently
+     */
+    public int getConnectParallelism()
+    {
+        return fConnectParallelism;
+    }
+
+    /**
+     * Sets the maximum number of connections established concurrently when
+     * connecting and reconnecting. Values less than 1 are treated like 1.
+     * Must be set before connecting.
+     *
+     * @param parallelism maximum number of concurrent connection attempts
+     */
+    public void setConnectParallelism(int parallelism)
+    {
+        fConnectParallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * @return number of open connections connecting waits for, 0 for all
+     */
+    public int getReadyConnections()
+    {
+        return fReadyConnections;
+    }
+
+    /**
+     * Sets the number of open connections after which connecting returns,
+     * while the remaining connections are established in the background.
+     * With 0 or less, connecting waits until all connections have been
+     * attempted. Must be set before connecting.
+     *
+     * @param ready number of open connections to wait for
+     */
+    public void setReadyConnections(int ready)
+    {
+        fReadyConnections = ready;
+    }
+
+    /**
+     * @return websocket container shared by all connections or null if none
+     *      has been set or created yet
+     */
+    public WebSocketContainer getContainer()
+    {
+        return fContainer;
+    }
+
+    /**
+     * Sets the websocket container shared by all connections for connecting
+     * and reconnecting. It can be preconfigured using a ContainerFactory and
+     * shared by several connectors.
+     * If it is null, the connector creates one with a default ContainerFactory
+     * when connecting. Must be set before connecting.
+     *
+     * @param container shared websocket container or null
+     */
+    public void setContainer(WebSocketContainer container)
+    {
+        fContainer = container;
+    }
+
+    /**
+     * @return policy deciding the delays between reconnection attempts or
+     *      null for the watchdogs' default
+     */
+    public ReconnectPolicy getReconnectPolicy()
+    {
+        return fReconnectPolicy;
+    }
+
+    /**
+     * Sets the policy deciding the delays between reconnection attempts after
+     * a connection was lost. If it is null, the watchdogs' default policy is
+     * used. Must be set before connecting.
+     *
+     * @param policy policy deciding the delays between attempts or null
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy)
+    {
+        fReconnectPolicy = policy;
+    }
+
     /**
      * Returns whether the connector will stop connecting if an error occurs
      * during initially creating connections. It will also stop, if only one
@@ -143,6 +432,9 @@ public class MultiWebSocketConnector
      * Connects to a number of remote servers with a number of connections,
      * creating a query handler, handles initial authentication and returns
      * a registered client websocket.
+     * Connections are established concurrently and the method returns once
+     * the configured number of connections is open or all have been
+     * attempted.
      *
      * @param user name of the user
      * @param password the user's password
@@ -155,7 +447,6 @@ public class MultiWebSocketConnector
         throws DeploymentException, IOException
     {
         String pw = null;
-        ConnectionWatchdog connWatchdog = null;
 
         //hash password if unhashed
         if(!hash && user != null && password != null)
@@ -167,76 +458,146 @@ public class MultiWebSocketConnector
         //TODO: configure timeouts etc.
         fQueryHandler = new MultiConnQueryHandler();
 
+        //run periodic tasks on one scheduler, regardless of connection count
+        final ScheduledExecutorService scheduler = getOrCreateScheduler();
+        fQueryHandler.start(scheduler);
+
+        final List<ConnectionWatchdog> watchdogs =
+            new ArrayList<ConnectionWatchdog>();
+        final List<String> uris = new ArrayList<String>();
         for(String uri : fUris)
         {
             for(int i = 0; i < fConnCount; ++i)
             {
-                fLogger.log(Level.INFO, "connecting (" + i + ") to " + uri);
+                watchdogs.add(createWatchdog(uri, user, pw));
+                uris.add(uri);
+            }
+        }
+        fConnWatchdogs.addAll(watchdogs);
 
-                //connect
-                connWatchdog = connectTo(uri, user, pw);
+        //establish connections concurrently
+        final int total = watchdogs.size();
+        final ConnectProgress progress = new ConnectProgress();
+        fProgress = progress;
 
-                fConnWatchdogs.add(connWatchdog);
-            }
+        //the pool stays around for reconnection attempts
+        final ExecutorService connectors = getOrCreateConnectPool();
+
+        for(int i = 0; i < total; ++i)
+        {
+            final ConnectionWatchdog wd = watchdogs.get(i);
+            final String uri = uris.get(i);
+            final int number = i % fConnCount;
+
+            connectors.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    connectTo(wd, uri, number, scheduler, progress);
+                }
+            });
         }
 
-        Thread queryHandlerThread = new Thread(fQueryHandler);
-        queryHandlerThread.start();
+        //wait for the required number of connections
+        final int ready = fReadyConnections > 0
+            ? Math.min(fReadyConnections, total) : total;
+        Exception error = null;
+        try
+        {
+            error = progress.await(ready, total, fFailOnError);
+        }
+        catch(IOException e)
+        {
+            //interrupted, stop connections established in the meantime
+            disconnect();
+            throw e;
+        }
 
-        //start watchdogs
-        for(ConnectionWatchdog wd : fConnWatchdogs)
+        if(error != null)
         {
-            Thread connectionThread = new Thread(wd);
-            connectionThread.start();
+            //propagate exception if an initial connection is needed
+            disconnect();
+
+            if(error instanceof DeploymentException)
+            {
+                throw (DeploymentException) error;
+            }
+            else if(error instanceof IOException)
+            {
+                throw (IOException) error;
+            }
+
+            throw new IOException("failed to establish initial connections",
+                error);
         }
 
         if(fWatchdogEnabled)
         {
             fPingWatchdog = new PingWatchdog(fQueryHandler);
-            Thread watchdogThread = new Thread(fPingWatchdog);
-            watchdogThread.start();
+            fPingWatchdog.start(scheduler);
         }
 
         return fSocket;
     }
 
-    private ConnectionWatchdog connectTo(String uri, String user,
-        String password) throws DeploymentException, IOException
+    private ConnectionWatchdog createWatchdog(String uri, String user,
+        String password)
     {
         ConnectionWatchdog connWatchdog = new ConnectionWatchdog(uri, fQueryHandler,
             fFormat, fCompression);
         connWatchdog.setAuthData(user, password);
+        connWatchdog.setSendMode(fSendMode, fQueueSize);
+        connWatchdog.setDecoderExecutor(fDecoder);
+        connWatchdog.setWriterExecutor(fWriter);
+        connWatchdog.setContainer(getOrCreateContainer());
+        connWatchdog.setConnectExecutor(getOrCreateConnectPool());
+        if(fReconnectPolicy != null)
+        {
+            connWatchdog.setReconnectPolicy(fReconnectPolicy);
+        }
+
+        return connWatchdog;
+    }
+
+    private void connectTo(final ConnectionWatchdog wd, final String uri,
+        final int number, final ScheduledExecutorService scheduler,
+        final ConnectProgress progress)
+    {
+        Exception error = null;
+
+        fLogger.log(Level.INFO, "connecting (" + number + ") to " + uri);
 
         try
         {
-            connWatchdog.connect();
+            wd.connect();
         }
-        catch(DeploymentException e)
+        catch(Exception e)
         {
             fLogger.log(Level.SEVERE,
                 "error while establishing initial connection", e);
-            e.printStackTrace();
-
-            //propagate exception if an initial connection is needed
-            if(fFailOnError)
-            {
-                throw e;
-            }
+            error = e;
         }
-        catch(IOException e)
-        {
-            fLogger.log(Level.SEVERE,
-                "error while establishing initial connection", e);
-            e.printStackTrace();
 
-            //propagate exception if an initial connection is needed
-            if(fFailOnError)
+        final Session session = wd.getSession();
+        final boolean open = session != null && session.isOpen();
+
+        //only monitor connections that are still wanted
+        boolean aborted = false;
+        synchronized(progress)
+        {
+            aborted = progress.isAborted();
+            if(!aborted)
             {
-                throw e;
+                wd.start(scheduler);
             }
+            progress.finished(open, error);
         }
 
-        return connWatchdog;
+        if(aborted)
+        {
+            wd.disconnect();
+        }
     }
 
     /**
@@ -277,6 +638,12 @@ public class MultiWebSocketConnector
      */
     public void disconnect() throws IOException
     {
+        //stop connections still being established in the background
+        if(fProgress != null)
+        {
+            fProgress.abort();
+        }
+
         for(ConnectionWatchdog wd : fConnWatchdogs)
         {
             wd.disconnect();
@@ -288,5 +655,62 @@ public class MultiWebSocketConnector
         }
 
         fQueryHandler.deactivate();
+
+        //stop initial connects and reconnection attempts
+        if(fConnectPool != null)
+        {
+            fConnectPool.shutdownNow();
+            fConnectPool = null;
+        }
+
+        //only shut down a scheduler created by this connector
+        if(fOwnScheduler)
+        {
+            fScheduler.shutdown();
+            fScheduler = null;
+            fOwnScheduler = false;
+        }
+    }
+
+    private WebSocketContainer getOrCreateContainer()
+    {
+        if(fContainer == null)
+        {
+            fContainer = new ContainerFactory().create();
+        }
+
+        return fContainer;
+    }
+
+    private ExecutorService getOrCreateConnectPool()
+    {
+        if(fConnectPool == null)
+        {
+            final int threads = Math.max(1, Math.min(fConnectParallelism,
+                fUris.size() * fConnCount));
+
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads,
+                threads, CONNECT_THREAD_IDLE_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("websocket connect", true));
+            pool.allowCoreThreadTimeOut(true);
+
+            fConnectPool = pool;
+        }
+
+        return fConnectPool;
+    }
+
+    private ScheduledExecutorService getOrCreateScheduler()
+    {
+        if(fScheduler == null)
+        {
+            fScheduler = Executors.newScheduledThreadPool(
+                DEFAULT_SCHEDULER_THREADS,
+                new NamedThreadFactory("websocket scheduler", false));
+            fOwnScheduler = true;
+        }
+
+        return fScheduler;
     }
 }
@@ -17,6 +17,8 @@
 package de.hofuniversity.iisys.neo4j.websock;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,17 +33,28 @@ import de.hofuniversity.iisys.neo4j.websock.query.encoding.BinaryTransferUtil;
 import de.hofuniversity.iisys.neo4j.websock.query.encoding.StringTransferUtil;
 import de.hofuniversity.iisys.neo4j.websock.query.encoding.TransferUtil;
 import de.hofuniversity.iisys.neo4j.websock.session.WebsockSession;
+import de.hofuniversity.iisys.neo4j.websock.util.IQueryRemote;
+import de.hofuniversity.iisys.neo4j.websock.util.ISendFailureHandler;
+import de.hofuniversity.iisys.neo4j.websock.util.QueuedAsyncRemote;
+import de.hofuniversity.iisys.neo4j.websock.util.SerialExecutor;
+import de.hofuniversity.iisys.neo4j.websock.util.SingleWriterRemote;
 
 /**
  * Websocket handler for incoming server responses.
  */
-public class ServerResponseHandler implements IMessageHandler
+public class ServerResponseHandler implements IMessageHandler,
+    ISendFailureHandler
 {
     private final WebsockSession fWsSess;
     private final Session fSession;
     private final IQueryHandler fQueryHandler;
 
     private final TransferUtil fTransfer;
+    private final Object fConvertLock;
+    private final SingleWriterRemote fWriter;
+
+    private volatile Executor fDecoder;
+    private volatile SerialExecutor fSerial;
 
     private final Logger fLogger;
     private final boolean fDebug;
@@ -58,6 +71,52 @@ public class ServerResponseHandler implements IMessageHandler
      */
     public ServerResponseHandler(WebsockSession wsSess, IQueryHandler qHandler,
         String format, String comp)
+    {
+        this(wsSess, qHandler, format, comp, ESendMode.BLOCKING, 0);
+    }
+
+    /**
+     * Creates a server response handler for the given websocket session, using
+     * the given query handler, sending in the given format using the given
+     * send mode.
+     * In asynchronous mode, messages that could not be written are reported
+     * to the query handler as errors. The queue size is only used by send
+     * modes with a queue.
+     * Parameters must not be null.
+     *
+     * @param wsSess websocket session to use
+     * @param qHandler query handler to use
+     * @param format format to send in
+     * @param comp whether to use compression
+     * @param mode how to write outgoing messages
+     * @param queueSize maximum number of queued outgoing messages
+     */
+    public ServerResponseHandler(WebsockSession wsSess, IQueryHandler qHandler,
+        String format, String comp, ESendMode mode, int queueSize)
+    {
+        this(wsSess, qHandler, format, comp, mode, queueSize, null);
+    }
+
+    /**
+     * Creates a server response handler for the given websocket session, using
+     * the given query handler, sending in the given format using the given
+     * send mode, running the writer of writer send modes on the given
+     * executor.
+     * The writer occupies one of the executor's threads until the handler is
+     * closed. If the executor is null, a dedicated thread is started.
+     * Parameters other than the executor must not be null.
+     *
+     * @param wsSess websocket session to use
+     * @param qHandler query handler to use
+     * @param format format to send in
+     * @param comp whether to use compression
+     * @param mode how to write outgoing messages
+     * @param queueSize maximum number of queued outgoing messages
+     * @param writerExecutor executor running the writer or null
+     */
+    public ServerResponseHandler(WebsockSession wsSess, IQueryHandler qHandler,
+        String format, String comp, ESendMode mode, int queueSize,
+        Executor writerExecutor)
     {
         if(wsSess == null)
         {
@@ -75,6 +134,10 @@ public class ServerResponseHandler implements IMessageHandler
         {
             throw new NullPointerException("compression parameter was null");
         }
+        if(mode == null)
+        {
+            throw new NullPointerException("send mode was null");
+        }
 
         fWsSess = wsSess;
         fSession = fWsSess.getSession();
@@ -83,11 +146,47 @@ public class ServerResponseHandler implements IMessageHandler
         fLogger = Logger.getLogger(this.getClass().getName());
         fDebug = (fLogger.getLevel() == Level.FINEST);
 
-        Basic remote = fSession.getBasicRemote();
+        Basic remote = null;
+        switch(mode)
+        {
+            case ASYNC:
+                remote = new QueuedAsyncRemote(fSession.getAsyncRemote(),
+                    fSession.getBasicRemote(), queueSize, this);
+                break;
+
+            case WRITER:
+            case COALESCING_WRITER:
+                remote = new SingleWriterRemote(fSession.getBasicRemote(),
+                    queueSize, mode == ESendMode.COALESCING_WRITER, this,
+                    writerExecutor);
+                break;
+
+            default:
+                remote = fSession.getBasicRemote();
+        }
+
+        if(remote instanceof SingleWriterRemote)
+        {
+            fWriter = (SingleWriterRemote) remote;
+        }
+        else
+        {
+            fWriter = null;
+        }
+
         StringTransferUtil stUtil = new StringTransferUtil(remote, this);
         BinaryTransferUtil btUtil = new BinaryTransferUtil(remote, this,
             true);
-        fTransfer = new TransferUtil(stUtil, btUtil);
+        if(remote instanceof IQueryRemote)
+        {
+            fTransfer = new QueryTransferUtil(stUtil, btUtil,
+                (IQueryRemote) remote);
+        }
+        else
+        {
+            fTransfer = new TransferUtil(stUtil, btUtil);
+        }
+        fConvertLock = new Object();
 
         fTransfer.setFormat(format, comp);
 
@@ -98,9 +197,59 @@ public class ServerResponseHandler implements IMessageHandler
     @Override
     public void dispose()
     {
+        close();
+
         fQueryHandler.deactivate();
     }
 
+    /**
+     * Stops this handler's writer thread, if there is one, without
+     * deactivating the query handler. Messages not written yet are reported
+     * as failed.
+     */
+    public void close()
+    {
+        if(fWriter != null)
+        {
+            fWriter.close();
+        }
+    }
+
+    /**
+     * @return executor decoding incoming messages or null
+     */
+    public Executor getDecoderExecutor()
+    {
+        return fDecoder;
+    }
+
+    /**
+     * Sets the executor that decompresses and decodes incoming messages and
+     * hands them to the query handler, including result conversion, instead
+     * of the container's I/O thread. If it is null, messages are handled
+     * directly on the receiving thread.
+     * Messages of one connection are decoded one at a time and in order,
+     * since decompression may keep state between messages. Responses are
+     * matched to their requests by ID, so decoded messages may be handled
+     * concurrently and out of order. If the executor rejects a message, it
+     * is handled directly.
+     *
+     * @param executor executor for incoming messages or null
+     */
+    public void setDecoderExecutor(Executor executor)
+    {
+        if(executor != null)
+        {
+            fSerial = new SerialExecutor(executor);
+        }
+        else
+        {
+            fSerial = null;
+        }
+
+        fDecoder = executor;
+    }
+
     /**
      * @return transfer utility for this response handler
      */
@@ -109,6 +258,38 @@ public class ServerResponseHandler implements IMessageHandler
         return fTransfer;
     }
 
+    @Override
+    public void sendFailed(Object frame, WebsockQuery query, Throwable cause)
+    {
+        try
+        {
+            //handlers tracking copies of requests tell them apart themselves
+            if(fQueryHandler instanceof ISendFailureHandler)
+            {
+                ((ISendFailureHandler) fQueryHandler).sendFailed(frame, query,
+                    cause);
+                return;
+            }
+
+            if(query == null)
+            {
+                fLogger.log(Level.SEVERE, "failed to send message: " + frame,
+                    cause);
+                return;
+            }
+
+            //complete the request with an error
+            WebsockQuery error = new WebsockQuery(query.getId(),
+                EQueryType.ERROR);
+            error.setPayload("failed to send message to server: " + cause);
+            fQueryHandler.handleMessage(error);
+        }
+        catch(Exception e)
+        {
+            fLogger.log(Level.SEVERE, "failed to handle send failure", e);
+        }
+    }
+
     private void handle(final WebsockQuery msg)
     {
         //try query manager
@@ -150,30 +331,115 @@ public class ServerResponseHandler implements IMessageHandler
     @Override
     public void onMessage(ByteBuffer buffer)
     {
+        final SerialExecutor serial = fSerial;
+
+        if(serial != null)
+        {
+            //the container may reuse its buffer after returning
+            final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+            copy.put(buffer.duplicate());
+            copy.flip();
+
+            serial.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    decode(copy, true);
+                }
+            });
+            return;
+        }
+
+        decode(buffer, false);
+    }
+
+    @Override
+    public void onMessage(final String message)
+    {
+        final SerialExecutor serial = fSerial;
+
+        if(serial != null)
+        {
+            serial.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    decode(message, true);
+                }
+            });
+            return;
+        }
+
+        decode(message, false);
+    }
+
+    private WebsockQuery convert(final Object frame) throws Exception
+    {
+        //the transfer utility's decompression is not thread-safe
+        synchronized(fConvertLock)
+        {
+            if(frame instanceof ByteBuffer)
+            {
+                return fTransfer.convert((ByteBuffer) frame);
+            }
+            else
+            {
+                return fTransfer.convert((String) frame);
+            }
+        }
+    }
+
+    private void decode(final Object frame, final boolean dispatch)
+    {
+        WebsockQuery query = null;
         try
         {
-            WebsockQuery query = fTransfer.convert(buffer);
-            handle(query);
+            query = convert(frame);
         }
         catch(Exception e)
         {
-            e.printStackTrace();
-            fLogger.log(Level.SEVERE, "failed to handle binary message", e);
+            fLogger.log(Level.SEVERE, "failed to decode message", e);
+            return;
+        }
+
+        final Executor decoder = fDecoder;
+        if(dispatch && decoder != null)
+        {
+            final WebsockQuery msg = query;
+
+            try
+            {
+                decoder.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        safeHandle(msg);
+                    }
+                });
+                return;
+            }
+            catch(RejectedExecutionException e)
+            {
+                fLogger.log(Level.WARNING, "decoder rejected message", e);
+            }
         }
+
+        safeHandle(query);
     }
 
-    @Override
-    public void onMessage(String message)
+    private void safeHandle(final WebsockQuery msg)
     {
         try
         {
-            WebsockQuery query = fTransfer.convert(message);
-            handle(query);
+            handle(msg);
         }
         catch(Exception e)
         {
-            e.printStackTrace();
-            fLogger.log(Level.SEVERE, "failed to handle text message", e);
+            fLogger.log(Level.SEVERE, "failed to handle message "
+                + msg.getId(), e);
         }
     }
 
@@ -210,4 +476,35 @@ public class ServerResponseHandler implements IMessageHandler
         fLogger.log(Level.SEVERE, "unhandled error: " + msg.getId() + ": "
             + msg.getPayload());
     }
+
+    /**
+     * Transfer utility telling a queueing remote endpoint which query the
+     * frames it is given belong to.
+     */
+    private static class QueryTransferUtil extends TransferUtil
+    {
+        private final IQueryRemote fRemote;
+
+        public QueryTransferUtil(StringTransferUtil stUtil,
+            BinaryTransferUtil btUtil, IQueryRemote remote)
+        {
+            super(stUtil, btUtil);
+
+            fRemote = remote;
+        }
+
+        @Override
+        public void sendMessage(WebsockQuery query) throws Exception
+        {
+            fRemote.setQuery(query);
+            try
+            {
+                super.sendMessage(query);
+            }
+            finally
+            {
+                fRemote.setQuery(null);
+            }
+        }
+    }
 }
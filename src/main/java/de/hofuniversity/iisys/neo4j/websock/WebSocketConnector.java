@@ -17,17 +17,29 @@
 package de.hofuniversity.iisys.neo4j.websock;
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.websocket.DeploymentException;
 import javax.websocket.Session;
+import javax.websocket.WebSocketContainer;
 
 import de.hofuniversity.iisys.neo4j.websock.queries.BasicQueryHandler;
 import de.hofuniversity.iisys.neo4j.websock.queries.IQueryHandler;
 import de.hofuniversity.iisys.neo4j.websock.util.ConnectionWatchdog;
+import de.hofuniversity.iisys.neo4j.websock.util.ContainerFactory;
 import de.hofuniversity.iisys.neo4j.websock.util.HashUtil;
+import de.hofuniversity.iisys.neo4j.websock.util.NamedThreadFactory;
 import de.hofuniversity.iisys.neo4j.websock.util.PingWatchdog;
+import de.hofuniversity.iisys.neo4j.websock.util.QueuedAsyncRemote;
+import de.hofuniversity.iisys.neo4j.websock.util.ReconnectPolicy;
 
 /**
  * Utility class for connecting to a remote websocket and starting a query
@@ -35,6 +47,10 @@ import de.hofuniversity.iisys.neo4j.websock.util.PingWatchdog;
  */
 public class WebSocketConnector
 {
+    public static final int DEFAULT_SCHEDULER_THREADS = 2;
+
+    private static final long CONNECT_THREAD_IDLE_MS = 60000;
+
     private final String fUri;
 
     private final Logger fLogger;
@@ -47,6 +63,19 @@ public class WebSocketConnector
     private boolean fFailOnError = false;
     private boolean fWatchdogEnabled = true;
 
+    private ESendMode fSendMode = ESendMode.BLOCKING;
+    private int fQueueSize = QueuedAsyncRemote.DEFAULT_QUEUE_SIZE;
+
+    private Executor fDecoder;
+    private Executor fWriter;
+
+    private ScheduledExecutorService fScheduler;
+    private boolean fOwnScheduler;
+    private ExecutorService fConnectPool;
+
+    private WebSocketContainer fContainer;
+    private ReconnectPolicy fReconnectPolicy;
+
     private PingWatchdog fPingWatchdog;
 
     /**
@@ -89,6 +118,155 @@ public class WebSocketConnector
         fWatchdogEnabled = enabled;
     }
 
+    /**
+     * @return how outgoing messages are written
+     */
+    public ESendMode getSendMode()
+    {
+        return fSendMode;
+    }
+
+    /**
+     * @return maximum number of queued outgoing messages per connection
+     */
+    public int getSendQueueSize()
+    {
+        return fQueueSize;
+    }
+
+    /**
+     * Sets how outgoing messages are written and the maximum number of
+     * queued outgoing messages per connection, if the mode uses a queue.
+     * Must be set before connecting, the mode must not be null.
+     *
+     * @param mode how to write outgoing messages
+     * @param queueSize maximum number of queued outgoing messages
+     */
+    public void setSendMode(ESendMode mode, int queueSize)
+    {
+        if(mode == null)
+        {
+            throw new NullPointerException("send mode was null");
+        }
+
+        fSendMode = mode;
+        fQueueSize = queueSize;
+    }
+
+    /**
+     * @return executor decoding incoming messages or null
+     */
+    public Executor getDecoderExecutor()
+    {
+        return fDecoder;
+    }
+
+    /**
+     * Sets the executor that decodes incoming messages and converts results
+     * for all connections, instead of the container's I/O threads.
+     * If it is null, messages are decoded on the receiving I/O thread.
+     * Must be set before connecting. The executor is not shut down when
+     * disconnecting.
+     *
+     * @param executor executor for incoming messages or null
+     */
+    public void setDecoderExecutor(Executor executor)
+    {
+        fDecoder = executor;
+    }
+
+    /**
+     * @return executor running connection writers or null
+     */
+    public Executor getWriterExecutor()
+    {
+        return fWriter;
+    }
+
+    /**
+     * Sets the executor running the writer of each connection in the WRITER
+     * and COALESCING_WRITER send modes. Each writer occupies one of its
+     * threads while its connection is open, so it needs a thread per
+     * connection. If it is null, each connection starts a dedicated thread.
+     * Must be set before connecting. The executor is not shut down when
+     * disconnecting.
+     *
+     * @param executor executor for connection writers or null
+     */
+    public void setWriterExecutor(Executor executor)
+    {
+        fWriter = executor;
+    }
+
+    /**
+     * @return scheduler running the handler's and watchdogs' periodic tasks
+     *      or null if none has been set or created yet
+     */
+    public ScheduledExecutorService getScheduler()
+    {
+        return fScheduler;
+    }
+
+    /**
+     * Sets the scheduler running the query handler's timeout checks and the
+     * watchdogs' connection checks and pings. It can be shared by several
+     * connectors and is not shut down when disconnecting.
+     * If it is null, the connector creates its own scheduler with
+     * DEFAULT_SCHEDULER_THREADS threads, which is shut down when
+     * disconnecting. Must be set before connecting.
+     *
+     * @param scheduler scheduler for periodic tasks or null
+     */
+    public void setScheduler(ScheduledExecutorService scheduler)
+    {
+        fScheduler = scheduler;
+        fOwnScheduler = false;
+    }
+
+    /**
+     * @return websocket container shared by all connections or null if none
+     *      has been set or created yet
+     */
+    public WebSocketContainer getContainer()
+    {
+        return fContainer;
+    }
+
+    /**
+     * Sets the websocket container shared by all connections for connecting
+     * and reconnecting. It can be preconfigured using a ContainerFactory and
+     * shared by several connectors.
+     * If it is null, the connector creates one with a default ContainerFactory
+     * when connecting. Must be set before connecting.
+     *
+     * @param container shared websocket container or null
+     */
+    public void setContainer(WebSocketContainer container)
+    {
+        fContainer = container;
+    }
+
+    /**
+     * @return policy deciding the delays between reconnection attempts or
+     *      null for the watchdogs' default
+     */
+    public ReconnectPolicy getReconnectPolicy()
+    {
+        return fReconnectPolicy;
+    }
+
+    /**
+     * Sets the policy deciding the delays between reconnection attempts after
+     * a connection was lost. If it is null, the watchdogs' default policy is
+     * used. Must be set before connecting.
+     *
+     * @param policy policy deciding the delays between attempts or null
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy)
+    {
+        fReconnectPolicy = policy;
+    }
+
     /**
      * Returns whether the connector will stop connecting if an error occurs
      * during initially creating connections. If this is false, connecting
@@ -161,6 +339,15 @@ public class WebSocketConnector
             //connect
             fConnWatchdog = new ConnectionWatchdog(fUri, fQueryHandler,
                 fFormat, fCompression);
+            fConnWatchdog.setSendMode(fSendMode, fQueueSize);
+            fConnWatchdog.setDecoderExecutor(fDecoder);
+            fConnWatchdog.setWriterExecutor(fWriter);
+            fConnWatchdog.setContainer(getOrCreateContainer());
+            fConnWatchdog.setConnectExecutor(getOrCreateConnectPool());
+            if(fReconnectPolicy != null)
+            {
+                fConnWatchdog.setReconnectPolicy(fReconnectPolicy);
+            }
 
             if(user != null && password != null)
             {
@@ -197,18 +384,16 @@ public class WebSocketConnector
             }
 
             //activate query handler
-            Thread queryHandlerThread = new Thread(fQueryHandler);
-            queryHandlerThread.start();
+            final ScheduledExecutorService scheduler = getOrCreateScheduler();
+            fQueryHandler.start(scheduler);
 
             //start watchdogs
-            Thread connectionThread = new Thread(fConnWatchdog);
-            connectionThread.start();
+            fConnWatchdog.start(scheduler);
 
             if(fWatchdogEnabled)
             {
                 fPingWatchdog = new PingWatchdog(fQueryHandler);
-                Thread watchdogThread = new Thread(fPingWatchdog);
-                watchdogThread.start();
+                fPingWatchdog.start(scheduler);
             }
         }
 
@@ -257,5 +442,59 @@ public class WebSocketConnector
         }
 
         fQueryHandler.deactivate();
+
+        //stop reconnection attempts
+        if(fConnectPool != null)
+        {
+            fConnectPool.shutdownNow();
+            fConnectPool = null;
+        }
+
+        //only shut down a scheduler created by this connector
+        if(fOwnScheduler)
+        {
+            fScheduler.shutdown();
+            fScheduler = null;
+            fOwnScheduler = false;
+        }
+    }
+
+    private WebSocketContainer getOrCreateContainer()
+    {
+        if(fContainer == null)
+        {
+            fContainer = new ContainerFactory().create();
+        }
+
+        return fContainer;
+    }
+
+    private ExecutorService getOrCreateConnectPool()
+    {
+        if(fConnectPool == null)
+        {
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1,
+                CONNECT_THREAD_IDLE_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("websocket connect", true));
+            pool.allowCoreThreadTimeOut(true);
+
+            fConnectPool = pool;
+        }
+
+        return fConnectPool;
+    }
+
+    private ScheduledExecutorService getOrCreateScheduler()
+    {
+        if(fScheduler == null)
+        {
+            fScheduler = Executors.newScheduledThreadPool(
+                DEFAULT_SCHEDULER_THREADS,
+                new NamedThreadFactory("websocket scheduler", false));
+            fOwnScheduler = true;
+        }
+
+        return fScheduler;
     }
 }
@@ -16,13 +16,20 @@
  */
 package de.hofuniversity.iisys.neo4j.websock.queries;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,35 +44,28 @@ import de.hofuniversity.iisys.neo4j.websock.util.ResultSetConverter;
  * Handler for incoming and outgoing messages that handles responses to
  * previously sent messages and queries and handles timeouts and retries.
  */
-public class BasicQueryHandler implements IQueryHandler
+public class BasicQueryHandler implements IExtendedQueryHandler
 {
     public static final long DEFAULT_TIMEOUT_MS = 300000;
-    public static final long DEFAULT_TIMER_MS = 1000;
+    public static final long DEFAULT_TIMER_MS = 100;
     public static final int DEFAULT_RETRIES = 0;
 
-    public static final int ID_POOLS = 40;
-    public static final int ID_POOL_SIZE = 100000;
-
     private final Object fTrigger;
 
-    private final Object[] fPoolIdLocks;
-    private final int[] fPoolIds;
-
-    private final Map<Integer, WebsockQuery> fPendingQueries;
-    private final Map<Integer, IMessageCallback> fPendingMessages;
-    private final Map<Integer, IQueryCallback> fPendingResults;
-
-    private final Map<Integer, Long> fTimeouts;
-    private final Map<Integer, Integer> fRetries;
+    private final PendingRequestTable fPending;
+    private final Set<PendingRequest> fOrphans;
+    private final TimingWheel fTimeouts;
+    private final RequestIdAllocator fIds;
 
     private final List<WebsockQuery> fUnhandled;
 
     private final Map<String, WebsockQuery> fProcedureQueries;
+    private final ConcurrentMap<String, AtomicLong> fProcedureGenerations;
 
     private final Logger fLogger;
     private final boolean fDebug;
 
-    private TransferUtil fTransfer;
+    private volatile TransferUtil fTransfer;
 
     private long fTimeout;
     private long fTimerInt;
@@ -73,10 +73,19 @@ public class BasicQueryHandler implements IQueryHandler
 
     private boolean fResendProcedures;
 
+    private Executor fCallbackExecutor;
+
+    private volatile QueryCoalescer fCoalescer;
+    private volatile IResultCache fResultCache;
+    private volatile StatementPromoter fPromoter;
+    private volatile IRetryPolicy fRetryPolicy;
+
     private int fPoolCounter;
-    private int fIdPoolCounter;
 
-    private boolean fActive;
+    private ScheduledExecutorService fScheduler;
+    private ScheduledFuture<?> fTask;
+
+    private volatile boolean fActive;
 
     /**
      * Creates a single-connection query handler with default values that still
@@ -86,27 +95,15 @@ public class BasicQueryHandler implements IQueryHandler
     {
         fTrigger = new Object();
 
-        fPoolIdLocks = new Object[ID_POOLS];
-        fPoolIds = new int[ID_POOLS];
-
-        //initialize separated ID pools
-        for(int i = 0; i < ID_POOLS; ++i)
-        {
-            fPoolIdLocks[i] = new Object();
-            fPoolIds[i] = i * ID_POOL_SIZE;
-        }
-        fIdPoolCounter = 0;
-
-        fPendingQueries = new HashMap<Integer, WebsockQuery>();
-        fPendingMessages = new HashMap<Integer, IMessageCallback>();
-        fPendingResults = new HashMap<Integer, IQueryCallback>();
-
-        fTimeouts = new HashMap<Integer, Long>();
-        fRetries = new HashMap<Integer, Integer>();
+        fPending = new PendingRequestTable();
+        fOrphans = new LinkedHashSet<PendingRequest>();
+        fTimeouts = new TimingWheel();
+        fIds = new RequestIdAllocator(fPending);
 
         fUnhandled = new LinkedList<WebsockQuery>();
 
-        fProcedureQueries = new HashMap<String, WebsockQuery>();
+        fProcedureQueries = new ConcurrentHashMap<String, WebsockQuery>();
+        fProcedureGenerations = new ConcurrentHashMap<String, AtomicLong>();
 
         fLogger = Logger.getLogger(this.getClass().getName());
         fDebug = (fLogger.getLevel() == Level.FINEST);
@@ -128,14 +125,130 @@ public class BasicQueryHandler implements IQueryHandler
             //re-create runtime stored procedures for new server
             resendProcedureQueries(util);
         }
+
+        //resend idempotent requests that lost their connection
+        resendOrphans();
+    }
+
+    private void resendOrphans()
+    {
+        final List<PendingRequest> orphans;
+        synchronized(fOrphans)
+        {
+            orphans = new ArrayList<PendingRequest>(fOrphans);
+            fOrphans.clear();
+        }
+
+        for(PendingRequest request : orphans)
+        {
+            request.setOrphaned(false);
+            resend(request);
+        }
+    }
+
+    private boolean unpark(final PendingRequest request)
+    {
+        synchronized(fOrphans)
+        {
+            if(fOrphans.remove(request))
+            {
+                request.setOrphaned(false);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void resend(final PendingRequest request)
+    {
+        final TransferUtil util = fTransfer;
+
+        //ignore requests completed in the meantime
+        if(fPending.get(request.getId()) != request)
+        {
+            return;
+        }
+
+        //lost the connection again
+        if(util == null)
+        {
+            orphan(request);
+            return;
+        }
+
+        //the deadline of the current attempt keeps running
+        try
+        {
+            util.sendMessage(request.getQuery());
+        }
+        catch (Exception e)
+        {
+            fLogger.log(Level.SEVERE,
+                "failed to resend query to server", e);
+        }
+    }
+
+    @Override
+    public void addTransferUtil(TransferUtil util, String server)
+    {
+        //only one server, no statistics needed
+        addTransferUtil(util);
     }
 
     @Override
     public void removeTransferUtil(TransferUtil util)
     {
-        if(fTransfer == util)
+        if(util != null && fTransfer == util)
         {
             fTransfer = null;
+
+            //idempotent requests are resent once a new utility is added
+            connectionLost();
+        }
+    }
+
+    private void connectionLost()
+    {
+        for(PendingRequest request : fPending.values())
+        {
+            //requests waiting for a retry find out when they are resent
+            if(request.isRetryPending())
+            {
+                continue;
+            }
+
+            if(isIdempotent(request))
+            {
+                orphan(request);
+            }
+            else if(claim(request))
+            {
+                request.getCallback().setErrorMessage("connection lost");
+            }
+        }
+    }
+
+    private boolean isIdempotent(final PendingRequest request)
+    {
+        final RequestOptions options = request.getOptions();
+        return options != null && options.isIdempotent();
+    }
+
+    private void orphan(final PendingRequest request)
+    {
+        //wait for the next connection until the current deadline passes
+        request.setOrphaned(true);
+
+        synchronized(fOrphans)
+        {
+            fOrphans.add(request);
+        }
+
+        //a connection may have been added in the meantime
+        if(fTransfer != null)
+        {
+            resendOrphans();
         }
     }
 
@@ -168,7 +281,8 @@ public class BasicQueryHandler implements IQueryHandler
 
     /**
      * Sets the number of milliseconds to wait after each check for timeouts of
-     * pending queries.
+     * pending queries. Checks only touch expired queries, so this interval
+     * mainly determines the accuracy of timeouts.
      * 0 and negative values are ignored.
      *
      * @param timerInterval milliseconds between timeout checks
@@ -183,6 +297,15 @@ public class BasicQueryHandler implements IQueryHandler
             {
                 fTrigger.notify();
             }
+
+            //apply new interval to scheduled checks
+            synchronized(this)
+            {
+                if(fTask != null)
+                {
+                    schedule();
+                }
+            }
         }
     }
 
@@ -205,6 +328,26 @@ public class BasicQueryHandler implements IQueryHandler
         fRetryNum = retries;
     }
 
+    /**
+     * @return policy for resending timed out requests or null
+     */
+    public IRetryPolicy getRetryPolicy()
+    {
+        return fRetryPolicy;
+    }
+
+    /**
+     * Sets the policy deciding how long to wait before resending a timed
+     * out request.
+     * If it is null, requests are resent immediately.
+     *
+     * @param policy retry policy to use or null
+     */
+    public void setRetryPolicy(IRetryPolicy policy)
+    {
+        fRetryPolicy = policy;
+    }
+
     /**
      * @return whether runtime stored procedures will be recreated for new
      *      connections
@@ -223,6 +366,86 @@ public class BasicQueryHandler implements IQueryHandler
         fResendProcedures = resendProcedures;
     }
 
+    /**
+     * @return executor running listeners of asynchronous futures or null
+     */
+    public Executor getCallbackExecutor()
+    {
+        return fCallbackExecutor;
+    }
+
+    /**
+     * Sets the executor running listeners of futures returned by the
+     * asynchronous send methods. If it is null, listeners are run directly
+     * on the thread receiving the response, so they must not block.
+     *
+     * @param executor executor for listeners or null
+     */
+    public void setCallbackExecutor(Executor executor)
+    {
+        fCallbackExecutor = executor;
+    }
+
+    /**
+     * @return coalescer for identical procedure calls or null
+     */
+    public QueryCoalescer getCoalescer()
+    {
+        return fCoalescer;
+    }
+
+    /**
+     * Sets the coalescer used to send identical calls to whitelisted
+     * procedures only once while one of them is in flight.
+     * If it is null, all queries are sent.
+     *
+     * @param coalescer coalescer to use or null
+     */
+    public void setCoalescer(QueryCoalescer coalescer)
+    {
+        fCoalescer = coalescer;
+    }
+
+    /**
+     * @return cache for procedure call results or null
+     */
+    public IResultCache getResultCache()
+    {
+        return fResultCache;
+    }
+
+    /**
+     * Sets the cache answering procedure calls with previous results.
+     * Storing or deleting a procedure invalidates its cached results.
+     * If it is null, all queries are sent.
+     *
+     * @param cache result cache to use or null
+     */
+    public void setResultCache(IResultCache cache)
+    {
+        fResultCache = cache;
+    }
+
+    /**
+     * @return promoter of frequent Cypher statements or null
+     */
+    public StatementPromoter getStatementPromoter()
+    {
+        return fPromoter;
+    }
+
+    /**
+     * Sets the promoter storing frequent Cypher statements as procedures
+     * and sending them as procedure calls afterwards.
+     * If it is null, statements are always sent as they are.
+     *
+     * @param promoter statement promoter to use or null
+     */
+    public void setStatementPromoter(StatementPromoter promoter)
+    {
+        fPromoter = promoter;
+    }
+
     @Override
     public boolean handleMessage(final WebsockQuery message)
     {
@@ -236,8 +459,16 @@ public class BasicQueryHandler implements IQueryHandler
         int id = message.getId();
         EQueryType type = message.getType();
 
-        IMessageCallback mcb = fPendingMessages.get(id);
-        IQueryCallback qcb = fPendingResults.get(id);
+        //claim request, so it can only be completed once
+        final PendingRequest request = claim(id);
+        IMessageCallback mcb = null;
+        IQueryCallback qcb = null;
+
+        if(request != null)
+        {
+            mcb = request.getMessageCallback();
+            qcb = request.getQueryCallback();
+        }
 
         if(qcb != null)
         {
@@ -246,8 +477,26 @@ public class BasicQueryHandler implements IQueryHandler
                 @SuppressWarnings("unchecked")
                 Map<String, Object> map =
                     (Map<String, Object>) message.getPayload();
-                AResultSet<?> set = ResultSetConverter.toResultSet(map);
-                qcb.setResult(set);
+
+                final IResultCache cache = fResultCache;
+
+                //cached results are converted once and shared
+                if(cache != null && cache.isCacheable(request.getQuery()))
+                {
+                    AResultSet<?> set = ResultSetConverter.toResultSet(map);
+                    cacheResult(cache, request, set);
+                    qcb.setResult(set);
+                }
+                //lazy callbacks convert when the result is read
+                else if(qcb instanceof ILazyQueryCallback)
+                {
+                    ((ILazyQueryCallback) qcb).setPayload(map);
+                }
+                else
+                {
+                    AResultSet<?> set = ResultSetConverter.toResultSet(map);
+                    qcb.setResult(set);
+                }
             }
             else if(message.getPayload() != null)
             {
@@ -286,8 +535,6 @@ public class BasicQueryHandler implements IQueryHandler
                 fLogger.log(Level.FINEST, "query " + id + ":" + type
                     + " handled; clearing");
             }
-
-            done(id);
         }
         else if(!retry)
         {
@@ -325,6 +572,33 @@ public class BasicQueryHandler implements IQueryHandler
         return future;
     }
 
+    @Override
+    public MessageFuture sendMessageAsync(WebsockQuery message)
+    {
+        MessageFuture future = new MessageFuture(fCallbackExecutor);
+
+        sendMessage(message, future);
+
+        return future;
+    }
+
+    @Override
+    public ResultFuture sendQueryAsync(WebsockQuery query)
+    {
+        ResultFuture future = new ResultFuture(fCallbackExecutor);
+
+        sendQuery(query, future);
+
+        return future;
+    }
+
+    @Override
+    public PagedResultIterator sendPagedQuery(WebsockQuery query,
+        int pageSize, int prefetch)
+    {
+        return new PagedResultIterator(this, query, pageSize, prefetch);
+    }
+
     @Override
     public void sendMessage(WebsockQuery message, IMessageCallback callback)
     {
@@ -341,18 +615,7 @@ public class BasicQueryHandler implements IQueryHandler
         message.setId(id);
 
         //register message as waiting for a response
-        synchronized(fPendingQueries)
-        {
-            fPendingQueries.put(id, message);
-        }
-        synchronized(fPendingMessages)
-        {
-            fPendingMessages.put(id, callback);
-        }
-        synchronized(fTimeouts)
-        {
-            fTimeouts.put(id, System.currentTimeMillis());
-        }
+        register(new PendingRequest(message, callback));
 
         //send message
         try
@@ -370,13 +633,53 @@ public class BasicQueryHandler implements IQueryHandler
             e.printStackTrace();
             fLogger.log(Level.SEVERE, "failed to send message to server", e);
             callback.setErrorMessage("failed to send message to server");
-            done(id);
+            claim(id);
         }
     }
 
     @Override
     public void sendQuery(WebsockQuery query, IQueryCallback callback)
     {
+        sendQuery(query, callback, null);
+    }
+
+    @Override
+    public void sendQuery(WebsockQuery query, IQueryCallback callback,
+        RequestOptions options)
+    {
+        //send frequent statements as procedure calls
+        final WebsockQuery submitted = query;
+        final StatementPromoter promoter = fPromoter;
+        if(promoter != null)
+        {
+            query = promoter.promote(query, this);
+        }
+
+        //answer from cache if possible
+        final IResultCache cache = fResultCache;
+        if(cache != null)
+        {
+            final AResultSet<?> cached = cache.get(query);
+
+            if(cached != null)
+            {
+                callback.setResult(cached);
+                return;
+            }
+        }
+
+        //attach to identical query in flight if possible
+        final QueryCoalescer coalescer = fCoalescer;
+        if(coalescer != null)
+        {
+            callback = coalescer.coalesce(query, callback);
+
+            if(callback == null)
+            {
+                return;
+            }
+        }
+
         //check if session is open
         if(fTransfer == null)
         {
@@ -388,18 +691,13 @@ public class BasicQueryHandler implements IQueryHandler
         final int id = getId();
         query.setId(id);
 
-        synchronized(fPendingQueries)
-        {
-            fPendingQueries.put(id, query);
-        }
-        synchronized(fPendingResults)
-        {
-            fPendingResults.put(id, callback);
-        }
-        synchronized(fTimeouts)
-        {
-            fTimeouts.put(id, System.currentTimeMillis());
-        }
+        //promoted calls can be cancelled through the caller's query
+        submitted.setId(id);
+
+        final PendingRequest request = new PendingRequest(query, callback);
+        request.setOptions(options);
+        request.setCacheGeneration(getGeneration(query));
+        register(request);
 
         try
         {
@@ -416,7 +714,7 @@ public class BasicQueryHandler implements IQueryHandler
             e.printStackTrace();
             fLogger.log(Level.SEVERE, "failed to send query to server", e);
             callback.setErrorMessage("failed to send message to server");
-            done(id);
+            claim(id);
         }
     }
 
@@ -444,18 +742,7 @@ public class BasicQueryHandler implements IQueryHandler
         final int id = getId();
         message.setId(id);
 
-        synchronized(fPendingQueries)
-        {
-            fPendingQueries.put(id, message);
-        }
-        synchronized(fPendingMessages)
-        {
-            fPendingMessages.put(id, callback);
-        }
-        synchronized(fTimeouts)
-        {
-            fTimeouts.put(id, System.currentTimeMillis());
-        }
+        register(new PendingRequest(message, callback));
 
         try
         {
@@ -466,31 +753,92 @@ public class BasicQueryHandler implements IQueryHandler
             e.printStackTrace();
             fLogger.log(Level.SEVERE, "failed to send message to server", e);
             callback.setErrorMessage("failed to send message to server");
-            done(id);
+            claim(id);
         }
     }
 
     private void handleProcedureQuery(final WebsockQuery query)
     {
-        //TODO: synchronization?
+        String name = null;
 
         if(query.getType() == EQueryType.STORE_PROCEDURE)
         {
-            String name = query.getParameter(
+            name = query.getParameter(
                 WebsockConstants.PROCEDURE_NAME).toString();
             fProcedureQueries.put(name, query);
         }
         else if(query.getType() == EQueryType.DELETE_PROCEDURE)
         {
-            String name = query.getPayload().toString();
+            name = query.getPayload().toString();
             fProcedureQueries.remove(name);
         }
+
+        //previous results and results of calls in flight are no longer valid
+        if(name != null)
+        {
+            AtomicLong generation = fProcedureGenerations.get(name);
+            if(generation == null)
+            {
+                generation = new AtomicLong();
+                final AtomicLong old = fProcedureGenerations.putIfAbsent(name,
+                    generation);
+                if(old != null)
+                {
+                    generation = old;
+                }
+            }
+            generation.incrementAndGet();
+        }
+
+        final IResultCache cache = fResultCache;
+        if(cache != null && name != null)
+        {
+            cache.invalidate(name);
+        }
     }
 
-    private void resendProcedureQueries(final TransferUtil util)
+    private long getGeneration(final WebsockQuery query)
     {
-        //TODO: synchronization?
+        final Object name = query.getParameter(
+            WebsockConstants.PROCEDURE_NAME);
 
+        AtomicLong generation = null;
+        if(name != null)
+        {
+            generation = fProcedureGenerations.get(name.toString());
+        }
+
+        if(generation != null)
+        {
+            return generation.get();
+        }
+        return 0;
+    }
+
+    private void cacheResult(final IResultCache cache,
+        final PendingRequest request, final AResultSet<?> result)
+    {
+        final WebsockQuery query = request.getQuery();
+        final long generation = request.getCacheGeneration();
+
+        //the procedure was changed while the call was in flight
+        if(getGeneration(query) != generation)
+        {
+            return;
+        }
+
+        cache.put(query, result);
+
+        //changed while caching, the invalidation may have missed the result
+        if(getGeneration(query) != generation)
+        {
+            cache.invalidate(query.getParameter(
+                WebsockConstants.PROCEDURE_NAME).toString());
+        }
+    }
+
+    private void resendProcedureQueries(final TransferUtil util)
+    {
         int id = 0;
         WebsockQuery query = null;
         WebsockQuery oldQuery = null;
@@ -513,7 +861,7 @@ public class BasicQueryHandler implements IQueryHandler
             try
             {
                 callback = new MessageFuture();
-                fPendingMessages.put(id, callback);
+                register(new PendingRequest(query, callback));
 
                 util.sendMessage(query);
             }
@@ -529,69 +877,83 @@ public class BasicQueryHandler implements IQueryHandler
     @Override
     public int getId()
     {
-        final int idIndex = ++fIdPoolCounter % ID_POOLS;
-        int id = 1;
+        return fIds.next();
+    }
 
-        synchronized(fPoolIdLocks[idIndex])
-        {
-            id = fPoolIds[idIndex]++;
+    /**
+     * @return number of IDs skipped because they were still in use
+     */
+    public long getIdCollisions()
+    {
+        return fIds.getCollisions();
+    }
 
-            //wrap on overflow
-            if(fPoolIds[idIndex] == ID_POOL_SIZE * (idIndex + 1))
-            {
-                fPoolIds[idIndex]= ID_POOL_SIZE * idIndex;
-            }
+    private void register(final PendingRequest request)
+    {
+        fPending.put(request);
+
+        final long timeout = getTimeout(request);
+        if(timeout > 0)
+        {
+            fTimeouts.schedule(request, request.getSendTime() + timeout);
         }
+    }
 
-        return id;
+    private long getTimeout(final PendingRequest request)
+    {
+        final RequestOptions options = request.getOptions();
+        return options != null ? options.getTimeout() : fTimeout;
     }
 
-    private void done(int id)
+    private int getRetries(final PendingRequest request)
     {
-        synchronized(fPendingMessages)
-        {
-            fPendingMessages.remove(id);
-        }
-        synchronized(fPendingQueries)
-        {
-            fPendingQueries.remove(id);
-        }
-        synchronized(fPendingResults)
-        {
-            fPendingResults.remove(id);
-        }
-        synchronized(fTimeouts)
-        {
-            fTimeouts.remove(id);
-        }
-        synchronized(fRetries)
-        {
-            fRetries.remove(id);
-        }
+        final RequestOptions options = request.getOptions();
+        return options != null ? options.getRetries() : fRetryNum;
     }
 
-    @Override
-    public void cancel(int id)
+    private PendingRequest claim(final int id)
     {
-        synchronized(fPendingMessages)
+        final PendingRequest request = fPending.remove(id);
+
+        if(request != null)
         {
-            IErrorFuture<?> fut = fPendingMessages.get(id);
-            if(fut != null)
+            fTimeouts.cancel(request);
+
+            if(request.isOrphaned())
             {
-                fut.cancel(true);
+                unpark(request);
             }
         }
 
-        synchronized(fPendingResults)
+        return request;
+    }
+
+    private boolean claim(final PendingRequest request)
+    {
+        final boolean claimed = fPending.remove(request);
+
+        if(claimed)
         {
-            IErrorFuture<?> fut = fPendingResults.get(id);
-            if(fut != null)
+            fTimeouts.cancel(request);
+
+            if(request.isOrphaned())
             {
-                fut.cancel(true);
+                unpark(request);
             }
         }
 
-        done(id);
+        return claimed;
+    }
+
+    @Override
+    public void cancel(int id)
+    {
+        final PendingRequest request = claim(id);
+
+        if(request != null)
+        {
+            request.getCallback().cancel(true);
+        }
     }
 
     @Override
@@ -599,145 +961,221 @@ public class BasicQueryHandler implements IQueryHandler
     {
         fActive = true;
 
-        long maxTime = 0;
-        final Set<Integer> timedOut = new HashSet<Integer>();
-
         while(fActive)
         {
-            //retry stray responses
-            synchronized(fUnhandled)
+            check();
+
+            try
             {
-                for(WebsockQuery message : fUnhandled)
+                synchronized(fTrigger)
                 {
-                    handleMessage(message, true);
+                    fTrigger.wait(fTimerInt);
                 }
-
-                fUnhandled.clear();
             }
-
-            //check for timeouts if activated
-            if(fTimeout > 0)
+            catch(Exception e)
             {
-                maxTime = System.currentTimeMillis() - fTimeout;
+                e.printStackTrace();
+            }
+        }
+    }
 
-                synchronized(fTimeouts)
-                {
-                    for(Entry<Integer, Long> timeE : fTimeouts.entrySet())
-                    {
-                        if(timeE.getValue() < maxTime)
-                        {
-                            timedOut.add(timeE.getKey());
-                        }
-                    }
-                }
+    /**
+     * Runs the timeout and retry mechanism as a periodic task on the given
+     * scheduler instead of a dedicated thread, until the handler is
+     * deactivated. The scheduler is not shut down by the handler.
+     * The given scheduler must not be null.
+     *
+     * @param scheduler scheduler to run checks on
+     */
+    public synchronized void start(ScheduledExecutorService scheduler)
+    {
+        if(scheduler == null)
+        {
+            throw new NullPointerException("scheduler was null");
+        }
 
-                for(Integer id : timedOut)
-                {
-                    timeout(id);
-                }
-                timedOut.clear();
-            }
+        fActive = true;
+        fScheduler = scheduler;
+        schedule();
+    }
 
-            try
+    private synchronized void schedule()
+    {
+        if(fTask != null)
+        {
+            fTask.cancel(false);
+        }
+
+        fTask = fScheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
             {
-                synchronized(fTrigger)
+                //exceptions would stop all further checks
+                try
                 {
-                    fTrigger.wait(fTimerInt);
+                    check();
+                }
+                catch(Exception e)
+                {
+                    fLogger.log(Level.SEVERE, "timeout check failed", e);
                 }
             }
-            catch(Exception e)
+        }, fTimerInt, fTimerInt, TimeUnit.MILLISECONDS);
+    }
+
+    private void check()
+    {
+        //retry stray responses
+        synchronized(fUnhandled)
+        {
+            for(WebsockQuery message : fUnhandled)
             {
-                e.printStackTrace();
+                handleMessage(message, true);
             }
+
+            fUnhandled.clear();
+        }
+
+        //collect and handle expired deadlines, runs may overlap while the
+        //check is rescheduled
+        final List<TimingWheel.Entry> timedOut =
+            new ArrayList<TimingWheel.Entry>();
+        fTimeouts.advance(System.currentTimeMillis(), timedOut);
+
+        for(TimingWheel.Entry entry : timedOut)
+        {
+            timeout((PendingRequest) entry);
         }
     }
 
-    private void timeout(final int id)
+    private void timeout(final PendingRequest request)
     {
-        //TODO: synchronization?
+        final WebsockQuery query = request.getQuery();
 
-        final WebsockQuery query = fPendingQueries.get(id);
+        //ignore requests completed in the meantime
+        if(fPending.get(request.getId()) != request)
+        {
+            return;
+        }
 
-        if(query == null)
+        //resend requests that waited for their retry
+        if(request.isRetryPending())
         {
-            fLogger.log(Level.SEVERE, "missing query " + id + " timed out");
-            done(id);
+            request.setRetryPending(false);
+            retry(request);
             return;
         }
 
-        fLogger.log(Level.WARNING, "query timed out:\n" + query.getPayload());
+        //fail requests still waiting for a new connection at their deadline
+        if(request.isOrphaned() && unpark(request))
+        {
+            if(claim(request))
+            {
+                request.getCallback().setErrorMessage("connection lost");
 
-        //retry if retries left, cancel otherwise
-        Integer retries = fRetries.get(id);
-        if(retries == null)
+                fLogger.log(Level.SEVERE, "query "+ query.getId()
+                    + " cancelled (connection lost)");
+            }
+            return;
+        }
+
+        //ignore requests whose timeouts were deactivated after sending
+        final long timeout = getTimeout(request);
+        if(timeout <= 0)
         {
-            retries = 0;
+            return;
         }
 
-        if(retries < fRetryNum)
+        fLogger.log(Level.WARNING, "query timed out:\n" + query.getPayload());
+
+        //retry if retries left, cancel otherwise
+        if(request.getRetries() < getRetries(request))
         {
-            ++retries;
-            fRetries.put(id, retries);
+            final int retries = request.incrementRetries();
             fLogger.log(Level.WARNING, "retry " + retries + " for query "
                 + query.getId());
 
-            synchronized(fTimeouts)
-            {
-                fTimeouts.put(id, System.currentTimeMillis());
-            }
+            //wait before resending if the policy asks for it
+            final IRetryPolicy policy = fRetryPolicy;
+            final long delay = policy != null ? policy.getDelay(retries) : 0;
 
-            try
+            if(delay > 0)
             {
-                if(fTransfer == null)
-                {
-                    //cancel query if no connections are available
-                    IErrorFuture<?> fut = fPendingMessages.get(id);
-                    if(fut != null)
-                    {
-                        fut.setErrorMessage("no connections availabe");
-                    }
-
-                    fut = fPendingResults.get(id);
-                    if(fut != null)
-                    {
-                        fut.setErrorMessage("no connections availabe");
-                    }
-
-                    done(id);
-                }
-                else
+                request.setRetryPending(true);
+                fTimeouts.schedule(request, System.currentTimeMillis() + delay);
+
+                //do not keep a timer for a request completed concurrently
+                if(fPending.get(request.getId()) != request)
                 {
-                    fTransfer.sendMessage(query);
+                    fTimeouts.cancel(request);
                 }
             }
-            catch (Exception e)
+            else
             {
-                e.printStackTrace();
-                fLogger.log(Level.SEVERE,
-                    "failed to retry sending query to server", e);
+                retry(request);
             }
         }
-        else
+        //otherwise cancel - error, unless a response arrived in the meantime
+        else if(claim(request))
         {
-            //otherwise cancel - error
-            IErrorFuture<?> fut = fPendingMessages.get(id);
-            if(fut != null)
-            {
-                fut.setErrorMessage("timeout error");
-            }
-
-            fut = fPendingResults.get(id);
-            if(fut != null)
-            {
-                fut.setErrorMessage("timeout error");
-            }
+            request.getCallback().setErrorMessage("timeout error");
 
             fLogger.log(Level.SEVERE, "query "+ query.getId() + " cancelled "
                 + "(no retries left)");
+        }
+    }
+
+    private void retry(final PendingRequest request)
+    {
+        final WebsockQuery query = request.getQuery();
+        final TransferUtil util = fTransfer;
 
-            done(id);
+        request.setSendTime(System.currentTimeMillis());
+
+        final long timeout = getTimeout(request);
+        if(timeout > 0)
+        {
+            fTimeouts.schedule(request, request.getSendTime() + timeout);
+        }
+
+        //do not keep a timer for a request completed concurrently
+        if(fPending.get(request.getId()) != request)
+        {
+            fTimeouts.cancel(request);
+            return;
         }
 
+        //idempotent requests wait for the next connection until the deadline
+        //of this attempt
+        if(util == null && isIdempotent(request))
+        {
+            orphan(request);
+            return;
+        }
+
+        try
+        {
+            if(util == null)
+            {
+                //cancel query if no connections are available
+                if(claim(request))
+                {
+                    request.getCallback().setErrorMessage(
+                        "no connections availabe");
+                }
+            }
+            else
+            {
+                util.sendMessage(query);
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            fLogger.log(Level.SEVERE,
+                "failed to retry sending query to server", e);
+        }
     }
 
     @Override
@@ -745,6 +1183,15 @@ public class BasicQueryHandler implements IQueryHandler
     {
         fActive = false;
 
+        synchronized(this)
+        {
+            if(fTask != null)
+            {
+                fTask.cancel(false);
+                fTask = null;
+            }
+        }
+
         synchronized(fTrigger)
         {
             fTrigger.notify();
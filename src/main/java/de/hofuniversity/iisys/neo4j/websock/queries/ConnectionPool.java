@@ -0,0 +1,190 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.hofuniversity.iisys.neo4j.websock.query.encoding.TransferUtil;
+
+/**
+ * Copy-on-write pool of connections.
+ * Modifications replace the pool's immutable snapshot atomically, so readers
+ * can use a snapshot without locking and always see a consistent state, even
+ * while connections are added or removed concurrently.
+ */
+public class ConnectionPool
+{
+    private static final PooledConnection[] EMPTY = new PooledConnection[0];
+
+    private final AtomicReference<Snapshot> fSnapshot;
+
+    /**
+     * Immutable list view of an array of connections.
+     */
+    private static class Snapshot extends AbstractList<PooledConnection>
+        implements RandomAccess
+    {
+        private final PooledConnection[] fConnections;
+
+        public Snapshot(PooledConnection[] connections)
+        {
+            fConnections = connections;
+        }
+
+        @Override
+        public PooledConnection get(int index)
+        {
+            return fConnections[index];
+        }
+
+        @Override
+        public int size()
+        {
+            return fConnections.length;
+        }
+    }
+
+    /**
+     * Creates an empty connection pool.
+     */
+    public ConnectionPool()
+    {
+        fSnapshot = new AtomicReference<Snapshot>(new Snapshot(EMPTY));
+    }
+
+    /**
+     * Returns the current state of the pool as an immutable list, which is
+     * not affected by later modifications.
+     *
+     * @return immutable snapshot of the pool
+     */
+    public List<PooledConnection> snapshot()
+    {
+        return fSnapshot.get();
+    }
+
+    /**
+     * @return whether there currently are no connections
+     */
+    public boolean isEmpty()
+    {
+        return fSnapshot.get().fConnections.length == 0;
+    }
+
+    /**
+     * @return number of connections currently in the pool
+     */
+    public int size()
+    {
+        return fSnapshot.get().fConnections.length;
+    }
+
+    /**
+     * Adds a connection to the pool.
+     * The given connection must not be null.
+     *
+     * @param connection connection to add
+     */
+    public void add(PooledConnection connection)
+    {
+        if(connection == null)
+        {
+            throw new NullPointerException("connection was null");
+        }
+
+        Snapshot current = null;
+        PooledConnection[] updated = null;
+        do
+        {
+            current = fSnapshot.get();
+
+            final int length = current.fConnections.length;
+            updated = new PooledConnection[length + 1];
+            System.arraycopy(current.fConnections, 0, updated, 0, length);
+            updated[length] = connection;
+        } while(!fSnapshot.compareAndSet(current, new Snapshot(updated)));
+    }
+
+    /**
+     * Removes the connection wrapping the given transfer utility.
+     *
+     * @param util transfer utility of the connection to remove
+     * @return removed connection or null if there was none
+     */
+    public PooledConnection remove(TransferUtil util)
+    {
+        Snapshot current = null;
+        PooledConnection[] updated = null;
+        PooledConnection removed = null;
+        do
+        {
+            current = fSnapshot.get();
+
+            final PooledConnection[] conns = current.fConnections;
+            int index = -1;
+            for(int i = 0; i < conns.length; ++i)
+            {
+                if(conns[i].getTransferUtil() == util)
+                {
+                    index = i;
+                    break;
+                }
+            }
+
+            if(index < 0)
+            {
+                return null;
+            }
+
+            removed = conns[index];
+            updated = new PooledConnection[conns.length - 1];
+            System.arraycopy(conns, 0, updated, 0, index);
+            System.arraycopy(conns, index + 1, updated, index,
+                conns.length - index - 1);
+        } while(!fSnapshot.compareAndSet(current, new Snapshot(updated)));
+
+        return removed;
+    }
+
+    /**
+     * Replaces all connections in the pool at once.
+     *
+     * @param connections new connections, null means none
+     */
+    public void set(List<PooledConnection> connections)
+    {
+        if(connections == null)
+        {
+            connections = Collections.emptyList();
+        }
+
+        fSnapshot.set(new Snapshot(
+            connections.toArray(new PooledConnection[connections.size()])));
+    }
+
+    /**
+     * Removes all connections from the pool.
+     */
+    public void clear()
+    {
+        fSnapshot.set(new Snapshot(EMPTY));
+    }
+}
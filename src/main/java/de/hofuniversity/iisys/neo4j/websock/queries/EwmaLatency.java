@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe exponentially weighted moving average of response latencies.
+ */
+public class EwmaLatency
+{
+    public static final double DEFAULT_ALPHA = 0.2;
+
+    //bits of the current average, negative while there are no samples
+    private final AtomicLong fAverage;
+    private final double fAlpha;
+
+    /**
+     * Creates a moving average with the default smoothing factor.
+     */
+    public EwmaLatency()
+    {
+        this(DEFAULT_ALPHA);
+    }
+
+    /**
+     * Creates a moving average with the given smoothing factor, which is the
+     * weight of each new sample and must be in (0, 1].
+     *
+     * @param alpha weight of new samples
+     */
+    public EwmaLatency(double alpha)
+    {
+        if(alpha <= 0 || alpha > 1)
+        {
+            throw new IllegalArgumentException("alpha must be in (0, 1]");
+        }
+
+        fAlpha = alpha;
+        fAverage = new AtomicLong(Double.doubleToLongBits(-1));
+    }
+
+    /**
+     * Adds a latency sample to the average.
+     *
+     * @param nanos measured latency in nanoseconds
+     */
+    public void update(long nanos)
+    {
+        long oldBits = 0;
+        double old = 0;
+        double updated = 0;
+
+        do
+        {
+            oldBits = fAverage.get();
+            old = Double.longBitsToDouble(oldBits);
+
+            //first sample initializes the average
+            if(old < 0)
+            {
+                updated = nanos;
+            }
+            else
+            {
+                updated = old + fAlpha * (nanos - old);
+            }
+        } while(!fAverage.compareAndSet(oldBits,
+            Double.doubleToLongBits(updated)));
+    }
+
+    /**
+     * @return average latency in nanoseconds or 0 if there are no samples
+     */
+    public double get()
+    {
+        return Math.max(0, Double.longBitsToDouble(fAverage.get()));
+    }
+
+    /**
+     * @return whether any samples were recorded
+     */
+    public boolean hasSamples()
+    {
+        return Double.longBitsToDouble(fAverage.get()) >= 0;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.Random;
+
+/**
+ * Retry policy doubling the delay before each retry up to a maximum,
+ * randomly shortening each delay by up to a given share, so retries of many
+ * requests are spread out.
+ */
+public class ExponentialBackoffPolicy implements IRetryPolicy
+{
+    public static final long DEFAULT_BASE_MS = 50;
+    public static final long DEFAULT_MAX_MS = 5000;
+    public static final double DEFAULT_JITTER = 0.5;
+
+    private final long fBase, fMax;
+    private final double fJitter;
+    private final boolean fExcludeFailed;
+
+    private final Random fRandom;
+
+    /**
+     * Creates a policy with default delays and jitter that avoids the
+     * connection a request timed out on.
+     */
+    public ExponentialBackoffPolicy()
+    {
+        this(DEFAULT_BASE_MS, DEFAULT_MAX_MS, DEFAULT_JITTER, true);
+    }
+
+    /**
+     * Creates a policy waiting the given base delay before the first retry,
+     * doubling it for each further retry up to the given maximum.
+     * The delays must not be negative and the jitter must be between 0 and 1.
+     *
+     * @param base milliseconds to wait before the first retry
+     * @param max maximum milliseconds to wait before a retry
+     * @param jitter share by which delays are randomly shortened
+     * @param excludeFailed whether to avoid the connection that timed out
+     */
+    public ExponentialBackoffPolicy(long base, long max, double jitter,
+        boolean excludeFailed)
+    {
+        if(base < 0 || max < 0)
+        {
+            throw new IllegalArgumentException("delays must not be negative");
+        }
+        if(jitter < 0 || jitter > 1)
+        {
+            throw new IllegalArgumentException("jitter must be between 0 "
+                + "and 1");
+        }
+
+        fBase = base;
+        fMax = max;
+        fJitter = jitter;
+        fExcludeFailed = excludeFailed;
+
+        fRandom = new Random();
+    }
+
+    @Override
+    public long getDelay(int retry)
+    {
+        //stop doubling before the shift overflows
+        final int exponent = Math.min(Math.max(retry - 1, 0), 30);
+        final long delay = Math.min(fMax, fBase << exponent);
+
+        return delay - (long) (delay * fJitter * fRandom.nextDouble());
+    }
+
+    @Override
+    public boolean isExcludingFailed()
+    {
+        return fExcludeFailed;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+import de.hofuniversity.iisys.neo4j.websock.session.WebsockConstants;
+
+/**
+ * Policy for hedging calls to idempotent procedures, sending a copy of a
+ * call to another connection if there is no response after a delay.
+ * The delay is either fixed or a percentile of the procedure's observed
+ * latencies. Hedges are limited to a share of the hedged procedures' calls,
+ * earning a fraction of a hedge for each call up to a small burst.
+ */
+public class HedgingPolicy
+{
+    public static final long DEFAULT_DELAY_MS = 50;
+    public static final double DEFAULT_PERCENTILE = 0.95;
+    public static final double DEFAULT_MAX_SHARE = 0.05;
+
+    public static final int MAX_BURST = 10;
+
+    private static final int WINDOW_SIZE = 128;
+    private static final int MIN_SAMPLES = 20;
+    private static final int UPDATE_INTERVAL = 16;
+
+    private final long fDelay;
+    private final double fPercentile;
+    private final double fMaxShare;
+
+    private final Set<String> fProcedures;
+    private final ConcurrentMap<String, LatencyWindow> fLatencies;
+
+    private final AtomicLong fHedges;
+
+    private double fBudget;
+
+    /**
+     * Recent latencies of a procedure with a cached percentile.
+     */
+    private static final class LatencyWindow
+    {
+        private final long[] fSamples;
+        private int fNext;
+        private int fCount;
+        private long fPercentileNanos;
+
+        private LatencyWindow()
+        {
+            fSamples = new long[WINDOW_SIZE];
+            fPercentileNanos = -1;
+        }
+
+        private synchronized void add(final long nanos,
+            final double percentile)
+        {
+            fSamples[fNext] = nanos;
+            fNext = (fNext + 1) % WINDOW_SIZE;
+            if(fCount < WINDOW_SIZE)
+            {
+                ++fCount;
+            }
+
+            //sorting is only done every few samples, the window size is a
+            //multiple of the interval, so the write index gives the cadence
+            if(fCount >= MIN_SAMPLES && fNext % UPDATE_INTERVAL == 0
+                || fCount == MIN_SAMPLES)
+            {
+                final int size = fCount;
+                final long[] sorted = Arrays.copyOf(fSamples, size);
+                Arrays.sort(sorted);
+
+                final int index = (int) Math.ceil(percentile * size) - 1;
+                fPercentileNanos = sorted[Math.max(0, index)];
+            }
+        }
+
+        private synchronized long get()
+        {
+            return fPercentileNanos;
+        }
+    }
+
+    /**
+     * Creates a policy hedging after the default percentile of observed
+     * latencies, or the default delay until there are enough samples, with
+     * the default share of hedges.
+     */
+    public HedgingPolicy()
+    {
+        this(DEFAULT_DELAY_MS, DEFAULT_PERCENTILE, DEFAULT_MAX_SHARE);
+    }
+
+    /**
+     * Creates a policy hedging after the given percentile of a procedure's
+     * observed latencies. Until there are enough samples or if the
+     * percentile is 0 or less, the given fixed delay is used.
+     * The delay must not be negative, the percentile must be at most 1 and
+     * the share must be between 0 and 1.
+     *
+     * @param delay fixed delay in milliseconds
+     * @param percentile percentile of observed latencies to use as delay
+     * @param maxShare maximum share of calls that are hedged
+     */
+    public HedgingPolicy(long delay, double percentile, double maxShare)
+    {
+        if(delay < 0)
+        {
+            throw new IllegalArgumentException("delay must not be negative");
+        }
+        if(percentile > 1)
+        {
+            throw new IllegalArgumentException("percentile must be at most 1");
+        }
+        if(maxShare < 0 || maxShare > 1)
+        {
+            throw new IllegalArgumentException("share must be between 0 "
+                + "and 1");
+        }
+
+        fDelay = delay;
+        fPercentile = percentile;
+        fMaxShare = maxShare;
+
+        fProcedures = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+        fLatencies = new ConcurrentHashMap<String, LatencyWindow>();
+
+        fHedges = new AtomicLong();
+    }
+
+    /**
+     * Allows calls to the idempotent procedure with the given name to be
+     * hedged.
+     *
+     * @param name name of the procedure
+     */
+    public void addProcedure(String name)
+    {
+        if(name == null)
+        {
+            throw new NullPointerException("procedure name was null");
+        }
+
+        fProcedures.add(name);
+    }
+
+    /**
+     * Stops hedging calls to the procedure with the given name.
+     *
+     * @param name name of the procedure
+     */
+    public void removeProcedure(String name)
+    {
+        fProcedures.remove(name);
+        fLatencies.remove(name);
+    }
+
+    /**
+     * @return names of procedures whose calls are hedged
+     */
+    public Set<String> getProcedures()
+    {
+        return Collections.unmodifiableSet(fProcedures);
+    }
+
+    /**
+     * @return number of hedges sent
+     */
+    public long getHedges()
+    {
+        return fHedges.get();
+    }
+
+    /**
+     * Returns the name of the procedure called by the given query, if calls
+     * to it are hedged.
+     *
+     * @param query query to check
+     * @return name of the procedure or null if the query is not hedged
+     */
+    public String getProcedure(WebsockQuery query)
+    {
+        if(query.getType() != EQueryType.PROCEDURE_CALL)
+        {
+            return null;
+        }
+
+        final Object name = query.getParameter(WebsockConstants.PROCEDURE_NAME);
+        if(name == null || !fProcedures.contains(name.toString()))
+        {
+            return null;
+        }
+
+        return name.toString();
+    }
+
+    /**
+     * Registers a call to the given procedure, adding to the hedge budget,
+     * and returns the delay after which to hedge it.
+     *
+     * @param procedure name of the procedure
+     * @return delay in milliseconds
+     */
+    public long callSent(String procedure)
+    {
+        synchronized(this)
+        {
+            fBudget = Math.min(MAX_BURST, fBudget + fMaxShare);
+        }
+
+        if(fPercentile > 0)
+        {
+            final LatencyWindow window = fLatencies.get(procedure);
+
+            if(window != null && window.get() >= 0)
+            {
+                return Math.max(1, window.get() / 1000000);
+            }
+        }
+
+        return fDelay;
+    }
+
+    /**
+     * Takes one hedge from the budget, if there is one left.
+     *
+     * @return whether a hedge may be sent
+     */
+    public boolean tryHedge()
+    {
+        synchronized(this)
+        {
+            if(fBudget < 1)
+            {
+                return false;
+            }
+
+            fBudget -= 1;
+        }
+
+        fHedges.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Records the latency of a call to the given procedure, measured from
+     * sending its first copy. For hedged calls this is how long the first
+     * connection took at least.
+     *
+     * @param procedure name of the procedure
+     * @param nanos latency in nanoseconds
+     */
+    public void recordLatency(String procedure, long nanos)
+    {
+        if(fPercentile <= 0 || !fProcedures.contains(procedure))
+        {
+            return;
+        }
+
+        LatencyWindow window = fLatencies.get(procedure);
+        if(window == null)
+        {
+            window = new LatencyWindow();
+
+            final LatencyWindow existing =
+                fLatencies.putIfAbsent(procedure, window);
+            if(existing != null)
+            {
+                window = existing;
+            }
+        }
+
+        window.add(nanos, fPercentile);
+    }
+}
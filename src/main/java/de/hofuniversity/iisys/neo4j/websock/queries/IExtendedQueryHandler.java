@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+import de.hofuniversity.iisys.neo4j.websock.query.encoding.TransferUtil;
+
+/**
+ * Query handler that additionally offers non-blocking futures, paged
+ * queries, per-query options and per-server statistics.
+ * Separate from IQueryHandler, so existing implementations of it are not
+ * required to provide these.
+ */
+public interface IExtendedQueryHandler extends IQueryHandler
+{
+    /**
+     * Sends a message, returning a non-blocking future with a new ID.
+     * The given message must not be null.
+     *
+     * @param message message to send
+     * @return future for the response to this message
+     */
+    public MessageFuture sendMessageAsync(WebsockQuery message);
+
+    /**
+     * Sends a query, returning a non-blocking future with a new ID.
+     * The given query must not be null.
+     *
+     * @param query query to send
+     * @return future for the result of this query
+     */
+    public ResultFuture sendQueryAsync(WebsockQuery query);
+
+    /**
+     * Sends the given query page by page using the subset parameters,
+     * returning an iterator over the result's pages that requests the given
+     * number of following pages in the background.
+     * The given query must not be null.
+     *
+     * @param query query to send
+     * @param pageSize number of results per page
+     * @param prefetch number of pages to request ahead
+     * @return iterator over the pages of the result
+     */
+    public PagedResultIterator sendPagedQuery(WebsockQuery query,
+        int pageSize, int prefetch);
+
+    /**
+     * Sends a query, using the given callback and a new ID, with its own
+     * timeout and retry budget instead of the handler's settings.
+     * The query and callback given must not be null. If the options are
+     * null, the handler's settings apply.
+     *
+     * @param query query to send
+     * @param callback callback to notify
+     * @param options timeout and retry budget for the query or null
+     */
+    public void sendQuery(WebsockQuery query, IQueryCallback callback,
+        RequestOptions options);
+
+    /**
+     * Adds a transfer utility connected to the given server, so statistics
+     * can be kept per server across reconnects.
+     *
+     * @param util transfer utility to add to the handler
+     * @param server identifier of the server, such as its URI
+     */
+    public void addTransferUtil(TransferUtil util, String server);
+}
@@ -0,0 +1,37 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+/**
+ * Listener that is notified once a future is done, either successfully, with
+ * an error or by being cancelled.
+ *
+ * @param <T> result type of the future
+ */
+public interface IFutureListener<T>
+{
+    /**
+     * Called exactly once when the future is done.
+     * For errors and cancellations, the result is null and the error message
+     * is set if there was one.
+     *
+     * @param result result of the future or null
+     * @param errorMessage error message or null
+     * @param cancelled whether the future was cancelled
+     */
+    public void onComplete(T result, String errorMessage, boolean cancelled);
+}
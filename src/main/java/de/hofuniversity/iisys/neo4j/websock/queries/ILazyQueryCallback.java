@@ -0,0 +1,33 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.Map;
+
+/**
+ * Query callback taking the decoded but not yet converted result payload,
+ * so the conversion to a result set can be deferred. Query handlers pass
+ * results to such callbacks without converting them.
+ */
+public interface ILazyQueryCallback extends IQueryCallback
+{
+    /**
+     * @param payload decoded result payload received through the websocket
+     *      connection
+     */
+    public void setPayload(Map<String, Object> payload);
+}
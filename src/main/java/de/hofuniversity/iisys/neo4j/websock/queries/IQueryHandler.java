@@ -95,7 +95,7 @@ public interface IQueryHandler extends Runnable
         TransferUtil util);
 
     /**
-     * @return new ID, unique until the first integer overflow
+     * @return new ID, not used by any pending request
      */
     public int getId();
 
@@ -117,6 +117,10 @@ public interface IQueryHandler extends Runnable
     public void addTransferUtil(TransferUtil util);
 
     /**
+     * Removes a transfer utility, whose connection is gone, from the handler.
+     * Requests waiting for a response on it are failed right away, unless
+     * they are idempotent and can be sent again.
+     *
      * @param util transfer utility to remove from the handler
      */
     public void removeTransferUtil(TransferUtil util);
@@ -130,6 +134,8 @@ public interface IQueryHandler extends Runnable
      * Sets the number of milliseconds before retrying to send a query or
      * canceling it and triggers a check.
      * Values of 0 and less deactivate the timeout mechanism.
+     * Deadlines of already sent queries are not changed. Queries sent with
+     * their own options are not affected.
      *
      * @param timeout in milliseconds
      */
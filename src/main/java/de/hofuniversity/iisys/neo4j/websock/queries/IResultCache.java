@@ -0,0 +1,66 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+import de.hofuniversity.iisys.neo4j.websock.result.AResultSet;
+
+/**
+ * Cache for results of stored procedure calls, consulted by query handlers
+ * before sending calls. Cached results are shared by all callers and must
+ * not be modified.
+ */
+public interface IResultCache
+{
+    /**
+     * @param query query about to be sent
+     * @return whether results of the query can be cached
+     */
+    public boolean isCacheable(WebsockQuery query);
+
+    /**
+     * Returns the cached result for the given query, if there is a valid
+     * one.
+     * The given query must not be null.
+     *
+     * @param query query about to be sent
+     * @return cached result or null
+     */
+    public AResultSet<?> get(WebsockQuery query);
+
+    /**
+     * Caches the result of the given query, if it is cacheable.
+     * The given parameters must not be null.
+     *
+     * @param query query that was sent
+     * @param result result of the query
+     */
+    public void put(WebsockQuery query, AResultSet<?> result);
+
+    /**
+     * Removes all cached results of calls to the procedure with the given
+     * name.
+     *
+     * @param procedure name of the procedure
+     */
+    public void invalidate(String procedure);
+
+    /**
+     * Removes all cached results.
+     */
+    public void clear();
+}
@@ -0,0 +1,38 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+/**
+ * Policy deciding how query handlers resend requests that timed out.
+ */
+public interface IRetryPolicy
+{
+    /**
+     * Returns the number of milliseconds to wait before resending a request
+     * that timed out, for the given retry.
+     *
+     * @param retry number of the retry, starting at 1
+     * @return milliseconds to wait, 0 or less to resend immediately
+     */
+    public long getDelay(int retry);
+
+    /**
+     * @return whether retries should avoid the connection the request timed
+     *      out on, if there are others
+     */
+    public boolean isExcludingFailed();
+}
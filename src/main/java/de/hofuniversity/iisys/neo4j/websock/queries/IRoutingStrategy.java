@@ -0,0 +1,35 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.List;
+
+/**
+ * Strategy selecting the connection a request that only needs to be sent to
+ * one server is sent through.
+ */
+public interface IRoutingStrategy
+{
+    /**
+     * Selects a connection from the given pool.
+     * Implementations are called concurrently and must not block.
+     *
+     * @param pool current connection pool, not modified during the call
+     * @return selected connection or null if the pool is empty
+     */
+    public PooledConnection select(List<PooledConnection> pool);
+}
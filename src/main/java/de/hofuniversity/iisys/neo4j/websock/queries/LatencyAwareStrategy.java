@@ -0,0 +1,200 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Routing strategy preferring connections with low response latency, based on
+ * moving averages kept per connection and per server.
+ * Out of two randomly chosen connections, the one with the lower latency
+ * weighted by its requests in flight is selected. A small share of requests
+ * is sent to a random connection regardless, so slow servers keep being
+ * measured and can win back traffic once they recover. Connections without
+ * any measurements are assumed to be as fast as the pool's average, or a
+ * default latency if nothing has been measured yet, so requests piling up on
+ * them still count against them.
+ */
+public class LatencyAwareStrategy implements IRoutingStrategy
+{
+    public static final double DEFAULT_PROBE_SHARE = 0.05;
+    public static final long DEFAULT_LATENCY_NS = 1000000;
+
+    private final double fProbeShare;
+    private final long fDefaultLatency;
+
+    /**
+     * Creates a latency aware strategy with the default probe share.
+     */
+    public LatencyAwareStrategy()
+    {
+        this(DEFAULT_PROBE_SHARE);
+    }
+
+    /**
+     * Creates a latency aware strategy sending the given share of requests,
+     * between 0 and 1, to random connections.
+     *
+     * @param probeShare share of requests sent to random connections
+     */
+    public LatencyAwareStrategy(double probeShare)
+    {
+        this(probeShare, DEFAULT_LATENCY_NS);
+    }
+
+    /**
+     * Creates a latency aware strategy sending the given share of requests,
+     * between 0 and 1, to random connections, assuming the given latency for
+     * connections if no connection in the pool has been measured yet.
+     * The default latency must be positive.
+     *
+     * @param probeShare share of requests sent to random connections
+     * @param defaultLatency assumed latency in nanoseconds
+     */
+    public LatencyAwareStrategy(double probeShare, long defaultLatency)
+    {
+        if(probeShare < 0 || probeShare > 1)
+        {
+            throw new IllegalArgumentException(
+                "probe share must be between 0 and 1");
+        }
+        if(defaultLatency <= 0)
+        {
+            throw new IllegalArgumentException(
+                "default latency must be positive");
+        }
+
+        fProbeShare = probeShare;
+        fDefaultLatency = defaultLatency;
+    }
+
+    /**
+     * @return share of requests sent to random connections
+     */
+    public double getProbeShare()
+    {
+        return fProbeShare;
+    }
+
+    /**
+     * @return latency in nanoseconds assumed if nothing has been measured
+     */
+    public long getDefaultLatency()
+    {
+        return fDefaultLatency;
+    }
+
+    @Override
+    public PooledConnection select(List<PooledConnection> pool)
+    {
+        final int size = pool.size();
+
+        if(size == 0)
+        {
+            return null;
+        }
+        else if(size == 1)
+        {
+            return pool.get(0);
+        }
+
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        //probe
+        final int first = random.nextInt(size);
+        if(random.nextDouble() < fProbeShare)
+        {
+            return pool.get(first);
+        }
+
+        //two distinct random connections
+        int second = random.nextInt(size - 1);
+        if(second >= first)
+        {
+            ++second;
+        }
+
+        final PooledConnection a = pool.get(first);
+        final PooledConnection b = pool.get(second);
+
+        //unmeasured connections are assumed to be average
+        double prior = -1;
+        if(!isMeasured(a) || !isMeasured(b))
+        {
+            prior = getMeanLatency(pool);
+        }
+
+        if(score(b, prior) < score(a, prior))
+        {
+            return b;
+        }
+        return a;
+    }
+
+    private boolean isMeasured(final PooledConnection conn)
+    {
+        return conn.getLatency().hasSamples()
+            || conn.getServerLatency().hasSamples();
+    }
+
+    private double getMeanLatency(final List<PooledConnection> pool)
+    {
+        double sum = 0;
+        int measured = 0;
+
+        for(PooledConnection conn : pool)
+        {
+            if(isMeasured(conn))
+            {
+                sum += getLatency(conn);
+                ++measured;
+            }
+        }
+
+        if(measured == 0)
+        {
+            return fDefaultLatency;
+        }
+        return sum / measured;
+    }
+
+    private double getLatency(final PooledConnection conn)
+    {
+        final EwmaLatency own = conn.getLatency();
+        final EwmaLatency server = conn.getServerLatency();
+
+        //combine both averages if available, fall back to either one
+        if(own.hasSamples() && server.hasSamples())
+        {
+            return (own.get() + server.get()) / 2;
+        }
+        else if(own.hasSamples())
+        {
+            return own.get();
+        }
+        return server.get();
+    }
+
+    private double score(final PooledConnection conn, final double prior)
+    {
+        final double latency = isMeasured(conn) ? getLatency(conn) : prior;
+
+        //expected waiting time behind requests already in flight
+        return latency * (conn.getInFlight() + 1);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import de.hofuniversity.iisys.neo4j.websock.result.AResultSet;
+import de.hofuniversity.iisys.neo4j.websock.util.ResultSetConverter;
+
+/**
+ * Result future keeping the decoded result payload and converting it to a
+ * result set only when the result is first retrieved, on the retrieving
+ * thread. Results that are never read are never converted.
+ * Listeners receive the converted result, so they trigger the conversion
+ * as well.
+ */
+public class LazyResultFuture extends ResultFuture
+    implements ILazyQueryCallback
+{
+    private volatile Map<String, Object> fPayload;
+    private volatile AResultSet<?> fConverted;
+
+    /**
+     * Creates a lazy result future running its listeners directly on the
+     * thread delivering the result.
+     */
+    public LazyResultFuture()
+    {
+        super();
+    }
+
+    /**
+     * Creates a lazy result future running its listeners using the given
+     * executor. If the executor is null, listeners are run directly on the
+     * thread delivering the result.
+     *
+     * @param executor executor to run listeners with or null
+     */
+    public LazyResultFuture(Executor executor)
+    {
+        super(executor);
+    }
+
+    @Override
+    public void setPayload(Map<String, Object> payload)
+    {
+        if(!isDone())
+        {
+            fPayload = payload;
+            complete(null);
+        }
+    }
+
+    /**
+     * @return whether the payload has been converted to a result set
+     */
+    public boolean isConverted()
+    {
+        return fConverted != null;
+    }
+
+    @Override
+    protected AResultSet<?> resolve(AResultSet<?> result) throws Exception
+    {
+        //results set directly do not need a conversion
+        if(result != null)
+        {
+            return result;
+        }
+
+        AResultSet<?> converted = fConverted;
+        if(converted == null)
+        {
+            synchronized(this)
+            {
+                converted = fConverted;
+
+                if(converted == null && fPayload != null)
+                {
+                    converted = ResultSetConverter.toResultSet(fPayload);
+                    fConverted = converted;
+                    fPayload = null;
+                }
+            }
+        }
+
+        return converted;
+    }
+}
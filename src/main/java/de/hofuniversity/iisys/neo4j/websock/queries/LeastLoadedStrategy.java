@@ -0,0 +1,62 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Routing strategy sending requests to the connection with fewer requests in
+ * flight out of two randomly chosen ones ("power of two choices"), which
+ * avoids queueing behind slow requests without scanning the whole pool.
+ */
+public class LeastLoadedStrategy implements IRoutingStrategy
+{
+    @Override
+    public PooledConnection select(List<PooledConnection> pool)
+    {
+        final int size = pool.size();
+
+        if(size == 0)
+        {
+            return null;
+        }
+        else if(size == 1)
+        {
+            return pool.get(0);
+        }
+
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        //two distinct random connections
+        final int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if(second >= first)
+        {
+            ++second;
+        }
+
+        final PooledConnection a = pool.get(first);
+        final PooledConnection b = pool.get(second);
+
+        if(b.getInFlight() < a.getInFlight())
+        {
+            return b;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,527 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Future that can be completed once and notifies registered listeners and
+ * continuations without blocking any threads.
+ * Listeners are run on the thread completing the future, or the thread
+ * registering them if the future is already done, unless an executor is
+ * configured.
+ *
+ * @param <T> result type of the future
+ */
+public class ListenableFuture<T> implements IErrorFuture<T>
+{
+    private static final Logger LOGGER =
+        Logger.getLogger(ListenableFuture.class.getName());
+
+    /*
+     * state is either null or a stack of listeners while pending or an
+     * outcome once done
+     */
+    private final AtomicReference<Object> fState;
+
+    //latch shared by all blocking waiters, registered only once
+    private final AtomicReference<CountDownLatch> fLatch;
+
+    private final Executor fExecutor;
+
+    private static final class Outcome
+    {
+        private final Object fResult;
+        private final String fErrorMessage;
+        private final boolean fFailed, fCancelled;
+
+        private Outcome(final Object result, final String error,
+            final boolean failed, final boolean cancelled)
+        {
+            fResult = result;
+            fErrorMessage = error;
+            fFailed = failed;
+            fCancelled = cancelled;
+        }
+    }
+
+    private static final class Node
+    {
+        private final IFutureListener<?> fListener;
+        private final boolean fDirect;
+        private final Node fNext;
+
+        private Node(final IFutureListener<?> listener, final boolean direct,
+            final Node next)
+        {
+            fListener = listener;
+            fDirect = direct;
+            fNext = next;
+        }
+    }
+
+    /**
+     * Creates a future running its listeners directly on the completing
+     * thread.
+     */
+    public ListenableFuture()
+    {
+        this(null);
+    }
+
+    /**
+     * Creates a future running its listeners using the given executor.
+     * If the executor is null, listeners are run directly on the completing
+     * thread.
+     *
+     * @param executor executor to run listeners with or null
+     */
+    public ListenableFuture(Executor executor)
+    {
+        fState = new AtomicReference<Object>();
+        fLatch = new AtomicReference<CountDownLatch>();
+        fExecutor = executor;
+    }
+
+    /**
+     * @return executor used to run listeners or null
+     */
+    public Executor getExecutor()
+    {
+        return fExecutor;
+    }
+
+    /**
+     * Completes the future successfully with the given result, if it is not
+     * done yet.
+     *
+     * @param result result of the future
+     * @return whether the future was completed by this call
+     */
+    protected boolean complete(T result)
+    {
+        return complete(new Outcome(result, null, false, false));
+    }
+
+    @Override
+    public void setErrorMessage(String message)
+    {
+        complete(new Outcome(null, message, true, false));
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        return complete(new Outcome(null, null, false, true));
+    }
+
+    private boolean complete(final Outcome outcome)
+    {
+        Object state = null;
+
+        while(true)
+        {
+            state = fState.get();
+
+            if(state instanceof Outcome)
+            {
+                return false;
+            }
+
+            if(fState.compareAndSet(state, outcome))
+            {
+                notifyAll((Node) state, outcome);
+                return true;
+            }
+        }
+    }
+
+    private void notifyAll(Node stack, final Outcome outcome)
+    {
+        //reverse stack to notify in registration order
+        Node ordered = null;
+        while(stack != null)
+        {
+            ordered = new Node(stack.fListener, stack.fDirect, ordered);
+            stack = stack.fNext;
+        }
+
+        while(ordered != null)
+        {
+            if(ordered.fDirect)
+            {
+                notify(ordered.fListener, outcome, false);
+            }
+            else
+            {
+                dispatch(ordered.fListener, outcome);
+            }
+            ordered = ordered.fNext;
+        }
+    }
+
+    private void dispatch(final IFutureListener<?> listener,
+        final Outcome outcome)
+    {
+        if(fExecutor == null)
+        {
+            notify(listener, outcome, true);
+        }
+        else
+        {
+            try
+            {
+                fExecutor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        ListenableFuture.this.notify(listener, outcome, true);
+                    }
+                });
+            }
+            catch(RejectedExecutionException e)
+            {
+                //remaining listeners and waiters must still be notified
+                LOGGER.log(Level.WARNING, "executor rejected listener", e);
+                notify(listener, outcome, true);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void notify(final IFutureListener<?> listener,
+        final Outcome outcome, final boolean resolve)
+    {
+        Object result = outcome.fResult;
+        String error = outcome.fErrorMessage;
+
+        //internal waiters do not need the actual result
+        if(resolve && !outcome.fFailed && !outcome.fCancelled)
+        {
+            try
+            {
+                result = resolve((T) result);
+            }
+            catch(Exception e)
+            {
+                result = null;
+                error = e.toString();
+            }
+        }
+
+        try
+        {
+            ((IFutureListener<Object>) listener).onComplete(result, error,
+                outcome.fCancelled);
+        }
+        catch(Exception e)
+        {
+            LOGGER.log(Level.SEVERE, "future listener failed", e);
+        }
+    }
+
+    /**
+     * Registers a listener that is called once the future is done. If it is
+     * already done, the listener is called immediately.
+     * The given listener must not be null.
+     *
+     * @param listener listener to notify
+     * @return this future
+     */
+    public ListenableFuture<T> whenComplete(IFutureListener<? super T> listener)
+    {
+        if(listener == null)
+        {
+            throw new NullPointerException("listener was null");
+        }
+
+        final Outcome outcome = push(listener, false);
+        if(outcome != null)
+        {
+            dispatch(listener, outcome);
+        }
+
+        return this;
+    }
+
+    private Outcome push(final IFutureListener<?> listener,
+        final boolean direct)
+    {
+        Object state = null;
+
+        while(true)
+        {
+            state = fState.get();
+
+            if(state instanceof Outcome)
+            {
+                return (Outcome) state;
+            }
+
+            if(fState.compareAndSet(state,
+                new Node(listener, direct, (Node) state)))
+            {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Creates a future that completes with the result of applying the given
+     * function to this future's result. Errors and cancellations are passed
+     * on, exceptions thrown by the function turn into error messages.
+     * The derived future uses the same executor.
+     * The given function must not be null.
+     *
+     * @param function function to apply
+     * @return derived future
+     */
+    public <R> ListenableFuture<R> thenApply(
+        final IFunction<? super T, ? extends R> function)
+    {
+        if(function == null)
+        {
+            throw new NullPointerException("function was null");
+        }
+
+        final ListenableFuture<R> derived = new ListenableFuture<R>(fExecutor);
+
+        whenComplete(new IFutureListener<T>()
+        {
+            @Override
+            public void onComplete(T result, String errorMessage,
+                boolean cancelled)
+            {
+                if(cancelled)
+                {
+                    derived.cancel(false);
+                }
+                else if(derived.propagateError(ListenableFuture.this))
+                {
+                    return;
+                }
+                //result could not be resolved
+                else if(errorMessage != null)
+                {
+                    derived.setErrorMessage(errorMessage);
+                }
+                else
+                {
+                    try
+                    {
+                        derived.complete(function.apply(result));
+                    }
+                    catch(Exception e)
+                    {
+                        derived.setErrorMessage(e.toString());
+                    }
+                }
+            }
+        });
+
+        return derived;
+    }
+
+    /**
+     * Creates a future that completes once the given consumer has received
+     * this future's result. Errors and cancellations are passed on,
+     * exceptions thrown by the consumer turn into error messages.
+     * The derived future uses the same executor.
+     * The given consumer must not be null.
+     *
+     * @param consumer consumer to call
+     * @return derived future
+     */
+    public ListenableFuture<Void> thenAccept(
+        final IConsumer<? super T> consumer)
+    {
+        if(consumer == null)
+        {
+            throw new NullPointerException("consumer was null");
+        }
+
+        return thenApply(new IFunction<T, Void>()
+        {
+            @Override
+            public Void apply(T value) throws Exception
+            {
+                consumer.accept(value);
+                return null;
+            }
+        });
+    }
+
+    private boolean propagateError(final ListenableFuture<?> source)
+    {
+        final Outcome outcome = (Outcome) source.fState.get();
+
+        if(outcome.fFailed)
+        {
+            setErrorMessage(outcome.fErrorMessage);
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException
+    {
+        try
+        {
+            return get(0, TimeUnit.MILLISECONDS);
+        }
+        catch(TimeoutException e)
+        {
+            throw new ExecutionException("timeout", e);
+        }
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException,
+        ExecutionException, TimeoutException
+    {
+        Object state = fState.get();
+
+        //block only if not done yet
+        if(!(state instanceof Outcome))
+        {
+            final CountDownLatch latch = getLatch();
+
+            if(timeout <= 0)
+            {
+                latch.await();
+            }
+            else if(!latch.await(timeout,
+                unit != null ? unit : TimeUnit.MILLISECONDS))
+            {
+                throw new TimeoutException();
+            }
+
+            state = fState.get();
+        }
+
+        return report((Outcome) state);
+    }
+
+    private CountDownLatch getLatch()
+    {
+        CountDownLatch latch = fLatch.get();
+
+        //one listener for all waiters, so timed out waiters leave nothing
+        //behind on the stack
+        if(latch == null)
+        {
+            final CountDownLatch created = new CountDownLatch(1);
+
+            if(fLatch.compareAndSet(null, created))
+            {
+                //waiters are released directly, bypassing the executor
+                final Outcome outcome = push(new IFutureListener<T>()
+                {
+                    @Override
+                    public void onComplete(T result, String errorMessage,
+                        boolean cancelled)
+                    {
+                        created.countDown();
+                    }
+                }, true);
+
+                if(outcome != null)
+                {
+                    created.countDown();
+                }
+            }
+
+            latch = fLatch.get();
+        }
+
+        return latch;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T report(final Outcome outcome)
+        throws InterruptedException, ExecutionException
+    {
+        if(outcome.fFailed)
+        {
+            throw new ExecutionException(outcome.fErrorMessage, null);
+        }
+        else if(outcome.fCancelled)
+        {
+            throw new InterruptedException("cancelled");
+        }
+
+        try
+        {
+            return resolve((T) outcome.fResult);
+        }
+        catch(Exception e)
+        {
+            throw new ExecutionException(e.toString(), e);
+        }
+    }
+
+    /**
+     * Turns the stored result into the one handed out to callers and
+     * listeners, on the thread retrieving it. Returns the result unchanged
+     * unless overridden, e.g. to defer expensive conversions.
+     *
+     * @param result stored result
+     * @return result to hand out
+     * @throws Exception if the result can not be provided
+     */
+    protected T resolve(T result) throws Exception
+    {
+        return result;
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+        final Object state = fState.get();
+        return state instanceof Outcome && ((Outcome) state).fCancelled;
+    }
+
+    @Override
+    public boolean isDone()
+    {
+        return fState.get() instanceof Outcome;
+    }
+
+    @Override
+    public String getErrorMessage()
+    {
+        final Object state = fState.get();
+
+        if(state instanceof Outcome)
+        {
+            return ((Outcome) state).fErrorMessage;
+        }
+
+        return null;
+    }
+}
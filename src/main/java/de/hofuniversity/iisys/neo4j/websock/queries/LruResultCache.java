@@ -0,0 +1,371 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+import de.hofuniversity.iisys.neo4j.websock.result.AResultSet;
+import de.hofuniversity.iisys.neo4j.websock.result.ListResult;
+import de.hofuniversity.iisys.neo4j.websock.result.TableResult;
+import de.hofuniversity.iisys.neo4j.websock.session.WebsockConstants;
+
+/**
+ * Result cache for procedure calls with a time to live per procedure and a
+ * bound on the total weight of cached results, evicting the least recently
+ * used results first.
+ * Only calls to procedures with a time to live are cached. Results are
+ * identified by the procedure name and parameters. The weight of table and
+ * list results is their number of rows, other results weigh 1.
+ */
+public class LruResultCache implements IResultCache
+{
+    public static final long DEFAULT_MAX_WEIGHT = 100000;
+
+    private final Map<String, Long> fTtls;
+    private final LinkedHashMap<Key, CachedResult> fEntries;
+    private final long fMaxWeight;
+
+    private long fWeight;
+
+    private long fHits, fMisses, fEvictions;
+
+    private static final class Key
+    {
+        private final String fProcedure;
+        private final Map<String, Object> fParameters;
+        private final int fHash;
+
+        private Key(final String procedure, final Map<String, Object> params)
+        {
+            fProcedure = procedure;
+
+            //sorted copy without name, so order and later changes don't matter
+            fParameters = new TreeMap<String, Object>();
+            if(params != null)
+            {
+                fParameters.putAll(params);
+            }
+            fParameters.remove(WebsockConstants.PROCEDURE_NAME);
+
+            fHash = 31 * fProcedure.hashCode() + fParameters.hashCode();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return fHash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if(!(obj instanceof Key))
+            {
+                return false;
+            }
+
+            final Key other = (Key) obj;
+            return fHash == other.fHash && fProcedure.equals(other.fProcedure)
+                && fParameters.equals(other.fParameters);
+        }
+    }
+
+    private static final class CachedResult
+    {
+        private final AResultSet<?> fResult;
+        private final long fExpires;
+        private final long fWeight;
+
+        private CachedResult(final AResultSet<?> result, final long expires,
+            final long weight)
+        {
+            fResult = result;
+            fExpires = expires;
+            fWeight = weight;
+        }
+    }
+
+    /**
+     * Creates an empty cache with the default maximum weight and no cached
+     * procedures.
+     */
+    public LruResultCache()
+    {
+        this(DEFAULT_MAX_WEIGHT);
+    }
+
+    /**
+     * Creates an empty cache with the given maximum weight and no cached
+     * procedures.
+     * The maximum weight must be positive.
+     *
+     * @param maxWeight maximum total number of cached rows
+     */
+    public LruResultCache(long maxWeight)
+    {
+        if(maxWeight <= 0)
+        {
+            throw new IllegalArgumentException("maximum weight must be "
+                + "positive");
+        }
+
+        fTtls = new ConcurrentHashMap<String, Long>();
+        fEntries = new LinkedHashMap<Key, CachedResult>(16, 0.75f, true);
+        fMaxWeight = maxWeight;
+    }
+
+    /**
+     * Enables caching of results of the procedure with the given name for
+     * the given number of milliseconds. Results that are already cached keep
+     * their expiration time.
+     * The given name must not be null and the time to live must be positive.
+     *
+     * @param procedure name of the procedure
+     * @param ttl time to live in milliseconds
+     */
+    public void setTtl(String procedure, long ttl)
+    {
+        if(procedure == null)
+        {
+            throw new NullPointerException("procedure name was null");
+        }
+        if(ttl <= 0)
+        {
+            throw new IllegalArgumentException("time to live must be "
+                + "positive");
+        }
+
+        fTtls.put(procedure, ttl);
+    }
+
+    /**
+     * Disables caching of results of the procedure with the given name and
+     * removes its cached results.
+     *
+     * @param procedure name of the procedure
+     */
+    public void removeTtl(String procedure)
+    {
+        fTtls.remove(procedure);
+        invalidate(procedure);
+    }
+
+    /**
+     * @return times to live in milliseconds by procedure name
+     */
+    public Map<String, Long> getTtls()
+    {
+        return Collections.unmodifiableMap(fTtls);
+    }
+
+    /**
+     * @return maximum total weight of cached results
+     */
+    public long getMaxWeight()
+    {
+        return fMaxWeight;
+    }
+
+    /**
+     * @return current total weight of cached results
+     */
+    public synchronized long getWeight()
+    {
+        return fWeight;
+    }
+
+    /**
+     * @return number of cached results, including expired ones not removed
+     *      yet
+     */
+    public synchronized int size()
+    {
+        return fEntries.size();
+    }
+
+    /**
+     * @return number of cacheable queries answered from the cache
+     */
+    public synchronized long getHits()
+    {
+        return fHits;
+    }
+
+    /**
+     * @return number of cacheable queries not found in the cache
+     */
+    public synchronized long getMisses()
+    {
+        return fMisses;
+    }
+
+    /**
+     * @return number of results removed to stay within the maximum weight
+     */
+    public synchronized long getEvictions()
+    {
+        return fEvictions;
+    }
+
+    private String getProcedure(final WebsockQuery query)
+    {
+        if(query.getType() != EQueryType.PROCEDURE_CALL)
+        {
+            return null;
+        }
+
+        final Object name = query.getParameter(WebsockConstants.PROCEDURE_NAME);
+        if(name == null || !fTtls.containsKey(name.toString()))
+        {
+            return null;
+        }
+
+        return name.toString();
+    }
+
+    @Override
+    public boolean isCacheable(WebsockQuery query)
+    {
+        return getProcedure(query) != null;
+    }
+
+    @Override
+    public AResultSet<?> get(WebsockQuery query)
+    {
+        final String procedure = getProcedure(query);
+        if(procedure == null)
+        {
+            return null;
+        }
+
+        final Key key = new Key(procedure, query.getParameters());
+
+        synchronized(this)
+        {
+            final CachedResult cached = fEntries.get(key);
+
+            if(cached != null
+                && cached.fExpires - System.currentTimeMillis() > 0)
+            {
+                ++fHits;
+                return cached.fResult;
+            }
+            else if(cached != null)
+            {
+                fEntries.remove(key);
+                fWeight -= cached.fWeight;
+            }
+
+            ++fMisses;
+        }
+
+        return null;
+    }
+
+    @Override
+    public void put(WebsockQuery query, AResultSet<?> result)
+    {
+        final String procedure = getProcedure(query);
+        if(procedure == null || result == null)
+        {
+            return;
+        }
+
+        final Long ttl = fTtls.get(procedure);
+        if(ttl == null)
+        {
+            return;
+        }
+
+        final long weight = getWeight(result);
+        if(weight > fMaxWeight)
+        {
+            //would evict everything else
+            return;
+        }
+
+        final Key key = new Key(procedure, query.getParameters());
+        final CachedResult cached = new CachedResult(result,
+            System.currentTimeMillis() + ttl, weight);
+
+        synchronized(this)
+        {
+            final CachedResult old = fEntries.put(key, cached);
+            if(old != null)
+            {
+                fWeight -= old.fWeight;
+            }
+            fWeight += weight;
+
+            //evict least recently used results
+            final Iterator<CachedResult> iter = fEntries.values().iterator();
+            while(fWeight > fMaxWeight && iter.hasNext())
+            {
+                final CachedResult eldest = iter.next();
+                if(eldest != cached)
+                {
+                    iter.remove();
+                    fWeight -= eldest.fWeight;
+                    ++fEvictions;
+                }
+            }
+        }
+    }
+
+    private long getWeight(final AResultSet<?> result)
+    {
+        if(result instanceof TableResult || result instanceof ListResult)
+        {
+            return Math.max(1, result.getSize());
+        }
+
+        return 1;
+    }
+
+    @Override
+    public synchronized void invalidate(String procedure)
+    {
+        final Iterator<Entry<Key, CachedResult>> iter =
+            fEntries.entrySet().iterator();
+
+        while(iter.hasNext())
+        {
+            final Entry<Key, CachedResult> entry = iter.next();
+
+            if(entry.getKey().fProcedure.equals(procedure))
+            {
+                iter.remove();
+                fWeight -= entry.getValue().fWeight;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void clear()
+    {
+        fEntries.clear();
+        fWeight = 0;
+    }
+}
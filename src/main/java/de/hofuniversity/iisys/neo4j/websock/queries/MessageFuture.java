@@ -16,131 +16,44 @@
  */
 package de.hofuniversity.iisys.neo4j.websock.queries;
 
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.Executor;
 
 import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
 
 /**
  * Basic implementation for a future returning the response to a sent message
  * or an error message.
+ * Completion is published through a single atomic state, so only the first
+ * response, error or cancellation takes effect and retrieving the response
+ * of a completed future never blocks.
  */
-public class MessageFuture implements IMessageCallback
+public class MessageFuture extends ListenableFuture<WebsockQuery>
+    implements IMessageCallback
 {
-    private final Object fTrigger = new Object();
-
-    private WebsockQuery fResponse;
-    private boolean fCancelled = false, fDone = false;
-    private String fErrorMessage;
-
-    @Override
-    public boolean cancel(boolean arg0)
-    {
-        fCancelled = true;
-        fDone = true;
-
-        synchronized(fTrigger)
-        {
-            fTrigger.notify();
-        }
-
-        return fCancelled;
-    }
-
-    @Override
-    public WebsockQuery get() throws InterruptedException, ExecutionException
-    {
-        WebsockQuery response = null;
-
-        try
-        {
-            response = get(0, TimeUnit.DAYS);
-        }
-        catch(TimeoutException e)
-        {
-            throw new ExecutionException("timeout", e);
-        }
-
-        return response;
-    }
-
-    @Override
-    public WebsockQuery get(long timeout, TimeUnit unit)
-        throws InterruptedException, ExecutionException, TimeoutException
-    {
-        if(unit != null)
-        {
-            timeout = TimeUnit.MILLISECONDS.convert(timeout, unit);
-        }
-
-        if(!fDone)
-        {
-            synchronized(fTrigger)
-            {
-                if(timeout <= 0)
-                {
-                    fTrigger.wait();
-                }
-                else
-                {
-                    fTrigger.wait(timeout);
-                }
-            }
-        }
-
-        if(fErrorMessage != null)
-        {
-            throw new ExecutionException(fErrorMessage, null);
-        }
-        else if(fCancelled)
-        {
-            throw new InterruptedException("cancelled");
-        }
-
-        return fResponse;
-    }
-
-    @Override
-    public boolean isCancelled()
+    /**
+     * Creates a message future running its listeners directly on the thread
+     * delivering the response.
+     */
+    public MessageFuture()
     {
-        return fCancelled;
+        super();
     }
 
-    @Override
-    public boolean isDone()
+    /**
+     * Creates a message future running its listeners using the given
+     * executor. If the executor is null, listeners are run directly on the
+     * thread delivering the response.
+     *
+     * @param executor executor to run listeners with or null
+     */
+    public MessageFuture(Executor executor)
     {
-        return fDone;
-    }
-
-    @Override
-    public void setErrorMessage(String message)
-    {
-        fErrorMessage = message;
-        fDone = true;
-
-        synchronized(fTrigger)
-        {
-            fTrigger.notify();
-        }
-    }
-
-    @Override
-    public String getErrorMessage()
-    {
-        return fErrorMessage;
+        super(executor);
     }
 
     @Override
     public void setResponse(WebsockQuery message)
     {
-        fResponse = message;
-        fDone = true;
-
-        synchronized(fTrigger)
-        {
-            fTrigger.notify();
-        }
+        complete(message);
     }
-
 }
@@ -16,13 +16,18 @@
  */
 package de.hofuniversity.iisys.neo4j.websock.queries;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,6 +35,8 @@ import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
 import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
 import de.hofuniversity.iisys.neo4j.websock.query.encoding.TransferUtil;
 import de.hofuniversity.iisys.neo4j.websock.result.AResultSet;
+import de.hofuniversity.iisys.neo4j.websock.session.WebsockConstants;
+import de.hofuniversity.iisys.neo4j.websock.util.ISendFailureHandler;
 import de.hofuniversity.iisys.neo4j.websock.util.ResultSetConverter;
 
 /**
@@ -38,31 +45,24 @@ import de.hofuniversity.iisys.neo4j.websock.util.ResultSetConverter;
  * timeouts and retries.
  * Except for queries, all calls are sent to all servers.
  */
-public class MultiConnQueryHandler implements IQueryHandler
+public class MultiConnQueryHandler implements IExtendedQueryHandler,
+    ISendFailureHandler
 {
     public static final long DEFAULT_TIMEOUT_MS = 300000;
-    public static final long DEFAULT_TIMER_MS = 1000;
+    public static final long DEFAULT_TIMER_MS = 100;
     public static final int DEFAULT_RETRIES = 0;
 
-    public static final int ID_POOLS = 40;
-    public static final int ID_POOL_SIZE = 100000;
-
     private final Object fTrigger;
 
-    private final List<TransferUtil> fSessionPool;
-
-    private final Object[] fPoolIdLocks;
-    private final int[] fPoolIds;
+    private final ConnectionPool fSessionPool;
+    private final ConcurrentMap<String, EwmaLatency> fServerLatencies;
 
-    private final Map<Integer, WebsockQuery> fPendingQueries;
-    private final Map<Integer, IMessageCallback> fPendingMessages;
-    private final Map<Integer, IQueryCallback> fPendingResults;
-
-    private final Map<Integer, Long> fTimeouts;
-    private final Map<Integer, Integer> fRetries;
-    private final Map<Integer, Integer> fMultiCounters;
+    private final PendingRequestTable fPending;
+    private final TimingWheel fTimeouts;
+    private final RequestIdAllocator fIds;
 
     private final Map<String, WebsockQuery> fProcedureQueries;
+    private final ConcurrentMap<String, AtomicLong> fProcedureGenerations;
 
     private final Logger fLogger;
     private final boolean fDebug;
@@ -73,42 +73,52 @@ public class MultiConnQueryHandler implements IQueryHandler
 
     private boolean fResendProcedures;
 
-    private int fPoolCounter;
-    private int fIdPoolCounter;
+    private Executor fCallbackExecutor;
+
+    private volatile QueryCoalescer fCoalescer;
+    private volatile IResultCache fResultCache;
+    private volatile StatementPromoter fPromoter;
+    private volatile IRetryPolicy fRetryPolicy;
+    private volatile HedgingPolicy fHedging;
 
-    private boolean fActive;
+    private volatile IRoutingStrategy fRouting;
+
+    private ScheduledExecutorService fScheduler;
+    private ScheduledFuture<?> fTask;
+
+    private volatile boolean fActive;
 
     /**
-     * Creates a multi-connection query handler with default values that still
-     * needs at least one transfer utility to function properly.
+     * Timer entry for sending a copy of a request after a delay.
      */
-    public MultiConnQueryHandler()
+    private static final class Hedge extends TimingWheel.Entry
     {
-        fSessionPool = new ArrayList<TransferUtil>();
-        fPoolCounter = 0;
-
-        fPoolIdLocks = new Object[ID_POOLS];
-        fPoolIds = new int[ID_POOLS];
+        private final PendingRequest fRequest;
 
-        //initialize separated ID pools
-        for(int i = 0; i < ID_POOLS; ++i)
+        private Hedge(final PendingRequest request)
         {
-            fPoolIdLocks[i] = new Object();
-            fPoolIds[i] = i * ID_POOL_SIZE;
+            fRequest = request;
         }
-        fIdPoolCounter = 0;
+    }
 
-        fTrigger = new Object();
+    /**
+     * Creates a multi-connection query handler with default values that still
+     * needs at least one transfer utility to function properly.
+     */
+    public MultiConnQueryHandler()
+    {
+        fSessionPool = new ConnectionPool();
+        fServerLatencies = new ConcurrentHashMap<String, EwmaLatency>();
+        fRouting = new LeastLoadedStrategy();
 
-        fPendingQueries = new HashMap<Integer, WebsockQuery>();
-        fPendingMessages = new HashMap<Integer, IMessageCallback>();
-        fPendingResults = new HashMap<Integer, IQueryCallback>();
+        fTrigger = new Object();
 
-        fTimeouts = new HashMap<Integer, Long>();
-        fRetries = new HashMap<Integer, Integer>();
-        fMultiCounters = new HashMap<Integer, Integer>();
+        fPending = new PendingRequestTable();
+        fTimeouts = new TimingWheel();
+        fIds = new RequestIdAllocator(fPending);
 
-        fProcedureQueries = new HashMap<String, WebsockQuery>();
+        fProcedureQueries = new ConcurrentHashMap<String, WebsockQuery>();
+        fProcedureGenerations = new ConcurrentHashMap<String, AtomicLong>();
 
         fLogger = Logger.getLogger(this.getClass().getName());
         fDebug = (fLogger.getLevel() == Level.FINEST);
@@ -125,8 +135,13 @@ public class MultiConnQueryHandler implements IQueryHandler
      */
     public void setTransferUtils(List<TransferUtil> utils)
     {
-        fSessionPool.clear();
-        fSessionPool.addAll(utils);
+        final List<PooledConnection> conns =
+            new ArrayList<PooledConnection>(utils.size());
+        for(TransferUtil util : utils)
+        {
+            conns.add(new PooledConnection(util));
+        }
+        fSessionPool.set(conns);
 
         if(fResendProcedures)
         {
@@ -142,10 +157,24 @@ public class MultiConnQueryHandler implements IQueryHandler
      * @param util transfer utility to add to the pool
      */
     public void addTransferUtil(TransferUtil util)
+    {
+        addTransferUtil(util, null);
+    }
+
+    /**
+     * Adds a transfer utility connected to the given server to the pool.
+     * Latency statistics of the server are kept across reconnects and
+     * shared by all of its connections.
+     *
+     * @param util transfer utility to add to the pool
+     * @param server identifier of the server, such as its URI or null
+     */
+    public void addTransferUtil(TransferUtil util, String server)
     {
         if(util != null)
         {
-            fSessionPool.add(util);
+            fSessionPool.add(new PooledConnection(util, server,
+                getServerLatency(server)));
 
             if(fResendProcedures)
             {
@@ -156,13 +185,50 @@ public class MultiConnQueryHandler implements IQueryHandler
     }
 
     /**
+     * Returns the latency statistics of the given server, creating them if
+     * there are none yet.
+     *
+     * @param server identifier of the server or null
+     * @return latency statistics of the server or null if it was null
+     */
+    public EwmaLatency getServerLatency(String server)
+    {
+        if(server == null)
+        {
+            return null;
+        }
+
+        EwmaLatency latency = fServerLatencies.get(server);
+        if(latency == null)
+        {
+            latency = new EwmaLatency();
+
+            final EwmaLatency existing =
+                fServerLatencies.putIfAbsent(server, latency);
+            if(existing != null)
+            {
+                latency = existing;
+            }
+        }
+
+        return latency;
+    }
+
+    /**
+     * Removes a transfer utility from the pool, resending idempotent requests
+     * that were waiting for a response on it to other connections and failing
+     * all others right away, including messages sent directly through it.
+     *
      * @param util transfer utility to remove from the pool
      */
     public void removeTransferUtil(TransferUtil util)
     {
         if(util != null)
         {
-            fSessionPool.remove(util);
+            final PooledConnection conn = fSessionPool.remove(util);
+
+            //direct messages may be pending even if it was not pooled yet
+            connectionLost(util, conn);
         }
     }
 
@@ -204,7 +270,8 @@ public class MultiConnQueryHandler implements IQueryHandler
 
     /**
      * Sets the number of milliseconds to wait after each check for timeouts of
-     * pending queries.
+     * pending queries. Checks only touch expired queries, so this interval
+     * mainly determines the accuracy of timeouts.
      * 0 and negative values are ignored.
      *
      * @param timerInterval milliseconds between timeout checks
@@ -219,6 +286,15 @@ public class MultiConnQueryHandler implements IQueryHandler
             {
                 fTrigger.notify();
             }
+
+            //apply new interval to scheduled checks
+            synchronized(this)
+            {
+                if(fTask != null)
+                {
+                    schedule();
+                }
+            }
         }
     }
 
@@ -241,6 +317,64 @@ public class MultiConnQueryHandler implements IQueryHandler
         fRetryNum = retries;
     }
 
+    /**
+     * @return policy for resending timed out requests or null
+     */
+    public IRetryPolicy getRetryPolicy()
+    {
+        return fRetryPolicy;
+    }
+
+    /**
+     * Sets the policy deciding how long to wait before resending a timed
+     * out request and whether to send it to another connection.
+     * If it is null, requests are resent immediately.
+     *
+     * @param policy retry policy to use or null
+     */
+    public void setRetryPolicy(IRetryPolicy policy)
+    {
+        fRetryPolicy = policy;
+    }
+
+    /**
+     * @return policy for hedging procedure calls or null
+     */
+    public HedgingPolicy getHedgingPolicy()
+    {
+        return fHedging;
+    }
+
+    /**
+     * Sets the policy deciding which procedure calls are sent to another
+     * connection as well if there is no response after a delay. The first
+     * response is used, later ones are ignored.
+     * While a policy is set, timers are checked at the resolution of the
+     * timer wheel if the timer interval is longer, so hedges are sent on
+     * time.
+     * If it is null, calls are not hedged.
+     *
+     * @param policy hedging policy to use or null
+     */
+    public void setHedgingPolicy(HedgingPolicy policy)
+    {
+        fHedging = policy;
+
+        synchronized(fTrigger)
+        {
+            fTrigger.notify();
+        }
+
+        //hedges need checks at the resolution of the timer wheel
+        synchronized(this)
+        {
+            if(fTask != null)
+            {
+                schedule();
+            }
+        }
+    }
+
     /**
      * @return whether runtime stored procedures will be recreated for new
      *      connections
@@ -259,6 +393,112 @@ public class MultiConnQueryHandler implements IQueryHandler
         fResendProcedures = resendProcedures;
     }
 
+    /**
+     * @return executor running listeners of asynchronous futures or null
+     */
+    public Executor getCallbackExecutor()
+    {
+        return fCallbackExecutor;
+    }
+
+    /**
+     * Sets the executor running listeners of futures returned by the
+     * asynchronous send methods. If it is null, listeners are run directly
+     * on the thread receiving the response, so they must not block.
+     *
+     * @param executor executor for listeners or null
+     */
+    public void setCallbackExecutor(Executor executor)
+    {
+        fCallbackExecutor = executor;
+    }
+
+    /**
+     * @return coalescer for identical procedure calls or null
+     */
+    public QueryCoalescer getCoalescer()
+    {
+        return fCoalescer;
+    }
+
+    /**
+     * Sets the coalescer used to send identical calls to whitelisted
+     * procedures only once while one of them is in flight.
+     * If it is null, all queries are sent.
+     *
+     * @param coalescer coalescer to use or null
+     */
+    public void setCoalescer(QueryCoalescer coalescer)
+    {
+        fCoalescer = coalescer;
+    }
+
+    /**
+     * @return cache for procedure call results or null
+     */
+    public IResultCache getResultCache()
+    {
+        return fResultCache;
+    }
+
+    /**
+     * Sets the cache answering procedure calls with previous results.
+     * Storing or deleting a procedure invalidates its cached results.
+     * If it is null, all queries are sent.
+     *
+     * @param cache result cache to use or null
+     */
+    public void setResultCache(IResultCache cache)
+    {
+        fResultCache = cache;
+    }
+
+    /**
+     * @return promoter of frequent Cypher statements or null
+     */
+    public StatementPromoter getStatementPromoter()
+    {
+        return fPromoter;
+    }
+
+    /**
+     * Sets the promoter storing frequent Cypher statements as procedures
+     * and sending them as procedure calls afterwards.
+     * If it is null, statements are always sent as they are.
+     *
+     * @param promoter statement promoter to use or null
+     */
+    public void setStatementPromoter(StatementPromoter promoter)
+    {
+        fPromoter = promoter;
+    }
+
+    /**
+     * @return strategy selecting connections for single-server requests
+     */
+    public IRoutingStrategy getRoutingStrategy()
+    {
+        return fRouting;
+    }
+
+    /**
+     * Sets the strategy selecting the connection for procedure calls and
+     * direct Cypher queries, which are only sent to a single server.
+     * Defaults to a least loaded strategy.
+     * The given strategy must not be null.
+     *
+     * @param strategy routing strategy to use
+     */
+    public void setRoutingStrategy(IRoutingStrategy strategy)
+    {
+        if(strategy == null)
+        {
+            throw new NullPointerException("routing strategy was null");
+        }
+
+        fRouting = strategy;
+    }
+
     @Override
     public boolean handleMessage(final WebsockQuery message)
     {
@@ -266,32 +506,50 @@ public class MultiConnQueryHandler implements IQueryHandler
         int id = message.getId();
         EQueryType type = message.getType();
 
-        IMessageCallback mcb = fPendingMessages.get(id);
-        IQueryCallback qcb = fPendingResults.get(id);
+        final PendingRequest request = fPending.get(id);
 
-        //messages sent to multiple servers
-        synchronized(fMultiCounters)
+        if(request != null)
         {
-            Integer count = fMultiCounters.get(id);
-
-            if(count != null)
+            //messages sent to multiple servers wait for all responses
+            if(request.responseReceived(message) > 0)
             {
-                if(--count > 0)
-                {
-                    //wait for all responses
-                    fMultiCounters.put(id, count);
+                handled = true;
+            }
+            //claim request, so it can only be completed once
+            else if(claim(request))
+            {
+                final long received = System.nanoTime();
 
-                    mcb = null;
-                    qcb = null;
-                    handled = true;
-                }
-                else
-                {
-                    fMultiCounters.remove(id);
-                }
+                handled = complete(request, message);
+
+                recordLatency(request, received);
+            }
+        }
+
+        if(handled)
+        {
+            if(fDebug)
+            {
+                fLogger.log(Level.FINEST, "query " + id + ":" + type
+                    + " handled; clearing");
             }
         }
 
+        /*
+         * otherwise it may be an unrelated query, not directly handled by the
+         * query handler
+         */
+        return handled;
+    }
+
+    private boolean complete(final PendingRequest request,
+        final WebsockQuery message)
+    {
+        boolean handled = false;
+        final EQueryType type = message.getType();
+        final IMessageCallback mcb = request.getMessageCallback();
+        final IQueryCallback qcb = request.getQueryCallback();
+
         //query results
         if(qcb != null)
         {
@@ -300,8 +558,26 @@ public class MultiConnQueryHandler implements IQueryHandler
                 @SuppressWarnings("unchecked")
                 Map<String, Object> map =
                     (Map<String, Object>) message.getPayload();
-                AResultSet<?> set = ResultSetConverter.toResultSet(map);
-                qcb.setResult(set);
+
+                final IResultCache cache = fResultCache;
+
+                //cached results are converted once and shared
+                if(cache != null && cache.isCacheable(request.getQuery()))
+                {
+                    AResultSet<?> set = ResultSetConverter.toResultSet(map);
+                    cacheResult(cache, request, set);
+                    qcb.setResult(set);
+                }
+                //lazy callbacks convert when the result is read
+                else if(qcb instanceof ILazyQueryCallback)
+                {
+                    ((ILazyQueryCallback) qcb).setPayload(map);
+                }
+                else
+                {
+                    AResultSet<?> set = ResultSetConverter.toResultSet(map);
+                    qcb.setResult(set);
+                }
             }
             else if(message.getPayload() != null)
             {
@@ -313,7 +589,6 @@ public class MultiConnQueryHandler implements IQueryHandler
             }
 
             handled = true;
-            done(id);
         }
         //message responses
         else if(mcb != null)
@@ -332,23 +607,8 @@ public class MultiConnQueryHandler implements IQueryHandler
             }
 
             handled = true;
-            done(id);
-        }
-
-
-        if(handled)
-        {
-            if(fDebug)
-            {
-                fLogger.log(Level.FINEST, "query " + id + ":" + type
-                    + " handled; clearing");
-            }
         }
 
-        /*
-         * otherwise it may be an unrelated query, not directly handled by the
-         * query handler
-         */
         return handled;
     }
 
@@ -372,6 +632,74 @@ public class MultiConnQueryHandler implements IQueryHandler
         return future;
     }
 
+    @Override
+    public MessageFuture sendMessageAsync(WebsockQuery message)
+    {
+        MessageFuture future = new MessageFuture(fCallbackExecutor);
+
+        sendMessage(message, future);
+
+        return future;
+    }
+
+    @Override
+    public ResultFuture sendQueryAsync(WebsockQuery query)
+    {
+        ResultFuture future = new ResultFuture(fCallbackExecutor);
+
+        sendQuery(query, future);
+
+        return future;
+    }
+
+    /**
+     * Retrieves the given number of results of the given query by splitting
+     * the range into one subset per pooled connection, requesting all of
+     * them at the same time and reassembling them in order into a single
+     * table or list result.
+     * The given query must not be null, the total must be positive.
+     *
+     * @param query query to send
+     * @param total number of results to retrieve
+     * @return future for the combined result
+     */
+    public ResultFuture sendParallelQuery(WebsockQuery query, int total)
+    {
+        return sendParallelQuery(query, total,
+            Math.max(fSessionPool.size(), 1));
+    }
+
+    /**
+     * Retrieves the given number of results of the given query by splitting
+     * the range into the given number of subsets, which are distributed
+     * over the pooled connections by the routing strategy, requesting all
+     * of them at the same time and reassembling them in order into a single
+     * table or list result.
+     * The given query must not be null, the total and number of subsets
+     * must be positive.
+     *
+     * @param query query to send
+     * @param total number of results to retrieve
+     * @param chunks number of subsets to split the range into
+     * @return future for the combined result
+     */
+    public ResultFuture sendParallelQuery(WebsockQuery query, int total,
+        int chunks)
+    {
+        ResultFuture future = new ResultFuture(fCallbackExecutor);
+
+        new ParallelPagedQuery(this, query, total, chunks, future).send();
+
+        return future;
+    }
+
+    @Override
+    public PagedResultIterator sendPagedQuery(WebsockQuery query,
+        int pageSize, int prefetch)
+    {
+        return new PagedResultIterator(this, query, pageSize, prefetch);
+    }
+
     @Override
     public void sendMessage(final WebsockQuery message,
         IMessageCallback callback)
@@ -387,18 +715,8 @@ public class MultiConnQueryHandler implements IQueryHandler
         final int id = getId();
         message.setId(id);
 
-        synchronized(fPendingQueries)
-        {
-            fPendingQueries.put(id, message);
-        }
-        synchronized(fPendingMessages)
-        {
-            fPendingMessages.put(id, callback);
-        }
-        synchronized(fTimeouts)
-        {
-            fTimeouts.put(id, System.currentTimeMillis());
-        }
+        final PendingRequest request = new PendingRequest(message, callback);
+        register(request);
 
         try
         {
@@ -406,25 +724,71 @@ public class MultiConnQueryHandler implements IQueryHandler
             {
                 case PROCEDURE_CALL:
                 case DIRECT_CYPHER:
-                    sendToAny(message);
+                    sendToAny(request);
                     break;
 
                 default:
                     sendToAll(message);
             }
+
+            if(message.getType() == EQueryType.STORE_PROCEDURE
+                || message.getType() == EQueryType.DELETE_PROCEDURE)
+            {
+                handleProcedureQuery(message);
+            }
         }
         catch (Exception e)
         {
             e.printStackTrace();
             fLogger.log(Level.SEVERE, "failed to send message to server", e);
             callback.setErrorMessage("failed to send message to server");
-            done(id);
+            claim(id);
         }
     }
 
     @Override
     public void sendQuery(final WebsockQuery query, IQueryCallback callback)
     {
+        sendQuery(query, callback, null);
+    }
+
+    @Override
+    public void sendQuery(WebsockQuery query, IQueryCallback callback,
+        RequestOptions options)
+    {
+        //send frequent statements as procedure calls
+        final WebsockQuery submitted = query;
+        final StatementPromoter promoter = fPromoter;
+        if(promoter != null)
+        {
+            query = promoter.promote(query, this);
+        }
+
+        //answer from cache if possible
+        final IResultCache cache = fResultCache;
+        if(cache != null)
+        {
+            final AResultSet<?> cached = cache.get(query);
+
+            if(cached != null)
+            {
+                callback.setResult(cached);
+                return;
+            }
+        }
+
+        //attach to identical query in flight if possible
+        final QueryCoalescer coalescer = fCoalescer;
+        if(coalescer != null)
+        {
+            callback = coalescer.coalesce(query, callback);
+
+            if(callback == null)
+            {
+                return;
+            }
+        }
+
         //check if any session is open
         if(fSessionPool.isEmpty())
         {
@@ -436,18 +800,13 @@ public class MultiConnQueryHandler implements IQueryHandler
         final int id = getId();
         query.setId(id);
 
-        synchronized(fPendingQueries)
-        {
-            fPendingQueries.put(id, query);
-        }
-        synchronized(fPendingResults)
-        {
-            fPendingResults.put(id, callback);
-        }
-        synchronized(fTimeouts)
-        {
-            fTimeouts.put(id, System.currentTimeMillis());
-        }
+        //promoted calls can be cancelled through the caller's query
+        submitted.setId(id);
+
+        final PendingRequest request = new PendingRequest(query, callback);
+        request.setOptions(options);
+        request.setCacheGeneration(getGeneration(query));
+        register(request);
 
         try
         {
@@ -455,19 +814,26 @@ public class MultiConnQueryHandler implements IQueryHandler
             {
                 case PROCEDURE_CALL:
                 case DIRECT_CYPHER:
-                    sendToAny(query);
+                    sendToAny(request);
+                    scheduleHedge(request);
                     break;
 
                 default:
                     sendToAll(query);
             }
+
+            if(query.getType() == EQueryType.STORE_PROCEDURE
+                || query.getType() == EQueryType.DELETE_PROCEDURE)
+            {
+                handleProcedureQuery(query);
+            }
         }
         catch (Exception e)
         {
             e.printStackTrace();
             fLogger.log(Level.SEVERE, "failed to send query to server", e);
             callback.setErrorMessage("failed to send message to server");
-            done(id);
+            claim(id);
         }
     }
 
@@ -495,18 +861,9 @@ public class MultiConnQueryHandler implements IQueryHandler
         final int id = getId();
         message.setId(id);
 
-        synchronized(fPendingQueries)
-        {
-            fPendingQueries.put(id, message);
-        }
-        synchronized(fPendingMessages)
-        {
-            fPendingMessages.put(id, callback);
-        }
-        synchronized(fTimeouts)
-        {
-            fTimeouts.put(id, System.currentTimeMillis());
-        }
+        final PendingRequest request = new PendingRequest(message, callback);
+        request.setDirectUtil(util);
+        register(request);
 
         try
         {
@@ -517,37 +874,282 @@ public class MultiConnQueryHandler implements IQueryHandler
             e.printStackTrace();
             fLogger.log(Level.SEVERE, "failed to send message to server", e);
             callback.setErrorMessage("failed to send message to server");
-            done(id);
+            claim(id);
         }
     }
 
-    private void sendToAny(final WebsockQuery message) throws Exception
+    private void sendToAny(final PendingRequest request) throws Exception
     {
-        //TODO: synchronization?
-        final int poolInd = fPoolCounter++ % fSessionPool.size();
-        final TransferUtil remote = fSessionPool.get(poolInd);
-        remote.sendMessage(message);
+        sendToAny(request, null);
+    }
+
+    private void sendToAny(final PendingRequest request,
+        final PooledConnection exclude) throws Exception
+    {
+        List<PooledConnection> pool = fSessionPool.snapshot();
+
+        //avoid excluded connection if there are others
+        if(exclude != null && pool.size() > 1 && pool.contains(exclude))
+        {
+            pool = new ArrayList<PooledConnection>(pool);
+            pool.remove(exclude);
+        }
+
+        final PooledConnection conn = fRouting.select(pool);
+
+        if(conn == null)
+        {
+            throw new IOException("no connection available");
+        }
+
+        request.setConnection(conn);
+        conn.getTransferUtil().sendMessage(request.getQuery());
     }
 
     private void sendToAll(final WebsockQuery message) throws Exception
     {
-        //TODO: synchronization?
+        //consistent view of the pool, even if it changes concurrently
+        final List<PooledConnection> pool = fSessionPool.snapshot();
 
-        synchronized(fMultiCounters)
+        final PendingRequest request = fPending.get(message.getId());
+        if(request != null)
         {
-            fMultiCounters.put(message.getId(), fSessionPool.size());
+            request.setTargets(pool);
         }
 
-        for(TransferUtil remote : fSessionPool)
+        for(PooledConnection conn : pool)
         {
-            remote.sendMessage(message);
+            conn.getTransferUtil().sendMessage(message);
         }
     }
 
-    private void resendProcedureQueries(final TransferUtil util)
+    private void recordLatency(final PendingRequest request,
+        final long received)
     {
-        //TODO: synchronization?
+        //statistics must never keep a response from being handled
+        try
+        {
+            addLatency(request, received - request.getRoutedNanos());
+        }
+        catch(Exception e)
+        {
+            fLogger.log(Level.SEVERE, "failed to record latency of query "
+                + request.getId(), e);
+        }
+    }
+
+    private void addLatency(final PendingRequest request, final long nanos)
+    {
+        //only requests routed to a single connection are measured
+        final PooledConnection conn = request.getConnection();
+        if(conn == null)
+        {
+            return;
+        }
+
+        //the response to a hedged request may come from either connection
+        if(request.getHedgeConnection() == null)
+        {
+            conn.recordLatency(nanos);
+        }
+
+        //hedged calls took at least this long on the first connection,
+        //leaving them out would hide the slow tail hedging reacts to
+        final HedgingPolicy hedging = fHedging;
+        if(hedging != null)
+        {
+            final String procedure = hedging.getProcedure(request.getQuery());
+
+            if(procedure != null)
+            {
+                hedging.recordLatency(procedure, nanos);
+            }
+        }
+    }
+
+    private void scheduleHedge(final PendingRequest request)
+    {
+        final HedgingPolicy hedging = fHedging;
+        if(hedging == null)
+        {
+            return;
+        }
+
+        final String procedure = hedging.getProcedure(request.getQuery());
+        if(procedure != null)
+        {
+            final long delay = hedging.callSent(procedure);
+            final Hedge hedge = new Hedge(request);
+            request.setHedgeTimer(hedge);
+            fTimeouts.schedule(hedge, System.currentTimeMillis() + delay);
+
+            //completed before the timer was scheduled
+            if(fPending.get(request.getId()) != request)
+            {
+                fTimeouts.cancel(hedge);
+            }
+        }
+    }
+
+    private void hedge(final Hedge hedge)
+    {
+        final PendingRequest request = hedge.fRequest;
+        final HedgingPolicy hedging = fHedging;
+
+        //ignore requests completed in the meantime
+        if(hedging == null || fPending.get(request.getId()) != request)
+        {
+            return;
+        }
+
+        //copies need another connection and must stay within the budget
+        final List<PooledConnection> pool = new ArrayList<PooledConnection>(
+            fSessionPool.snapshot());
+        pool.remove(request.getConnection());
+
+        if(pool.isEmpty() || !hedging.tryHedge())
+        {
+            return;
+        }
+
+        //a separate copy tells failed writes of both copies apart
+        final WebsockQuery query = request.getQuery();
+        final WebsockQuery copy = new WebsockQuery(query.getType());
+        copy.setId(query.getId());
+        copy.setParameters(query.getParameters());
+        copy.setPayload(query.getPayload());
+
+        final PooledConnection conn = fRouting.select(pool);
+        if(conn == null || !request.setHedgeConnection(conn, copy))
+        {
+            return;
+        }
+
+        if(fDebug)
+        {
+            fLogger.log(Level.FINEST, "hedging query " + request.getId());
+        }
+
+        try
+        {
+            conn.getTransferUtil().sendMessage(copy);
+        }
+        catch(Exception e)
+        {
+            fLogger.log(Level.WARNING, "failed to send hedged query", e);
+            request.hedgeFailed();
+        }
+    }
+
+    @Override
+    public void sendFailed(Object frame, WebsockQuery query, Throwable cause)
+    {
+        if(query == null)
+        {
+            fLogger.log(Level.SEVERE, "failed to send message: " + frame,
+                cause);
+            return;
+        }
 
+        //the first copy of a hedged request may still be answered
+        final PendingRequest request = fPending.get(query.getId());
+        if(request != null && request.getHedgeQuery() == query)
+        {
+            fLogger.log(Level.WARNING, "failed to send hedged query "
+                + query.getId(), cause);
+            request.hedgeFailed();
+            return;
+        }
+
+        //complete the request with an error
+        final WebsockQuery error = new WebsockQuery(query.getId(),
+            EQueryType.ERROR);
+        error.setPayload("failed to send message to server: " + cause);
+        handleMessage(error);
+    }
+
+    private void handleProcedureQuery(final WebsockQuery query)
+    {
+        String name = null;
+
+        if(query.getType() == EQueryType.STORE_PROCEDURE)
+        {
+            name = query.getParameter(
+                WebsockConstants.PROCEDURE_NAME).toString();
+            fProcedureQueries.put(name, query);
+        }
+        else if(query.getType() == EQueryType.DELETE_PROCEDURE)
+        {
+            name = query.getPayload().toString();
+            fProcedureQueries.remove(name);
+        }
+
+        //previous results and results of calls in flight are no longer valid
+        if(name != null)
+        {
+            AtomicLong generation = fProcedureGenerations.get(name);
+            if(generation == null)
+            {
+                generation = new AtomicLong();
+                final AtomicLong old = fProcedureGenerations.putIfAbsent(name,
+                    generation);
+                if(old != null)
+                {
+                    generation = old;
+                }
+            }
+            generation.incrementAndGet();
+        }
+
+        final IResultCache cache = fResultCache;
+        if(cache != null && name != null)
+        {
+            cache.invalidate(name);
+        }
+    }
+
+    private long getGeneration(final WebsockQuery query)
+    {
+        final Object name = query.getParameter(
+            WebsockConstants.PROCEDURE_NAME);
+
+        AtomicLong generation = null;
+        if(name != null)
+        {
+            generation = fProcedureGenerations.get(name.toString());
+        }
+
+        if(generation != null)
+        {
+            return generation.get();
+        }
+        return 0;
+    }
+
+    private void cacheResult(final IResultCache cache,
+        final PendingRequest request, final AResultSet<?> result)
+    {
+        final WebsockQuery query = request.getQuery();
+        final long generation = request.getCacheGeneration();
+
+        //the procedure was changed while the call was in flight
+        if(getGeneration(query) != generation)
+        {
+            return;
+        }
+
+        cache.put(query, result);
+
+        //changed while caching, the invalidation may have missed the result
+        if(getGeneration(query) != generation)
+        {
+            cache.invalidate(query.getParameter(
+                WebsockConstants.PROCEDURE_NAME).toString());
+        }
+    }
+
+    private void resendProcedureQueries(final TransferUtil util)
+    {
         int id = 0;
         WebsockQuery query = null;
         WebsockQuery oldQuery = null;
@@ -570,7 +1172,10 @@ public class MultiConnQueryHandler implements IQueryHandler
             try
             {
                 callback = new MessageFuture();
-                fPendingMessages.put(id, callback);
+                final PendingRequest request = new PendingRequest(query,
+                    callback);
+                request.setDirectUtil(util);
+                register(request);
 
                 util.sendMessage(query);
             }
@@ -586,213 +1191,430 @@ public class MultiConnQueryHandler implements IQueryHandler
     @Override
     public int getId()
     {
-        final int idIndex = ++fIdPoolCounter % ID_POOLS;
-        int id = 1;
+        return fIds.next();
+    }
 
-        synchronized(fPoolIdLocks[idIndex])
-        {
-            id = fPoolIds[idIndex]++;
+    /**
+     * @return number of IDs skipped because they were still in use
+     */
+    public long getIdCollisions()
+    {
+        return fIds.getCollisions();
+    }
 
-            //wrap on overflow
-            if(fPoolIds[idIndex] == ID_POOL_SIZE * (idIndex + 1))
-            {
-                fPoolIds[idIndex]= ID_POOL_SIZE * idIndex;
-            }
+    private void register(final PendingRequest request)
+    {
+        fPending.put(request);
+
+        final long timeout = getTimeout(request);
+        if(timeout > 0)
+        {
+            fTimeouts.schedule(request, request.getSendTime() + timeout);
         }
+    }
 
-        return id;
+    private long getTimeout(final PendingRequest request)
+    {
+        final RequestOptions options = request.getOptions();
+        return options != null ? options.getTimeout() : fTimeout;
     }
 
-    private void done(int id)
+    private int getRetries(final PendingRequest request)
     {
-        synchronized(fPendingMessages)
-        {
-            fPendingMessages.remove(id);
-        }
-        synchronized(fPendingQueries)
-        {
-            fPendingQueries.remove(id);
-        }
-        synchronized(fPendingResults)
+        final RequestOptions options = request.getOptions();
+        return options != null ? options.getRetries() : fRetryNum;
+    }
+
+    private PendingRequest claim(final int id)
+    {
+        final PendingRequest request = fPending.remove(id);
+
+        if(request != null)
         {
-            fPendingResults.remove(id);
+            fTimeouts.cancel(request);
+            cancelHedge(request);
+            request.release();
         }
-        synchronized(fTimeouts)
+
+        return request;
+    }
+
+    private void cancelHedge(final PendingRequest request)
+    {
+        final TimingWheel.Entry hedge = request.getHedgeTimer();
+        if(hedge != null)
         {
-            fTimeouts.remove(id);
+            fTimeouts.cancel(hedge);
         }
-        synchronized(fRetries)
+    }
+
+    private boolean claim(final PendingRequest request)
+    {
+        final boolean claimed = fPending.remove(request);
+
+        if(claimed)
         {
-            fRetries.remove(id);
+            fTimeouts.cancel(request);
+            cancelHedge(request);
+            request.release();
         }
+
+        return claimed;
     }
 
     @Override
     public void cancel(int id)
     {
-        synchronized(fPendingMessages)
+        final PendingRequest request = claim(id);
+
+        if(request != null)
         {
-            IErrorFuture<?> fut = fPendingMessages.get(id);
-            if(fut != null)
-            {
-                fut.cancel(true);
-            }
+            request.getCallback().cancel(true);
         }
+    }
+
+    @Override
+    public void run()
+    {
+        fActive = true;
 
-        synchronized(fPendingResults)
+        while(fActive)
         {
-            IErrorFuture<?> fut = fPendingResults.get(id);
-            if(fut != null)
+            check();
+
+            try
             {
-                fut.cancel(true);
+                synchronized(fTrigger)
+                {
+                    fTrigger.wait(getCheckInterval());
+                }
+            }
+            catch(Exception e)
+            {
+                e.printStackTrace();
             }
         }
-
-        done(id);
     }
 
-    @Override
-    public void run()
+    /**
+     * Runs the timeout and retry mechanism as a periodic task on the given
+     * scheduler instead of a dedicated thread, until the handler is
+     * deactivated. The scheduler is not shut down by the handler.
+     * The given scheduler must not be null.
+     *
+     * @param scheduler scheduler to run checks on
+     */
+    public synchronized void start(ScheduledExecutorService scheduler)
     {
+        if(scheduler == null)
+        {
+            throw new NullPointerException("scheduler was null");
+        }
+
         fActive = true;
+        fScheduler = scheduler;
+        schedule();
+    }
 
-        long maxTime = 0;
-        final Set<Integer> timedOut = new HashSet<Integer>();
+    private synchronized void schedule()
+    {
+        if(fTask != null)
+        {
+            fTask.cancel(false);
+        }
 
-        while(fActive)
+        fTask = fScheduler.scheduleWithFixedDelay(new Runnable()
         {
-            //check for timeouts if activated
-            if(fTimeout > 0)
+            @Override
+            public void run()
             {
-                maxTime = System.currentTimeMillis() - fTimeout;
-
-                synchronized(fTimeouts)
+                //exceptions would stop all further checks
+                try
                 {
-                    for(Entry<Integer, Long> timeE : fTimeouts.entrySet())
-                    {
-                        if(timeE.getValue() < maxTime)
-                        {
-                            timedOut.add(timeE.getKey());
-                        }
-                    }
+                    check();
                 }
-
-                for(Integer id : timedOut)
+                catch(Exception e)
                 {
-                    timeout(id);
+                    fLogger.log(Level.SEVERE, "timeout check failed", e);
                 }
-                timedOut.clear();
             }
+        }, getCheckInterval(), getCheckInterval(), TimeUnit.MILLISECONDS);
+    }
 
-            try
+    private long getCheckInterval()
+    {
+        //hedging delays are often shorter than the timer interval
+        if(fHedging != null)
+        {
+            return Math.min(fTimerInt, fTimeouts.getTick());
+        }
+
+        return fTimerInt;
+    }
+
+    private void check()
+    {
+        //collect and handle expired deadlines, runs may overlap while the
+        //check is rescheduled
+        final List<TimingWheel.Entry> timedOut =
+            new ArrayList<TimingWheel.Entry>();
+        fTimeouts.advance(System.currentTimeMillis(), timedOut);
+
+        for(TimingWheel.Entry entry : timedOut)
+        {
+            if(entry instanceof Hedge)
             {
-                synchronized(fTrigger)
-                {
-                    fTrigger.wait(fTimerInt);
-                }
+                hedge((Hedge) entry);
             }
-            catch(Exception e)
+            else
             {
-                e.printStackTrace();
+                timeout((PendingRequest) entry);
             }
         }
     }
 
-    private void timeout(final int id)
+    private void timeout(final PendingRequest request)
     {
-        //TODO: synchronization?
+        final WebsockQuery query = request.getQuery();
+
+        //ignore requests completed in the meantime
+        if(fPending.get(request.getId()) != request)
+        {
+            return;
+        }
 
-        final WebsockQuery query = fPendingQueries.get(id);
+        //resend requests that waited for their retry
+        if(request.isRetryPending())
+        {
+            request.setRetryPending(false);
+            retry(request);
+            return;
+        }
 
-        if(query == null)
+        //ignore requests whose timeouts were deactivated after sending
+        final long timeout = getTimeout(request);
+        if(timeout <= 0)
         {
-            fLogger.log(Level.SEVERE, "missing query " + id + " timed out");
-            done(id);
             return;
         }
 
         fLogger.log(Level.WARNING, "query timed out:\n" + query.getPayload());
 
         //retry if retries left, cancel otherwise
-        Integer retries = fRetries.get(id);
-        if(retries == null)
+        if(request.getRetries() < getRetries(request))
         {
-            retries = 0;
+            final int retries = request.incrementRetries();
+            fLogger.log(Level.WARNING, "retry " + retries + " for query "
+                + query.getId());
+
+            //wait before resending if the policy asks for it
+            final IRetryPolicy policy = fRetryPolicy;
+            final long delay = policy != null ? policy.getDelay(retries) : 0;
+
+            if(delay > 0)
+            {
+                request.setRetryPending(true);
+                fTimeouts.schedule(request, System.currentTimeMillis() + delay);
+
+                //do not keep a timer for a request completed concurrently
+                if(fPending.get(request.getId()) != request)
+                {
+                    fTimeouts.cancel(request);
+                }
+            }
+            else
+            {
+                retry(request);
+            }
+        }
+        //otherwise cancel - error, unless a response arrived in the meantime
+        else if(claim(request))
+        {
+            request.getCallback().setErrorMessage("timeout error");
+
+            fLogger.log(Level.SEVERE, "query "+ query.getId() + " cancelled "
+                + "(no retries left)");
         }
+    }
 
-        if(retries < fRetryNum)
+    private void retry(final PendingRequest request)
+    {
+        request.setSendTime(System.currentTimeMillis());
+
+        final long timeout = getTimeout(request);
+        if(timeout > 0)
         {
-            ++retries;
-            fRetries.put(id, retries);
-            fLogger.log(Level.WARNING, "retry " + retries + " for query "
-                + query.getId());
+            fTimeouts.schedule(request, request.getSendTime() + timeout);
+        }
+
+        //do not keep a timer for a request completed concurrently
+        if(fPending.get(request.getId()) != request)
+        {
+            fTimeouts.cancel(request);
+            return;
+        }
 
-            synchronized(fTimeouts)
+        resend(request);
+    }
+
+    private void resend(final PendingRequest request)
+    {
+        final WebsockQuery query = request.getQuery();
+
+        //ignore requests completed in the meantime
+        if(fPending.get(request.getId()) != request)
+        {
+            return;
+        }
+
+        //the deadline of the current attempt is left untouched
+        try
+        {
+            final TransferUtil direct = request.getDirectUtil();
+
+            if(direct != null)
+            {
+                //direct messages are only meant for their connection
+                direct.sendMessage(query);
+            }
+            else if(fSessionPool.isEmpty())
+            {
+                //cancel query if no connections are available
+                if(claim(request))
+                {
+                    request.getCallback().setErrorMessage(
+                        "no connections availabe");
+                }
+            }
+            else
             {
-                fTimeouts.put(id, System.currentTimeMillis());
+                switch(query.getType())
+                {
+                    case PROCEDURE_CALL:
+                    case DIRECT_CYPHER:
+                        sendToAny(request, getExcluded(request));
+                        break;
+
+                    default:
+                        sendToAll(query);
+                }
             }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            fLogger.log(Level.SEVERE,
+                "failed to retry sending query to server", e);
+        }
+    }
 
-            try
+    private void connectionLost(final TransferUtil util,
+        final PooledConnection conn)
+    {
+        for(PendingRequest request : fPending.values())
+        {
+            final PooledConnection primary = request.getConnection();
+            final PooledConnection hedge = request.getHedgeConnection();
+            final TransferUtil direct = request.getDirectUtil();
+
+            //direct messages cannot be sent through any other connection
+            if(direct != null)
             {
-                if(fSessionPool.isEmpty())
+                if(direct == util && claim(request))
                 {
-                    //cancel query if no connections are available
-                    IErrorFuture<?> fut = fPendingMessages.get(id);
-                    if(fut != null)
-                    {
-                        fut.setErrorMessage("no connections availabe");
-                    }
-
-                    fut = fPendingResults.get(id);
-                    if(fut != null)
-                    {
-                        fut.setErrorMessage("no connections availabe");
-                    }
-
-                    done(id);
+                    request.getCallback().setErrorMessage("connection lost");
                 }
-                else
+                continue;
+            }
+
+            //requests waiting for a retry are resent anyway
+            if(conn == null || request.isRetryPending())
+            {
+                continue;
+            }
+
+            //requests sent to all connections stop waiting for this one,
+            //even if its response already arrived, which cannot be told apart
+            if(primary == null && hedge == null)
+            {
+                if(request.connectionLost(conn))
                 {
-                    switch(query.getType())
-                    {
-                        case PROCEDURE_CALL:
-                        case DIRECT_CYPHER:
-                            sendToAny(query);
-                            break;
-
-                        default:
-                            sendToAll(query);
-                    }
+                    broadcastLost(request);
                 }
+                continue;
             }
-            catch (Exception e)
+
+            if(primary != conn && hedge != conn)
             {
-                e.printStackTrace();
-                fLogger.log(Level.SEVERE,
-                    "failed to retry sending query to server", e);
+                continue;
             }
-        }
-        else
-        {
-            //otherwise cancel - error
-            IErrorFuture<?> fut = fPendingMessages.get(id);
-            if(fut != null)
+
+            //a copy may still be answered by another open connection
+            final PooledConnection other = primary == conn ? hedge : primary;
+            if(other != null && fSessionPool.snapshot().contains(other))
             {
-                fut.setErrorMessage("timeout error");
+                continue;
             }
 
-            fut = fPendingResults.get(id);
-            if(fut != null)
+            if(isIdempotent(request))
             {
-                fut.setErrorMessage("timeout error");
+                fLogger.log(Level.WARNING, "connection lost, resending query "
+                    + request.getId());
+
+                //failing over does not restart the deadline of this attempt
+                resend(request);
             }
+            else if(claim(request))
+            {
+                request.getCallback().setErrorMessage("connection lost");
+            }
+        }
+    }
 
-            fLogger.log(Level.SEVERE, "query "+ query.getId() + " cancelled "
-                + "(no retries left)");
+    private void broadcastLost(final PendingRequest request)
+    {
+        //complete with the responses of the remaining connections
+        final WebsockQuery response = request.getLastResponse();
+
+        if(!claim(request))
+        {
+            return;
+        }
 
-            done(id);
+        if(response != null)
+        {
+            complete(request, response);
+        }
+        else
+        {
+            request.getCallback().setErrorMessage("connection lost");
         }
+    }
 
+    private boolean isIdempotent(final PendingRequest request)
+    {
+        final RequestOptions options = request.getOptions();
+        if(options != null && options.isIdempotent())
+        {
+            return true;
+        }
+
+        //hedged procedures are idempotent
+        final HedgingPolicy hedging = fHedging;
+        return hedging != null
+            && hedging.getProcedure(request.getQuery()) != null;
+    }
+
+    private PooledConnection getExcluded(final PendingRequest request)
+    {
+        final IRetryPolicy policy = fRetryPolicy;
+
+        if(policy != null && policy.isExcludingFailed())
+        {
+            return request.getConnection();
+        }
+
+        return null;
     }
 
     @Override
@@ -800,6 +1622,15 @@ public class MultiConnQueryHandler implements IQueryHandler
     {
         fActive = false;
 
+        synchronized(this)
+        {
+            if(fTask != null)
+            {
+                fTask.cancel(false);
+                fTask = null;
+            }
+        }
+
         synchronized(fTrigger)
         {
             fTrigger.notify();
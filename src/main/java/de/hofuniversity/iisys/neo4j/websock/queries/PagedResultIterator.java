@@ -0,0 +1,227 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+import de.hofuniversity.iisys.neo4j.websock.result.AResultSet;
+import de.hofuniversity.iisys.neo4j.websock.session.WebsockConstants;
+
+/**
+ * Iterator over the pages of a query's result, sending one query per page
+ * using the subset parameters and requesting a number of following pages in
+ * the background while the current one is consumed.
+ * Iteration ends with the first page that is empty or smaller than the page
+ * size or when the total number of results reported by the server is
+ * reached. At most the current page and the prefetched pages are held in
+ * memory at any time.
+ * Not thread-safe; closing the iterator cancels all pages still requested.
+ */
+public class PagedResultIterator implements Iterator<AResultSet<?>>,
+    AutoCloseable
+{
+    private final IQueryHandler fHandler;
+    private final WebsockQuery fQuery;
+
+    private final int fPageSize, fPrefetch;
+
+    private final Queue<IQueryCallback> fPending;
+
+    private AResultSet<?> fNext;
+    private int fNextStart, fTotal;
+    private boolean fDone;
+
+    /**
+     * Creates an iterator over the pages of the given query's result, sent
+     * through the given handler. The first page is requested immediately.
+     * The given handler and query must not be null, the page size must be
+     * positive and the number of prefetched pages must not be negative.
+     *
+     * @param handler handler to send page queries with
+     * @param query query to retrieve the result for
+     * @param pageSize number of results per page
+     * @param prefetch number of pages to request ahead
+     */
+    public PagedResultIterator(IQueryHandler handler, WebsockQuery query,
+        int pageSize, int prefetch)
+    {
+        if(handler == null)
+        {
+            throw new NullPointerException("query handler was null");
+        }
+        if(query == null)
+        {
+            throw new NullPointerException("query was null");
+        }
+        if(pageSize <= 0)
+        {
+            throw new IllegalArgumentException(
+                "page size was negative or zero");
+        }
+        if(prefetch < 0)
+        {
+            throw new IllegalArgumentException(
+                "number of prefetched pages was negative");
+        }
+
+        fHandler = handler;
+        fQuery = query;
+        fPageSize = pageSize;
+        fPrefetch = prefetch;
+
+        fPending = new ArrayDeque<IQueryCallback>();
+        fTotal = -1;
+
+        request(1);
+    }
+
+    private void request(final int window)
+    {
+        while(!fDone && fPending.size() < window
+            && (fTotal < 0 || fNextStart < fTotal))
+        {
+            final WebsockQuery page = new WebsockQuery(fQuery.getType());
+
+            final Map<String, Object> params = new HashMap<String, Object>();
+            if(fQuery.getParameters() != null)
+            {
+                params.putAll(fQuery.getParameters());
+            }
+            page.setParameters(params);
+            page.setPayload(fQuery.getPayload());
+
+            page.setParameter(WebsockConstants.SUBSET_START, fNextStart);
+            page.setParameter(WebsockConstants.SUBSET_SIZE, fPageSize);
+
+            //answered from cache or attached to an identical query, the
+            //page does not necessarily get an ID of its own
+            fPending.add(fHandler.sendQuery(page));
+
+            fNextStart += fPageSize;
+        }
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if(fNext != null)
+        {
+            return true;
+        }
+
+        //fetch on demand if nothing was prefetched
+        if(fPending.isEmpty())
+        {
+            request(1);
+        }
+
+        final IQueryCallback page = fPending.poll();
+        if(page == null)
+        {
+            return false;
+        }
+
+        AResultSet<?> result = null;
+        try
+        {
+            result = page.get();
+        }
+        catch(Exception e)
+        {
+            close();
+            throw new RuntimeException("failed to retrieve page: "
+                + page.getErrorMessage(), e);
+        }
+
+        if(result == null || result.getSize() == 0)
+        {
+            close();
+            return false;
+        }
+
+        if(result.getTotal() > 0)
+        {
+            fTotal = result.getTotal();
+        }
+        else if(fTotal < 0)
+        {
+            //no total reported, continue until a page is incomplete
+            fTotal = Integer.MAX_VALUE;
+        }
+
+        if(result.getSize() < fPageSize)
+        {
+            close();
+        }
+
+        fNext = result;
+        request(fPrefetch);
+
+        return true;
+    }
+
+    @Override
+    public AResultSet<?> next()
+    {
+        if(!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+
+        final AResultSet<?> result = fNext;
+        fNext = null;
+
+        return result;
+    }
+
+    /**
+     * @return number of pages requested but not yet consumed
+     */
+    public int getPending()
+    {
+        return fPending.size();
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException(
+            "pages can not be removed");
+    }
+
+    /**
+     * Stops requesting pages and cancels all pages still requested.
+     * A page already retrieved can still be consumed.
+     */
+    @Override
+    public void close()
+    {
+        fDone = true;
+
+        IQueryCallback page = null;
+        while((page = fPending.poll()) != null)
+        {
+            page.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+import de.hofuniversity.iisys.neo4j.websock.result.AResultSet;
+import de.hofuniversity.iisys.neo4j.websock.result.ListResult;
+import de.hofuniversity.iisys.neo4j.websock.result.TableResult;
+import de.hofuniversity.iisys.neo4j.websock.session.WebsockConstants;
+
+/**
+ * Query split into a number of subsets of a known total range that are
+ * requested at the same time and reassembled in order into a single table
+ * or list result once all of them arrived.
+ * If any subset fails, the combined result fails and all other subsets are
+ * cancelled. Cancelling the combined result cancels all subsets.
+ */
+public class ParallelPagedQuery
+{
+    private final IQueryHandler fHandler;
+    private final WebsockQuery fQuery;
+    private final int fTotal, fChunks;
+
+    private final ListenableFuture<AResultSet<?>> fTarget;
+
+    private final List<IQueryCallback> fCallbacks;
+    private final AResultSet<?>[] fResults;
+    private final AtomicInteger fRemaining;
+
+    /**
+     * Creates a parallel query for the given range of the given query's
+     * result, split into the given number of subsets, completing the given
+     * future. Nothing is sent before calling send().
+     * The given handler, query and future must not be null, the total and
+     * number of subsets must be positive.
+     *
+     * @param handler handler to send subset queries with
+     * @param query query to retrieve the result for
+     * @param total number of results to retrieve
+     * @param chunks number of subsets to split the range into
+     * @param target future to complete with the combined result
+     */
+    public ParallelPagedQuery(IQueryHandler handler, WebsockQuery query,
+        int total, int chunks, ListenableFuture<AResultSet<?>> target)
+    {
+        if(handler == null)
+        {
+            throw new NullPointerException("query handler was null");
+        }
+        if(query == null)
+        {
+            throw new NullPointerException("query was null");
+        }
+        if(target == null)
+        {
+            throw new NullPointerException("target future was null");
+        }
+        if(total <= 0)
+        {
+            throw new IllegalArgumentException("total was negative or zero");
+        }
+        if(chunks <= 0)
+        {
+            throw new IllegalArgumentException(
+                "number of subsets was negative or zero");
+        }
+
+        fHandler = handler;
+        fQuery = query;
+        fTotal = total;
+        fChunks = Math.min(chunks, total);
+        fTarget = target;
+
+        fCallbacks = new ArrayList<IQueryCallback>(fChunks);
+        fResults = new AResultSet<?>[fChunks];
+        fRemaining = new AtomicInteger(fChunks);
+    }
+
+    /**
+     * Sends all subset queries.
+     */
+    public void send()
+    {
+        final int size = (fTotal + fChunks - 1) / fChunks;
+
+        for(int i = 0; i < fChunks; ++i)
+        {
+            final int start = i * size;
+            final WebsockQuery chunk = new WebsockQuery(fQuery.getType());
+
+            final Map<String, Object> params = new HashMap<String, Object>();
+            if(fQuery.getParameters() != null)
+            {
+                params.putAll(fQuery.getParameters());
+            }
+            chunk.setParameters(params);
+            chunk.setPayload(fQuery.getPayload());
+
+            chunk.setParameter(WebsockConstants.SUBSET_START, start);
+            chunk.setParameter(WebsockConstants.SUBSET_SIZE,
+                Math.min(size, fTotal - start));
+
+            //cancelled through its callback, since a subset answered from
+            //cache or attached to an identical query has no ID of its own
+            final ResultFuture callback = new ResultFuture();
+            fCallbacks.add(callback);
+
+            fHandler.sendQuery(chunk, callback);
+        }
+
+        //pass on cancellation of the combined result
+        fTarget.whenComplete(new IFutureListener<AResultSet<?>>()
+        {
+            @Override
+            public void onComplete(AResultSet<?> result, String errorMessage,
+                boolean cancelled)
+            {
+                if(result == null)
+                {
+                    cancelAll();
+                }
+            }
+        });
+
+        //listen after sending, so all subsets are known when failing
+        for(int i = 0; i < fChunks; ++i)
+        {
+            final int index = i;
+            ((ResultFuture) fCallbacks.get(i)).whenComplete(
+                new IFutureListener<AResultSet<?>>()
+                {
+                    @Override
+                    public void onComplete(AResultSet<?> result,
+                        String errorMessage, boolean cancelled)
+                    {
+                        received(index, result, errorMessage, cancelled);
+                    }
+                });
+        }
+    }
+
+    private void received(final int index, final AResultSet<?> result,
+        final String errorMessage, final boolean cancelled)
+    {
+        if(cancelled)
+        {
+            fTarget.cancel(false);
+            return;
+        }
+        else if(result == null)
+        {
+            fTarget.setErrorMessage("subset " + index + " failed: "
+                + errorMessage);
+            return;
+        }
+
+        fResults[index] = result;
+
+        //the last subset to arrive combines all of them
+        if(fRemaining.decrementAndGet() == 0)
+        {
+            try
+            {
+                fTarget.complete(combine());
+            }
+            catch(Exception e)
+            {
+                fTarget.setErrorMessage(e.getMessage());
+            }
+        }
+    }
+
+    private AResultSet<?> combine()
+    {
+        AResultSet<?> combined = null;
+        int total = 0;
+
+        if(fResults[0] instanceof TableResult)
+        {
+            final List<List<Object>> rows = new ArrayList<List<Object>>(fTotal);
+            for(AResultSet<?> result : fResults)
+            {
+                if(!(result instanceof TableResult))
+                {
+                    throw new IllegalStateException(
+                        "subsets returned mixed result types");
+                }
+
+                rows.addAll(((TableResult) result).getResults());
+                total = Math.max(total, result.getTotal());
+            }
+
+            combined = new TableResult(
+                ((TableResult) fResults[0]).getColumns(), rows);
+        }
+        else if(fResults[0] instanceof ListResult)
+        {
+            final List<Object> list = new ArrayList<Object>(fTotal);
+            for(AResultSet<?> result : fResults)
+            {
+                if(!(result instanceof ListResult))
+                {
+                    throw new IllegalStateException(
+                        "subsets returned mixed result types");
+                }
+
+                list.addAll(((ListResult) result).getResults());
+                total = Math.max(total, result.getTotal());
+            }
+
+            combined = new ListResult(list);
+        }
+        else
+        {
+            throw new IllegalStateException(
+                "only table and list results can be combined");
+        }
+
+        combined.setFirst(0);
+        combined.setMax(fTotal);
+        combined.setTotal(total);
+
+        return combined;
+    }
+
+    private void cancelAll()
+    {
+        for(IQueryCallback callback : fCallbacks)
+        {
+            callback.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+import de.hofuniversity.iisys.neo4j.websock.query.encoding.TransferUtil;
+
+/**
+ * Bookkeeping entry for a single request waiting for a response, holding the
+ * sent query, its callback, the time it was sent and the number of retries
+ * together. Doubles as the request's entry in the timeout wheel.
+ */
+public class PendingRequest extends TimingWheel.Entry
+{
+    private final int fId;
+    private final WebsockQuery fQuery;
+
+    private final IMessageCallback fMessageCallback;
+    private final IQueryCallback fQueryCallback;
+
+    private volatile long fSendTime;
+    private volatile int fRetries;
+
+    private volatile RequestOptions fOptions;
+    private volatile boolean fRetryPending;
+    private volatile boolean fOrphaned;
+    private volatile long fCacheGeneration;
+
+    private int fResponses;
+    private List<PooledConnection> fTargets;
+    private WebsockQuery fLastResponse;
+
+    private volatile TransferUtil fDirectUtil;
+
+    private PooledConnection fConnection;
+    private PooledConnection fHedgeConnection;
+    private WebsockQuery fHedgeQuery;
+    private TimingWheel.Entry fHedgeTimer;
+    private long fRoutedNanos;
+    private boolean fReleased;
+
+    /**
+     * Creates a pending request entry for a message expecting a response.
+     * The given query must not be null.
+     *
+     * @param query message that was sent
+     * @param callback callback to notify
+     */
+    public PendingRequest(WebsockQuery query, IMessageCallback callback)
+    {
+        this(query, callback, null);
+    }
+
+    /**
+     * Creates a pending request entry for a query expecting a result.
+     * The given query must not be null.
+     *
+     * @param query query that was sent
+     * @param callback callback to notify
+     */
+    public PendingRequest(WebsockQuery query, IQueryCallback callback)
+    {
+        this(query, null, callback);
+    }
+
+    private PendingRequest(WebsockQuery query, IMessageCallback mCallback,
+        IQueryCallback qCallback)
+    {
+        if(query == null)
+        {
+            throw new NullPointerException("query was null");
+        }
+
+        fId = query.getId();
+        fQuery = query;
+        fMessageCallback = mCallback;
+        fQueryCallback = qCallback;
+
+        fSendTime = System.currentTimeMillis();
+        fRetries = 0;
+        fResponses = 1;
+    }
+
+    /**
+     * @return ID of the request
+     */
+    public int getId()
+    {
+        return fId;
+    }
+
+    /**
+     * @return query that was sent
+     */
+    public WebsockQuery getQuery()
+    {
+        return fQuery;
+    }
+
+    /**
+     * @return message callback or null if this is a query
+     */
+    public IMessageCallback getMessageCallback()
+    {
+        return fMessageCallback;
+    }
+
+    /**
+     * @return query callback or null if this is a message
+     */
+    public IQueryCallback getQueryCallback()
+    {
+        return fQueryCallback;
+    }
+
+    /**
+     * @return whichever callback is set for this request
+     */
+    public IErrorFuture<?> getCallback()
+    {
+        if(fQueryCallback != null)
+        {
+            return fQueryCallback;
+        }
+
+        return fMessageCallback;
+    }
+
+    /**
+     * @return time in milliseconds the request was last sent
+     */
+    public long getSendTime()
+    {
+        return fSendTime;
+    }
+
+    /**
+     * @param sendTime time in milliseconds the request was last sent
+     */
+    public void setSendTime(long sendTime)
+    {
+        fSendTime = sendTime;
+    }
+
+    /**
+     * @return number of retries so far
+     */
+    public int getRetries()
+    {
+        return fRetries;
+    }
+
+    /**
+     * Increments the retry counter and returns the new value.
+     *
+     * @return number of retries including the current one
+     */
+    public int incrementRetries()
+    {
+        return ++fRetries;
+    }
+
+    /**
+     * @return timeout and retry budget of the request or null if the
+     *      handler's settings apply
+     */
+    public RequestOptions getOptions()
+    {
+        return fOptions;
+    }
+
+    /**
+     * @param options timeout and retry budget of the request or null to use
+     *      the handler's settings
+     */
+    public void setOptions(RequestOptions options)
+    {
+        fOptions = options;
+    }
+
+    /**
+     * @return whether the request is waiting to be resent
+     */
+    public boolean isRetryPending()
+    {
+        return fRetryPending;
+    }
+
+    /**
+     * @param retryPending whether the request is waiting to be resent, so its
+     *      next deadline triggers the retry instead of a timeout
+     */
+    public void setRetryPending(boolean retryPending)
+    {
+        fRetryPending = retryPending;
+    }
+
+    /**
+     * @return whether the request is waiting for a new connection
+     */
+    public boolean isOrphaned()
+    {
+        return fOrphaned;
+    }
+
+    /**
+     * @param orphaned whether the request is waiting for a new connection, so
+     *      its next deadline fails it because its connection was lost
+     */
+    public void setOrphaned(boolean orphaned)
+    {
+        fOrphaned = orphaned;
+    }
+
+    /**
+     * @return generation of the called procedure when the request was sent
+     */
+    public long getCacheGeneration()
+    {
+        return fCacheGeneration;
+    }
+
+    /**
+     * @param generation generation of the called procedure when the request
+     *      was sent, telling whether its result may still be cached
+     */
+    public void setCacheGeneration(long generation)
+    {
+        fCacheGeneration = generation;
+    }
+
+    /**
+     * @return transfer utility a direct message was sent through or null
+     */
+    public TransferUtil getDirectUtil()
+    {
+        return fDirectUtil;
+    }
+
+    /**
+     * @param util transfer utility a direct message was sent through, so it
+     *      is only ever sent through it
+     */
+    public void setDirectUtil(TransferUtil util)
+    {
+        fDirectUtil = util;
+    }
+
+    /**
+     * @return connection the request was last routed to or null
+     */
+    public synchronized PooledConnection getConnection()
+    {
+        return fConnection;
+    }
+
+    /**
+     * @return value of System.nanoTime() when the request was last routed
+     */
+    public synchronized long getRoutedNanos()
+    {
+        return fRoutedNanos;
+    }
+
+    /**
+     * Records the connection the request is sent through and the time it
+     * was routed, moving its load from the previous connection, if any.
+     * Has no effect once the request has been released.
+     *
+     * @param connection connection the request is sent through
+     */
+    public synchronized void setConnection(PooledConnection connection)
+    {
+        if(fReleased)
+        {
+            return;
+        }
+
+        if(fConnection != null)
+        {
+            fConnection.requestDone();
+        }
+
+        fConnection = connection;
+        fRoutedNanos = System.nanoTime();
+
+        if(fConnection != null)
+        {
+            fConnection.requestSent();
+        }
+    }
+
+    /**
+     * @return connection a copy of the request was sent through or null
+     */
+    public synchronized PooledConnection getHedgeConnection()
+    {
+        return fHedgeConnection;
+    }
+
+    /**
+     * Records the connection a copy of the request is sent through and the
+     * copy itself, adding load to the connection until the request is
+     * released or the copy could not be written. Only one copy is tracked.
+     * Has no effect once the request has been released.
+     *
+     * @param connection connection the copy is sent through
+     * @param copy copy of the query that is sent
+     * @return whether the connection was recorded
+     */
+    public synchronized boolean setHedgeConnection(PooledConnection connection,
+        WebsockQuery copy)
+    {
+        if(fReleased || fHedgeQuery != null || connection == null)
+        {
+            return false;
+        }
+
+        fHedgeConnection = connection;
+        fHedgeQuery = copy;
+        fHedgeConnection.requestSent();
+        return true;
+    }
+
+    /**
+     * @return copy of the query sent to another connection or null
+     */
+    public synchronized WebsockQuery getHedgeQuery()
+    {
+        return fHedgeQuery;
+    }
+
+    /**
+     * Removes the load of a copy that could not be written from its
+     * connection, leaving the request waiting for the first copy.
+     */
+    public synchronized void hedgeFailed()
+    {
+        if(!fReleased && fHedgeConnection != null)
+        {
+            fHedgeConnection.requestDone();
+        }
+
+        fHedgeConnection = null;
+    }
+
+    /**
+     * @return timer entry for sending a copy of the request or null
+     */
+    public synchronized TimingWheel.Entry getHedgeTimer()
+    {
+        return fHedgeTimer;
+    }
+
+    /**
+     * @param timer timer entry for sending a copy of the request, to be
+     *      cancelled once the request is done
+     */
+    public synchronized void setHedgeTimer(TimingWheel.Entry timer)
+    {
+        fHedgeTimer = timer;
+    }
+
+    /**
+     * Removes the request's load from its connections once it is done.
+     * Subsequent calls have no effect.
+     */
+    public synchronized void release()
+    {
+        if(!fReleased && fConnection != null)
+        {
+            fConnection.requestDone();
+        }
+        if(!fReleased && fHedgeConnection != null)
+        {
+            fHedgeConnection.requestDone();
+        }
+
+        fReleased = true;
+    }
+
+    /**
+     * Sets the connections a request was sent to, for requests sent to
+     * multiple servers, each of which needs to respond for the request to be
+     * complete.
+     * The given list must not be null.
+     *
+     * @param targets connections the request was sent to
+     */
+    public synchronized void setTargets(List<PooledConnection> targets)
+    {
+        fTargets = new ArrayList<PooledConnection>(targets);
+        fResponses = targets.size();
+        fLastResponse = null;
+    }
+
+    /**
+     * Registers an incoming response and returns the number of responses
+     * that are still missing. Responses that leave others missing are kept
+     * until the next one arrives.
+     *
+     * @param response response that was received
+     * @return number of responses still missing
+     */
+    public synchronized int responseReceived(WebsockQuery response)
+    {
+        final int missing = --fResponses;
+
+        if(missing > 0)
+        {
+            fLastResponse = response;
+        }
+
+        return missing;
+    }
+
+    /**
+     * Stops waiting for a response from the given connection, if the request
+     * was sent to it and is waiting for multiple responses.
+     *
+     * @param conn connection that was lost
+     * @return whether no more responses are missing afterwards
+     */
+    public synchronized boolean connectionLost(PooledConnection conn)
+    {
+        if(fTargets == null || fResponses <= 0 || !fTargets.remove(conn))
+        {
+            return false;
+        }
+
+        return --fResponses == 0;
+    }
+
+    /**
+     * @return last response kept while waiting for more or null
+     */
+    public synchronized WebsockQuery getLastResponse()
+    {
+        return fLastResponse;
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Open addressing hash table for pending requests, keyed by their primitive
+ * integer ID.
+ * The table is split into a number of segments with separate locks, each
+ * using linear probing and backward shift deletion, so no IDs are boxed and
+ * no tombstones accumulate.
+ */
+public class PendingRequestTable
+{
+    public static final int DEFAULT_SEGMENTS = 16;
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final Segment[] fSegments;
+    private final int fSegmentShift;
+
+    /**
+     * Creates a pending request table with the default number of segments.
+     */
+    public PendingRequestTable()
+    {
+        this(DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Creates a pending request table with the given number of segments,
+     * which is rounded up to the next power of two.
+     *
+     * @param segments number of separately locked segments
+     */
+    public PendingRequestTable(int segments)
+    {
+        if(segments <= 0)
+        {
+            throw new IllegalArgumentException(
+                "number of segments was negative or zero");
+        }
+
+        final int count = powerOfTwo(segments);
+        fSegments = new Segment[count];
+        fSegmentShift = 32 - Integer.numberOfTrailingZeros(count);
+
+        for(int i = 0; i < count; ++i)
+        {
+            fSegments[i] = new Segment(DEFAULT_CAPACITY);
+        }
+    }
+
+    private static int powerOfTwo(final int value)
+    {
+        int result = 1;
+        while(result < value)
+        {
+            result <<= 1;
+        }
+        return result;
+    }
+
+    private static int hash(final int id)
+    {
+        //multiplicative hashing to spread sequential IDs
+        return id * 0x9E3779B9;
+    }
+
+    private Segment segmentFor(final int hash)
+    {
+        if(fSegments.length == 1)
+        {
+            return fSegments[0];
+        }
+        return fSegments[hash >>> fSegmentShift];
+    }
+
+    /**
+     * Registers a pending request, if its ID is not yet in use.
+     * The given request must not be null.
+     *
+     * @param request request to register
+     * @return whether the request was added
+     */
+    public boolean put(PendingRequest request)
+    {
+        final int hash = hash(request.getId());
+        return segmentFor(hash).put(hash, request);
+    }
+
+    /**
+     * @param id ID of the request
+     * @return request registered under the ID or null
+     */
+    public PendingRequest get(int id)
+    {
+        final int hash = hash(id);
+        return segmentFor(hash).get(hash, id);
+    }
+
+    /**
+     * @param id ID of the request
+     * @return whether a request is registered under the ID
+     */
+    public boolean contains(int id)
+    {
+        return get(id) != null;
+    }
+
+    /**
+     * Removes and returns the request registered under the given ID.
+     * Only one caller can successfully remove a request, so this can be used
+     * to claim a request for completion.
+     *
+     * @param id ID of the request
+     * @return removed request or null
+     */
+    public PendingRequest remove(int id)
+    {
+        final int hash = hash(id);
+        return segmentFor(hash).remove(hash, id);
+    }
+
+    /**
+     * Removes the given request, if it is still registered under its ID.
+     *
+     * @param request request to remove
+     * @return whether this exact request was removed
+     */
+    public boolean remove(PendingRequest request)
+    {
+        final int hash = hash(request.getId());
+        return segmentFor(hash).remove(hash, request);
+    }
+
+    /**
+     * @return number of pending requests
+     */
+    public int size()
+    {
+        int size = 0;
+
+        for(Segment seg : fSegments)
+        {
+            synchronized(seg)
+            {
+                size += seg.fSize;
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Creates a snapshot of all currently pending requests. Each segment is
+     * copied atomically, but the table as a whole is not locked.
+     *
+     * @return list of pending requests
+     */
+    public List<PendingRequest> values()
+    {
+        final List<PendingRequest> values = new ArrayList<PendingRequest>();
+
+        for(Segment seg : fSegments)
+        {
+            seg.copyTo(values);
+        }
+
+        return values;
+    }
+
+    /**
+     * Removes all pending requests.
+     */
+    public void clear()
+    {
+        for(Segment seg : fSegments)
+        {
+            seg.clear();
+        }
+    }
+
+    private static final class Segment
+    {
+        private int[] fKeys;
+        private PendingRequest[] fValues;
+        private int fMask;
+        private int fSize;
+
+        private Segment(final int capacity)
+        {
+            allocate(capacity);
+        }
+
+        private void allocate(final int capacity)
+        {
+            fKeys = new int[capacity];
+            fValues = new PendingRequest[capacity];
+            fMask = capacity - 1;
+        }
+
+        private int index(final int hash)
+        {
+            //upper bits select the segment, so mix them into the index
+            return (hash ^ (hash >>> 16)) & fMask;
+        }
+
+        private synchronized boolean put(final int hash,
+            final PendingRequest request)
+        {
+            final int id = request.getId();
+            int i = index(hash);
+
+            while(fValues[i] != null)
+            {
+                if(fKeys[i] == id)
+                {
+                    return false;
+                }
+                i = (i + 1) & fMask;
+            }
+
+            fKeys[i] = id;
+            fValues[i] = request;
+
+            //keep load factor at or below one half
+            if(++fSize > fKeys.length >> 1)
+            {
+                resize();
+            }
+
+            return true;
+        }
+
+        private synchronized PendingRequest get(final int hash, final int id)
+        {
+            int i = index(hash);
+            PendingRequest value = null;
+
+            while((value = fValues[i]) != null)
+            {
+                if(fKeys[i] == id)
+                {
+                    return value;
+                }
+                i = (i + 1) & fMask;
+            }
+
+            return null;
+        }
+
+        private synchronized PendingRequest remove(final int hash,
+            final int id)
+        {
+            final int i = find(hash, id);
+
+            if(i < 0)
+            {
+                return null;
+            }
+
+            final PendingRequest value = fValues[i];
+            delete(i);
+            return value;
+        }
+
+        private synchronized boolean remove(final int hash,
+            final PendingRequest request)
+        {
+            final int i = find(hash, request.getId());
+
+            if(i < 0 || fValues[i] != request)
+            {
+                return false;
+            }
+
+            delete(i);
+            return true;
+        }
+
+        private int find(final int hash, final int id)
+        {
+            int i = index(hash);
+
+            while(fValues[i] != null)
+            {
+                if(fKeys[i] == id)
+                {
+                    return i;
+                }
+                i = (i + 1) & fMask;
+            }
+
+            return -1;
+        }
+
+        private void delete(int i)
+        {
+            //shift following entries back to close the gap
+            int next = (i + 1) & fMask;
+
+            while(fValues[next] != null)
+            {
+                final int home = index(hash(fKeys[next]));
+
+                //move entry if its home slot is not between gap and position
+                if(((next - home) & fMask) >= ((next - i) & fMask))
+                {
+                    fKeys[i] = fKeys[next];
+                    fValues[i] = fValues[next];
+                    i = next;
+                }
+                next = (next + 1) & fMask;
+            }
+
+            fKeys[i] = 0;
+            fValues[i] = null;
+            --fSize;
+        }
+
+        private void resize()
+        {
+            final int[] oldKeys = fKeys;
+            final PendingRequest[] oldValues = fValues;
+
+            allocate(oldKeys.length << 1);
+
+            for(int j = 0; j < oldKeys.length; ++j)
+            {
+                if(oldValues[j] != null)
+                {
+                    int i = index(hash(oldKeys[j]));
+                    while(fValues[i] != null)
+                    {
+                        i = (i + 1) & fMask;
+                    }
+                    fKeys[i] = oldKeys[j];
+                    fValues[i] = oldValues[j];
+                }
+            }
+        }
+
+        private synchronized void copyTo(final List<PendingRequest> list)
+        {
+            for(PendingRequest value : fValues)
+            {
+                if(value != null)
+                {
+                    list.add(value);
+                }
+            }
+        }
+
+        private synchronized void clear()
+        {
+            allocate(DEFAULT_CAPACITY);
+            fSize = 0;
+        }
+    }
+}
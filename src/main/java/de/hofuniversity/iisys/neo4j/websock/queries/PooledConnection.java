@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.hofuniversity.iisys.neo4j.websock.query.encoding.TransferUtil;
+
+/**
+ * Connection in a query handler's pool, wrapping a transfer utility and
+ * keeping track of the number of requests sent through it that have not
+ * been answered yet and of its response latencies.
+ */
+public class PooledConnection
+{
+    private final TransferUtil fTransfer;
+    private final AtomicInteger fInFlight;
+
+    private final String fServer;
+    private final EwmaLatency fLatency, fServerLatency;
+
+    /**
+     * Creates a pooled connection for the given transfer utility with
+     * latency statistics of its own.
+     * The given utility must not be null.
+     *
+     * @param transfer transfer utility to send with
+     */
+    public PooledConnection(TransferUtil transfer)
+    {
+        this(transfer, null, null);
+    }
+
+    /**
+     * Creates a pooled connection for the given transfer utility, connected
+     * to the given server, sharing the given latency statistics with all
+     * connections to the same server.
+     * The given utility must not be null, if the server latency is null, the
+     * connection's own statistics are used instead.
+     *
+     * @param transfer transfer utility to send with
+     * @param server identifier of the server, such as its URI, or null
+     * @param serverLatency latency statistics of the server or null
+     */
+    public PooledConnection(TransferUtil transfer, String server,
+        EwmaLatency serverLatency)
+    {
+        if(transfer == null)
+        {
+            throw new NullPointerException("transfer utility was null");
+        }
+
+        fTransfer = transfer;
+        fInFlight = new AtomicInteger();
+
+        fServer = server;
+        fLatency = new EwmaLatency();
+
+        if(serverLatency != null)
+        {
+            fServerLatency = serverLatency;
+        }
+        else
+        {
+            fServerLatency = fLatency;
+        }
+    }
+
+    /**
+     * @return transfer utility of this connection
+     */
+    public TransferUtil getTransferUtil()
+    {
+        return fTransfer;
+    }
+
+    /**
+     * @return identifier of the server this connection leads to or null
+     */
+    public String getServer()
+    {
+        return fServer;
+    }
+
+    /**
+     * @return latency statistics of this connection
+     */
+    public EwmaLatency getLatency()
+    {
+        return fLatency;
+    }
+
+    /**
+     * @return latency statistics of the server this connection leads to
+     */
+    public EwmaLatency getServerLatency()
+    {
+        return fServerLatency;
+    }
+
+    /**
+     * Records the time between sending a request and receiving its response
+     * for this connection and its server.
+     *
+     * @param nanos response latency in nanoseconds
+     */
+    public void recordLatency(long nanos)
+    {
+        fLatency.update(nanos);
+
+        if(fServerLatency != fLatency)
+        {
+            fServerLatency.update(nanos);
+        }
+    }
+
+    /**
+     * @return number of requests waiting for a response on this connection
+     */
+    public int getInFlight()
+    {
+        return fInFlight.get();
+    }
+
+    /**
+     * Registers a request sent through this connection.
+     */
+    public void requestSent()
+    {
+        fInFlight.incrementAndGet();
+    }
+
+    /**
+     * Registers a request on this connection that was answered, failed or
+     * cancelled.
+     */
+    public void requestDone()
+    {
+        fInFlight.decrementAndGet();
+    }
+}
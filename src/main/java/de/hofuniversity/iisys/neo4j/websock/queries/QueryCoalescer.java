@@ -0,0 +1,275 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+import de.hofuniversity.iisys.neo4j.websock.result.AResultSet;
+import de.hofuniversity.iisys.neo4j.websock.session.WebsockConstants;
+
+/**
+ * Coalesces identical procedure calls while one of them is in flight, so
+ * only the first one is sent and all callers receive its result.
+ * Calls are identical if their type, payload and parameters are equal.
+ * Only calls to whitelisted procedures are coalesced, since all callers
+ * share the same result set instance, which must not be modified.
+ */
+public class QueryCoalescer
+{
+    private final Set<String> fProcedures;
+    private final ConcurrentMap<Key, Flight> fFlights;
+
+    private final AtomicLong fCoalesced;
+
+    private static final class Key
+    {
+        private final EQueryType fType;
+        private final Object fPayload;
+        private final Map<String, Object> fParameters;
+        private final int fHash;
+
+        private Key(final WebsockQuery query)
+        {
+            fType = query.getType();
+            fPayload = query.getPayload();
+
+            //copy, so later changes to the query do not affect the key
+            if(query.getParameters() != null)
+            {
+                fParameters = new HashMap<String, Object>(
+                    query.getParameters());
+            }
+            else
+            {
+                fParameters = Collections.emptyMap();
+            }
+
+            int hash = fType.hashCode();
+            hash = 31 * hash + (fPayload != null ? fPayload.hashCode() : 0);
+            hash = 31 * hash + fParameters.hashCode();
+            fHash = hash;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return fHash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if(!(obj instanceof Key))
+            {
+                return false;
+            }
+
+            final Key other = (Key) obj;
+            return fHash == other.fHash && fType == other.fType
+                && (fPayload == null ? other.fPayload == null
+                    : fPayload.equals(other.fPayload))
+                && fParameters.equals(other.fParameters);
+        }
+    }
+
+    /**
+     * Call in flight with the callbacks of all callers waiting for it.
+     */
+    private final class Flight implements IFutureListener<AResultSet<?>>
+    {
+        private final Key fKey;
+        private final ResultFuture fFuture;
+        private final List<IQueryCallback> fCallbacks;
+        private boolean fClosed;
+
+        private Flight(final Key key)
+        {
+            fKey = key;
+            fFuture = new ResultFuture();
+            fCallbacks = new ArrayList<IQueryCallback>();
+        }
+
+        private synchronized boolean add(final IQueryCallback callback)
+        {
+            if(fClosed)
+            {
+                return false;
+            }
+
+            fCallbacks.add(callback);
+            return true;
+        }
+
+        @Override
+        public void onComplete(AResultSet<?> result, String errorMessage,
+            boolean cancelled)
+        {
+            //later calls are sent again
+            fFlights.remove(fKey, this);
+
+            synchronized(this)
+            {
+                fClosed = true;
+            }
+
+            for(IQueryCallback callback : fCallbacks)
+            {
+                if(cancelled)
+                {
+                    callback.cancel(false);
+                }
+                else if(errorMessage != null)
+                {
+                    callback.setErrorMessage(errorMessage);
+                }
+                else
+                {
+                    callback.setResult(result);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a coalescer without any whitelisted procedures.
+     */
+    public QueryCoalescer()
+    {
+        fProcedures = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+        fFlights = new ConcurrentHashMap<Key, Flight>();
+        fCoalesced = new AtomicLong();
+    }
+
+    /**
+     * Allows calls to the procedure with the given name to be coalesced.
+     *
+     * @param name name of the procedure
+     */
+    public void addProcedure(String name)
+    {
+        if(name == null)
+        {
+            throw new NullPointerException("procedure name was null");
+        }
+
+        fProcedures.add(name);
+    }
+
+    /**
+     * Stops coalescing calls to the procedure with the given name. Calls in
+     * flight are not affected.
+     *
+     * @param name name of the procedure
+     */
+    public void removeProcedure(String name)
+    {
+        fProcedures.remove(name);
+    }
+
+    /**
+     * @return names of procedures whose calls are coalesced
+     */
+    public Set<String> getProcedures()
+    {
+        return Collections.unmodifiableSet(fProcedures);
+    }
+
+    /**
+     * @return number of calls that were not sent but attached to an
+     *      identical call in flight
+     */
+    public long getCoalesced()
+    {
+        return fCoalesced.get();
+    }
+
+    /**
+     * @return number of distinct calls currently in flight
+     */
+    public int getInFlight()
+    {
+        return fFlights.size();
+    }
+
+    /**
+     * Attaches the given callback to an identical call in flight, if there
+     * is one, or returns the callback to send the given query with.
+     * For calls that can not be coalesced, this is the given callback.
+     * Otherwise it is a callback passing the result on to all callers of
+     * identical calls made until the result arrives.
+     * Parameters must not be null.
+     *
+     * @param query query about to be sent
+     * @param callback caller's callback
+     * @return callback to send the query with or null if nothing needs to
+     *      be sent
+     */
+    public IQueryCallback coalesce(WebsockQuery query, IQueryCallback callback)
+    {
+        if(query.getType() != EQueryType.PROCEDURE_CALL)
+        {
+            return callback;
+        }
+
+        final Object name = query.getParameter(WebsockConstants.PROCEDURE_NAME);
+        if(name == null || !fProcedures.contains(name.toString()))
+        {
+            return callback;
+        }
+
+        final Key key = new Key(query);
+        Flight flight = null;
+
+        while(true)
+        {
+            flight = fFlights.get(key);
+
+            if(flight == null)
+            {
+                flight = new Flight(key);
+                flight.add(callback);
+
+                if(fFlights.putIfAbsent(key, flight) == null)
+                {
+                    flight.fFuture.whenComplete(flight);
+                    return flight.fFuture;
+                }
+            }
+            else if(flight.add(callback))
+            {
+                fCoalesced.incrementAndGet();
+                return null;
+            }
+            else
+            {
+                //completing flight, start a new one
+                fFlights.remove(key, flight);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocator for non-negative request IDs, using atomic counters in a number
+ * of stripes selected by the calling thread.
+ * Each stripe hands out its own interleaved share of the ID space. After the
+ * ID space wraps around, IDs that still belong to a pending request are
+ * skipped, so a long-running request's ID is never reused.
+ */
+public class RequestIdAllocator
+{
+    public static final int DEFAULT_STRIPES = 16;
+
+    //counters are spaced apart to keep them on separate cache lines
+    private static final int PADDING = 16;
+
+    private final AtomicIntegerArray fCounters;
+    private final int fMask, fBits;
+
+    private final PendingRequestTable fPending;
+
+    private final AtomicLong fCollisions;
+
+    /**
+     * Creates an ID allocator with the default number of stripes, skipping
+     * IDs pending in the given table.
+     * The given table must not be null.
+     *
+     * @param pending table of pending requests
+     */
+    public RequestIdAllocator(PendingRequestTable pending)
+    {
+        this(pending, DEFAULT_STRIPES);
+    }
+
+    /**
+     * Creates an ID allocator with the given number of stripes, which is
+     * rounded up to the next power of two, skipping IDs pending in the given
+     * table.
+     * The given table must not be null.
+     *
+     * @param pending table of pending requests
+     * @param stripes number of independent counters
+     */
+    public RequestIdAllocator(PendingRequestTable pending, int stripes)
+    {
+        if(pending == null)
+        {
+            throw new NullPointerException("pending request table was null");
+        }
+        if(stripes <= 0)
+        {
+            throw new IllegalArgumentException(
+                "number of stripes was negative or zero");
+        }
+
+        int count = 1;
+        while(count < stripes)
+        {
+            count <<= 1;
+        }
+
+        fCounters = new AtomicIntegerArray(count * PADDING);
+        fMask = count - 1;
+        fBits = Integer.numberOfTrailingZeros(count);
+
+        fPending = pending;
+        fCollisions = new AtomicLong();
+    }
+
+    /**
+     * @return new ID that is not used by any pending request
+     */
+    public int next()
+    {
+        final int stripe = (int) Thread.currentThread().getId() & fMask;
+        final int index = stripe * PADDING;
+
+        int id = 0;
+        while(true)
+        {
+            id = ((fCounters.getAndIncrement(index) << fBits) | stripe)
+                & Integer.MAX_VALUE;
+
+            if(!fPending.contains(id))
+            {
+                return id;
+            }
+
+            fCollisions.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return number of IDs skipped because they were still pending
+     */
+    public long getCollisions()
+    {
+        return fCollisions.get();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+/**
+ * Timeout and retry budget for a single request, overriding the handler's
+ * global settings, and whether it may safely be sent again.
+ */
+public class RequestOptions
+{
+    private final long fTimeout;
+    private final int fRetries;
+    private final boolean fIdempotent;
+
+    /**
+     * Creates options with the given timeout and number of retries.
+     * A timeout of 0 or less means the request never times out, a negative
+     * number of retries is treated like 0.
+     *
+     * @param timeout milliseconds before retrying or failing the request
+     * @param retries number of retries after the first attempt timed out
+     */
+    public RequestOptions(long timeout, int retries)
+    {
+        this(timeout, retries, false);
+    }
+
+    /**
+     * Creates options with the given timeout and number of retries for a
+     * request that may or may not be resent to another connection if its
+     * connection is lost. Otherwise it fails right away.
+     * A timeout of 0 or less means the request never times out, a negative
+     * number of retries is treated like 0.
+     *
+     * @param timeout milliseconds before retrying or failing the request
+     * @param retries number of retries after the first attempt timed out
+     * @param idempotent whether the request may be resent after a lost
+     *      connection
+     */
+    public RequestOptions(long timeout, int retries, boolean idempotent)
+    {
+        fTimeout = timeout;
+        fRetries = Math.max(0, retries);
+        fIdempotent = idempotent;
+    }
+
+    /**
+     * @return milliseconds before retrying or failing the request, 0 or less
+     *      if it never times out
+     */
+    public long getTimeout()
+    {
+        return fTimeout;
+    }
+
+    /**
+     * @return number of retries after the first attempt timed out
+     */
+    public int getRetries()
+    {
+        return fRetries;
+    }
+
+    /**
+     * @return whether the request may be resent after a lost connection
+     */
+    public boolean isIdempotent()
+    {
+        return fIdempotent;
+    }
+}
@@ -16,130 +16,44 @@
  */
 package de.hofuniversity.iisys.neo4j.websock.queries;
 
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.Executor;
 
 import de.hofuniversity.iisys.neo4j.websock.result.AResultSet;
 
 /**
  * Basic implementation for a future returning the result for a sent query
  * or an error message.
+ * Completion is published through a single atomic state, so only the first
+ * result, error or cancellation takes effect and retrieving the result of a
+ * completed future never blocks.
  */
-public class ResultFuture implements IQueryCallback
+public class ResultFuture extends ListenableFuture<AResultSet<?>>
+    implements IQueryCallback
 {
-    private final Object fTrigger = new Object();
-
-    private AResultSet<?> fResult;
-    private boolean fCancelled = false, fDone = false;
-    private String fErrorMessage;
-
-    @Override
-    public boolean cancel(boolean mayInterruptIfRunning)
+    /**
+     * Creates a result future running its listeners directly on the thread
+     * delivering the result.
+     */
+    public ResultFuture()
     {
-        fCancelled = true;
-        fDone = true;
-
-        synchronized(fTrigger)
-        {
-            fTrigger.notify();
-        }
-
-        return fCancelled;
+        super();
     }
 
-    @Override
-    public AResultSet<?> get() throws InterruptedException, ExecutionException
+    /**
+     * Creates a result future running its listeners using the given
+     * executor. If the executor is null, listeners are run directly on the
+     * thread delivering the result.
+     *
+     * @param executor executor to run listeners with or null
+     */
+    public ResultFuture(Executor executor)
     {
-        AResultSet<?> set = null;
-
-        try
-        {
-            set = get(0, TimeUnit.MILLISECONDS);
-        }
-        catch(TimeoutException e)
-        {
-            throw new ExecutionException("timeout", e);
-        }
-
-        return set;
-    }
-
-    @Override
-    public AResultSet<?> get(long timeout, TimeUnit unit)
-        throws InterruptedException, ExecutionException, TimeoutException
-    {
-        if(unit != null)
-        {
-            timeout = TimeUnit.MILLISECONDS.convert(timeout, unit);
-        }
-
-        if(!fDone)
-        {
-            synchronized(fTrigger)
-            {
-                if(timeout <= 0)
-                {
-                    fTrigger.wait();
-                }
-                else
-                {
-                    fTrigger.wait(timeout);
-                }
-            }
-        }
-
-        if(fErrorMessage != null)
-        {
-            throw new ExecutionException(fErrorMessage, null);
-        }
-        else if(fCancelled)
-        {
-            throw new InterruptedException("cancelled");
-        }
-
-        return fResult;
-    }
-
-    @Override
-    public boolean isCancelled()
-    {
-        return fCancelled;
-    }
-
-    @Override
-    public boolean isDone()
-    {
-        return fDone;
-    }
-
-    @Override
-    public void setErrorMessage(String message)
-    {
-        fErrorMessage = message;
-        fDone = true;
-
-        synchronized(fTrigger)
-        {
-            fTrigger.notify();
-        }
-    }
-
-    @Override
-    public String getErrorMessage()
-    {
-        return fErrorMessage;
+        super(executor);
     }
 
     @Override
     public void setResult(AResultSet<?> result)
     {
-        fResult = result;
-        fDone = true;
-
-        synchronized(fTrigger)
-        {
-            fTrigger.notify();
-        }
+        complete(result);
     }
 }
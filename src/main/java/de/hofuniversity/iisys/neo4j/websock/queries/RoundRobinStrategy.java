@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routing strategy cycling through all connections in turn, regardless of
+ * their load.
+ */
+public class RoundRobinStrategy implements IRoutingStrategy
+{
+    private final AtomicInteger fCounter = new AtomicInteger();
+
+    @Override
+    public PooledConnection select(List<PooledConnection> pool)
+    {
+        final int size = pool.size();
+
+        if(size == 0)
+        {
+            return null;
+        }
+
+        final int index = (fCounter.getAndIncrement() & Integer.MAX_VALUE)
+            % size;
+        return pool.get(index);
+    }
+}
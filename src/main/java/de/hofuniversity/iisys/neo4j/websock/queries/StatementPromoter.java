@@ -0,0 +1,254 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+import de.hofuniversity.iisys.neo4j.websock.session.WebsockConstants;
+
+/**
+ * Counts how often Cypher statements are sent and stores frequent ones as
+ * procedures on the server, so they can be sent as compact procedure calls.
+ * Statements are only sent as calls once their procedure has been stored
+ * successfully. Procedures are stored through the handler, so they are
+ * recreated for new connections like any other stored procedure.
+ */
+public class StatementPromoter
+{
+    public static final int DEFAULT_THRESHOLD = 100;
+    public static final int DEFAULT_MAX_TRACKED = 10000;
+
+    private static final Logger LOGGER =
+        Logger.getLogger(StatementPromoter.class.getName());
+
+    private final int fThreshold;
+    private final int fMaxTracked;
+    private final String fPrefix;
+
+    private final ConcurrentMap<String, AtomicInteger> fCounts;
+    private final ConcurrentMap<String, String> fPromoted;
+    private final AtomicInteger fNames;
+
+    /**
+     * Creates a promoter with the default threshold and limit.
+     */
+    public StatementPromoter()
+    {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Creates a promoter storing statements once they have been sent the
+     * given number of times, with the default limit.
+     * The threshold must be positive.
+     *
+     * @param threshold number of times a statement is sent before storing it
+     */
+    public StatementPromoter(int threshold)
+    {
+        this(threshold, DEFAULT_MAX_TRACKED, null);
+    }
+
+    /**
+     * Creates a promoter storing statements once they have been sent the
+     * given number of times, counting at most the given number of distinct
+     * statements. Generated procedure names start with the given prefix,
+     * which should be unique for all clients of a server. If it is null, a
+     * random prefix is used.
+     * The threshold and limit must be positive.
+     *
+     * @param threshold number of times a statement is sent before storing it
+     * @param maxTracked maximum number of distinct statements to count
+     * @param prefix prefix for procedure names or null
+     */
+    public StatementPromoter(int threshold, int maxTracked, String prefix)
+    {
+        if(threshold <= 0)
+        {
+            throw new IllegalArgumentException("threshold must be positive");
+        }
+        if(maxTracked <= 0)
+        {
+            throw new IllegalArgumentException("maximum number of tracked "
+                + "statements must be positive");
+        }
+
+        fThreshold = threshold;
+        fMaxTracked = maxTracked;
+
+        if(prefix != null)
+        {
+            fPrefix = prefix;
+        }
+        else
+        {
+            fPrefix = "promoted_"
+                + Integer.toHexString(new Random().nextInt()) + "_";
+        }
+
+        fCounts = new ConcurrentHashMap<String, AtomicInteger>();
+        fPromoted = new ConcurrentHashMap<String, String>();
+        fNames = new AtomicInteger();
+    }
+
+    /**
+     * @return number of times a statement is sent before storing it
+     */
+    public int getThreshold()
+    {
+        return fThreshold;
+    }
+
+    /**
+     * @return names of stored procedures by statement
+     */
+    public Map<String, String> getPromoted()
+    {
+        return Collections.unmodifiableMap(fPromoted);
+    }
+
+    /**
+     * Returns the name of the stored procedure for the given statement.
+     *
+     * @param statement Cypher statement
+     * @return name of the procedure or null if it is not stored
+     */
+    public String getProcedure(String statement)
+    {
+        return fPromoted.get(statement);
+    }
+
+    /**
+     * Returns a call of the statement's stored procedure for the given
+     * Cypher query, if there is one, keeping its parameters. The given query
+     * itself is not changed.
+     * Otherwise the statement is counted and stored through the given
+     * handler once it reaches the threshold and the query is returned as it
+     * is.
+     * The given parameters must not be null.
+     *
+     * @param query query about to be sent
+     * @param handler handler to store procedures with
+     * @return query to send instead of the given one
+     */
+    public WebsockQuery promote(WebsockQuery query,
+        IExtendedQueryHandler handler)
+    {
+        if(query.getType() != EQueryType.DIRECT_CYPHER
+            || !(query.getPayload() instanceof String))
+        {
+            return query;
+        }
+
+        final String statement = (String) query.getPayload();
+        final String procedure = fPromoted.get(statement);
+
+        if(procedure != null)
+        {
+            final WebsockQuery call =
+                new WebsockQuery(EQueryType.PROCEDURE_CALL);
+
+            final Map<String, Object> params = new HashMap<String, Object>();
+            if(query.getParameters() != null)
+            {
+                params.putAll(query.getParameters());
+            }
+            call.setParameters(params);
+            call.setParameter(WebsockConstants.PROCEDURE_NAME, procedure);
+
+            return call;
+        }
+        else if(count(statement))
+        {
+            store(statement, handler);
+        }
+
+        return query;
+    }
+
+    private boolean count(final String statement)
+    {
+        AtomicInteger count = fCounts.get(statement);
+
+        if(count == null)
+        {
+            //stop tracking new statements once the limit is reached
+            if(fCounts.size() >= fMaxTracked)
+            {
+                return false;
+            }
+
+            count = new AtomicInteger();
+            final AtomicInteger existing = fCounts.putIfAbsent(statement, count);
+            if(existing != null)
+            {
+                count = existing;
+            }
+        }
+
+        //only the call reaching the threshold stores the statement
+        return count.incrementAndGet() == fThreshold;
+    }
+
+    private void store(final String statement,
+        final IExtendedQueryHandler handler)
+    {
+        final String name = fPrefix + fNames.incrementAndGet();
+
+        final WebsockQuery store = new WebsockQuery(EQueryType.STORE_PROCEDURE);
+        store.setPayload(statement);
+        store.setParameter(WebsockConstants.PROCEDURE_NAME, name);
+
+        handler.sendMessageAsync(store).whenComplete(
+            new IFutureListener<WebsockQuery>()
+            {
+                @Override
+                public void onComplete(WebsockQuery result,
+                    String errorMessage, boolean cancelled)
+                {
+                    if(!cancelled && result != null)
+                    {
+                        fPromoted.put(statement, name);
+                        fCounts.remove(statement);
+                    }
+                    else
+                    {
+                        //keep sending the statement as it is
+                        LOGGER.log(Level.WARNING, "failed to store statement "
+                            + "as procedure " + name + ": " + errorMessage);
+
+                        //do not store the rejected procedure again for new
+                        //connections
+                        final WebsockQuery delete =
+                            new WebsockQuery(EQueryType.DELETE_PROCEDURE);
+                        delete.setPayload(name);
+                        handler.sendMessage(delete);
+                    }
+                }
+            });
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel for deadlines with constant time scheduling and
+ * cancellation.
+ * Deadlines are rounded up to the tick resolution, so entries never expire
+ * early. Each of the levels has 64 slots, each slot covering 64 times as
+ * many ticks as a slot on the level below. Entries are moved to lower levels
+ * as their deadlines approach, so advancing the wheel only touches entries
+ * that are due or close to being due.
+ */
+public class TimingWheel
+{
+    public static final long DEFAULT_TICK_MS = 10;
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private final long fTick;
+    private final Entry[][] fBuckets;
+
+    private long fCurrentTick;
+    private int fSize;
+
+    /**
+     * Entry that can be scheduled in a timing wheel, linking itself into the
+     * wheel's buckets.
+     * An entry can only be scheduled in one wheel at a time.
+     */
+    public static class Entry
+    {
+        private Entry fPrev, fNext;
+        private int fLevel, fSlot;
+        private long fDeadlineTick;
+        private boolean fScheduled;
+
+        private long fDeadline;
+
+        /**
+         * @return time in milliseconds this entry was last scheduled for
+         */
+        public long getDeadline()
+        {
+            return fDeadline;
+        }
+    }
+
+    /**
+     * Creates a timing wheel with the default tick resolution, starting at
+     * the current time.
+     */
+    public TimingWheel()
+    {
+        this(DEFAULT_TICK_MS, System.currentTimeMillis());
+    }
+
+    /**
+     * Creates a timing wheel with the given tick resolution in milliseconds,
+     * starting at the given time.
+     *
+     * @param tick milliseconds per tick
+     * @param now current time in milliseconds
+     */
+    public TimingWheel(long tick, long now)
+    {
+        if(tick <= 0)
+        {
+            throw new IllegalArgumentException("tick was negative or zero");
+        }
+
+        fTick = tick;
+        fBuckets = new Entry[LEVELS][SLOTS];
+        fCurrentTick = now / tick;
+    }
+
+    /**
+     * @return milliseconds per tick
+     */
+    public long getTick()
+    {
+        return fTick;
+    }
+
+    /**
+     * @return number of scheduled entries
+     */
+    public synchronized int size()
+    {
+        return fSize;
+    }
+
+    /**
+     * Schedules the given entry to expire at the given time, replacing any
+     * previous deadline. Deadlines in the past expire with the next tick.
+     * The given entry must not be null.
+     *
+     * @param entry entry to schedule
+     * @param deadline time in milliseconds to expire at
+     */
+    public synchronized void schedule(Entry entry, long deadline)
+    {
+        if(entry.fScheduled)
+        {
+            unlink(entry);
+        }
+        else
+        {
+            entry.fScheduled = true;
+            ++fSize;
+        }
+
+        entry.fDeadline = deadline;
+
+        //round up to never expire early
+        entry.fDeadlineTick = (deadline + fTick - 1) / fTick;
+
+        //the current tick's slot has already been processed
+        insert(entry, Math.max(entry.fDeadlineTick, fCurrentTick + 1));
+    }
+
+    /**
+     * Removes the given entry from the wheel if it is scheduled.
+     *
+     * @param entry entry to cancel
+     * @return whether the entry was scheduled
+     */
+    public synchronized boolean cancel(Entry entry)
+    {
+        if(!entry.fScheduled)
+        {
+            return false;
+        }
+
+        unlink(entry);
+        entry.fScheduled = false;
+        --fSize;
+
+        return true;
+    }
+
+    /**
+     * Advances the wheel to the given time, adding all entries that expired
+     * to the given list. Expired entries are no longer scheduled afterwards.
+     *
+     * @param now current time in milliseconds
+     * @param expired list to add expired entries to
+     */
+    public synchronized void advance(long now, List<Entry> expired)
+    {
+        final long target = now / fTick;
+
+        while(fCurrentTick < target)
+        {
+            //skip idle periods
+            if(fSize == 0)
+            {
+                fCurrentTick = target;
+                break;
+            }
+
+            ++fCurrentTick;
+
+            //move entries down from higher levels when their period starts
+            for(int level = 1; level < LEVELS; ++level)
+            {
+                final long mask = (1L << (SLOT_BITS * level)) - 1;
+                if((fCurrentTick & mask) != 0)
+                {
+                    break;
+                }
+
+                cascade(level);
+            }
+
+            expire(expired);
+        }
+    }
+
+    private void insert(final Entry entry, final long tick)
+    {
+        long delta = tick - fCurrentTick;
+        long slotTick = tick;
+
+        //entries beyond the wheel's range are re-inserted later on
+        if(delta > MAX_DELTA)
+        {
+            delta = MAX_DELTA;
+            slotTick = fCurrentTick + MAX_DELTA;
+        }
+
+        int level = 0;
+        while(level < LEVELS - 1
+            && delta >= (1L << (SLOT_BITS * (level + 1))))
+        {
+            ++level;
+        }
+
+        final int slot = (int) ((slotTick >>> (SLOT_BITS * level))
+            & SLOT_MASK);
+
+        entry.fLevel = level;
+        entry.fSlot = slot;
+        entry.fPrev = null;
+        entry.fNext = fBuckets[level][slot];
+
+        if(entry.fNext != null)
+        {
+            entry.fNext.fPrev = entry;
+        }
+        fBuckets[level][slot] = entry;
+    }
+
+    private void unlink(final Entry entry)
+    {
+        if(entry.fPrev != null)
+        {
+            entry.fPrev.fNext = entry.fNext;
+        }
+        else
+        {
+            fBuckets[entry.fLevel][entry.fSlot] = entry.fNext;
+        }
+
+        if(entry.fNext != null)
+        {
+            entry.fNext.fPrev = entry.fPrev;
+        }
+
+        entry.fPrev = null;
+        entry.fNext = null;
+    }
+
+    private void cascade(final int level)
+    {
+        final int slot = (int) ((fCurrentTick >>> (SLOT_BITS * level))
+            & SLOT_MASK);
+
+        Entry entry = fBuckets[level][slot];
+        fBuckets[level][slot] = null;
+
+        Entry next = null;
+        while(entry != null)
+        {
+            next = entry.fNext;
+
+            //entries due in this tick end up in the slot expired next
+            insert(entry, Math.max(entry.fDeadlineTick, fCurrentTick));
+
+            entry = next;
+        }
+    }
+
+    private void expire(final List<Entry> expired)
+    {
+        final int slot = (int) (fCurrentTick & SLOT_MASK);
+
+        Entry entry = fBuckets[0][slot];
+        fBuckets[0][slot] = null;
+
+        Entry next = null;
+        while(entry != null)
+        {
+            next = entry.fNext;
+
+            if(entry.fDeadlineTick <= fCurrentTick)
+            {
+                entry.fPrev = null;
+                entry.fNext = null;
+                entry.fScheduled = false;
+                --fSize;
+
+                expired.add(entry);
+            }
+            else
+            {
+                //deadline was beyond the wheel's range when scheduled
+                insert(entry, entry.fDeadlineTick);
+            }
+
+            entry = next;
+        }
+    }
+}
@@ -18,17 +18,24 @@ package de.hofuniversity.iisys.neo4j.websock.util;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.security.sasl.AuthenticationException;
-import javax.websocket.ContainerProvider;
 import javax.websocket.DeploymentException;
 import javax.websocket.Session;
 import javax.websocket.WebSocketContainer;
 
 import de.hofuniversity.iisys.neo4j.websock.ClientWebSocket;
+import de.hofuniversity.iisys.neo4j.websock.ESendMode;
 import de.hofuniversity.iisys.neo4j.websock.ServerResponseHandler;
+import de.hofuniversity.iisys.neo4j.websock.queries.IExtendedQueryHandler;
 import de.hofuniversity.iisys.neo4j.websock.queries.IMessageCallback;
 import de.hofuniversity.iisys.neo4j.websock.queries.IQueryHandler;
 import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
@@ -44,8 +51,9 @@ import de.hofuniversity.iisys.neo4j.websock.session.WebsockSession;
  */
 public class ConnectionWatchdog implements Runnable
 {
+    public static final long DEFAULT_AUTH_TIMEOUT = 10000;
+
     private static final long CHECK_INTERVAL = 1000;
-    private static final long RECONNECT_INTERVAL = 5000;
 
     private final Object fTrigger;
     private final Logger fLogger;
@@ -56,15 +64,34 @@ public class ConnectionWatchdog implements Runnable
 
     private final String fFormat, fCompression;
 
-    private ClientWebSocket fSocket;
-    private Session fSession;
+    private volatile ClientWebSocket fSocket;
+    private volatile Session fSession;
     private WebsockSession fWsSess;
     private TransferUtil fUtil;
+    private ServerResponseHandler fResponseHandler;
 
     private String fUser, fPassword;
 
-    private boolean fActive;
-    private boolean fDisconnected;
+    private ESendMode fSendMode;
+    private int fQueueSize;
+
+    private Executor fDecoder;
+    private Executor fWriter;
+    private volatile WebSocketContainer fContainer;
+    private volatile Executor fConnector;
+    private volatile long fAuthTimeout;
+
+    private volatile boolean fActive;
+    private volatile boolean fDisconnected;
+
+    private final Runnable fCheck, fReconnectTask;
+    private final AtomicBoolean fChecking;
+    private ScheduledExecutorService fScheduler;
+    private ScheduledFuture<?> fTask;
+
+    private volatile ReconnectPolicy fPolicy;
+    private ScheduledFuture<?> fReconnect;
+    private int fAttempts;
 
     /**
      * Creates a connection watchdog, establishing and monitoring a single
@@ -105,6 +132,30 @@ public class ConnectionWatchdog implements Runnable
         fFormat = format;
         fCompression = comp;
         fDisconnected = false;
+
+        fSendMode = ESendMode.BLOCKING;
+        fQueueSize = QueuedAsyncRemote.DEFAULT_QUEUE_SIZE;
+
+        fPolicy = new ReconnectPolicy();
+        fAuthTimeout = DEFAULT_AUTH_TIMEOUT;
+
+        fChecking = new AtomicBoolean();
+        fCheck = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                dispatchReconnect();
+            }
+        };
+        fReconnectTask = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                reconnect();
+            }
+        };
     }
 
     /**
@@ -122,6 +173,141 @@ public class ConnectionWatchdog implements Runnable
         fPassword = password;
     }
 
+    /**
+     * Sets how outgoing messages are written for connections created after
+     * this call and the size of the outgoing message queue, if the mode uses
+     * one.
+     * The given mode must not be null.
+     *
+     * @param mode how to write outgoing messages
+     * @param queueSize maximum number of queued outgoing messages
+     */
+    public void setSendMode(ESendMode mode, int queueSize)
+    {
+        if(mode == null)
+        {
+            throw new NullPointerException("send mode was null");
+        }
+
+        fSendMode = mode;
+        fQueueSize = queueSize;
+    }
+
+    /**
+     * Sets the executor decoding incoming messages for connections created
+     * after this call. If it is null, messages are decoded on the receiving
+     * I/O thread.
+     *
+     * @param executor executor for incoming messages or null
+     */
+    public void setDecoderExecutor(Executor executor)
+    {
+        fDecoder = executor;
+    }
+
+    /**
+     * Sets the executor running the writer of writer send modes for
+     * connections created after this call, occupying one of its threads per
+     * connection. If it is null, each connection starts a dedicated thread.
+     *
+     * @param executor executor for writers or null
+     */
+    public void setWriterExecutor(Executor executor)
+    {
+        fWriter = executor;
+    }
+
+    /**
+     * @return websocket container used for connecting or null
+     */
+    public WebSocketContainer getContainer()
+    {
+        return fContainer;
+    }
+
+    /**
+     * Sets the websocket container to connect and reconnect with, which can be
+     * shared with other watchdogs. If it is null, a container is created on
+     * the first connection attempt and reused afterwards.
+     *
+     * @param container websocket container to connect with or null
+     */
+    public void setContainer(WebSocketContainer container)
+    {
+        fContainer = container;
+    }
+
+    /**
+     * @return policy deciding the delays between reconnection attempts
+     */
+    public ReconnectPolicy getReconnectPolicy()
+    {
+        return fPolicy;
+    }
+
+    /**
+     * Sets the policy deciding the delays between reconnection attempts.
+     * The given policy must not be null.
+     *
+     * @param policy policy deciding the delays between attempts
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy)
+    {
+        if(policy == null)
+        {
+            throw new NullPointerException("reconnect policy was null");
+        }
+
+        fPolicy = policy;
+    }
+
+    /**
+     * @return executor running reconnection attempts or null
+     */
+    public Executor getConnectExecutor()
+    {
+        return fConnector;
+    }
+
+    /**
+     * Sets the executor running reconnection attempts, including
+     * authentication, when monitoring on a scheduler. Attempts block until
+     * the server answers or the attempt fails, so the scheduler only
+     * triggers them. If it is null, attempts run on the scheduler.
+     *
+     * @param executor executor for reconnection attempts or null
+     */
+    public void setConnectExecutor(Executor executor)
+    {
+        fConnector = executor;
+    }
+
+    /**
+     * @return time in milliseconds to wait for authentication
+     */
+    public long getAuthTimeout()
+    {
+        return fAuthTimeout;
+    }
+
+    /**
+     * Sets the time to wait for the server to confirm authentication before
+     * the attempt fails and the connection is closed.
+     * The timeout must be positive.
+     *
+     * @param timeout time in milliseconds to wait for authentication
+     */
+    public void setAuthTimeout(long timeout)
+    {
+        if(timeout <= 0)
+        {
+            throw new IllegalArgumentException(
+                "authentication timeout was negative or zero");
+        }
+
+        fAuthTimeout = timeout;
+    }
+
     @Override
     public void run()
     {
@@ -158,8 +344,143 @@ public class ConnectionWatchdog implements Runnable
         }
     }
 
+    /**
+     * Monitors the connection on the given scheduler instead of a dedicated
+     * thread, until the watchdog is disconnected. Reconnection attempts are
+     * started by disconnect notifications and spaced out by the reconnect
+     * policy, with a periodic check as a fallback for missed notifications.
+     * The scheduler is not shut down by the watchdog and must not be null.
+     *
+     * @param scheduler scheduler to run checks on
+     */
+    public synchronized void start(ScheduledExecutorService scheduler)
+    {
+        if(scheduler == null)
+        {
+            throw new NullPointerException("scheduler was null");
+        }
+
+        fActive = true;
+        fScheduler = scheduler;
+        fTask = scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if(!fChecking.get()
+                    && (fSession == null || !fSession.isOpen()))
+                {
+                    scheduleReconnect();
+                }
+            }
+        }, 0, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private void scheduleReconnect()
+    {
+        synchronized(this)
+        {
+            //only one pending attempt at a time
+            if(!fActive || fTask == null
+                || fReconnect != null && !fReconnect.isDone())
+            {
+                return;
+            }
+
+            final long delay = fPolicy.getDelay(++fAttempts);
+
+            try
+            {
+                fReconnect = fScheduler.schedule(fCheck, delay,
+                    TimeUnit.MILLISECONDS);
+            }
+            catch(RejectedExecutionException e)
+            {
+                fLogger.log(Level.WARNING, "could not schedule reconnect", e);
+            }
+        }
+    }
+
+    private void dispatchReconnect()
+    {
+        //notifications and fallback checks may trigger concurrent attempts
+        if(!fChecking.compareAndSet(false, true))
+        {
+            return;
+        }
+
+        //keep blocking connects off the scheduler
+        final Executor connector = fConnector;
+        if(connector != null)
+        {
+            try
+            {
+                connector.execute(fReconnectTask);
+            }
+            catch(RejectedExecutionException e)
+            {
+                fLogger.log(Level.WARNING, "could not start reconnect", e);
+                fChecking.set(false);
+            }
+            return;
+        }
+
+        reconnect();
+    }
+
+    private void reconnect()
+    {
+        boolean failed = false;
+        try
+        {
+            synchronized(this)
+            {
+                fReconnect = null;
+            }
+
+            if(fActive && (fSession == null || !fSession.isOpen()
+                || fDisconnected))
+            {
+                fDisconnected = false;
+
+                fLogger.log(Level.SEVERE, "connection to " + fUri.toString()
+                    + " lost, trying to reconnect");
+
+                try
+                {
+                    connect();
+                }
+                catch(Exception e)
+                {
+                    e.printStackTrace();
+                }
+
+                failed = fSession == null || !fSession.isOpen();
+                if(!failed)
+                {
+                    synchronized(this)
+                    {
+                        fAttempts = 0;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            fChecking.set(false);
+        }
+
+        //wait before the next attempt
+        if(failed)
+        {
+            scheduleReconnect();
+        }
+    }
+
     private void retryLoop()
     {
+        int attempt = 0;
+
         do
         {
             try
@@ -178,7 +499,11 @@ public class ConnectionWatchdog implements Runnable
                 {
                     synchronized(fTrigger)
                     {
-                        fTrigger.wait(RECONNECT_INTERVAL);
+                        final long delay = fPolicy.getDelay(++attempt);
+                        if(delay > 0)
+                        {
+                            fTrigger.wait(delay);
+                        }
                     }
                 }
             }
@@ -200,15 +525,19 @@ public class ConnectionWatchdog implements Runnable
      */
     public void connect() throws DeploymentException, IOException
     {
+        //the old socket closing is not a new disconnect
+        fSocket = null;
         simpleDisconnect();
 
         fLogger.log(Level.INFO, "connecting to " + fUri);
 
-        //connect
-        WebSocketContainer container =
-            ContainerProvider.getWebSocketContainer();
-        container.setDefaultMaxBinaryMessageBufferSize(Integer.MAX_VALUE);
-        container.setDefaultMaxTextMessageBufferSize(Integer.MAX_VALUE);
+        //connect, reusing the container across reconnects
+        WebSocketContainer container = fContainer;
+        if(container == null)
+        {
+            container = new ContainerFactory().create();
+            fContainer = container;
+        }
 
         fSocket = new ClientWebSocket();
         fSocket.setWatchdog(this);
@@ -217,7 +546,9 @@ public class ConnectionWatchdog implements Runnable
 
         //create response handler
         ServerResponseHandler rHandler = new ServerResponseHandler(fWsSess,
-            fHandler, fFormat, fCompression);
+            fHandler, fFormat, fCompression, fSendMode, fQueueSize, fWriter);
+        rHandler.setDecoderExecutor(fDecoder);
+        fResponseHandler = rHandler;
         fUtil = rHandler.getTransferUtil();
 
         //send authentication query if configured
@@ -229,8 +560,16 @@ public class ConnectionWatchdog implements Runnable
                 "authentication failed, disconnecting");
         }
 
-        //register transfer utility
-        fHandler.addTransferUtil(fUtil);
+        //register transfer utility, per server if supported
+        if(fHandler instanceof IExtendedQueryHandler)
+        {
+            ((IExtendedQueryHandler) fHandler).addTransferUtil(fUtil,
+                fUri.toString());
+        }
+        else
+        {
+            fHandler.addTransferUtil(fUtil);
+        }
     }
 
     private boolean authenticate()
@@ -248,7 +587,7 @@ public class ConnectionWatchdog implements Runnable
 
             try
             {
-                callback.get();
+                callback.get(fAuthTimeout, TimeUnit.MILLISECONDS);
             }
             catch(Exception e)
             {
@@ -260,6 +599,7 @@ public class ConnectionWatchdog implements Runnable
                 }
 
                 fLogger.log(Level.SEVERE, error, e);
+                callback.cancel(true);
                 success = false;
             }
         }
@@ -285,21 +625,50 @@ public class ConnectionWatchdog implements Runnable
 
     /**
      * External notification method to tell the watchdog that the connection
-     * has been terminated.
+     * has been terminated, starting reconnection attempts.
      */
     public void disconnected()
     {
         fDisconnected = true;
+
+        //stop routing requests to the closed connection and release the
+        //requests waiting for it
+        fHandler.removeTransferUtil(fUtil);
+
         synchronized(fTrigger)
         {
             fTrigger.notify();
         }
+
+        scheduleReconnect();
+    }
+
+    /**
+     * Notification method for client websockets, telling the watchdog that
+     * the given socket has been closed. Notifications from sockets that
+     * have already been replaced are ignored.
+     *
+     * @param socket client websocket that has been closed
+     */
+    public void disconnected(ClientWebSocket socket)
+    {
+        if(socket == fSocket)
+        {
+            disconnected();
+        }
     }
 
     private void simpleDisconnect()
     {
         fHandler.removeTransferUtil(fUtil);
 
+        //stop the old connection's writer thread
+        if(fResponseHandler != null)
+        {
+            fResponseHandler.close();
+            fResponseHandler = null;
+        }
+
         if(fSession != null && fSession.isOpen())
         {
             try
@@ -326,6 +695,20 @@ public class ConnectionWatchdog implements Runnable
             fTrigger.notify();
         }
 
+        synchronized(this)
+        {
+            if(fTask != null)
+            {
+                fTask.cancel(false);
+                fTask = null;
+            }
+            if(fReconnect != null)
+            {
+                fReconnect.cancel(false);
+                fReconnect = null;
+            }
+        }
+
         simpleDisconnect();
     }
 }
@@ -0,0 +1,153 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.util;
+
+import java.util.Map;
+
+import javax.websocket.ContainerProvider;
+import javax.websocket.WebSocketContainer;
+
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
+import org.glassfish.tyrus.client.ClientManager;
+import org.glassfish.tyrus.container.grizzly.GrizzlyClientSocket;
+
+/**
+ * Factory creating preconfigured websocket client containers, which can be
+ * shared by all connections of one or more connectors instead of looking up a
+ * new container for every connection attempt.
+ */
+public class ContainerFactory
+{
+    private int fMaxBinaryBuffer = Integer.MAX_VALUE;
+    private int fMaxTextBuffer = Integer.MAX_VALUE;
+
+    private int fSelectorThreads = 0;
+    private int fWorkerThreads = 0;
+
+    /**
+     * @return maximum size of incoming binary messages in bytes
+     */
+    public int getMaxBinaryBufferSize()
+    {
+        return fMaxBinaryBuffer;
+    }
+
+    /**
+     * @param size maximum size of incoming binary messages in bytes
+     */
+    public void setMaxBinaryBufferSize(int size)
+    {
+        fMaxBinaryBuffer = size;
+    }
+
+    /**
+     * @return maximum size of incoming text messages in characters
+     */
+    public int getMaxTextBufferSize()
+    {
+        return fMaxTextBuffer;
+    }
+
+    /**
+     * @param size maximum size of incoming text messages in characters
+     */
+    public void setMaxTextBufferSize(int size)
+    {
+        fMaxTextBuffer = size;
+    }
+
+    /**
+     * @return number of I/O selector threads, 0 for the container's default
+     */
+    public int getSelectorThreads()
+    {
+        return fSelectorThreads;
+    }
+
+    /**
+     * Sets the number of I/O selector threads per connection.
+     * Values of 0 and less keep the container's default.
+     * Only applies to Tyrus' Grizzly client container.
+     *
+     * @param threads number of selector threads
+     */
+    public void setSelectorThreads(int threads)
+    {
+        fSelectorThreads = threads;
+    }
+
+    /**
+     * @return number of I/O worker threads, 0 for the container's default
+     */
+    public int getWorkerThreads()
+    {
+        return fWorkerThreads;
+    }
+
+    /**
+     * Sets the number of I/O worker threads per connection.
+     * Values of 0 and less keep the container's default.
+     * Only applies to Tyrus' Grizzly client container.
+     *
+     * @param threads number of worker threads
+     */
+    public void setWorkerThreads(int threads)
+    {
+        fWorkerThreads = threads;
+    }
+
+    /**
+     * Creates a new websocket client container with the configured settings.
+     *
+     * @return new websocket client container
+     */
+    public WebSocketContainer create()
+    {
+        final WebSocketContainer container =
+            ContainerProvider.getWebSocketContainer();
+        container.setDefaultMaxBinaryMessageBufferSize(fMaxBinaryBuffer);
+        container.setDefaultMaxTextMessageBufferSize(fMaxTextBuffer);
+
+        if(container instanceof ClientManager)
+        {
+            final Map<String, Object> props =
+                ((ClientManager) container).getProperties();
+
+            if(fSelectorThreads > 0)
+            {
+                props.put(GrizzlyClientSocket.SELECTOR_THREAD_POOL_CONFIG,
+                    createPoolConfig("websocket selector", fSelectorThreads));
+            }
+            if(fWorkerThreads > 0)
+            {
+                props.put(GrizzlyClientSocket.WORKER_THREAD_POOL_CONFIG,
+                    createPoolConfig("websocket worker", fWorkerThreads));
+            }
+        }
+
+        return container;
+    }
+
+    private ThreadPoolConfig createPoolConfig(String name, int threads)
+    {
+        return ThreadPoolConfig.defaultConfig().copy()
+            .setPoolName(name)
+            .setCorePoolSize(threads)
+            .setMaxPoolSize(threads)
+            .setDaemon(true);
+    }
+}
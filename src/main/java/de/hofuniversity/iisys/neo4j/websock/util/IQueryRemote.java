@@ -0,0 +1,36 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.util;
+
+import javax.websocket.RemoteEndpoint;
+
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+
+/**
+ * Remote endpoint that keeps the query a message was sent for next to the
+ * queued message, so a failed write can be reported with its query.
+ */
+public interface IQueryRemote extends RemoteEndpoint.Basic
+{
+    /**
+     * Sets the query that messages sent by the calling thread belong to,
+     * until it is reset with null.
+     *
+     * @param query query being sent or null
+     */
+    public void setQuery(WebsockQuery query);
+}
@@ -0,0 +1,35 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.util;
+
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+
+/**
+ * Handler notified when a queued message could not be written.
+ */
+public interface ISendFailureHandler
+{
+    /**
+     * Called when writing the given frame failed after it was queued.
+     *
+     * @param frame String, ByteBuffer or object that could not be sent
+     * @param query query the frame was sent for, may be null
+     * @param cause cause of the failure, may be null
+     */
+    public void sendFailed(Object frame, WebsockQuery query,
+        Throwable cause);
+}
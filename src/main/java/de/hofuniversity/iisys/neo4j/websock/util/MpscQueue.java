@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unbounded lock-free queue for any number of producers and a single
+ * consumer. Producers link new nodes with a single atomic swap and never
+ * wait for each other or for the consumer.
+ * Only one thread at a time may call poll() and isEmpty().
+ *
+ * @param <T> type of queued elements
+ */
+public class MpscQueue<T>
+{
+    private final AtomicReference<Node<T>> fTail;
+    private Node<T> fHead;
+
+    private static class Node<T>
+    {
+        private T fValue;
+        private volatile Node<T> fNext;
+
+        public Node(T value)
+        {
+            fValue = value;
+        }
+    }
+
+    /**
+     * Creates an empty queue.
+     */
+    public MpscQueue()
+    {
+        final Node<T> stub = new Node<T>(null);
+
+        fHead = stub;
+        fTail = new AtomicReference<Node<T>>(stub);
+    }
+
+    /**
+     * Adds an element to the end of the queue. May be called by any thread.
+     * The given element must not be null.
+     *
+     * @param value element to add
+     */
+    public void offer(T value)
+    {
+        if(value == null)
+        {
+            throw new NullPointerException("value was null");
+        }
+
+        final Node<T> node = new Node<T>(value);
+
+        //the new node is reachable once its predecessor links it
+        final Node<T> prev = fTail.getAndSet(node);
+        prev.fNext = node;
+    }
+
+    /**
+     * Removes and returns the first element. Consumer thread only.
+     *
+     * @return first element or null if the queue is empty
+     */
+    public T poll()
+    {
+        final Node<T> next = fHead.fNext;
+
+        if(next == null)
+        {
+            return null;
+        }
+
+        final T value = next.fValue;
+        next.fValue = null;
+        fHead = next;
+
+        return value;
+    }
+
+    /**
+     * Consumer thread only. An element being added concurrently may not be
+     * visible yet.
+     *
+     * @return whether there are no elements to poll
+     */
+    public boolean isEmpty()
+    {
+        return fHead.fNext == null;
+    }
+}
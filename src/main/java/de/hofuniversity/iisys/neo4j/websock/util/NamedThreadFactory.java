@@ -0,0 +1,59 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factory creating numbered threads with a common name, so the
+ * library's threads can be told apart in thread dumps.
+ */
+public class NamedThreadFactory implements ThreadFactory
+{
+    private final String fName;
+    private final boolean fDaemon;
+    private final AtomicInteger fCount;
+
+    /**
+     * Creates a thread factory creating threads with the given name.
+     * The given name must not be null.
+     *
+     * @param name common name of the created threads
+     * @param daemon whether to create daemon threads
+     */
+    public NamedThreadFactory(String name, boolean daemon)
+    {
+        if(name == null)
+        {
+            throw new NullPointerException("thread name was null");
+        }
+
+        fName = name;
+        fDaemon = daemon;
+        fCount = new AtomicInteger();
+    }
+
+    @Override
+    public Thread newThread(Runnable r)
+    {
+        final Thread thread = new Thread(r, fName + " "
+            + fCount.incrementAndGet());
+        thread.setDaemon(fDaemon);
+        return thread;
+    }
+}
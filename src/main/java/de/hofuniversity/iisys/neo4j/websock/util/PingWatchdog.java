@@ -16,11 +16,16 @@
  */
 package de.hofuniversity.iisys.neo4j.websock.util;
 
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import de.hofuniversity.iisys.neo4j.websock.queries.IFutureListener;
 import de.hofuniversity.iisys.neo4j.websock.queries.IMessageCallback;
 import de.hofuniversity.iisys.neo4j.websock.queries.IQueryHandler;
+import de.hofuniversity.iisys.neo4j.websock.queries.MessageFuture;
 import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
 import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
 
@@ -39,7 +44,9 @@ public class PingWatchdog implements Runnable
     private final IQueryHandler fHandler;
     private final long fInterval;
 
-    private boolean fActive;
+    private volatile boolean fActive;
+
+    private ScheduledFuture<?> fTask;
 
     /**
      * Creates a new server pinging watchdog with a default interval, sending
@@ -86,12 +93,81 @@ public class PingWatchdog implements Runnable
     public void deactivate()
     {
         fActive = false;
+
+        synchronized(this)
+        {
+            if(fTask != null)
+            {
+                fTask.cancel(false);
+                fTask = null;
+            }
+        }
+
         synchronized(fTrigger)
         {
             fTrigger.notify();
         }
     }
 
+    /**
+     * Sends pings as a periodic task on the given scheduler instead of a
+     * dedicated thread, until the watchdog is deactivated. Responses are
+     * awaited asynchronously, so no scheduler thread is blocked.
+     * The scheduler is not shut down by the watchdog and must not be null.
+     *
+     * @param scheduler scheduler to send pings on
+     */
+    public synchronized void start(ScheduledExecutorService scheduler)
+    {
+        if(scheduler == null)
+        {
+            throw new NullPointerException("scheduler was null");
+        }
+
+        fActive = true;
+        fTask = scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ping();
+            }
+        }, 0, fInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private void ping()
+    {
+        try
+        {
+            final MessageFuture future = new MessageFuture();
+            fHandler.sendMessage(new WebsockQuery(EQueryType.PING), future);
+
+            future.whenComplete(new IFutureListener<WebsockQuery>()
+            {
+                @Override
+                public void onComplete(WebsockQuery response,
+                    String errorMessage, boolean cancelled)
+                {
+                    if(cancelled || response == null)
+                    {
+                        fLogger.log(Level.SEVERE,
+                            "watchdog ping query cancelled");
+                    }
+
+                    if(errorMessage != null)
+                    {
+                        fLogger.log(Level.SEVERE, "ping watchdog error: "
+                            + errorMessage);
+                    }
+                }
+            });
+        }
+        catch(Exception e)
+        {
+            fLogger.log(Level.SEVERE, "ping watchdog failed to send ping", e);
+        }
+    }
+
     @Override
     public void run()
     {
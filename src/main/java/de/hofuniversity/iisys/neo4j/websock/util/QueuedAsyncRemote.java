@@ -0,0 +1,508 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.util;
+
+import java.io.FilterOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.websocket.EncodeException;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+
+/**
+ * Blocking remote endpoint facade that only queues messages, writing them
+ * through an asynchronous remote endpoint one at a time and in order.
+ * Sending returns as soon as a message is queued and fails with an
+ * IOException if the queue is full. Failures while writing are reported to
+ * the configured failure handler.
+ * Partial messages, streams and writers are written in order through the
+ * blocking remote endpoint given on creation, blocking the caller until all
+ * previously queued messages have been written.
+ */
+public class QueuedAsyncRemote implements IQueryRemote
+{
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    private static final int WRITING = 0, DETACHED = 1, COMPLETED = 2;
+
+    private final RemoteEndpoint.Async fRemote;
+    private final RemoteEndpoint.Basic fBasic;
+    private final BlockingQueue<Object> fQueue;
+    private final AtomicBoolean fSending;
+    private final ThreadLocal<WebsockQuery> fQuery;
+
+    private final ISendFailureHandler fFailureHandler;
+
+    private final Logger fLogger;
+
+    private boolean fPartial;
+
+    /**
+     * Creates a queueing facade for the given asynchronous remote endpoint,
+     * holding up to the given number of messages and writing partial
+     * messages and streams through the given blocking remote endpoint of the
+     * same session.
+     * The given remote endpoints must not be null.
+     *
+     * @param remote asynchronous remote endpoint to write to
+     * @param basic blocking remote endpoint for partial messages
+     * @param queueSize maximum number of queued messages
+     * @param failureHandler handler for failed writes or null
+     */
+    public QueuedAsyncRemote(RemoteEndpoint.Async remote,
+        RemoteEndpoint.Basic basic, int queueSize,
+        ISendFailureHandler failureHandler)
+    {
+        if(remote == null)
+        {
+            throw new NullPointerException("remote endpoint was null");
+        }
+        if(basic == null)
+        {
+            throw new NullPointerException(
+                "blocking remote endpoint was null");
+        }
+        if(queueSize <= 0)
+        {
+            throw new IllegalArgumentException(
+                "queue size was negative or zero");
+        }
+
+        fRemote = remote;
+        fBasic = basic;
+        fQueue = new LinkedBlockingQueue<Object>(queueSize);
+        fSending = new AtomicBoolean();
+        fQuery = new ThreadLocal<WebsockQuery>();
+
+        fFailureHandler = failureHandler;
+
+        fLogger = Logger.getLogger(this.getClass().getName());
+    }
+
+    /**
+     * @return number of messages waiting to be written
+     */
+    public int getQueued()
+    {
+        return fQueue.size();
+    }
+
+    @Override
+    public void setQuery(WebsockQuery query)
+    {
+        if(query != null)
+        {
+            fQuery.set(query);
+        }
+        else
+        {
+            fQuery.remove();
+        }
+    }
+
+    @Override
+    public void sendText(String text) throws IOException
+    {
+        enqueue(text, false);
+    }
+
+    @Override
+    public void sendBinary(ByteBuffer data) throws IOException
+    {
+        enqueue(data, false);
+    }
+
+    @Override
+    public void sendObject(Object data) throws IOException, EncodeException
+    {
+        enqueue(data, true);
+    }
+
+    private void enqueue(final Object data, final boolean object)
+        throws IOException
+    {
+        if(data == null)
+        {
+            throw new IllegalArgumentException("message was null");
+        }
+
+        final Frame frame = new Frame(data, object, fQuery.get());
+        if(!fQueue.offer(frame))
+        {
+            throw new IOException("outbound queue full");
+        }
+
+        drain();
+    }
+
+    private void drain()
+    {
+        //only one thread writes at a time, others leave the work to it
+        while(!fQueue.isEmpty() && fSending.compareAndSet(false, true))
+        {
+            //keep writing as long as writes complete on this thread
+            Object frame = fQueue.poll();
+            while(frame != null)
+            {
+                if(frame instanceof Barrier)
+                {
+                    //exclusive access is released by the barrier's owner
+                    ((Barrier) frame).fReached.countDown();
+                    return;
+                }
+
+                if(write((Frame) frame))
+                {
+                    //continued by the completion handler
+                    return;
+                }
+
+                frame = fQueue.poll();
+            }
+
+            fSending.set(false);
+        }
+    }
+
+    private boolean write(final Frame frame)
+    {
+        final FrameHandler handler = new FrameHandler(frame);
+
+        try
+        {
+            if(frame.fObject)
+            {
+                fRemote.sendObject(frame.fData, handler);
+            }
+            else if(frame.fData instanceof String)
+            {
+                fRemote.sendText((String) frame.fData, handler);
+            }
+            else
+            {
+                //keep the original position for failure reports
+                fRemote.sendBinary(((ByteBuffer) frame.fData).duplicate(),
+                    handler);
+            }
+        }
+        catch(Exception e)
+        {
+            failed(frame, e);
+            return false;
+        }
+
+        return handler.detach();
+    }
+
+    private void failed(final Frame frame, final Throwable cause)
+    {
+        fLogger.log(Level.SEVERE, "failed to send message", cause);
+
+        if(fFailureHandler != null)
+        {
+            try
+            {
+                fFailureHandler.sendFailed(frame.fData, frame.fQuery, cause);
+            }
+            catch(Exception e)
+            {
+                fLogger.log(Level.SEVERE, "send failure handler failed", e);
+            }
+        }
+    }
+
+    private class FrameHandler implements SendHandler
+    {
+        private final Frame fFrame;
+        private final AtomicInteger fState;
+
+        public FrameHandler(Frame frame)
+        {
+            fFrame = frame;
+            fState = new AtomicInteger(WRITING);
+        }
+
+        /**
+         * Called by the writing thread once the write call returned.
+         *
+         * @return whether the write is still pending
+         */
+        public boolean detach()
+        {
+            return fState.compareAndSet(WRITING, DETACHED);
+        }
+
+        @Override
+        public void onResult(SendResult result)
+        {
+            if(!result.isOK())
+            {
+                failed(fFrame, result.getException());
+            }
+
+            //completed inline, the writing thread continues with the queue
+            if(fState.compareAndSet(WRITING, COMPLETED))
+            {
+                return;
+            }
+
+            fSending.set(false);
+            drain();
+        }
+    }
+
+    private static class Frame
+    {
+        private final Object fData;
+        private final boolean fObject;
+        private final WebsockQuery fQuery;
+
+        public Frame(Object data, boolean object, WebsockQuery query)
+        {
+            fData = data;
+            fObject = object;
+            fQuery = query;
+        }
+    }
+
+    private static class Barrier
+    {
+        private final CountDownLatch fReached = new CountDownLatch(1);
+    }
+
+    private RemoteEndpoint.Basic acquire() throws IOException
+    {
+        final Barrier barrier = new Barrier();
+        if(!fQueue.offer(barrier))
+        {
+            throw new IOException("outbound queue full");
+        }
+        drain();
+
+        //wait until all previously queued messages have been written
+        boolean interrupted = false;
+        while(true)
+        {
+            try
+            {
+                barrier.fReached.await();
+                break;
+            }
+            catch(InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+
+        if(interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        return fBasic;
+    }
+
+    private void release()
+    {
+        fSending.set(false);
+        drain();
+    }
+
+    @Override
+    public void sendText(String partialMessage, boolean isLast)
+        throws IOException
+    {
+        sendPartial(partialMessage, null, isLast);
+    }
+
+    @Override
+    public void sendBinary(ByteBuffer partialByte, boolean isLast)
+        throws IOException
+    {
+        sendPartial(null, partialByte, isLast);
+    }
+
+    private synchronized void sendPartial(String text, ByteBuffer data,
+        boolean isLast) throws IOException
+    {
+        if(!fPartial)
+        {
+            acquire();
+            fPartial = true;
+        }
+
+        boolean done = isLast;
+        try
+        {
+            if(text != null)
+            {
+                fBasic.sendText(text, isLast);
+            }
+            else
+            {
+                fBasic.sendBinary(data, isLast);
+            }
+        }
+        catch(IOException e)
+        {
+            done = true;
+            throw e;
+        }
+        catch(RuntimeException e)
+        {
+            done = true;
+            throw e;
+        }
+        finally
+        {
+            if(done)
+            {
+                fPartial = false;
+                release();
+            }
+        }
+    }
+
+    @Override
+    public OutputStream getSendStream() throws IOException
+    {
+        final RemoteEndpoint.Basic basic = acquire();
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        try
+        {
+            return new FilterOutputStream(basic.getSendStream())
+            {
+                @Override
+                public void write(byte[] b, int off, int len)
+                    throws IOException
+                {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException
+                {
+                    try
+                    {
+                        super.close();
+                    }
+                    finally
+                    {
+                        if(closed.compareAndSet(false, true))
+                        {
+                            release();
+                        }
+                    }
+                }
+            };
+        }
+        catch(IOException e)
+        {
+            release();
+            throw e;
+        }
+        catch(RuntimeException e)
+        {
+            release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Writer getSendWriter() throws IOException
+    {
+        final RemoteEndpoint.Basic basic = acquire();
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        try
+        {
+            return new FilterWriter(basic.getSendWriter())
+            {
+                @Override
+                public void close() throws IOException
+                {
+                    try
+                    {
+                        super.close();
+                    }
+                    finally
+                    {
+                        if(closed.compareAndSet(false, true))
+                        {
+                            release();
+                        }
+                    }
+                }
+            };
+        }
+        catch(IOException e)
+        {
+            release();
+            throw e;
+        }
+        catch(RuntimeException e)
+        {
+            release();
+            throw e;
+        }
+    }
+
+    @Override
+    public void setBatchingAllowed(boolean allowed) throws IOException
+    {
+        fRemote.setBatchingAllowed(allowed);
+    }
+
+    @Override
+    public boolean getBatchingAllowed()
+    {
+        return fRemote.getBatchingAllowed();
+    }
+
+    @Override
+    public void flushBatch() throws IOException
+    {
+        fRemote.flushBatch();
+    }
+
+    @Override
+    public void sendPing(ByteBuffer applicationData) throws IOException
+    {
+        fRemote.sendPing(applicationData);
+    }
+
+    @Override
+    public void sendPong(ByteBuffer applicationData) throws IOException
+    {
+        fRemote.sendPong(applicationData);
+    }
+}
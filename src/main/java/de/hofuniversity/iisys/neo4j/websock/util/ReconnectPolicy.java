@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.util;
+
+import java.util.Random;
+
+/**
+ * Policy deciding how long connection watchdogs wait before reconnecting,
+ * growing the delay exponentially up to a maximum. With full jitter, each
+ * delay is chosen randomly between 0 and the current maximum, so clients
+ * losing their connections at the same time do not reconnect in lockstep.
+ */
+public class ReconnectPolicy
+{
+    public static final long DEFAULT_INITIAL_MS = 1000;
+    public static final double DEFAULT_MULTIPLIER = 2.0;
+    public static final long DEFAULT_MAX_MS = 60000;
+
+    private final long fInitial, fMax;
+    private final double fMultiplier;
+    private final boolean fJitter;
+
+    private final Random fRandom;
+
+    /**
+     * Creates a policy with default delays and full jitter.
+     */
+    public ReconnectPolicy()
+    {
+        this(DEFAULT_INITIAL_MS, DEFAULT_MULTIPLIER, DEFAULT_MAX_MS, true);
+    }
+
+    /**
+     * Creates a policy waiting up to the given initial delay before the first
+     * attempt, multiplying it for each further attempt up to the given
+     * maximum.
+     * The delays must not be negative and the multiplier must be at least 1.
+     *
+     * @param initial maximum milliseconds to wait before the first attempt
+     * @param multiplier factor by which the delay grows per attempt
+     * @param max maximum milliseconds to wait before an attempt
+     * @param jitter whether to wait a random time up to the delay
+     */
+    public ReconnectPolicy(long initial, double multiplier, long max,
+        boolean jitter)
+    {
+        if(initial < 0 || max < 0)
+        {
+            throw new IllegalArgumentException("delays must not be negative");
+        }
+        if(multiplier < 1)
+        {
+            throw new IllegalArgumentException("multiplier must be at least 1");
+        }
+
+        fInitial = initial;
+        fMultiplier = multiplier;
+        fMax = max;
+        fJitter = jitter;
+
+        fRandom = new Random();
+    }
+
+    /**
+     * Returns the number of milliseconds to wait before the given connection
+     * attempt after a connection was lost.
+     *
+     * @param attempt number of the attempt, starting at 1
+     * @return milliseconds to wait
+     */
+    public long getDelay(int attempt)
+    {
+        final double growth = Math.pow(fMultiplier, Math.max(attempt - 1, 0));
+        final long delay = (long) Math.min(fMax, fInitial * growth);
+
+        if(fJitter)
+        {
+            return (long) (delay * fRandom.nextDouble());
+        }
+
+        return delay;
+    }
+}
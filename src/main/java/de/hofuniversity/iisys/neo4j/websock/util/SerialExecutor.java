@@ -0,0 +1,134 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executor running its tasks one at a time and in submission order on a
+ * shared delegate executor, so work that must not run concurrently can
+ * still be moved off the calling thread.
+ * If the delegate rejects a task, the queued tasks are run on the calling
+ * thread instead.
+ */
+public class SerialExecutor implements Executor
+{
+    private final Executor fDelegate;
+    private final Queue<Runnable> fTasks;
+    private final AtomicBoolean fScheduled;
+    private final Runnable fDrain;
+
+    private final Logger fLogger;
+
+    /**
+     * Creates a serial executor running tasks on the given executor.
+     * The given executor must not be null.
+     *
+     * @param delegate executor to run tasks on
+     */
+    public SerialExecutor(Executor delegate)
+    {
+        if(delegate == null)
+        {
+            throw new NullPointerException("delegate executor was null");
+        }
+
+        fDelegate = delegate;
+        fTasks = new ConcurrentLinkedQueue<Runnable>();
+        fScheduled = new AtomicBoolean();
+
+        fLogger = Logger.getLogger(this.getClass().getName());
+
+        fDrain = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                drain();
+            }
+        };
+    }
+
+    /**
+     * @return executor the tasks are run on
+     */
+    public Executor getDelegate()
+    {
+        return fDelegate;
+    }
+
+    @Override
+    public void execute(Runnable task)
+    {
+        if(task == null)
+        {
+            throw new NullPointerException("task was null");
+        }
+
+        fTasks.offer(task);
+        schedule();
+    }
+
+    private void schedule()
+    {
+        //only one drain is queued or running at a time
+        if(!fTasks.isEmpty() && fScheduled.compareAndSet(false, true))
+        {
+            try
+            {
+                fDelegate.execute(fDrain);
+            }
+            catch(RejectedExecutionException e)
+            {
+                fLogger.log(Level.WARNING, "executor rejected tasks", e);
+                drain();
+            }
+        }
+    }
+
+    private void drain()
+    {
+        try
+        {
+            Runnable task = null;
+            while((task = fTasks.poll()) != null)
+            {
+                try
+                {
+                    task.run();
+                }
+                catch(RuntimeException e)
+                {
+                    fLogger.log(Level.SEVERE, "task failed", e);
+                }
+            }
+        }
+        finally
+        {
+            fScheduled.set(false);
+        }
+
+        //tasks may have been added after the queue ran empty
+        schedule();
+    }
+}
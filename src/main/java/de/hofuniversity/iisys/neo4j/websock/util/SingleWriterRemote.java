@@ -0,0 +1,642 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.util;
+
+import java.io.FilterOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.websocket.EncodeException;
+import javax.websocket.RemoteEndpoint;
+
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+
+/**
+ * Blocking remote endpoint facade that queues messages in a lock-free queue,
+ * from which a writer occupying one thread until closed writes them to the
+ * actual remote endpoint back-to-back and in order.
+ * Sending returns as soon as a message is queued and fails with an
+ * IOException if the queue is full. Failures while writing and messages
+ * still queued when closing are reported to the configured failure handler,
+ * along with the query set for the sending thread.
+ * If coalescing is enabled, batching is enabled on the remote endpoint and
+ * the batch is flushed whenever the queue runs empty, so bursts of small
+ * messages can be written together.
+ * Partial messages, streams, writers and batching changes are passed to the
+ * remote endpoint on the calling thread, once the writer has written all
+ * previously queued messages and while it holds back later ones.
+ */
+public class SingleWriterRemote implements IQueryRemote, Runnable
+{
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    private static final NamedThreadFactory WRITER_THREADS =
+        new NamedThreadFactory("websocket writer", true);
+
+    private final RemoteEndpoint.Basic fRemote;
+    private final MpscQueue<Object> fQueue;
+    private final AtomicInteger fSize;
+    private final int fCapacity;
+    private final ThreadLocal<WebsockQuery> fQuery;
+
+    private final boolean fCoalesce;
+    private final ISendFailureHandler fFailureHandler;
+
+    private volatile Thread fWriter;
+    private final AtomicBoolean fWaiting;
+    private volatile boolean fActive;
+
+    private final Object fCloseLock;
+    private boolean fTerminated;
+
+    private Barrier fPartial;
+
+    private final Logger fLogger;
+
+    /**
+     * Creates a single writer facade for the given remote endpoint, holding
+     * up to the given number of messages, and starts its writer thread.
+     * The given remote endpoint must not be null.
+     *
+     * @param remote remote endpoint to write to
+     * @param queueSize maximum number of queued messages
+     * @param coalesce whether to let the remote endpoint batch messages
+     * @param failureHandler handler for failed writes or null
+     */
+    public SingleWriterRemote(RemoteEndpoint.Basic remote, int queueSize,
+        boolean coalesce, ISendFailureHandler failureHandler)
+    {
+        this(remote, queueSize, coalesce, failureHandler, null);
+    }
+
+    /**
+     * Creates a single writer facade for the given remote endpoint, holding
+     * up to the given number of messages, and starts its writer on the given
+     * executor. The writer occupies one of the executor's threads until the
+     * facade is closed, so the executor needs a thread for each open
+     * connection. If it is null or rejects the writer, a dedicated daemon
+     * thread is started instead.
+     * The given remote endpoint must not be null.
+     *
+     * @param remote remote endpoint to write to
+     * @param queueSize maximum number of queued messages
+     * @param coalesce whether to let the remote endpoint batch messages
+     * @param failureHandler handler for failed writes or null
+     * @param executor executor to run the writer on or null
+     */
+    public SingleWriterRemote(RemoteEndpoint.Basic remote, int queueSize,
+        boolean coalesce, ISendFailureHandler failureHandler,
+        Executor executor)
+    {
+        if(remote == null)
+        {
+            throw new NullPointerException("remote endpoint was null");
+        }
+        if(queueSize <= 0)
+        {
+            throw new IllegalArgumentException(
+                "queue size was negative or zero");
+        }
+
+        fRemote = remote;
+        fQueue = new MpscQueue<Object>();
+        fSize = new AtomicInteger();
+        fCapacity = queueSize;
+        fQuery = new ThreadLocal<WebsockQuery>();
+
+        fCoalesce = coalesce;
+        fFailureHandler = failureHandler;
+
+        fLogger = Logger.getLogger(this.getClass().getName());
+
+        if(fCoalesce)
+        {
+            try
+            {
+                fRemote.setBatchingAllowed(true);
+            }
+            catch(Exception e)
+            {
+                fLogger.log(Level.WARNING, "batching not supported", e);
+            }
+        }
+
+        fWaiting = new AtomicBoolean();
+        fActive = true;
+        fCloseLock = new Object();
+
+        if(executor != null)
+        {
+            try
+            {
+                executor.execute(this);
+                return;
+            }
+            catch(RejectedExecutionException e)
+            {
+                fLogger.log(Level.WARNING,
+                    "writer rejected, starting a dedicated thread", e);
+            }
+        }
+
+        WRITER_THREADS.newThread(this).start();
+    }
+
+    /**
+     * @return number of messages waiting to be written
+     */
+    public int getQueued()
+    {
+        return fSize.get();
+    }
+
+    @Override
+    public void setQuery(WebsockQuery query)
+    {
+        if(query != null)
+        {
+            fQuery.set(query);
+        }
+        else
+        {
+            fQuery.remove();
+        }
+    }
+
+    @Override
+    public void sendText(String text) throws IOException
+    {
+        send(text, false);
+    }
+
+    @Override
+    public void sendBinary(ByteBuffer data) throws IOException
+    {
+        send(data, false);
+    }
+
+    @Override
+    public void sendObject(Object data) throws IOException, EncodeException
+    {
+        send(data, true);
+    }
+
+    private void send(final Object data, final boolean object)
+        throws IOException
+    {
+        if(data == null)
+        {
+            throw new IllegalArgumentException("message was null");
+        }
+
+        enqueue(new Frame(data, object, fQuery.get()));
+    }
+
+    private void enqueue(final Object frame) throws IOException
+    {
+        if(!fActive)
+        {
+            throw new IOException("writer was closed");
+        }
+
+        if(fSize.incrementAndGet() > fCapacity)
+        {
+            fSize.decrementAndGet();
+            throw new IOException("outbound queue full");
+        }
+
+        fQueue.offer(frame);
+
+        //wake up the writer if it is waiting for messages
+        if(fWaiting.compareAndSet(true, false))
+        {
+            LockSupport.unpark(fWriter);
+        }
+
+        //closed concurrently, the writer may already have finished
+        if(!fActive)
+        {
+            synchronized(fCloseLock)
+            {
+                if(fTerminated)
+                {
+                    failQueued();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        fWriter = Thread.currentThread();
+
+        Object frame = null;
+
+        while(fActive)
+        {
+            frame = fQueue.poll();
+
+            if(frame instanceof Barrier)
+            {
+                fSize.decrementAndGet();
+                hold((Barrier) frame);
+                continue;
+            }
+            else if(frame != null)
+            {
+                fSize.decrementAndGet();
+                write((Frame) frame);
+                continue;
+            }
+
+            //queue ran empty, write out what the remote endpoint held back
+            if(fCoalesce)
+            {
+                flush();
+            }
+
+            fWaiting.set(true);
+            if(fQueue.isEmpty() && fActive)
+            {
+                LockSupport.park(this);
+            }
+            fWaiting.set(false);
+        }
+
+        //report messages that were not written, including late ones
+        synchronized(fCloseLock)
+        {
+            fTerminated = true;
+            failQueued();
+        }
+    }
+
+    private void failQueued()
+    {
+        Object frame = null;
+        while((frame = fQueue.poll()) != null)
+        {
+            fSize.decrementAndGet();
+
+            if(frame instanceof Barrier)
+            {
+                ((Barrier) frame).fFailed = true;
+                ((Barrier) frame).fReached.countDown();
+            }
+            else
+            {
+                failed((Frame) frame, new IOException("writer was closed"));
+            }
+        }
+    }
+
+    private void hold(final Barrier barrier)
+    {
+        //write out held back messages before handing over the endpoint
+        if(fCoalesce)
+        {
+            flush();
+        }
+
+        barrier.fReached.countDown();
+
+        boolean interrupted = false;
+        while(true)
+        {
+            try
+            {
+                barrier.fReleased.await();
+                break;
+            }
+            catch(InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+
+        if(interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(final Frame frame)
+    {
+        try
+        {
+            if(frame.fObject)
+            {
+                fRemote.sendObject(frame.fData);
+            }
+            else if(frame.fData instanceof String)
+            {
+                fRemote.sendText((String) frame.fData);
+            }
+            else
+            {
+                //keep the original position for failure reports
+                fRemote.sendBinary(((ByteBuffer) frame.fData).duplicate());
+            }
+        }
+        catch(Exception e)
+        {
+            failed(frame, e);
+        }
+    }
+
+    private void flush()
+    {
+        try
+        {
+            fRemote.flushBatch();
+        }
+        catch(Exception e)
+        {
+            fLogger.log(Level.SEVERE, "failed to flush messages", e);
+        }
+    }
+
+    private void failed(final Frame frame, final Throwable cause)
+    {
+        fLogger.log(Level.SEVERE, "failed to send message", cause);
+
+        if(fFailureHandler != null)
+        {
+            try
+            {
+                fFailureHandler.sendFailed(frame.fData, frame.fQuery, cause);
+            }
+            catch(Exception e)
+            {
+                fLogger.log(Level.SEVERE, "send failure handler failed", e);
+            }
+        }
+    }
+
+    /**
+     * Stops the writer thread. Messages not written yet are reported as
+     * failed, further messages are rejected.
+     */
+    public void close()
+    {
+        fActive = false;
+        LockSupport.unpark(fWriter);
+    }
+
+    private static class Frame
+    {
+        private final Object fData;
+        private final boolean fObject;
+        private final WebsockQuery fQuery;
+
+        public Frame(Object data, boolean object, WebsockQuery query)
+        {
+            fData = data;
+            fObject = object;
+            fQuery = query;
+        }
+    }
+
+    private static class Barrier
+    {
+        private final CountDownLatch fReached = new CountDownLatch(1);
+        private final CountDownLatch fReleased = new CountDownLatch(1);
+        private volatile boolean fFailed;
+    }
+
+    private Barrier acquire() throws IOException
+    {
+        final Barrier barrier = new Barrier();
+        enqueue(barrier);
+
+        //wait until all previously queued messages have been written
+        boolean interrupted = false;
+        while(true)
+        {
+            try
+            {
+                barrier.fReached.await();
+                break;
+            }
+            catch(InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+
+        if(interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        if(barrier.fFailed)
+        {
+            throw new IOException("writer was closed");
+        }
+
+        return barrier;
+    }
+
+    @Override
+    public void sendText(String partialMessage, boolean isLast)
+        throws IOException
+    {
+        sendPartial(partialMessage, null, isLast);
+    }
+
+    @Override
+    public void sendBinary(ByteBuffer partialByte, boolean isLast)
+        throws IOException
+    {
+        sendPartial(null, partialByte, isLast);
+    }
+
+    private synchronized void sendPartial(String text, ByteBuffer data,
+        boolean isLast) throws IOException
+    {
+        if(fPartial == null)
+        {
+            fPartial = acquire();
+        }
+
+        boolean done = isLast;
+        try
+        {
+            if(text != null)
+            {
+                fRemote.sendText(text, isLast);
+            }
+            else
+            {
+                fRemote.sendBinary(data, isLast);
+            }
+        }
+        catch(IOException e)
+        {
+            done = true;
+            throw e;
+        }
+        catch(RuntimeException e)
+        {
+            done = true;
+            throw e;
+        }
+        finally
+        {
+            if(done)
+            {
+                fPartial.fReleased.countDown();
+                fPartial = null;
+            }
+        }
+    }
+
+    @Override
+    public OutputStream getSendStream() throws IOException
+    {
+        final Barrier barrier = acquire();
+
+        try
+        {
+            return new FilterOutputStream(fRemote.getSendStream())
+            {
+                @Override
+                public void write(byte[] b, int off, int len)
+                    throws IOException
+                {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException
+                {
+                    try
+                    {
+                        super.close();
+                    }
+                    finally
+                    {
+                        barrier.fReleased.countDown();
+                    }
+                }
+            };
+        }
+        catch(IOException e)
+        {
+            barrier.fReleased.countDown();
+            throw e;
+        }
+        catch(RuntimeException e)
+        {
+            barrier.fReleased.countDown();
+            throw e;
+        }
+    }
+
+    @Override
+    public Writer getSendWriter() throws IOException
+    {
+        final Barrier barrier = acquire();
+
+        try
+        {
+            return new FilterWriter(fRemote.getSendWriter())
+            {
+                @Override
+                public void close() throws IOException
+                {
+                    try
+                    {
+                        super.close();
+                    }
+                    finally
+                    {
+                        barrier.fReleased.countDown();
+                    }
+                }
+            };
+        }
+        catch(IOException e)
+        {
+            barrier.fReleased.countDown();
+            throw e;
+        }
+        catch(RuntimeException e)
+        {
+            barrier.fReleased.countDown();
+            throw e;
+        }
+    }
+
+    @Override
+    public void setBatchingAllowed(boolean allowed) throws IOException
+    {
+        final Barrier barrier = acquire();
+        try
+        {
+            fRemote.setBatchingAllowed(allowed);
+        }
+        finally
+        {
+            barrier.fReleased.countDown();
+        }
+    }
+
+    @Override
+    public boolean getBatchingAllowed()
+    {
+        return fRemote.getBatchingAllowed();
+    }
+
+    @Override
+    public void flushBatch() throws IOException
+    {
+        final Barrier barrier = acquire();
+        try
+        {
+            fRemote.flushBatch();
+        }
+        finally
+        {
+            barrier.fReleased.countDown();
+        }
+    }
+
+    @Override
+    public void sendPing(ByteBuffer applicationData) throws IOException
+    {
+        fRemote.sendPing(applicationData);
+    }
+
+    @Override
+    public void sendPong(ByteBuffer applicationData) throws IOException
+    {
+        fRemote.sendPong(applicationData);
+    }
+}
@@ -16,10 +16,17 @@
  */
 package de.hofuniversity.iisys.neo4j.websock;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
+import javax.websocket.DeploymentException;
 import javax.websocket.Session;
+import javax.websocket.WebSocketContainer;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -29,6 +36,7 @@ import de.hofuniversity.iisys.neo4j.websock.queries.IQueryHandler;
 import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
 import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
 import de.hofuniversity.iisys.neo4j.websock.session.WebsockConstants;
+import de.hofuniversity.iisys.neo4j.websock.util.ContainerFactory;
 
 /**
  * Simple connection test for the client websocket connector for multiple connections.
@@ -48,8 +56,113 @@ public class MultiWebSocketConnectorTest
     private static final String WS_2_PATH = "/ws";
     private static final int SERVER_2_PORT = 65212;
 
+    private static final String UNREACHABLE_1 = "ws://127.0.0.1:65213/ws";
+    private static final String UNREACHABLE_2 = "ws://127.0.0.1:65214/ws";
+
     private static final String TEST_MESSAGE = "test message";
 
+    private static final long WAIT_MS = 10000;
+
+    private static String getUri1()
+    {
+        return "ws://" + SERVER_1_IP + ":" + SERVER_1_PORT + SERVER_1_PATH
+            + WS_1_PATH;
+    }
+
+    private static String getUri2()
+    {
+        return "ws://" + SERVER_2_IP + ":" + SERVER_2_PORT + SERVER_2_PATH
+            + WS_2_PATH;
+    }
+
+    /**
+     * Creates a container that holds back connects to the given URI until
+     * released and fails connects to the unreachable test URIs with the
+     * given exceptions, passing everything else to a real container.
+     */
+    private WebSocketContainer createGatedContainer(final String gated,
+        final CountDownLatch release, final DeploymentException error1,
+        final DeploymentException error2)
+    {
+        final WebSocketContainer container = new ContainerFactory().create();
+
+        return (WebSocketContainer) Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] {WebSocketContainer.class},
+            new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method,
+                    Object[] args) throws Throwable
+                {
+                    if(method.getName().equals("connectToServer"))
+                    {
+                        final String uri = args[1].toString();
+
+                        if(uri.equals(UNREACHABLE_1))
+                        {
+                            throw error1;
+                        }
+
+                        if(uri.equals(gated) || uri.equals(UNREACHABLE_2))
+                        {
+                            //keep waiting through the pool's shutdown
+                            while(true)
+                            {
+                                try
+                                {
+                                    release.await();
+                                    break;
+                                }
+                                catch(InterruptedException e)
+                                {
+                                    //ignored
+                                }
+                            }
+                        }
+
+                        if(uri.equals(UNREACHABLE_2))
+                        {
+                            throw error2;
+                        }
+                    }
+
+                    try
+                    {
+                        return method.invoke(container, args);
+                    }
+                    catch(InvocationTargetException e)
+                    {
+                        throw e.getCause();
+                    }
+                }
+            });
+    }
+
+    private void awaitDisconnected(int connections) throws Exception
+    {
+        final long deadline = System.currentTimeMillis() + WAIT_MS;
+
+        while(System.currentTimeMillis() < deadline)
+        {
+            boolean connected = false;
+            for(TestWebsocketServer server : TestWebsocketServer.INSTANCES)
+            {
+                connected |= server.isConnected();
+            }
+
+            if(!connected
+                && TestWebsocketServer.INSTANCES.size() == connections)
+            {
+                return;
+            }
+
+            Thread.sleep(10);
+        }
+
+        Assert.fail("connections were not closed");
+    }
+
     /**
      * Tests connecting to a websocket and disconnecting.
      */
@@ -153,4 +266,157 @@ public class MultiWebSocketConnectorTest
 
         TestWebsocketServer.INSTANCES.clear();
     }
+
+    /**
+     * Tests that connecting returns as soon as the configured number of
+     * connections is open, without waiting for slower connections.
+     */
+    @Test
+    public void readyConnectionsTest() throws Exception
+    {
+        TestWebsocketServer server1 = new TestWebsocketServer(true);
+        server1.start(SERVER_1_IP, SERVER_1_PORT, SERVER_1_PATH);
+
+        TestWebsocketServer server2 = new TestWebsocketServer(true);
+        server2.start(SERVER_2_IP, SERVER_2_PORT, SERVER_2_PATH);
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        List<String> uris = new ArrayList<String>();
+        uris.add(getUri1());
+        uris.add(getUri2());
+
+        MultiWebSocketConnector conn = new MultiWebSocketConnector(uris, 1,
+            WebsockConstants.JSON_FORMAT, WebsockConstants.NO_COMPRESSION);
+        conn.setWatchdogEnabled(false);
+        conn.setContainer(createGatedContainer(getUri2(), release, null,
+            null));
+        conn.setReadyConnections(1);
+
+        try
+        {
+            //returns while the second connect is still held back
+            conn.connect();
+
+            Assert.assertEquals(1, TestWebsocketServer.INSTANCES.size());
+            Assert.assertTrue(conn.getSessions().get(0).isOpen());
+
+            //the connection is usable right away
+            WebsockQuery reqQuery = new WebsockQuery(EQueryType.PROCEDURE_CALL);
+            reqQuery.setPayload(TEST_MESSAGE);
+
+            WebsockQuery response =
+                conn.getQueryHandler().sendMessage(reqQuery).get();
+            Assert.assertEquals(TEST_MESSAGE + " 0", response.getPayload());
+        }
+        finally
+        {
+            release.countDown();
+            conn.disconnect();
+
+            server1.stop();
+            server2.stop();
+
+            TestWebsocketServer.INSTANCES.clear();
+        }
+    }
+
+    /**
+     * Tests that connecting fails with the first error if configured to,
+     * without waiting for the remaining connections.
+     */
+    @Test
+    public void failOnErrorTest() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final DeploymentException first = new DeploymentException("first");
+        final DeploymentException second = new DeploymentException("second");
+
+        List<String> uris = new ArrayList<String>();
+        uris.add(UNREACHABLE_1);
+        uris.add(UNREACHABLE_2);
+
+        MultiWebSocketConnector conn = new MultiWebSocketConnector(uris, 1,
+            WebsockConstants.JSON_FORMAT, WebsockConstants.NO_COMPRESSION);
+        conn.setWatchdogEnabled(false);
+        conn.setContainer(createGatedContainer(null, release, first,
+            second));
+        conn.setFailOnError(true);
+
+        try
+        {
+            //the second connect only fails once released
+            conn.connect();
+            Assert.fail("connecting did not fail");
+        }
+        catch(DeploymentException e)
+        {
+            Assert.assertSame(first, e);
+        }
+        finally
+        {
+            release.countDown();
+        }
+    }
+
+    /**
+     * Tests that connections still being established when the connector is
+     * disconnected are closed once open and not monitored.
+     */
+    @Test
+    public void abortedConnectTest() throws Exception
+    {
+        TestWebsocketServer server1 = new TestWebsocketServer(true);
+        server1.start(SERVER_1_IP, SERVER_1_PORT, SERVER_1_PATH);
+
+        TestWebsocketServer server2 = new TestWebsocketServer(true);
+        server2.start(SERVER_2_IP, SERVER_2_PORT, SERVER_2_PATH);
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        List<String> uris = new ArrayList<String>();
+        uris.add(getUri1());
+        uris.add(getUri2());
+
+        MultiWebSocketConnector conn = new MultiWebSocketConnector(uris, 1,
+            WebsockConstants.JSON_FORMAT, WebsockConstants.NO_COMPRESSION);
+        conn.setWatchdogEnabled(false);
+        conn.setContainer(createGatedContainer(getUri2(), release, null,
+            null));
+        conn.setReadyConnections(1);
+
+        try
+        {
+            conn.connect();
+            Assert.assertEquals(1, TestWebsocketServer.INSTANCES.size());
+
+            //disconnect while the second connect is still in progress
+            conn.disconnect();
+            release.countDown();
+
+            //the late connection opens, but is closed again right away
+            awaitDisconnected(2);
+
+            Session late = conn.getSessions().get(1);
+            Assert.assertNotNull(late);
+            Assert.assertFalse(late.isOpen());
+
+            //no reconnection attempts by an unmonitored watchdog
+            Thread.sleep(1000);
+            Assert.assertEquals(2, TestWebsocketServer.INSTANCES.size());
+            for(TestWebsocketServer server : TestWebsocketServer.INSTANCES)
+            {
+                Assert.assertFalse(server.isConnected());
+            }
+        }
+        finally
+        {
+            release.countDown();
+
+            server1.stop();
+            server2.stop();
+
+            TestWebsocketServer.INSTANCES.clear();
+        }
+    }
 }
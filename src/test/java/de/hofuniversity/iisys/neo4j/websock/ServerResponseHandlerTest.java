@@ -0,0 +1,323 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.hofuniversity.iisys.neo4j.websock.queries.BasicQueryHandler;
+import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+import de.hofuniversity.iisys.neo4j.websock.query.encoding.TransferUtil;
+import de.hofuniversity.iisys.neo4j.websock.session.WebsockSession;
+import de.hofuniversity.iisys.neo4j.websock.util.FakeRemote;
+
+/**
+ * Test for the server response handler's outgoing send modes.
+ */
+public class ServerResponseHandlerTest
+{
+    private static final int MESSAGES = 50000;
+
+    private static Object defaultValue(Method method)
+    {
+        if(method.getReturnType() == boolean.class)
+        {
+            return false;
+        }
+        return null;
+    }
+
+    private Session createSession(final FakeRemote remote)
+    {
+        return (Session) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {Session.class}, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method,
+                    Object[] args) throws Throwable
+                {
+                    if(method.getName().equals("getAsyncRemote"))
+                    {
+                        return remote.getAsync();
+                    }
+                    if(method.getName().equals("getBasicRemote"))
+                    {
+                        return remote.getBasic();
+                    }
+                    return defaultValue(method);
+                }
+            });
+    }
+
+    /**
+     * Tests that a long queue is written in order without growing the stack
+     * when the asynchronous endpoint completes writes on the calling thread.
+     */
+    @Test
+    public void inlineCompletionTest() throws Exception
+    {
+        final FakeRemote remote = new FakeRemote();
+        remote.setHoldFirst(true);
+        final List<Object> written = remote.getWritten();
+
+        final ServerResponseHandler handler = new ServerResponseHandler(
+            new WebsockSession(createSession(remote)),
+            new BasicQueryHandler(), "json", "none", ESendMode.ASYNC,
+            MESSAGES);
+        final TransferUtil util = handler.getTransferUtil();
+
+        for(int i = 0; i < MESSAGES; ++i)
+        {
+            util.sendMessage(new WebsockQuery(i, EQueryType.PING));
+        }
+        Assert.assertEquals(1, written.size());
+
+        //all remaining messages complete inline
+        remote.getHeld().onResult(new SendResult());
+        Assert.assertEquals(MESSAGES, written.size());
+
+        WebsockQuery query = null;
+        for(int i = 0; i < MESSAGES; ++i)
+        {
+            final Object frame = written.get(i);
+            if(frame instanceof String)
+            {
+                query = util.convert((String) frame);
+            }
+            else
+            {
+                query = util.convert((ByteBuffer) frame);
+            }
+
+            Assert.assertEquals(i, query.getId());
+        }
+    }
+
+    /**
+     * Tests that closing a response handler stops its writer thread.
+     */
+    @Test
+    public void closeTest() throws Exception
+    {
+        final Thread[] before = new Thread[Thread.activeCount() * 2];
+        final int count = Thread.enumerate(before);
+        final List<Thread> existing = Arrays.asList(before).subList(0, count);
+
+        final ServerResponseHandler handler = new ServerResponseHandler(
+            new WebsockSession(createSession(new FakeRemote())),
+            new BasicQueryHandler(), "json", "none", ESendMode.WRITER,
+            MESSAGES);
+
+        Thread writer = null;
+        final Thread[] after = new Thread[Thread.activeCount() * 2];
+        for(int i = Thread.enumerate(after) - 1; i >= 0; --i)
+        {
+            if(after[i].getName().startsWith("websocket writer")
+                && !existing.contains(after[i]))
+            {
+                writer = after[i];
+            }
+        }
+        Assert.assertNotNull(writer);
+
+        handler.close();
+        writer.join(5000);
+        Assert.assertFalse(writer.isAlive());
+    }
+
+    /**
+     * Tests that compressed responses arriving concurrently are all decoded
+     * correctly when decoding on an executor.
+     */
+    @Test
+    public void compressedDecoderTest() throws Exception
+    {
+        final int responses = 200;
+
+        //encode large compressed responses like a server would
+        final FakeRemote serverRemote = new FakeRemote();
+        final ServerResponseHandler server = new ServerResponseHandler(
+            new WebsockSession(createSession(serverRemote)),
+            new BasicQueryHandler(), "json", "fastest");
+
+        final StringBuilder payload = new StringBuilder();
+        for(int i = 0; i < 2000; ++i)
+        {
+            payload.append("result ").append(i).append(' ');
+        }
+
+        for(int i = 0; i < responses; ++i)
+        {
+            final WebsockQuery result = new WebsockQuery(i,
+                EQueryType.RESULT);
+            result.setPayload(payload.toString() + i);
+            server.getTransferUtil().sendMessage(result);
+        }
+        final List<Object> frames =
+            new ArrayList<Object>(serverRemote.getWritten());
+        Assert.assertEquals(responses, frames.size());
+
+        final Set<Integer> received =
+            Collections.synchronizedSet(new HashSet<Integer>());
+        final List<Object> payloads =
+            Collections.synchronizedList(new ArrayList<Object>());
+        final CountDownLatch handled = new CountDownLatch(responses);
+        final BasicQueryHandler qHandler = new BasicQueryHandler()
+        {
+            @Override
+            public boolean handleMessage(WebsockQuery message)
+            {
+                received.add(message.getId());
+                payloads.add(message.getPayload());
+                handled.countDown();
+                return true;
+            }
+        };
+
+        final ServerResponseHandler handler = new ServerResponseHandler(
+            new WebsockSession(createSession(new FakeRemote())),
+            qHandler, "json", "fastest");
+        final ExecutorService decoder = Executors.newFixedThreadPool(4);
+        handler.setDecoderExecutor(decoder);
+
+        //deliver from several receiving threads at once
+        final List<Thread> threads = new ArrayList<Thread>();
+        for(int i = 0; i < 4; ++i)
+        {
+            final int offset = i;
+            threads.add(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for(int j = offset; j < frames.size(); j += 4)
+                    {
+                        final Object frame = frames.get(j);
+                        if(frame instanceof String)
+                        {
+                            handler.onMessage((String) frame);
+                        }
+                        else
+                        {
+                            handler.onMessage((ByteBuffer) frame);
+                        }
+                    }
+                }
+            });
+        }
+        for(Thread thread : threads)
+        {
+            thread.start();
+        }
+        for(Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        try
+        {
+            Assert.assertTrue(handled.await(10, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            decoder.shutdownNow();
+        }
+
+        Assert.assertEquals(responses, received.size());
+        for(Object result : payloads)
+        {
+            Assert.assertTrue(result.toString().startsWith(
+                payload.toString()));
+        }
+    }
+
+    /**
+     * Tests that a compressed message that could not be written completes
+     * its request with an error, without disturbing the decoding of
+     * incoming messages.
+     */
+    @Test
+    public void compressedSendFailureTest() throws Exception
+    {
+        //encode a compressed response like a server would
+        final FakeRemote serverRemote = new FakeRemote();
+        final ServerResponseHandler server = new ServerResponseHandler(
+            new WebsockSession(createSession(serverRemote)),
+            new BasicQueryHandler(), "json", "fastest");
+        final WebsockQuery result = new WebsockQuery(2, EQueryType.RESULT);
+        result.setPayload("result");
+        server.getTransferUtil().sendMessage(result);
+        final Object response = serverRemote.getWritten().get(0);
+
+        final List<WebsockQuery> handled =
+            Collections.synchronizedList(new ArrayList<WebsockQuery>());
+        final BasicQueryHandler qHandler = new BasicQueryHandler()
+        {
+            @Override
+            public boolean handleMessage(WebsockQuery message)
+            {
+                handled.add(message);
+                return true;
+            }
+        };
+
+        //all writes fail
+        final FakeRemote remote = new FakeRemote();
+        remote.setFailing("");
+        final ServerResponseHandler handler = new ServerResponseHandler(
+            new WebsockSession(createSession(remote)),
+            qHandler, "json", "fastest", ESendMode.ASYNC, MESSAGES);
+
+        handler.getTransferUtil().sendMessage(
+            new WebsockQuery(1, EQueryType.DIRECT_CYPHER));
+        Assert.assertEquals(1, handled.size());
+        Assert.assertEquals(1, handled.get(0).getId());
+        Assert.assertEquals(EQueryType.ERROR, handled.get(0).getType());
+
+        //incoming messages are still decoded
+        if(response instanceof String)
+        {
+            handler.onMessage((String) response);
+        }
+        else
+        {
+            handler.onMessage((ByteBuffer) response);
+        }
+        Assert.assertEquals(2, handled.size());
+        Assert.assertEquals(2, handled.get(1).getId());
+        Assert.assertEquals("result", handled.get(1).getPayload());
+    }
+}
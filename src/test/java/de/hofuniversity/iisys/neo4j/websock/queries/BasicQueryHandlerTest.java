@@ -16,7 +16,12 @@
  */
 package de.hofuniversity.iisys.neo4j.websock.queries;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.websocket.RemoteEndpoint.Basic;
 
@@ -30,6 +35,7 @@ import de.hofuniversity.iisys.neo4j.websock.query.encoding.BinaryTransferUtil;
 import de.hofuniversity.iisys.neo4j.websock.query.encoding.StringTransferUtil;
 import de.hofuniversity.iisys.neo4j.websock.query.encoding.TransferUtil;
 import de.hofuniversity.iisys.neo4j.websock.result.AResultSet;
+import de.hofuniversity.iisys.neo4j.websock.session.WebsockConstants;
 
 /**
  * Test for the query handler, handling responses for queries and messages as
@@ -93,6 +99,610 @@ public class BasicQueryHandlerTest
         Assert.assertNotNull(set);
     }
 
+    /**
+     * Tests that responses drive the listeners of asynchronous futures.
+     */
+    @Test
+    public void asyncResponseTest() throws Exception
+    {
+        BasicQueryHandler handler = new BasicQueryHandler();
+
+        FakeWebsockSession session = new FakeWebsockSession();
+        Basic remote = session.getBasicRemote();
+        LinkedList<WebsockQuery> responses = session.getResponses();
+
+        StringTransferUtil stUtil = new StringTransferUtil(remote,
+            new NopMessageHandler());
+
+        BinaryTransferUtil btUtil = new BinaryTransferUtil(remote,
+            new NopMessageHandler(), true);
+
+        TransferUtil util = new TransferUtil(stUtil, btUtil);
+        handler.addTransferUtil(util);
+
+        //register continuation before the response arrives
+        final List<AResultSet<?>> results = new ArrayList<AResultSet<?>>();
+        ResultFuture future = handler.sendQueryAsync(new WebsockQuery(
+            EQueryType.DIRECT_CYPHER));
+        future.thenAccept(new IConsumer<AResultSet<?>>()
+        {
+            @Override
+            public void accept(AResultSet<?> value)
+            {
+                results.add(value);
+            }
+        });
+        Assert.assertTrue(results.isEmpty());
+
+        //feed in response manually, completing the continuation directly
+        handler.handleMessage(responses.pop());
+        Assert.assertEquals(1, results.size());
+        Assert.assertNotNull(results.get(0));
+    }
+
+    /**
+     * Tests that lazy callbacks only convert results once they are read,
+     * on the reading thread, and only once.
+     */
+    @Test
+    public void lazyResultTest() throws Exception
+    {
+        BasicQueryHandler handler = new BasicQueryHandler();
+
+        FakeWebsockSession session = new FakeWebsockSession();
+        Basic remote = session.getBasicRemote();
+        LinkedList<WebsockQuery> responses = session.getResponses();
+
+        StringTransferUtil stUtil = new StringTransferUtil(remote,
+            new NopMessageHandler());
+
+        BinaryTransferUtil btUtil = new BinaryTransferUtil(remote,
+            new NopMessageHandler(), true);
+
+        TransferUtil util = new TransferUtil(stUtil, btUtil);
+        handler.addTransferUtil(util);
+
+        LazyResultFuture future = new LazyResultFuture();
+        handler.sendQuery(new WebsockQuery(EQueryType.DIRECT_CYPHER), future);
+
+        //receiving the response does not convert it
+        handler.handleMessage(responses.pop());
+        Assert.assertTrue(future.isDone());
+        Assert.assertFalse(future.isConverted());
+
+        AResultSet<?> result = future.get();
+        Assert.assertNotNull(result);
+        Assert.assertTrue(future.isConverted());
+        Assert.assertSame(result, future.get());
+
+        //errors are passed on as usual
+        future = new LazyResultFuture();
+        handler.sendQuery(new WebsockQuery(EQueryType.DIRECT_CYPHER), future);
+
+        WebsockQuery error = new WebsockQuery(responses.pop().getId(),
+            EQueryType.ERROR);
+        error.setPayload("failed");
+        handler.handleMessage(error);
+        Assert.assertEquals("failed", future.getErrorMessage());
+        Assert.assertFalse(future.isConverted());
+    }
+
+    /**
+     * Tests that cached procedure results are used until the procedure is
+     * stored again.
+     */
+    @Test
+    public void resultCacheTest() throws Exception
+    {
+        BasicQueryHandler handler = new BasicQueryHandler();
+
+        FakeWebsockSession session = new FakeWebsockSession();
+        Basic remote = session.getBasicRemote();
+        LinkedList<WebsockQuery> responses = session.getResponses();
+
+        StringTransferUtil stUtil = new StringTransferUtil(remote,
+            new NopMessageHandler());
+
+        BinaryTransferUtil btUtil = new BinaryTransferUtil(remote,
+            new NopMessageHandler(), true);
+
+        TransferUtil util = new TransferUtil(stUtil, btUtil);
+        handler.addTransferUtil(util);
+
+        LruResultCache cache = new LruResultCache();
+        cache.setTtl("proc", 60000);
+        handler.setResultCache(cache);
+
+        //first call is sent
+        IQueryCallback future = handler.sendQuery(TestQueries.createCall("proc", 1));
+        handler.handleMessage(responses.pop());
+        AResultSet<?> result = future.get();
+        Assert.assertNotNull(result);
+
+        //second call is answered from the cache
+        future = handler.sendQuery(TestQueries.createCall("proc", 1));
+        Assert.assertTrue(responses.isEmpty());
+        Assert.assertSame(result, future.get());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+
+        //storing the procedure again invalidates its results
+        WebsockQuery store = new WebsockQuery(EQueryType.STORE_PROCEDURE);
+        store.setParameter(WebsockConstants.PROCEDURE_NAME, "proc");
+        handler.sendMessage(store);
+        handler.handleMessage(responses.pop());
+        Assert.assertEquals(0, cache.size());
+
+        future = handler.sendQuery(TestQueries.createCall("proc", 1));
+        Assert.assertEquals(1, responses.size());
+        handler.handleMessage(responses.pop());
+        Assert.assertNotSame(result, future.get());
+    }
+
+    /**
+     * Tests that the result of a call still in flight when its procedure is
+     * stored again is not cached.
+     */
+    @Test
+    public void staleResultTest() throws Exception
+    {
+        BasicQueryHandler handler = new BasicQueryHandler();
+
+        FakeWebsockSession session = new FakeWebsockSession();
+        Basic remote = session.getBasicRemote();
+        LinkedList<WebsockQuery> responses = session.getResponses();
+
+        StringTransferUtil stUtil = new StringTransferUtil(remote,
+            new NopMessageHandler());
+
+        BinaryTransferUtil btUtil = new BinaryTransferUtil(remote,
+            new NopMessageHandler(), true);
+
+        TransferUtil util = new TransferUtil(stUtil, btUtil);
+        handler.addTransferUtil(util);
+
+        LruResultCache cache = new LruResultCache();
+        cache.setTtl("proc", 60000);
+        handler.setResultCache(cache);
+
+        //call to the old procedure is still in flight
+        IQueryCallback future = handler.sendQuery(TestQueries.createCall("proc", 1));
+        WebsockQuery oldResponse = responses.pop();
+
+        WebsockQuery store = new WebsockQuery(EQueryType.STORE_PROCEDURE);
+        store.setParameter(WebsockConstants.PROCEDURE_NAME, "proc");
+        handler.sendMessage(store);
+        handler.handleMessage(responses.pop());
+
+        //its result is delivered, but not cached
+        handler.handleMessage(oldResponse);
+        Assert.assertNotNull(future.get());
+        Assert.assertEquals(0, cache.size());
+
+        //calls sent afterwards are cached again
+        future = handler.sendQuery(TestQueries.createCall("proc", 1));
+        Assert.assertEquals(1, responses.size());
+        handler.handleMessage(responses.pop());
+        Assert.assertNotNull(future.get());
+        Assert.assertEquals(1, cache.size());
+    }
+
+    /**
+     * Tests that frequent statements are stored as procedures, sent as
+     * calls afterwards and stored again for new connections.
+     */
+    @Test
+    public void promotionTest() throws Exception
+    {
+        BasicQueryHandler handler = new BasicQueryHandler();
+
+        FakeWebsockSession session = new FakeWebsockSession();
+        Basic remote = session.getBasicRemote();
+        LinkedList<WebsockQuery> responses = session.getResponses();
+
+        StringTransferUtil stUtil = new StringTransferUtil(remote,
+            new NopMessageHandler());
+
+        BinaryTransferUtil btUtil = new BinaryTransferUtil(remote,
+            new NopMessageHandler(), true);
+
+        final LinkedList<WebsockQuery> sent = new LinkedList<WebsockQuery>();
+        TransferUtil util = new TransferUtil(stUtil, btUtil)
+        {
+            @Override
+            public void sendMessage(WebsockQuery query) throws Exception
+            {
+                sent.add(query);
+                super.sendMessage(query);
+            }
+        };
+        handler.addTransferUtil(util);
+
+        StatementPromoter promoter = new StatementPromoter(2, 10, "auto_");
+        handler.setStatementPromoter(promoter);
+
+        //second statement triggers storing the procedure
+        for(int i = 0; i < 2; ++i)
+        {
+            WebsockQuery query = new WebsockQuery(EQueryType.DIRECT_CYPHER);
+            query.setPayload("MATCH (n) RETURN n");
+            handler.sendQuery(query);
+            Assert.assertEquals(EQueryType.DIRECT_CYPHER, query.getType());
+        }
+        Assert.assertEquals(3, responses.size());
+        Assert.assertNull(promoter.getProcedure("MATCH (n) RETURN n"));
+
+        while(!responses.isEmpty())
+        {
+            handler.handleMessage(responses.pop());
+        }
+        Assert.assertEquals("auto_1",
+            promoter.getProcedure("MATCH (n) RETURN n"));
+
+        //following statements are sent as calls
+        WebsockQuery query = new WebsockQuery(EQueryType.DIRECT_CYPHER);
+        query.setPayload("MATCH (n) RETURN n");
+        query.setParameter("param", 1);
+        IQueryCallback future = handler.sendQuery(query);
+
+        Assert.assertEquals(EQueryType.PROCEDURE_CALL,
+            sent.getLast().getType());
+        Assert.assertEquals("auto_1",
+            sent.getLast().getParameter(WebsockConstants.PROCEDURE_NAME));
+        Assert.assertEquals(1, sent.getLast().getParameter("param"));
+        Assert.assertNull(sent.getLast().getPayload());
+
+        //the caller's query is left as it is
+        Assert.assertEquals(EQueryType.DIRECT_CYPHER, query.getType());
+        Assert.assertEquals("MATCH (n) RETURN n", query.getPayload());
+        Assert.assertNull(query.getParameter(WebsockConstants.PROCEDURE_NAME));
+        handler.handleMessage(responses.pop());
+        Assert.assertNotNull(future.get());
+
+        //calls are cancelled through the caller's query
+        query = new WebsockQuery(EQueryType.DIRECT_CYPHER);
+        query.setPayload("MATCH (n) RETURN n");
+        future = handler.sendQuery(query);
+        Assert.assertEquals(sent.getLast().getId(), query.getId());
+
+        handler.cancel(query.getId());
+        Assert.assertTrue(future.isCancelled());
+        Assert.assertFalse(handler.handleMessage(responses.pop()));
+
+        //procedure is stored again on new connections
+        FakeWebsockSession newSession = new FakeWebsockSession();
+        Basic newRemote = newSession.getBasicRemote();
+        handler.addTransferUtil(new TransferUtil(
+            new StringTransferUtil(newRemote, new NopMessageHandler()),
+            new BinaryTransferUtil(newRemote, new NopMessageHandler(), true)));
+        Assert.assertEquals(1, newSession.getResponses().size());
+    }
+
+    /**
+     * Tests that procedures the server refuses to store are deleted and not
+     * stored again for new connections.
+     */
+    @Test
+    public void rejectedPromotionTest() throws Exception
+    {
+        BasicQueryHandler handler = new BasicQueryHandler();
+
+        FakeWebsockSession session = new FakeWebsockSession();
+        Basic remote = session.getBasicRemote();
+        LinkedList<WebsockQuery> responses = session.getResponses();
+
+        final LinkedList<WebsockQuery> sent = new LinkedList<WebsockQuery>();
+        TransferUtil util = new TransferUtil(
+            new StringTransferUtil(remote, new NopMessageHandler()),
+            new BinaryTransferUtil(remote, new NopMessageHandler(), true))
+        {
+            @Override
+            public void sendMessage(WebsockQuery query) throws Exception
+            {
+                sent.add(query);
+                super.sendMessage(query);
+            }
+        };
+        handler.addTransferUtil(util);
+
+        StatementPromoter promoter = new StatementPromoter(1, 10, "auto_");
+        handler.setStatementPromoter(promoter);
+
+        WebsockQuery query = new WebsockQuery(EQueryType.DIRECT_CYPHER);
+        query.setPayload("MATCH (n) RETURN n");
+        handler.sendQuery(query);
+        Assert.assertEquals(2, responses.size());
+        Assert.assertEquals(EQueryType.STORE_PROCEDURE,
+            sent.getFirst().getType());
+
+        //server rejects the procedure
+        WebsockQuery error = new WebsockQuery(responses.pop().getId(),
+            EQueryType.ERROR);
+        error.setPayload("rejected");
+        handler.handleMessage(error);
+        Assert.assertNull(promoter.getProcedure("MATCH (n) RETURN n"));
+
+        Assert.assertEquals(EQueryType.DELETE_PROCEDURE,
+            sent.getLast().getType());
+        Assert.assertEquals("auto_1", sent.getLast().getPayload());
+
+        //procedure is not stored for new connections
+        FakeWebsockSession newSession = new FakeWebsockSession();
+        Basic newRemote = newSession.getBasicRemote();
+        handler.addTransferUtil(new TransferUtil(
+            new StringTransferUtil(newRemote, new NopMessageHandler()),
+            new BinaryTransferUtil(newRemote, new NopMessageHandler(), true)));
+        Assert.assertEquals(0, newSession.getResponses().size());
+    }
+
+    /**
+     * Tests that queries with their own options use their own timeout and
+     * retry budget instead of the handler's.
+     */
+    @Test
+    public void requestOptionsTest() throws Exception
+    {
+        BasicQueryHandler handler = new BasicQueryHandler();
+
+        FakeWebsockSession session = new FakeWebsockSession();
+        Basic remote = session.getBasicRemote();
+        LinkedList<WebsockQuery> responses = session.getResponses();
+
+        StringTransferUtil stUtil = new StringTransferUtil(remote,
+            new NopMessageHandler());
+
+        BinaryTransferUtil btUtil = new BinaryTransferUtil(remote,
+            new NopMessageHandler(), true);
+
+        TransferUtil util = new TransferUtil(stUtil, btUtil);
+        handler.addTransferUtil(util);
+
+        handler.setTimeout(60000);
+        handler.setTimerInterval(TIMER_MS);
+        handler.setRetryCount(0);
+        new Thread(handler).start();
+
+        //fast query with one retry, slow query without a timeout
+        ResultFuture fast = new ResultFuture();
+        handler.sendQuery(new WebsockQuery(EQueryType.DIRECT_CYPHER), fast,
+            new RequestOptions(TIMEOUT_MS, 1));
+        ResultFuture slow = new ResultFuture();
+        handler.sendQuery(new WebsockQuery(EQueryType.DIRECT_CYPHER), slow,
+            new RequestOptions(0, 0));
+        ResultFuture normal = new ResultFuture();
+        handler.sendQuery(new WebsockQuery(EQueryType.DIRECT_CYPHER), normal);
+        Assert.assertEquals(3, responses.size());
+
+        //fast query is retried once, then fails
+        Thread.sleep(2 * (TIMEOUT_MS + TIMER_MS) + TIMEOUT_MS / 2);
+        Assert.assertEquals(4, responses.size());
+        Assert.assertEquals("timeout error", fast.getErrorMessage());
+
+        //others are still pending
+        Assert.assertFalse(slow.isDone());
+        Assert.assertFalse(normal.isDone());
+
+        handler.deactivate();
+    }
+
+    /**
+     * Tests that requests are failed right away when the connection is lost,
+     * except for idempotent ones, which are resent over the next connection.
+     */
+    @Test
+    public void connectionLostTest() throws Exception
+    {
+        BasicQueryHandler handler = new BasicQueryHandler();
+
+        List<LinkedList<WebsockQuery>> responses =
+            new ArrayList<LinkedList<WebsockQuery>>();
+        List<TransferUtil> utils = new ArrayList<TransferUtil>();
+        for(int i = 0; i < 2; ++i)
+        {
+            FakeWebsockSession session = new FakeWebsockSession();
+            Basic remote = session.getBasicRemote();
+            responses.add(session.getResponses());
+
+            StringTransferUtil stUtil = new StringTransferUtil(remote,
+                new NopMessageHandler());
+            BinaryTransferUtil btUtil = new BinaryTransferUtil(remote,
+                new NopMessageHandler(), true);
+            utils.add(new TransferUtil(stUtil, btUtil));
+        }
+        handler.addTransferUtil(utils.get(0));
+
+        ResultFuture idempotent = new ResultFuture();
+        handler.sendQuery(new WebsockQuery(EQueryType.DIRECT_CYPHER),
+            idempotent, new RequestOptions(0, 0, true));
+        ResultFuture other = new ResultFuture();
+        handler.sendQuery(new WebsockQuery(EQueryType.DIRECT_CYPHER), other);
+        Assert.assertEquals(2, responses.get(0).size());
+
+        //connection drops, without waiting for the timeout
+        handler.removeTransferUtil(utils.get(0));
+        Assert.assertEquals("connection lost", other.getErrorMessage());
+        Assert.assertFalse(idempotent.isDone());
+
+        //resent after reconnecting
+        handler.addTransferUtil(utils.get(1));
+        Assert.assertEquals(1, responses.get(1).size());
+        Assert.assertEquals(responses.get(0).getFirst().getId(),
+            responses.get(1).getFirst().getId());
+        Assert.assertFalse(idempotent.isDone());
+
+        handler.deactivate();
+    }
+
+    /**
+     * Tests that idempotent requests, including ones waiting for a retry,
+     * fail once their deadlines pass without a new connection.
+     */
+    @Test
+    public void orphanTimeoutTest() throws Exception
+    {
+        BasicQueryHandler handler = new BasicQueryHandler();
+
+        FakeWebsockSession session = new FakeWebsockSession();
+        Basic remote = session.getBasicRemote();
+        LinkedList<WebsockQuery> responses = session.getResponses();
+
+        StringTransferUtil stUtil = new StringTransferUtil(remote,
+            new NopMessageHandler());
+        BinaryTransferUtil btUtil = new BinaryTransferUtil(remote,
+            new NopMessageHandler(), true);
+        TransferUtil util = new TransferUtil(stUtil, btUtil);
+        handler.addTransferUtil(util);
+
+        handler.setTimerInterval(TIMER_MS);
+        handler.setRetryPolicy(new ExponentialBackoffPolicy(TIMEOUT_MS,
+            TIMEOUT_MS, 0, false));
+        new Thread(handler).start();
+
+        //first request times out and waits for its retry
+        ResultFuture waiting = new ResultFuture();
+        handler.sendQuery(new WebsockQuery(EQueryType.DIRECT_CYPHER),
+            waiting, new RequestOptions(TIMEOUT_MS, 1, true));
+        Thread.sleep(TIMEOUT_MS + 4 * TIMER_MS);
+
+        ResultFuture sent = new ResultFuture();
+        handler.sendQuery(new WebsockQuery(EQueryType.DIRECT_CYPHER),
+            sent, new RequestOptions(TIMEOUT_MS, 1, true));
+        Assert.assertEquals(2, responses.size());
+
+        //connection drops and never comes back
+        handler.removeTransferUtil(util);
+        Assert.assertFalse(waiting.isDone());
+        Assert.assertFalse(sent.isDone());
+
+        //both fail at their deadlines instead of waiting forever
+        for(ResultFuture future : new ResultFuture[] {waiting, sent})
+        {
+            boolean fail = false;
+            try
+            {
+                future.get(10 * TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+            catch(ExecutionException e)
+            {
+                fail = true;
+            }
+            Assert.assertTrue(fail);
+            Assert.assertEquals("connection lost", future.getErrorMessage());
+        }
+
+        handler.deactivate();
+    }
+
+    /**
+     * Tests that idempotent requests resent over a new connection keep the
+     * deadline they had when their connection was lost.
+     */
+    @Test
+    public void orphanDeadlineTest() throws Exception
+    {
+        BasicQueryHandler handler = new BasicQueryHandler();
+
+        List<LinkedList<WebsockQuery>> responses =
+            new ArrayList<LinkedList<WebsockQuery>>();
+        List<TransferUtil> utils = new ArrayList<TransferUtil>();
+        for(int i = 0; i < 2; ++i)
+        {
+            FakeWebsockSession session = new FakeWebsockSession();
+            Basic remote = session.getBasicRemote();
+            responses.add(session.getResponses());
+
+            StringTransferUtil stUtil = new StringTransferUtil(remote,
+                new NopMessageHandler());
+            BinaryTransferUtil btUtil = new BinaryTransferUtil(remote,
+                new NopMessageHandler(), true);
+            utils.add(new TransferUtil(stUtil, btUtil));
+        }
+        handler.addTransferUtil(utils.get(0));
+
+        handler.setTimerInterval(TIMER_MS);
+        new Thread(handler).start();
+
+        ResultFuture future = new ResultFuture();
+        handler.sendQuery(new WebsockQuery(EQueryType.DIRECT_CYPHER),
+            future, new RequestOptions(TIMEOUT_MS, 0, true));
+        final long sent = System.currentTimeMillis();
+
+        //resent after reconnecting
+        handler.removeTransferUtil(utils.get(0));
+        Thread.sleep(3 * TIMEOUT_MS / 4);
+        handler.addTransferUtil(utils.get(1));
+        Assert.assertEquals(1, responses.get(1).size());
+
+        //times out at the original deadline, without a retry
+        boolean fail = false;
+        try
+        {
+            future.get(10 * TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        catch(ExecutionException e)
+        {
+            fail = true;
+        }
+        Assert.assertTrue(fail);
+        Assert.assertEquals("timeout error", future.getErrorMessage());
+        Assert.assertTrue(System.currentTimeMillis() - sent
+            < TIMEOUT_MS + TIMEOUT_MS / 2 + TIMER_MS);
+        Assert.assertEquals(1, responses.get(1).size());
+
+        handler.deactivate();
+    }
+
+    /**
+     * Tests that timeouts are handled when running on a shared scheduler and
+     * that deactivating the handler stops its task.
+     */
+    @Test
+    public void schedulerTest() throws Exception
+    {
+        BasicQueryHandler handler = new BasicQueryHandler();
+
+        FakeWebsockSession session = new FakeWebsockSession();
+        Basic remote = session.getBasicRemote();
+
+        StringTransferUtil stUtil = new StringTransferUtil(remote,
+            new NopMessageHandler());
+
+        BinaryTransferUtil btUtil = new BinaryTransferUtil(remote,
+            new NopMessageHandler(), true);
+
+        TransferUtil util = new TransferUtil(stUtil, btUtil);
+        handler.addTransferUtil(util);
+
+        handler.setTimeout(TIMEOUT_MS);
+        handler.setTimerInterval(TIMER_MS);
+        handler.setRetryCount(0);
+
+        ScheduledThreadPoolExecutor scheduler =
+            new ScheduledThreadPoolExecutor(1);
+        scheduler.setRemoveOnCancelPolicy(true);
+        handler.start(scheduler);
+        Assert.assertEquals(1, scheduler.getQueue().size());
+
+        IQueryCallback future = handler.sendQuery(new WebsockQuery(
+            EQueryType.DIRECT_CYPHER));
+
+        boolean fail = false;
+        try
+        {
+            future.get(10 * TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        catch(ExecutionException e)
+        {
+            fail = true;
+        }
+        Assert.assertTrue(fail);
+        Assert.assertEquals("timeout error", future.getErrorMessage());
+
+        handler.deactivate();
+        Assert.assertEquals(0, scheduler.getQueue().size());
+        scheduler.shutdown();
+    }
+
     /**
      * Tests the timeout mechanism of the query handler.
      */
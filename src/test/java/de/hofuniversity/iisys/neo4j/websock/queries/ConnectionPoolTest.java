@@ -0,0 +1,191 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.websocket.RemoteEndpoint.Basic;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.hofuniversity.iisys.neo4j.websock.query.encoding.BinaryTransferUtil;
+import de.hofuniversity.iisys.neo4j.websock.query.encoding.StringTransferUtil;
+import de.hofuniversity.iisys.neo4j.websock.query.encoding.TransferUtil;
+
+/**
+ * Test for the copy-on-write connection pool.
+ */
+public class ConnectionPoolTest
+{
+    private static final int CONNECTIONS = 8;
+    private static final int READERS = 4;
+    private static final long DURATION_MS = 500;
+
+    private List<TransferUtil> createUtils()
+    {
+        final List<TransferUtil> utils = new ArrayList<TransferUtil>();
+
+        for(int i = 0; i < CONNECTIONS; ++i)
+        {
+            Basic remote = new FakeWebsockSession().getBasicRemote();
+
+            utils.add(new TransferUtil(
+                new StringTransferUtil(remote, new NopMessageHandler()),
+                new BinaryTransferUtil(remote, new NopMessageHandler(),
+                    true)));
+        }
+
+        return utils;
+    }
+
+    /**
+     * Tests that snapshots are not affected by later modifications.
+     */
+    @Test
+    public void snapshotTest()
+    {
+        final List<TransferUtil> utils = createUtils();
+        final ConnectionPool pool = new ConnectionPool();
+        Assert.assertTrue(pool.isEmpty());
+
+        for(TransferUtil util : utils)
+        {
+            pool.add(new PooledConnection(util));
+        }
+        final List<PooledConnection> before = pool.snapshot();
+
+        Assert.assertNotNull(pool.remove(utils.get(3)));
+        Assert.assertNull(pool.remove(utils.get(3)));
+
+        Assert.assertEquals(CONNECTIONS, before.size());
+        Assert.assertEquals(CONNECTIONS - 1, pool.size());
+        Assert.assertSame(utils.get(4),
+            pool.snapshot().get(3).getTransferUtil());
+
+        try
+        {
+            before.remove(0);
+            Assert.fail("snapshot was modifiable");
+        }
+        catch(UnsupportedOperationException e)
+        {
+            //expected
+        }
+
+        pool.clear();
+        Assert.assertTrue(pool.isEmpty());
+        Assert.assertEquals(CONNECTIONS, before.size());
+    }
+
+    /**
+     * Tests that readers iterating and indexing snapshots are not disturbed
+     * by connections being added and removed concurrently.
+     */
+    @Test
+    public void concurrencyTest() throws Exception
+    {
+        final List<TransferUtil> utils = createUtils();
+        final ConnectionPool pool = new ConnectionPool();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<Throwable> error =
+            new AtomicReference<Throwable>();
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        for(int i = 0; i < READERS; ++i)
+        {
+            threads.add(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    final IRoutingStrategy routing = new LeastLoadedStrategy();
+
+                    try
+                    {
+                        while(running.get())
+                        {
+                            final List<PooledConnection> conns =
+                                pool.snapshot();
+
+                            for(PooledConnection conn : conns)
+                            {
+                                Assert.assertNotNull(conn);
+                            }
+
+                            if(!conns.isEmpty())
+                            {
+                                Assert.assertNotNull(routing.select(conns));
+                            }
+                        }
+                    }
+                    catch(Throwable t)
+                    {
+                        error.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+
+        //two writers churning the pool
+        for(int i = 0; i < 2; ++i)
+        {
+            final int offset = i * CONNECTIONS / 2;
+            threads.add(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    while(running.get())
+                    {
+                        for(int j = 0; j < CONNECTIONS / 2; ++j)
+                        {
+                            pool.add(new PooledConnection(
+                                utils.get(offset + j)));
+                        }
+                        for(int j = 0; j < CONNECTIONS / 2; ++j)
+                        {
+                            pool.remove(utils.get(offset + j));
+                        }
+                    }
+                }
+            });
+        }
+
+        for(Thread thread : threads)
+        {
+            thread.start();
+        }
+        Thread.sleep(DURATION_MS);
+        running.set(false);
+        for(Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        if(error.get() != null)
+        {
+            throw new AssertionError(error.get());
+        }
+
+        //every added connection was removed again
+        Assert.assertTrue(pool.isEmpty());
+    }
+}
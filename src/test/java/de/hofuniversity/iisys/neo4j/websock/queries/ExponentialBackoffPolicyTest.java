@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test for the exponential backoff retry policy.
+ */
+public class ExponentialBackoffPolicyTest
+{
+    /**
+     * Tests that delays double up to the maximum without jitter.
+     */
+    @Test
+    public void backoffTest()
+    {
+        final IRetryPolicy policy = new ExponentialBackoffPolicy(50, 300, 0.0,
+            false);
+
+        Assert.assertEquals(50, policy.getDelay(1));
+        Assert.assertEquals(100, policy.getDelay(2));
+        Assert.assertEquals(200, policy.getDelay(3));
+        Assert.assertEquals(300, policy.getDelay(4));
+        Assert.assertEquals(300, policy.getDelay(100));
+        Assert.assertFalse(policy.isExcludingFailed());
+    }
+
+    /**
+     * Tests that jitter only shortens delays by up to the given share.
+     */
+    @Test
+    public void jitterTest()
+    {
+        final IRetryPolicy policy = new ExponentialBackoffPolicy(100, 1000,
+            0.5, true);
+
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for(int i = 0; i < 1000; ++i)
+        {
+            final long delay = policy.getDelay(2);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+
+        Assert.assertTrue(min >= 100);
+        Assert.assertTrue(max <= 200);
+        Assert.assertTrue(min < max);
+        Assert.assertTrue(policy.isExcludingFailed());
+    }
+}
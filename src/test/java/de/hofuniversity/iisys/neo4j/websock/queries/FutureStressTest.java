@@ -0,0 +1,185 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+import de.hofuniversity.iisys.neo4j.websock.result.AResultSet;
+import de.hofuniversity.iisys.neo4j.websock.result.SingleResult;
+
+/**
+ * Stress test completing futures concurrently with a large number of get()
+ * calls, making sure no completion is lost and no caller hangs.
+ */
+public class FutureStressTest
+{
+    private static final int FUTURES = 250000;
+    private static final int READERS = 4;
+    private static final long MAX_WAIT_S = 30;
+
+    /**
+     * Completes result futures while several threads retrieve their results.
+     */
+    @Test
+    public void resultFutureTest() throws Exception
+    {
+        final AResultSet<?> set =
+            new SingleResult(new HashMap<String, Object>());
+
+        final ResultFuture[] futures = new ResultFuture[FUTURES];
+        for(int i = 0; i < FUTURES; ++i)
+        {
+            futures[i] = new ResultFuture();
+        }
+
+        final AtomicLong gets = new AtomicLong();
+        final AtomicInteger failures = new AtomicInteger();
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        for(int r = 0; r < READERS; ++r)
+        {
+            threads.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for(ResultFuture future : futures)
+                    {
+                        try
+                        {
+                            if(future.get(MAX_WAIT_S, TimeUnit.SECONDS)
+                                != set)
+                            {
+                                failures.incrementAndGet();
+                            }
+                            gets.incrementAndGet();
+                        }
+                        catch(Exception e)
+                        {
+                            failures.incrementAndGet();
+                            return;
+                        }
+                    }
+                }
+            }));
+        }
+
+        //alternate completion between results, errors and cancellations
+        threads.add(new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for(ResultFuture future : futures)
+                {
+                    future.setResult(set);
+                    future.setErrorMessage("ignored");
+                    future.cancel(true);
+                }
+            }
+        }));
+
+        for(Thread t : threads)
+        {
+            t.start();
+        }
+        for(Thread t : threads)
+        {
+            t.join();
+        }
+
+        Assert.assertEquals(0, failures.get());
+        Assert.assertEquals((long) FUTURES * READERS, gets.get());
+    }
+
+    /**
+     * Completes message futures while several threads retrieve responses
+     * without a timeout, which previously could block forever.
+     */
+    @Test(timeout = 60000)
+    public void messageFutureTest() throws Exception
+    {
+        final MessageFuture[] futures = new MessageFuture[FUTURES];
+        final WebsockQuery[] responses = new WebsockQuery[FUTURES];
+        for(int i = 0; i < FUTURES; ++i)
+        {
+            futures[i] = new MessageFuture();
+            responses[i] = new WebsockQuery(i, EQueryType.PONG);
+        }
+
+        final AtomicInteger failures = new AtomicInteger();
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        for(int r = 0; r < READERS; ++r)
+        {
+            threads.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for(int i = 0; i < FUTURES; ++i)
+                    {
+                        try
+                        {
+                            if(futures[i].get() != responses[i])
+                            {
+                                failures.incrementAndGet();
+                            }
+                        }
+                        catch(Exception e)
+                        {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            }));
+        }
+
+        threads.add(new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for(int i = 0; i < FUTURES; ++i)
+                {
+                    futures[i].setResponse(responses[i]);
+                }
+            }
+        }));
+
+        for(Thread t : threads)
+        {
+            t.start();
+        }
+        for(Thread t : threads)
+        {
+            t.join();
+        }
+
+        Assert.assertEquals(0, failures.get());
+    }
+}
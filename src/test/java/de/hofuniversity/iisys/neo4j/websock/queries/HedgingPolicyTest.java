@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+import de.hofuniversity.iisys.neo4j.websock.session.WebsockConstants;
+
+/**
+ * Test for the hedging policy's budget and delays.
+ */
+public class HedgingPolicyTest
+{
+    /**
+     * Tests that hedges are limited to the configured share of calls.
+     */
+    @Test
+    public void budgetTest()
+    {
+        final HedgingPolicy policy = new HedgingPolicy(10, 0.0, 0.25);
+        policy.addProcedure("proc");
+
+        WebsockQuery query = new WebsockQuery(EQueryType.PROCEDURE_CALL);
+        query.setParameter(WebsockConstants.PROCEDURE_NAME, "proc");
+        Assert.assertEquals("proc", policy.getProcedure(query));
+        query.setParameter(WebsockConstants.PROCEDURE_NAME, "other");
+        Assert.assertNull(policy.getProcedure(query));
+
+        int hedges = 0;
+        for(int i = 0; i < 100; ++i)
+        {
+            Assert.assertEquals(10, policy.callSent("proc"));
+
+            if(policy.tryHedge())
+            {
+                ++hedges;
+            }
+        }
+        Assert.assertEquals(25, hedges);
+        Assert.assertEquals(25, policy.getHedges());
+    }
+
+    /**
+     * Tests that the delay follows the observed latency percentile once
+     * there are enough samples.
+     */
+    @Test
+    public void percentileTest()
+    {
+        final HedgingPolicy policy = new HedgingPolicy(10, 0.95, 0.05);
+        policy.addProcedure("proc");
+
+        Assert.assertEquals(10, policy.callSent("proc"));
+
+        //fill the window of recent latencies
+        for(int i = 1; i <= 128; ++i)
+        {
+            policy.recordLatency("proc", i * 1000000L);
+        }
+        Assert.assertEquals(122, policy.callSent("proc"));
+
+        //old samples are replaced by new ones
+        for(int i = 0; i < 128; ++i)
+        {
+            policy.recordLatency("proc", 1000000L);
+        }
+        Assert.assertEquals(1, policy.callSent("proc"));
+
+        //other procedures are not tracked
+        policy.recordLatency("other", 1000000000L);
+        Assert.assertEquals(10, policy.callSent("other"));
+    }
+}
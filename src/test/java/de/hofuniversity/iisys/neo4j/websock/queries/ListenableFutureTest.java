@@ -0,0 +1,314 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+import de.hofuniversity.iisys.neo4j.websock.result.AResultSet;
+import de.hofuniversity.iisys.neo4j.websock.result.SingleResult;
+
+/**
+ * Test for the non-blocking future implementation and its continuations.
+ */
+public class ListenableFutureTest
+{
+    private static final String ERROR_MESSAGE = "error occurred";
+
+    /**
+     * Tests that repeatedly polling a future with timeouts does not register
+     * additional listeners and waiters are still released on completion.
+     */
+    @Test
+    public void timedPollingTest() throws Exception
+    {
+        final ResultFuture future = new ResultFuture();
+
+        for(int i = 0; i < 100; ++i)
+        {
+            try
+            {
+                future.get(1, TimeUnit.MILLISECONDS);
+                Assert.fail("future should not be done");
+            }
+            catch(TimeoutException e)
+            {
+                //expected
+            }
+        }
+
+        //only the shared waiter is registered
+        final Field state = ListenableFuture.class.getDeclaredField("fState");
+        state.setAccessible(true);
+        Object node = ((AtomicReference<?>) state.get(future)).get();
+        final Field next = node.getClass().getDeclaredField("fNext");
+        next.setAccessible(true);
+
+        int listeners = 0;
+        while(node != null)
+        {
+            ++listeners;
+            node = next.get(node);
+        }
+        Assert.assertEquals(1, listeners);
+
+        final AResultSet<?> set =
+            new SingleResult(new HashMap<String, Object>());
+        future.setResult(set);
+        Assert.assertEquals(set, future.get(1, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Tests that listeners are notified in order, including listeners added
+     * after completion.
+     */
+    @Test
+    public void listenerTest() throws Exception
+    {
+        final ResultFuture future = new ResultFuture();
+        final List<Object> calls = new ArrayList<Object>();
+
+        final AResultSet<?> set =
+            new SingleResult(new HashMap<String, Object>());
+
+        future.whenComplete(new IFutureListener<AResultSet<?>>()
+        {
+            @Override
+            public void onComplete(AResultSet<?> result, String errorMessage,
+                boolean cancelled)
+            {
+                calls.add(1);
+                calls.add(result);
+            }
+        });
+        future.whenComplete(new IFutureListener<AResultSet<?>>()
+        {
+            @Override
+            public void onComplete(AResultSet<?> result, String errorMessage,
+                boolean cancelled)
+            {
+                calls.add(2);
+            }
+        });
+
+        Assert.assertTrue(calls.isEmpty());
+        future.setResult(set);
+
+        //second completion is ignored
+        future.setErrorMessage(ERROR_MESSAGE);
+        Assert.assertNull(future.getErrorMessage());
+
+        future.whenComplete(new IFutureListener<AResultSet<?>>()
+        {
+            @Override
+            public void onComplete(AResultSet<?> result, String errorMessage,
+                boolean cancelled)
+            {
+                calls.add(3);
+            }
+        });
+
+        Assert.assertEquals(4, calls.size());
+        Assert.assertEquals(1, calls.get(0));
+        Assert.assertSame(set, calls.get(1));
+        Assert.assertEquals(2, calls.get(2));
+        Assert.assertEquals(3, calls.get(3));
+        Assert.assertSame(set, future.get());
+    }
+
+    /**
+     * Tests chained continuations and the propagation of errors through
+     * them.
+     */
+    @Test
+    public void continuationTest() throws Exception
+    {
+        final ListenableFuture<Integer> source =
+            new ListenableFuture<Integer>();
+        final AtomicReference<String> consumed = new AtomicReference<String>();
+
+        ListenableFuture<Void> chain = source.thenApply(
+            new IFunction<Integer, String>()
+            {
+                @Override
+                public String apply(Integer value)
+                {
+                    return "value " + (value + 1);
+                }
+            }).thenAccept(new IConsumer<String>()
+            {
+                @Override
+                public void accept(String value)
+                {
+                    consumed.set(value);
+                }
+            });
+
+        Assert.assertFalse(chain.isDone());
+        source.complete(41);
+        Assert.assertTrue(chain.isDone());
+        Assert.assertEquals("value 42", consumed.get());
+
+        //errors skip functions
+        final ListenableFuture<Integer> failing =
+            new ListenableFuture<Integer>();
+        ListenableFuture<String> derived = failing.thenApply(
+            new IFunction<Integer, String>()
+            {
+                @Override
+                public String apply(Integer value)
+                {
+                    Assert.fail();
+                    return null;
+                }
+            });
+
+        failing.setErrorMessage(ERROR_MESSAGE);
+        Assert.assertEquals(ERROR_MESSAGE, derived.getErrorMessage());
+
+        boolean error = false;
+        try
+        {
+            derived.get();
+        }
+        catch(Exception e)
+        {
+            error = true;
+        }
+        Assert.assertTrue(error);
+
+        //cancellation is passed on
+        final ListenableFuture<Integer> cancelled =
+            new ListenableFuture<Integer>();
+        derived = cancelled.thenApply(new IFunction<Integer, String>()
+        {
+            @Override
+            public String apply(Integer value)
+            {
+                return null;
+            }
+        });
+        cancelled.cancel(true);
+        Assert.assertTrue(derived.isCancelled());
+    }
+
+    /**
+     * Tests running listeners on a configured executor and blocking
+     * retrieval with a timeout.
+     */
+    @Test
+    public void executorTest() throws Exception
+    {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final AtomicReference<Thread> listenerThread =
+            new AtomicReference<Thread>();
+
+        final MessageFuture future = new MessageFuture(executor);
+        ListenableFuture<Void> done = future.thenAccept(
+            new IConsumer<Object>()
+            {
+                @Override
+                public void accept(Object value)
+                {
+                    listenerThread.set(Thread.currentThread());
+                }
+            });
+
+        boolean timedOut = false;
+        try
+        {
+            future.get(50, TimeUnit.MILLISECONDS);
+        }
+        catch(Exception e)
+        {
+            timedOut = true;
+        }
+        Assert.assertTrue(timedOut);
+
+        future.setResponse(null);
+        done.get(5, TimeUnit.SECONDS);
+
+        Assert.assertNotNull(listenerThread.get());
+        Assert.assertNotSame(Thread.currentThread(), listenerThread.get());
+
+        executor.shutdown();
+    }
+
+    /**
+     * Tests that listeners rejected by their executor are run on the
+     * completing thread and blocked waiters are still released.
+     */
+    @Test
+    public void rejectedExecutorTest() throws Exception
+    {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+
+        final MessageFuture future = new MessageFuture(executor);
+        final AtomicReference<Thread> listenerThread =
+            new AtomicReference<Thread>();
+        future.whenComplete(new IFutureListener<WebsockQuery>()
+        {
+            @Override
+            public void onComplete(WebsockQuery result, String errorMessage,
+                boolean cancelled)
+            {
+                listenerThread.set(Thread.currentThread());
+            }
+        });
+
+        //thread blocked waiting for the response
+        final AtomicReference<Boolean> released =
+            new AtomicReference<Boolean>(false);
+        Thread waiter = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    future.get();
+                    released.set(true);
+                }
+                catch(Exception e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(50);
+
+        future.setResponse(new WebsockQuery(EQueryType.PONG));
+        waiter.join(5000);
+
+        Assert.assertSame(Thread.currentThread(), listenerThread.get());
+        Assert.assertTrue(released.get());
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+import de.hofuniversity.iisys.neo4j.websock.result.AResultSet;
+import de.hofuniversity.iisys.neo4j.websock.result.ListResult;
+
+/**
+ * Test for the size-bounded procedure result cache.
+ */
+public class LruResultCacheTest
+{
+    private AResultSet<?> createResult(int rows)
+    {
+        final List<Object> list = new ArrayList<Object>();
+        for(int i = 0; i < rows; ++i)
+        {
+            list.add(i);
+        }
+        return new ListResult(list);
+    }
+
+    /**
+     * Tests that only calls to procedures with a time to live are cached and
+     * that results expire.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void ttlTest() throws Exception
+    {
+        final LruResultCache cache = new LruResultCache();
+        cache.setTtl("short", 50);
+        cache.setTtl("long", 60000);
+
+        Assert.assertFalse(cache.isCacheable(TestQueries.createCall("other", 1)));
+        Assert.assertFalse(cache.isCacheable(
+            new WebsockQuery(EQueryType.DIRECT_CYPHER)));
+
+        final AResultSet<?> result = createResult(2);
+        cache.put(TestQueries.createCall("other", 1), result);
+        cache.put(TestQueries.createCall("short", 1), result);
+        cache.put(TestQueries.createCall("long", 1), result);
+        Assert.assertEquals(2, cache.size());
+
+        Assert.assertSame(result, cache.get(TestQueries.createCall("short", 1)));
+        Assert.assertSame(result, cache.get(TestQueries.createCall("long", 1)));
+        Assert.assertNull(cache.get(TestQueries.createCall("long", 2)));
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+
+        Thread.sleep(100);
+        Assert.assertNull(cache.get(TestQueries.createCall("short", 1)));
+        Assert.assertSame(result, cache.get(TestQueries.createCall("long", 1)));
+        Assert.assertEquals(1, cache.size());
+
+        cache.invalidate("long");
+        Assert.assertNull(cache.get(TestQueries.createCall("long", 1)));
+        Assert.assertEquals(0, cache.getWeight());
+    }
+
+    /**
+     * Tests that the least recently used results are evicted to stay within
+     * the maximum number of rows.
+     */
+    @Test
+    public void evictionTest()
+    {
+        final LruResultCache cache = new LruResultCache(10);
+        cache.setTtl("proc", 60000);
+
+        cache.put(TestQueries.createCall("proc", 1), createResult(4));
+        cache.put(TestQueries.createCall("proc", 2), createResult(4));
+        Assert.assertEquals(8, cache.getWeight());
+
+        //touch first result, so the second one is evicted
+        Assert.assertNotNull(cache.get(TestQueries.createCall("proc", 1)));
+        cache.put(TestQueries.createCall("proc", 3), createResult(4));
+
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertEquals(8, cache.getWeight());
+        Assert.assertNotNull(cache.get(TestQueries.createCall("proc", 1)));
+        Assert.assertNull(cache.get(TestQueries.createCall("proc", 2)));
+        Assert.assertNotNull(cache.get(TestQueries.createCall("proc", 3)));
+
+        //results exceeding the bound are not cached
+        cache.put(TestQueries.createCall("proc", 4), createResult(11));
+        Assert.assertNull(cache.get(TestQueries.createCall("proc", 4)));
+        Assert.assertEquals(2, cache.size());
+    }
+}
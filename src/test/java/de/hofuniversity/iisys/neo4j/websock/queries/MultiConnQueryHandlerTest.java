@@ -16,11 +16,14 @@
  */
 package de.hofuniversity.iisys.neo4j.websock.queries;
 
+import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.websocket.RemoteEndpoint.Basic;
 
@@ -34,6 +37,7 @@ import de.hofuniversity.iisys.neo4j.websock.query.encoding.BinaryTransferUtil;
 import de.hofuniversity.iisys.neo4j.websock.query.encoding.StringTransferUtil;
 import de.hofuniversity.iisys.neo4j.websock.query.encoding.TransferUtil;
 import de.hofuniversity.iisys.neo4j.websock.result.AResultSet;
+import de.hofuniversity.iisys.neo4j.websock.session.WebsockConstants;
 
 /**
  * Test for the query handler for multiple connections, handling responses for queries and messages
@@ -158,6 +162,611 @@ public class MultiConnQueryHandlerTest
         Assert.assertNotNull(set);
     }
 
+    /**
+     * Tests that single-server queries are routed to the connection with
+     * fewer unanswered requests and that answered requests free up capacity.
+     */
+    @Test
+    public void routingTest() throws Exception
+    {
+        final MultiConnQueryHandler handler = new MultiConnQueryHandler();
+        handler.setTransferUtils(fTransferUtils.subList(0, 2));
+
+        final LinkedList<WebsockQuery> first = fResponses.get(0);
+        final LinkedList<WebsockQuery> second = fResponses.get(1);
+
+        //unanswered queries alternate between both connections
+        for(int i = 1; i <= 3; ++i)
+        {
+            handler.sendQuery(new WebsockQuery(EQueryType.DIRECT_CYPHER));
+            handler.sendQuery(new WebsockQuery(EQueryType.DIRECT_CYPHER));
+
+            Assert.assertEquals(i, first.size());
+            Assert.assertEquals(i, second.size());
+        }
+
+        //answering all queries of one connection makes it preferable
+        while(!first.isEmpty())
+        {
+            handler.handleMessage(first.pop());
+        }
+
+        handler.sendQuery(new WebsockQuery(EQueryType.DIRECT_CYPHER));
+        Assert.assertEquals(1, first.size());
+        Assert.assertEquals(3, second.size());
+
+        //round robin ignores the load
+        handler.setRoutingStrategy(new RoundRobinStrategy());
+        for(int i = 0; i < 4; ++i)
+        {
+            handler.sendQuery(new WebsockQuery(EQueryType.DIRECT_CYPHER));
+        }
+        Assert.assertEquals(3, first.size());
+        Assert.assertEquals(5, second.size());
+    }
+
+    /**
+     * Tests that parallel subset queries are spread over all connections.
+     */
+    @Test
+    public void parallelQueryTest() throws Exception
+    {
+        final MultiConnQueryHandler handler = new MultiConnQueryHandler();
+        handler.setTransferUtils(fTransferUtils);
+        handler.setRoutingStrategy(new RoundRobinStrategy());
+
+        handler.sendParallelQuery(new WebsockQuery(EQueryType.DIRECT_CYPHER),
+            1000);
+
+        for(LinkedList<WebsockQuery> responses : fResponses)
+        {
+            Assert.assertEquals(1, responses.size());
+        }
+    }
+
+    /**
+     * Tests that latencies are measured per server and that the latency
+     * aware strategy prefers fast connections while still probing slow ones.
+     */
+    @Test
+    public void latencyTest() throws Exception
+    {
+        final MultiConnQueryHandler handler = new MultiConnQueryHandler();
+        handler.addTransferUtil(fTransferUtils.get(0), "ws://fast");
+        handler.addTransferUtil(fTransferUtils.get(1), "ws://slow");
+
+        //responses are measured for the server they came from
+        handler.sendQuery(new WebsockQuery(EQueryType.DIRECT_CYPHER));
+        handler.sendQuery(new WebsockQuery(EQueryType.DIRECT_CYPHER));
+        for(LinkedList<WebsockQuery> responses : fResponses)
+        {
+            while(!responses.isEmpty())
+            {
+                handler.handleMessage(responses.pop());
+            }
+        }
+        Assert.assertTrue(handler.getServerLatency("ws://fast").hasSamples());
+        Assert.assertTrue(handler.getServerLatency("ws://slow").hasSamples());
+
+        //statistics are shared by connections to the same server
+        final PooledConnection fast = new PooledConnection(
+            fTransferUtils.get(0), "ws://fast",
+            handler.getServerLatency("ws://fast"));
+        final PooledConnection slow = new PooledConnection(
+            fTransferUtils.get(1), "ws://slow",
+            handler.getServerLatency("ws://slow"));
+
+        for(int i = 0; i < 20; ++i)
+        {
+            fast.recordLatency(1000000L);
+            slow.recordLatency(100000000L);
+        }
+        Assert.assertEquals(1000000.0,
+            handler.getServerLatency("ws://fast").get(), 20000.0);
+
+        final List<PooledConnection> pool = new ArrayList<PooledConnection>();
+        pool.add(fast);
+        pool.add(slow);
+
+        final IRoutingStrategy strategy = new LatencyAwareStrategy(0.1);
+        int fastCount = 0;
+        int slowCount = 0;
+        for(int i = 0; i < 10000; ++i)
+        {
+            if(strategy.select(pool) == fast)
+            {
+                ++fastCount;
+            }
+            else
+            {
+                ++slowCount;
+            }
+        }
+
+        //only probes go to the slow server
+        Assert.assertTrue(fastCount > 9000);
+        Assert.assertTrue(slowCount > 0);
+    }
+
+    /**
+     * Tests that retries wait for the policy's delay and avoid the connection
+     * that timed out.
+     */
+    @Test
+    public void retryPolicyTest() throws Exception
+    {
+        final MultiConnQueryHandler handler = new MultiConnQueryHandler();
+        handler.addTransferUtil(fTransferUtils.get(0));
+        handler.addTransferUtil(fTransferUtils.get(1));
+
+        //would always pick the first connection
+        handler.setRoutingStrategy(new IRoutingStrategy()
+        {
+            @Override
+            public PooledConnection select(List<PooledConnection> pool)
+            {
+                return pool.isEmpty() ? null : pool.get(0);
+            }
+        });
+
+        handler.setTimeout(TIMEOUT_MS);
+        handler.setTimerInterval(TIMER_MS);
+        handler.setRetryCount(1);
+        handler.setRetryPolicy(new ExponentialBackoffPolicy(2 * TIMEOUT_MS,
+            2 * TIMEOUT_MS, 0.0, true));
+        new Thread(handler).start();
+
+        final IQueryCallback future = handler.sendQuery(new WebsockQuery(
+            EQueryType.DIRECT_CYPHER));
+        Assert.assertEquals(1, fResponses.get(0).size());
+
+        //timed out, but still waiting for the retry
+        Thread.sleep(2 * TIMEOUT_MS);
+        Assert.assertEquals(1, fResponses.get(0).size());
+        Assert.assertEquals(0, fResponses.get(1).size());
+
+        //resent to the other connection
+        Thread.sleep(3 * TIMEOUT_MS / 2);
+        Assert.assertEquals(1, fResponses.get(0).size());
+        Assert.assertEquals(1, fResponses.get(1).size());
+
+        //fails after the retry timed out as well
+        boolean fail = false;
+        try
+        {
+            future.get(10 * TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        catch(ExecutionException e)
+        {
+            fail = true;
+        }
+        Assert.assertTrue(fail);
+
+        handler.deactivate();
+    }
+
+    /**
+     * Tests that calls to hedged procedures are sent to another connection
+     * if there is no response in time and that the first response wins.
+     */
+    @Test
+    public void hedgingTest() throws Exception
+    {
+        final MultiConnQueryHandler handler = new MultiConnQueryHandler();
+        handler.addTransferUtil(fTransferUtils.get(0));
+        handler.addTransferUtil(fTransferUtils.get(1));
+
+        //would always pick the first connection
+        handler.setRoutingStrategy(new IRoutingStrategy()
+        {
+            @Override
+            public PooledConnection select(List<PooledConnection> pool)
+            {
+                return pool.isEmpty() ? null : pool.get(0);
+            }
+        });
+
+        final HedgingPolicy hedging = new HedgingPolicy(TIMER_MS, 0.0, 1.0);
+        hedging.addProcedure("proc");
+        handler.setHedgingPolicy(hedging);
+        handler.setTimerInterval(TIMER_MS);
+        new Thread(handler).start();
+
+        WebsockQuery query = new WebsockQuery(EQueryType.PROCEDURE_CALL);
+        query.setParameter(WebsockConstants.PROCEDURE_NAME, "proc");
+        final IQueryCallback future = handler.sendQuery(query);
+
+        query = new WebsockQuery(EQueryType.PROCEDURE_CALL);
+        query.setParameter(WebsockConstants.PROCEDURE_NAME, "other");
+        final IQueryCallback other = handler.sendQuery(query);
+        Assert.assertEquals(2, fResponses.get(0).size());
+
+        //only the hedged procedure is sent to the other connection
+        Thread.sleep(TIMEOUT_MS);
+        Assert.assertEquals(1, fResponses.get(1).size());
+        Assert.assertEquals(1, hedging.getHedges());
+
+        //first response wins, the other one is ignored
+        Assert.assertTrue(handler.handleMessage(fResponses.get(1).pop()));
+        Assert.assertNotNull(future.get());
+        Assert.assertFalse(handler.handleMessage(fResponses.get(0).pop()));
+
+        Assert.assertTrue(handler.handleMessage(fResponses.get(0).pop()));
+        Assert.assertNotNull(other.get());
+
+        handler.deactivate();
+    }
+
+    /**
+     * Tests that latencies of hedged calls are still recorded, so slow first
+     * copies keep the hedging delay up.
+     */
+    @Test
+    public void hedgedLatencyTest() throws Exception
+    {
+        final MultiConnQueryHandler handler = new MultiConnQueryHandler();
+        handler.addTransferUtil(fTransferUtils.get(0));
+        handler.addTransferUtil(fTransferUtils.get(1));
+
+        //would always pick the first connection
+        handler.setRoutingStrategy(new IRoutingStrategy()
+        {
+            @Override
+            public PooledConnection select(List<PooledConnection> pool)
+            {
+                return pool.isEmpty() ? null : pool.get(0);
+            }
+        });
+
+        final HedgingPolicy hedging = new HedgingPolicy(1, 0.95, 1.0);
+        hedging.addProcedure("proc");
+        handler.setHedgingPolicy(hedging);
+        handler.setTimerInterval(TIMER_MS);
+        new Thread(handler).start();
+
+        WebsockQuery query = null;
+        IQueryCallback future = null;
+        for(int i = 0; i < 20; ++i)
+        {
+            query = new WebsockQuery(EQueryType.PROCEDURE_CALL);
+            query.setParameter(WebsockConstants.PROCEDURE_NAME, "proc");
+            future = handler.sendQuery(query);
+
+            final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while(fResponses.get(1).isEmpty()
+                && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(1);
+            }
+            Thread.sleep(5);
+
+            //the copy answers first
+            Assert.assertTrue(handler.handleMessage(fResponses.get(1).pop()));
+            Assert.assertNotNull(future.get());
+            Assert.assertFalse(handler.handleMessage(fResponses.get(0).pop()));
+        }
+        Assert.assertEquals(20, hedging.getHedges());
+
+        //the delay follows the slow calls instead of the fixed delay
+        Assert.assertTrue(hedging.callSent("proc") >= 5);
+
+        handler.deactivate();
+    }
+
+    /**
+     * Tests that completing a hedged call removes its hedge timer.
+     */
+    @Test
+    public void hedgeTimerTest() throws Exception
+    {
+        final MultiConnQueryHandler handler = new MultiConnQueryHandler();
+        handler.addTransferUtil(fTransferUtils.get(0));
+        handler.addTransferUtil(fTransferUtils.get(1));
+
+        final HedgingPolicy hedging = new HedgingPolicy(TIMEOUT_MS * 10,
+            0.0, 1.0);
+        hedging.addProcedure("proc");
+        handler.setHedgingPolicy(hedging);
+
+        final Field field = MultiConnQueryHandler.class.getDeclaredField(
+            "fTimeouts");
+        field.setAccessible(true);
+        final TimingWheel timeouts = (TimingWheel) field.get(handler);
+
+        final WebsockQuery query = new WebsockQuery(
+            EQueryType.PROCEDURE_CALL);
+        query.setParameter(WebsockConstants.PROCEDURE_NAME, "proc");
+        final IQueryCallback future = handler.sendQuery(query);
+
+        //timeout and hedge timer
+        Assert.assertEquals(2, timeouts.size());
+
+        LinkedList<WebsockQuery> responses = fResponses.get(0);
+        if(responses.isEmpty())
+        {
+            responses = fResponses.get(1);
+        }
+        Assert.assertTrue(handler.handleMessage(responses.pop()));
+        Assert.assertNotNull(future.get());
+        Assert.assertEquals(0, timeouts.size());
+
+        handler.deactivate();
+    }
+
+    /**
+     * Tests that hedges are sent after their delay, even if it is much
+     * shorter than the timer interval, and that a copy that could not be
+     * written does not fail the request.
+     */
+    @Test
+    public void hedgeSendFailedTest() throws Exception
+    {
+        final MultiConnQueryHandler handler = new MultiConnQueryHandler();
+        handler.addTransferUtil(fTransferUtils.get(0));
+
+        final Basic remote = fSessions.get(1).getBasicRemote();
+        final StringTransferUtil stUtil = new StringTransferUtil(remote,
+            new NopMessageHandler());
+        final BinaryTransferUtil btUtil = new BinaryTransferUtil(remote,
+            new NopMessageHandler(), true);
+        final LinkedList<WebsockQuery> sent = new LinkedList<WebsockQuery>();
+        handler.addTransferUtil(new TransferUtil(stUtil, btUtil)
+        {
+            @Override
+            public void sendMessage(WebsockQuery query) throws Exception
+            {
+                sent.add(query);
+            }
+        });
+
+        //would always pick the first connection
+        handler.setRoutingStrategy(new IRoutingStrategy()
+        {
+            @Override
+            public PooledConnection select(List<PooledConnection> pool)
+            {
+                return pool.isEmpty() ? null : pool.get(0);
+            }
+        });
+
+        final HedgingPolicy hedging = new HedgingPolicy(1, 0.0, 1.0);
+        hedging.addProcedure("proc");
+        handler.setHedgingPolicy(hedging);
+        handler.setTimerInterval(TIMEOUT_MS * 10);
+        new Thread(handler).start();
+
+        final WebsockQuery query = new WebsockQuery(
+            EQueryType.PROCEDURE_CALL);
+        query.setParameter(WebsockConstants.PROCEDURE_NAME, "proc");
+        final IQueryCallback future = handler.sendQuery(query);
+
+        //hedged long before the next regular check
+        Thread.sleep(TIMEOUT_MS / 2);
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals(query.getId(), sent.getFirst().getId());
+
+        //the copy could not be written, the first one is still answered
+        handler.sendFailed(null, sent.getFirst(), new Exception("closed"));
+        Assert.assertFalse(future.isDone());
+
+        Assert.assertTrue(handler.handleMessage(fResponses.get(0).pop()));
+        Assert.assertNotNull(future.get());
+
+        handler.deactivate();
+    }
+
+    /**
+     * Tests that connections without measurements are not preferred once
+     * requests pile up on them.
+     */
+    @Test
+    public void unmeasuredLatencyTest() throws Exception
+    {
+        final PooledConnection measured = new PooledConnection(
+            fTransferUtils.get(0));
+        final PooledConnection fresh = new PooledConnection(
+            fTransferUtils.get(1));
+
+        for(int i = 0; i < 20; ++i)
+        {
+            measured.recordLatency(1000000L);
+        }
+        for(int i = 0; i < 100; ++i)
+        {
+            fresh.requestSent();
+        }
+
+        final List<PooledConnection> pool = new ArrayList<PooledConnection>();
+        pool.add(measured);
+        pool.add(fresh);
+
+        final IRoutingStrategy strategy = new LatencyAwareStrategy(0.0);
+        for(int i = 0; i < 1000; ++i)
+        {
+            Assert.assertSame(measured, strategy.select(pool));
+        }
+
+        //without any load, the fresh connection is as good as the average
+        final PooledConnection idle = new PooledConnection(
+            fTransferUtils.get(2));
+        measured.requestSent();
+        pool.set(1, idle);
+        for(int i = 0; i < 1000; ++i)
+        {
+            Assert.assertSame(idle, strategy.select(pool));
+        }
+    }
+
+    /**
+     * Tests that requests waiting on a lost connection are resent to another
+     * connection if they are idempotent and failed right away otherwise.
+     */
+    @Test
+    public void failoverTest() throws Exception
+    {
+        final MultiConnQueryHandler handler = new MultiConnQueryHandler();
+        handler.addTransferUtil(fTransferUtils.get(0));
+        handler.addTransferUtil(fTransferUtils.get(1));
+
+        //would always pick the first connection
+        handler.setRoutingStrategy(new IRoutingStrategy()
+        {
+            @Override
+            public PooledConnection select(List<PooledConnection> pool)
+            {
+                return pool.isEmpty() ? null : pool.get(0);
+            }
+        });
+
+        final ResultFuture idempotent = new ResultFuture();
+        handler.sendQuery(new WebsockQuery(EQueryType.DIRECT_CYPHER),
+            idempotent, new RequestOptions(0, 0, true));
+        final ResultFuture other = new ResultFuture();
+        handler.sendQuery(new WebsockQuery(EQueryType.DIRECT_CYPHER), other,
+            new RequestOptions(0, 0));
+        Assert.assertEquals(2, fResponses.get(0).size());
+        Assert.assertEquals(0, fResponses.get(1).size());
+
+        //connection drops, without waiting for any timeouts
+        handler.removeTransferUtil(fTransferUtils.get(0));
+
+        Assert.assertTrue(other.isDone());
+        Assert.assertEquals("connection lost", other.getErrorMessage());
+
+        Assert.assertFalse(idempotent.isDone());
+        Assert.assertEquals(1, fResponses.get(1).size());
+        Assert.assertEquals(fResponses.get(0).getFirst().getId(),
+            fResponses.get(1).getFirst().getId());
+
+        handler.deactivate();
+    }
+
+    /**
+     * Tests that requests failing over to another connection keep the
+     * deadline of their current attempt instead of starting a new one.
+     */
+    @Test
+    public void failoverDeadlineTest() throws Exception
+    {
+        final MultiConnQueryHandler handler = new MultiConnQueryHandler();
+        handler.addTransferUtil(fTransferUtils.get(0));
+        handler.addTransferUtil(fTransferUtils.get(1));
+
+        //would always pick the first connection
+        handler.setRoutingStrategy(new IRoutingStrategy()
+        {
+            @Override
+            public PooledConnection select(List<PooledConnection> pool)
+            {
+                return pool.isEmpty() ? null : pool.get(0);
+            }
+        });
+
+        //long enough for the failover to happen well before the deadline
+        final long timeout = 4 * TIMEOUT_MS;
+        handler.setTimerInterval(TIMER_MS);
+        new Thread(handler).start();
+
+        final ResultFuture future = new ResultFuture();
+        handler.sendQuery(new WebsockQuery(EQueryType.DIRECT_CYPHER), future,
+            new RequestOptions(timeout, 0, true));
+        final long sent = System.currentTimeMillis();
+
+        //resent to the other connection halfway to the deadline
+        Thread.sleep(timeout / 2);
+        handler.removeTransferUtil(fTransferUtils.get(0));
+        Assert.assertEquals(1, fResponses.get(1).size());
+
+        //times out at the original deadline, without a retry
+        boolean fail = false;
+        try
+        {
+            future.get(10 * timeout, TimeUnit.MILLISECONDS);
+        }
+        catch(ExecutionException e)
+        {
+            fail = true;
+        }
+        Assert.assertTrue(fail);
+        Assert.assertEquals("timeout error", future.getErrorMessage());
+        Assert.assertTrue(System.currentTimeMillis() - sent
+            < timeout + timeout / 2);
+        Assert.assertEquals(1, fResponses.get(1).size());
+
+        handler.deactivate();
+    }
+
+    /**
+     * Tests that messages sent directly through a connection fail right away
+     * when it drops, even before it was added to the pool.
+     */
+    @Test
+    public void directFailoverTest() throws Exception
+    {
+        final MultiConnQueryHandler handler = new MultiConnQueryHandler();
+        handler.addTransferUtil(fTransferUtils.get(0));
+
+        //pooled connection and connection still authenticating
+        final IMessageCallback pooled = handler.sendDirectMessage(
+            new WebsockQuery(EQueryType.PING), fTransferUtils.get(0));
+        final IMessageCallback unpooled = handler.sendDirectMessage(
+            new WebsockQuery(EQueryType.AUTHENTICATION), fTransferUtils.get(1));
+        Assert.assertEquals(1, fResponses.get(0).size());
+        Assert.assertEquals(1, fResponses.get(1).size());
+
+        //connections drop, without waiting for any timeouts
+        handler.removeTransferUtil(fTransferUtils.get(0));
+        Assert.assertTrue(pooled.isDone());
+        Assert.assertEquals("connection lost", pooled.getErrorMessage());
+        Assert.assertFalse(unpooled.isDone());
+
+        handler.removeTransferUtil(fTransferUtils.get(1));
+        Assert.assertTrue(unpooled.isDone());
+        Assert.assertEquals("connection lost", unpooled.getErrorMessage());
+
+        //nothing was resent through other connections
+        Assert.assertEquals(1, fResponses.get(0).size());
+        Assert.assertEquals(1, fResponses.get(1).size());
+
+        handler.deactivate();
+    }
+
+    /**
+     * Tests that requests sent to all connections stop waiting for a
+     * response from a lost connection.
+     */
+    @Test
+    public void broadcastFailoverTest() throws Exception
+    {
+        final MultiConnQueryHandler handler = new MultiConnQueryHandler();
+        handler.addTransferUtil(fTransferUtils.get(0));
+        handler.addTransferUtil(fTransferUtils.get(1));
+        handler.addTransferUtil(fTransferUtils.get(2));
+
+        //connection drops before its response arrives
+        IMessageCallback first = handler.sendMessage(new WebsockQuery(
+            EQueryType.PING));
+        handler.handleMessage(fResponses.get(0).pop());
+        handler.removeTransferUtil(fTransferUtils.get(2));
+        Assert.assertFalse(first.isDone());
+
+        handler.handleMessage(fResponses.get(1).pop());
+        Assert.assertTrue(first.isDone());
+        Assert.assertEquals(EQueryType.PONG, first.get().getType());
+
+        //connection drops while it is the last one missing
+        IMessageCallback second = handler.sendMessage(new WebsockQuery(
+            EQueryType.PING));
+        handler.handleMessage(fResponses.get(0).pop());
+        Assert.assertFalse(second.isDone());
+
+        handler.removeTransferUtil(fTransferUtils.get(1));
+        Assert.assertTrue(second.isDone());
+        Assert.assertEquals(EQueryType.PONG, second.get().getType());
+
+        handler.deactivate();
+    }
+
     /**
      * Tests the timeout mechanism of the query handler.
      */
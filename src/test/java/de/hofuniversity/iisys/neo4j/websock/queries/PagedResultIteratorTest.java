@@ -0,0 +1,199 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+import de.hofuniversity.iisys.neo4j.websock.result.AResultSet;
+import de.hofuniversity.iisys.neo4j.websock.result.ListResult;
+import de.hofuniversity.iisys.neo4j.websock.session.WebsockConstants;
+
+/**
+ * Test for the paged result iterator.
+ */
+public class PagedResultIteratorTest
+{
+    /**
+     * Query handler answering subset queries from a list of numbers, either
+     * directly or only when released.
+     */
+    private static class PageHandler extends BasicQueryHandler
+    {
+        private final int fRows;
+        private final boolean fReportTotal, fAnswer;
+
+        private final List<Integer> fStarts = new ArrayList<Integer>();
+        private final List<Integer> fCancelled = new ArrayList<Integer>();
+        private final List<IQueryCallback> fCallbacks =
+            new ArrayList<IQueryCallback>();
+        private boolean fAssignIds = true;
+
+        public PageHandler(int rows, boolean reportTotal, boolean answer)
+        {
+            fRows = rows;
+            fReportTotal = reportTotal;
+            fAnswer = answer;
+        }
+
+        @Override
+        public void sendQuery(WebsockQuery query, IQueryCallback callback)
+        {
+            //queries attached to an identical one get no ID of their own
+            if(fAssignIds)
+            {
+                query.setId(getId());
+            }
+            fCallbacks.add(callback);
+
+            final int start = (Integer) query.getParameter(
+                WebsockConstants.SUBSET_START);
+            final int size = (Integer) query.getParameter(
+                WebsockConstants.SUBSET_SIZE);
+            fStarts.add(start);
+
+            if(!fAnswer)
+            {
+                return;
+            }
+
+            final List<Integer> rows = new ArrayList<Integer>();
+            for(int i = start; i < Math.min(start + size, fRows); ++i)
+            {
+                rows.add(i);
+            }
+
+            final ListResult result = new ListResult(rows);
+            result.setFirst(start);
+            result.setMax(size);
+            if(fReportTotal)
+            {
+                result.setTotal(fRows);
+            }
+
+            callback.setResult(result);
+        }
+
+        @Override
+        public void cancel(int id)
+        {
+            fCancelled.add(id);
+        }
+    }
+
+    private int consume(final PagedResultIterator pages, final int prefetch)
+    {
+        int expected = 0;
+        AResultSet<?> page = null;
+
+        while(pages.hasNext())
+        {
+            //current page plus prefetched pages
+            Assert.assertTrue(pages.getPending() <= prefetch);
+
+            page = pages.next();
+            for(Object row : (List<?>) page.getResults())
+            {
+                Assert.assertEquals(expected++, row);
+            }
+        }
+
+        return expected;
+    }
+
+    /**
+     * Tests that all pages are retrieved in order, that no more than the
+     * configured number of pages is requested ahead and that no pages
+     * beyond the reported total are requested.
+     */
+    @Test
+    public void totalTest()
+    {
+        final PageHandler handler = new PageHandler(95, true, true);
+
+        final PagedResultIterator pages = handler.sendPagedQuery(
+            new WebsockQuery(EQueryType.DIRECT_CYPHER), 10, 3);
+
+        Assert.assertEquals(95, consume(pages, 3));
+        Assert.assertEquals(10, handler.fStarts.size());
+        Assert.assertEquals(Integer.valueOf(90), handler.fStarts.get(9));
+        Assert.assertFalse(pages.hasNext());
+    }
+
+    /**
+     * Tests that iteration stops at an incomplete or empty page if no total
+     * is reported.
+     */
+    @Test
+    public void noTotalTest()
+    {
+        PageHandler handler = new PageHandler(100, false, true);
+
+        PagedResultIterator pages = handler.sendPagedQuery(
+            new WebsockQuery(EQueryType.DIRECT_CYPHER), 10, 0);
+
+        Assert.assertEquals(100, consume(pages, 0));
+        Assert.assertEquals(11, handler.fStarts.size());
+
+        handler = new PageHandler(25, false, true);
+        pages = handler.sendPagedQuery(
+            new WebsockQuery(EQueryType.DIRECT_CYPHER), 10, 2);
+
+        Assert.assertEquals(25, consume(pages, 2));
+    }
+
+    /**
+     * Tests that closing the iterator cancels requested pages.
+     */
+    @Test
+    public void closeTest()
+    {
+        final PageHandler handler = new PageHandler(100, true, false);
+
+        final PagedResultIterator pages = handler.sendPagedQuery(
+            new WebsockQuery(EQueryType.DIRECT_CYPHER), 10, 3);
+        Assert.assertEquals(1, pages.getPending());
+
+        pages.close();
+        Assert.assertTrue(handler.fCallbacks.get(0).isCancelled());
+        Assert.assertEquals(0, pages.getPending());
+        Assert.assertFalse(pages.hasNext());
+    }
+
+    /**
+     * Tests that closing the iterator does not cancel requests by IDs the
+     * handler did not assign to its pages.
+     */
+    @Test
+    public void unassignedIdTest()
+    {
+        final PageHandler handler = new PageHandler(100, true, false);
+        handler.fAssignIds = false;
+
+        final PagedResultIterator pages = handler.sendPagedQuery(
+            new WebsockQuery(EQueryType.DIRECT_CYPHER), 10, 3);
+
+        pages.close();
+        Assert.assertTrue(handler.fCallbacks.get(0).isCancelled());
+        Assert.assertTrue(handler.fCancelled.isEmpty());
+    }
+}
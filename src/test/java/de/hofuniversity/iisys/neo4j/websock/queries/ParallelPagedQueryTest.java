@@ -0,0 +1,171 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+import de.hofuniversity.iisys.neo4j.websock.result.AResultSet;
+import de.hofuniversity.iisys.neo4j.websock.result.TableResult;
+import de.hofuniversity.iisys.neo4j.websock.session.WebsockConstants;
+
+/**
+ * Test for queries split into subsets that are requested in parallel.
+ */
+public class ParallelPagedQueryTest
+{
+    /**
+     * Query handler collecting subset queries, answering them only when
+     * told to.
+     */
+    private static class SubsetHandler extends BasicQueryHandler
+    {
+        private final List<WebsockQuery> fQueries =
+            new ArrayList<WebsockQuery>();
+        private final List<IQueryCallback> fCallbacks =
+            new ArrayList<IQueryCallback>();
+        private final List<Integer> fCancelled = new ArrayList<Integer>();
+        private boolean fAssignIds = true;
+
+        @Override
+        public void sendQuery(WebsockQuery query, IQueryCallback callback)
+        {
+            //queries attached to identical ones get no IDs of their own
+            if(fAssignIds)
+            {
+                query.setId(getId());
+            }
+
+            fQueries.add(query);
+            fCallbacks.add(callback);
+        }
+
+        public void answer(final int index)
+        {
+            final WebsockQuery query = fQueries.get(index);
+            final int start = (Integer) query.getParameter(
+                WebsockConstants.SUBSET_START);
+            final int size = (Integer) query.getParameter(
+                WebsockConstants.SUBSET_SIZE);
+
+            final List<List<Object>> rows = new ArrayList<List<Object>>();
+            for(int i = start; i < start + size; ++i)
+            {
+                rows.add(Arrays.asList((Object) i));
+            }
+
+            final TableResult result = new TableResult(
+                Collections.singletonList("n"), rows);
+            result.setTotal(100);
+
+            fCallbacks.get(index).setResult(result);
+        }
+
+        @Override
+        public void cancel(int id)
+        {
+            fCancelled.add(id);
+        }
+    }
+
+    /**
+     * Tests that subsets answered out of order are reassembled in order.
+     */
+    @Test
+    public void combineTest() throws Exception
+    {
+        final SubsetHandler handler = new SubsetHandler();
+        final ResultFuture future = new ResultFuture();
+
+        new ParallelPagedQuery(handler, new WebsockQuery(
+            EQueryType.DIRECT_CYPHER), 98, 4, future).send();
+        Assert.assertEquals(4, handler.fQueries.size());
+
+        handler.answer(2);
+        handler.answer(0);
+        handler.answer(3);
+        Assert.assertFalse(future.isDone());
+        handler.answer(1);
+
+        final AResultSet<?> result = future.get();
+        Assert.assertTrue(result instanceof TableResult);
+        Assert.assertEquals(98, result.getSize());
+        Assert.assertEquals(100, result.getTotal());
+        Assert.assertEquals(Collections.singletonList("n"),
+            ((TableResult) result).getColumns());
+
+        int expected = 0;
+        for(List<Object> row : ((TableResult) result).getResults())
+        {
+            Assert.assertEquals(expected++, row.get(0));
+        }
+    }
+
+    /**
+     * Tests that a failing subset fails the combined result and cancels the
+     * remaining subsets.
+     */
+    @Test
+    public void failureTest() throws Exception
+    {
+        final SubsetHandler handler = new SubsetHandler();
+        final ResultFuture future = new ResultFuture();
+
+        new ParallelPagedQuery(handler, new WebsockQuery(
+            EQueryType.DIRECT_CYPHER), 100, 4, future).send();
+
+        handler.answer(0);
+        handler.fCallbacks.get(1).setErrorMessage("out of memory");
+
+        Assert.assertTrue(future.isDone());
+        Assert.assertTrue(future.getErrorMessage().contains("out of memory"));
+        Assert.assertTrue(handler.fCallbacks.get(2).isCancelled());
+        Assert.assertTrue(handler.fCallbacks.get(3).isCancelled());
+        Assert.assertTrue(handler.fCancelled.isEmpty());
+    }
+
+    /**
+     * Tests that cancelling the combined result cancels the subsets through
+     * their callbacks, not by IDs the handler may not have assigned.
+     */
+    @Test
+    public void cancelTest() throws Exception
+    {
+        final SubsetHandler handler = new SubsetHandler();
+        handler.fAssignIds = false;
+        final ResultFuture future = new ResultFuture();
+
+        new ParallelPagedQuery(handler, new WebsockQuery(
+            EQueryType.DIRECT_CYPHER), 100, 4, future).send();
+
+        handler.answer(1);
+        future.cancel(true);
+
+        Assert.assertTrue(handler.fCancelled.isEmpty());
+        Assert.assertTrue(handler.fCallbacks.get(0).isCancelled());
+        Assert.assertFalse(handler.fCallbacks.get(1).isCancelled());
+        Assert.assertTrue(handler.fCallbacks.get(2).isCancelled());
+        Assert.assertTrue(handler.fCallbacks.get(3).isCancelled());
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+
+/**
+ * JMH benchmark comparing the registration and completion of requests using
+ * separately synchronized maps, as previously used by the query handlers, to
+ * the pending request table.
+ * Not run as part of the unit tests, start via main method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class PendingRequestTableBenchmark
+{
+    /**
+     * Number of requests kept in flight in addition to the measured ones.
+     */
+    private static final int BACKGROUND = 10000;
+
+    private final AtomicInteger fIds = new AtomicInteger(BACKGROUND);
+
+    private final Map<Integer, WebsockQuery> fPendingQueries =
+        new HashMap<Integer, WebsockQuery>();
+    private final Map<Integer, IQueryCallback> fPendingResults =
+        new HashMap<Integer, IQueryCallback>();
+    private final Map<Integer, IMessageCallback> fPendingMessages =
+        new HashMap<Integer, IMessageCallback>();
+    private final Map<Integer, Long> fTimeouts = new HashMap<Integer, Long>();
+    private final Map<Integer, Integer> fRetries =
+        new HashMap<Integer, Integer>();
+
+    private final PendingRequestTable fTable = new PendingRequestTable();
+
+    private final IQueryCallback fCallback = new ResultFuture();
+
+    /**
+     * Creates the benchmark state, filling both structures with a number of
+     * long-running requests.
+     */
+    public PendingRequestTableBenchmark()
+    {
+        for(int id = 0; id < BACKGROUND; ++id)
+        {
+            WebsockQuery query = new WebsockQuery(id,
+                EQueryType.DIRECT_CYPHER);
+
+            fPendingQueries.put(id, query);
+            fPendingResults.put(id, fCallback);
+            fTimeouts.put(id, System.currentTimeMillis());
+
+            fTable.put(new PendingRequest(query, fCallback));
+        }
+    }
+
+    /**
+     * Registers and completes a query using five synchronized maps.
+     *
+     * @return completed query
+     */
+    @Benchmark
+    public Object maps()
+    {
+        final int id = fIds.incrementAndGet();
+        final WebsockQuery query = new WebsockQuery(id,
+            EQueryType.DIRECT_CYPHER);
+
+        //register
+        synchronized(fPendingQueries)
+        {
+            fPendingQueries.put(id, query);
+        }
+        synchronized(fPendingResults)
+        {
+            fPendingResults.put(id, fCallback);
+        }
+        synchronized(fTimeouts)
+        {
+            fTimeouts.put(id, System.currentTimeMillis());
+        }
+
+        //look up and complete
+        IQueryCallback callback = null;
+        synchronized(fPendingResults)
+        {
+            callback = fPendingResults.get(id);
+        }
+
+        synchronized(fPendingMessages)
+        {
+            fPendingMessages.remove(id);
+        }
+        synchronized(fPendingQueries)
+        {
+            fPendingQueries.remove(id);
+        }
+        synchronized(fPendingResults)
+        {
+            fPendingResults.remove(id);
+        }
+        synchronized(fTimeouts)
+        {
+            fTimeouts.remove(id);
+        }
+        synchronized(fRetries)
+        {
+            fRetries.remove(id);
+        }
+
+        return callback;
+    }
+
+    /**
+     * Registers and completes a query using the pending request table.
+     *
+     * @return completed query
+     */
+    @Benchmark
+    public Object table()
+    {
+        final int id = fIds.incrementAndGet();
+        final WebsockQuery query = new WebsockQuery(id,
+            EQueryType.DIRECT_CYPHER);
+
+        //register
+        fTable.put(new PendingRequest(query, fCallback));
+
+        //claim and complete
+        return fTable.remove(id).getQueryCallback();
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args ignored
+     * @throws Exception if the benchmark fails
+     */
+    public static void main(String[] args) throws Exception
+    {
+        new Runner(new OptionsBuilder()
+            .include(PendingRequestTableBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+
+/**
+ * Test for the open addressing pending request table.
+ */
+public class PendingRequestTableTest
+{
+    private static final int REQUESTS = 100000;
+
+    private PendingRequest request(final int id)
+    {
+        return new PendingRequest(new WebsockQuery(id, EQueryType.PING),
+            new MessageFuture());
+    }
+
+    /**
+     * Tests adding, retrieving and removing requests, including growing the
+     * table and removing entries in the middle of probe sequences.
+     */
+    @Test
+    public void putRemoveTest()
+    {
+        PendingRequestTable table = new PendingRequestTable(4);
+
+        for(int i = 0; i < REQUESTS; ++i)
+        {
+            Assert.assertTrue(table.put(request(i)));
+        }
+        Assert.assertEquals(REQUESTS, table.size());
+
+        //duplicate IDs are rejected
+        Assert.assertFalse(table.put(request(42)));
+
+        //remove every other entry
+        for(int i = 0; i < REQUESTS; i += 2)
+        {
+            Assert.assertEquals(i, table.remove(i).getId());
+        }
+        Assert.assertEquals(REQUESTS / 2, table.size());
+
+        //remaining entries must still be reachable
+        for(int i = 0; i < REQUESTS; ++i)
+        {
+            Assert.assertEquals(i % 2 == 1, table.contains(i));
+        }
+
+        Assert.assertEquals(REQUESTS / 2, table.values().size());
+        Assert.assertNull(table.remove(0));
+
+        table.clear();
+        Assert.assertEquals(0, table.size());
+    }
+
+    /**
+     * Tests that only the exact registered request can be removed by
+     * reference.
+     */
+    @Test
+    public void claimTest()
+    {
+        PendingRequestTable table = new PendingRequestTable();
+
+        PendingRequest first = request(1);
+        PendingRequest other = request(1);
+
+        table.put(first);
+
+        Assert.assertFalse(table.remove(other));
+        Assert.assertTrue(table.remove(first));
+        Assert.assertFalse(table.remove(first));
+    }
+}
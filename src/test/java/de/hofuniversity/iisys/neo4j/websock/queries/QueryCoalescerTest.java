@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+import de.hofuniversity.iisys.neo4j.websock.result.AResultSet;
+import de.hofuniversity.iisys.neo4j.websock.result.ListResult;
+
+/**
+ * Test for the coalescer of identical procedure calls.
+ */
+public class QueryCoalescerTest
+{
+    /**
+     * Tests that identical calls receive the result of the first one.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void coalesceTest() throws Exception
+    {
+        final QueryCoalescer coalescer = new QueryCoalescer();
+        coalescer.addProcedure("proc");
+
+        final ResultFuture first = new ResultFuture();
+        final IQueryCallback sent = coalescer.coalesce(
+            TestQueries.createCall("proc", 1), first);
+        Assert.assertNotNull(sent);
+        Assert.assertNotSame(first, sent);
+        Assert.assertEquals(1, coalescer.getInFlight());
+
+        //identical calls are attached
+        final List<ResultFuture> followers = new ArrayList<ResultFuture>();
+        for(int i = 0; i < 3; ++i)
+        {
+            final ResultFuture future = new ResultFuture();
+            Assert.assertNull(coalescer.coalesce(TestQueries.createCall("proc", 1),
+                future));
+            followers.add(future);
+        }
+        Assert.assertEquals(3, coalescer.getCoalesced());
+
+        //different parameters are sent
+        final ResultFuture other = new ResultFuture();
+        Assert.assertNotNull(coalescer.coalesce(TestQueries.createCall("proc", 2), other));
+        Assert.assertEquals(2, coalescer.getInFlight());
+
+        final AResultSet<?> result = new ListResult(new ArrayList<Object>());
+        sent.setResult(result);
+
+        Assert.assertSame(result, first.get());
+        for(ResultFuture future : followers)
+        {
+            Assert.assertSame(result, future.get());
+        }
+        Assert.assertFalse(other.isDone());
+        Assert.assertEquals(1, coalescer.getInFlight());
+
+        //completed calls are sent again
+        Assert.assertNotNull(coalescer.coalesce(TestQueries.createCall("proc", 1),
+            new ResultFuture()));
+    }
+
+    /**
+     * Tests that only calls to whitelisted procedures are coalesced and that
+     * errors reach all callers.
+     */
+    @Test
+    public void whitelistTest()
+    {
+        final QueryCoalescer coalescer = new QueryCoalescer();
+        coalescer.addProcedure("proc");
+
+        final ResultFuture plain = new ResultFuture();
+        Assert.assertSame(plain, coalescer.coalesce(TestQueries.createCall("other", 1),
+            plain));
+        Assert.assertSame(plain, coalescer.coalesce(
+            new WebsockQuery(EQueryType.DIRECT_CYPHER), plain));
+
+        final ResultFuture first = new ResultFuture();
+        final ResultFuture second = new ResultFuture();
+        final IQueryCallback sent = coalescer.coalesce(
+            TestQueries.createCall("proc", "a"), first);
+        Assert.assertNull(coalescer.coalesce(TestQueries.createCall("proc", "a"), second));
+
+        sent.setErrorMessage("failed");
+        Assert.assertEquals("failed", first.getErrorMessage());
+        Assert.assertEquals("failed", second.getErrorMessage());
+        Assert.assertEquals(0, coalescer.getInFlight());
+    }
+}
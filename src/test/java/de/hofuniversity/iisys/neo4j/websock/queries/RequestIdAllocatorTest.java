@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+
+/**
+ * Test for the striped request ID allocator.
+ */
+public class RequestIdAllocatorTest
+{
+    private static final int THREADS = 8;
+    private static final int IDS_PER_THREAD = 50000;
+
+    /**
+     * Tests that concurrently allocated IDs are unique and non-negative.
+     */
+    @Test
+    public void uniquenessTest() throws Exception
+    {
+        final RequestIdAllocator allocator = new RequestIdAllocator(
+            new PendingRequestTable());
+        final Set<Integer> ids = Collections.newSetFromMap(
+            new ConcurrentHashMap<Integer, Boolean>());
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        for(int i = 0; i < THREADS; ++i)
+        {
+            threads.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    int id = 0;
+                    for(int j = 0; j < IDS_PER_THREAD; ++j)
+                    {
+                        id = allocator.next();
+                        Assert.assertTrue(id >= 0);
+                        Assert.assertTrue(ids.add(id));
+                    }
+                }
+            }));
+        }
+
+        for(Thread t : threads)
+        {
+            t.start();
+        }
+        for(Thread t : threads)
+        {
+            t.join();
+        }
+
+        Assert.assertEquals(THREADS * IDS_PER_THREAD, ids.size());
+    }
+
+    /**
+     * Tests that IDs of pending requests are skipped and counted.
+     */
+    @Test
+    public void collisionTest()
+    {
+        final PendingRequestTable table = new PendingRequestTable();
+        final RequestIdAllocator allocator = new RequestIdAllocator(table, 1);
+
+        //occupy the next IDs this thread would receive
+        table.put(new PendingRequest(new WebsockQuery(0, EQueryType.PING),
+            new MessageFuture()));
+        table.put(new PendingRequest(new WebsockQuery(1, EQueryType.PING),
+            new MessageFuture()));
+
+        Assert.assertEquals(2, allocator.next());
+        Assert.assertEquals(2, allocator.getCollisions());
+
+        Assert.assertEquals(3, allocator.next());
+        Assert.assertEquals(2, allocator.getCollisions());
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+import de.hofuniversity.iisys.neo4j.websock.session.WebsockConstants;
+
+/**
+ * Factory for queries shared by several tests.
+ */
+public class TestQueries
+{
+    /**
+     * Creates a call of the procedure with the given name, passing the given
+     * value as its parameter "param".
+     *
+     * @param name name of the procedure to call
+     * @param param value of the parameter
+     * @return procedure call query
+     */
+    public static WebsockQuery createCall(String name, Object param)
+    {
+        final WebsockQuery query = new WebsockQuery(EQueryType.PROCEDURE_CALL);
+        query.setParameter(WebsockConstants.PROCEDURE_NAME, name);
+        query.setParameter("param", param);
+        return query;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.queries;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test for the hierarchical timing wheel used for query timeouts.
+ */
+public class TimingWheelTest
+{
+    private static final long TICK_MS = 10;
+
+    /**
+     * Tests that entries expire neither early nor late across all levels of
+     * the wheel, including deadlines beyond its range.
+     */
+    @Test
+    public void expiryTest()
+    {
+        final long start = 1000000;
+        final TimingWheel wheel = new TimingWheel(TICK_MS, start);
+        final Random random = new Random(42);
+
+        //short, medium and very long deadlines
+        final long[] ranges = {1000, 10000000, 300000000};
+        final int entries = 3000;
+
+        TimingWheel.Entry entry = null;
+        for(int i = 0; i < entries; ++i)
+        {
+            entry = new TimingWheel.Entry();
+            wheel.schedule(entry, start + 1
+                + (long) (random.nextDouble() * ranges[i % ranges.length]));
+        }
+        Assert.assertEquals(entries, wheel.size());
+
+        final List<TimingWheel.Entry> expired =
+            new ArrayList<TimingWheel.Entry>();
+
+        //advance in irregular steps, checking every expired deadline
+        long now = start;
+        long previous = 0;
+        long dueTick = 0;
+        int count = 0;
+        while(count < entries)
+        {
+            previous = now;
+            now += 1 + random.nextInt(100000);
+            wheel.advance(now, expired);
+
+            for(TimingWheel.Entry e : expired)
+            {
+                //not early
+                Assert.assertTrue(e.getDeadline() <= now);
+
+                //not late: was not due at the previous advance
+                dueTick = (e.getDeadline() + TICK_MS - 1) / TICK_MS;
+                Assert.assertTrue(dueTick > previous / TICK_MS);
+            }
+            count += expired.size();
+            expired.clear();
+        }
+
+        Assert.assertEquals(entries, count);
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    /**
+     * Tests cancelling and rescheduling entries.
+     */
+    @Test
+    public void cancelTest()
+    {
+        final TimingWheel wheel = new TimingWheel(TICK_MS, 0);
+        final List<TimingWheel.Entry> expired =
+            new ArrayList<TimingWheel.Entry>();
+
+        TimingWheel.Entry first = new TimingWheel.Entry();
+        TimingWheel.Entry second = new TimingWheel.Entry();
+
+        wheel.schedule(first, 100);
+        wheel.schedule(second, 100);
+
+        Assert.assertTrue(wheel.cancel(first));
+        Assert.assertFalse(wheel.cancel(first));
+
+        //move second further into the future
+        wheel.schedule(second, 5000);
+        Assert.assertEquals(1, wheel.size());
+
+        wheel.advance(1000, expired);
+        Assert.assertTrue(expired.isEmpty());
+
+        wheel.advance(5000, expired);
+        Assert.assertEquals(1, expired.size());
+        Assert.assertSame(second, expired.get(0));
+        Assert.assertEquals(0, wheel.size());
+    }
+}
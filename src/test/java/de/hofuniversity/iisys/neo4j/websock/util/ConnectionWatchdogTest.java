@@ -0,0 +1,144 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.websocket.DeploymentException;
+import javax.websocket.RemoteEndpoint.Basic;
+import javax.websocket.WebSocketContainer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.hofuniversity.iisys.neo4j.websock.queries.BasicQueryHandler;
+import de.hofuniversity.iisys.neo4j.websock.queries.FakeWebsockSession;
+import de.hofuniversity.iisys.neo4j.websock.queries.IQueryCallback;
+import de.hofuniversity.iisys.neo4j.websock.queries.NopMessageHandler;
+import de.hofuniversity.iisys.neo4j.websock.query.EQueryType;
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+import de.hofuniversity.iisys.neo4j.websock.query.encoding.BinaryTransferUtil;
+import de.hofuniversity.iisys.neo4j.websock.query.encoding.StringTransferUtil;
+import de.hofuniversity.iisys.neo4j.websock.query.encoding.TransferUtil;
+
+/**
+ * Test for the connection watchdog's reconnection attempts.
+ */
+public class ConnectionWatchdogTest
+{
+    private static final long TIMEOUT_MS = 200;
+    private static final long TIMER_MS = 25;
+
+    /**
+     * Creates a fake container whose handshakes never complete until
+     * released.
+     */
+    private WebSocketContainer createStalledContainer(
+        final CountDownLatch connecting, final CountDownLatch release)
+    {
+        return (WebSocketContainer) Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] {WebSocketContainer.class},
+            new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method,
+                    Object[] args) throws Throwable
+                {
+                    if(method.getName().equals("connectToServer"))
+                    {
+                        connecting.countDown();
+                        release.await();
+                        throw new DeploymentException(
+                            "handshake never completed");
+                    }
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * Tests that a stalled reconnection attempt does not hold up request
+     * timeouts running on the same scheduler.
+     */
+    @Test
+    public void stalledReconnectTest() throws Exception
+    {
+        //a single thread, so a blocked attempt would stop all checks
+        final ScheduledExecutorService scheduler =
+            Executors.newScheduledThreadPool(1);
+        final ExecutorService connector = Executors.newCachedThreadPool();
+
+        final CountDownLatch connecting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final BasicQueryHandler handler = new BasicQueryHandler();
+        final ConnectionWatchdog watchdog = new ConnectionWatchdog(
+            "ws://localhost:1/", handler, "json", "none");
+
+        try
+        {
+            watchdog.setContainer(createStalledContainer(connecting, release));
+            watchdog.setReconnectPolicy(new ReconnectPolicy(1, 1, 1, false));
+            watchdog.setConnectExecutor(connector);
+            watchdog.start(scheduler);
+            Assert.assertTrue(connecting.await(5, TimeUnit.SECONDS));
+
+            //requests on another connection still time out
+            final FakeWebsockSession session = new FakeWebsockSession();
+            final Basic remote = session.getBasicRemote();
+            handler.addTransferUtil(new TransferUtil(
+                new StringTransferUtil(remote, new NopMessageHandler()),
+                new BinaryTransferUtil(remote, new NopMessageHandler(),
+                    true)));
+
+            handler.setTimeout(TIMEOUT_MS);
+            handler.setTimerInterval(TIMER_MS);
+            handler.setRetryCount(0);
+            handler.start(scheduler);
+
+            final IQueryCallback future = handler.sendQuery(
+                new WebsockQuery(EQueryType.DIRECT_CYPHER));
+
+            try
+            {
+                future.get(TIMEOUT_MS * 10, TimeUnit.MILLISECONDS);
+                Assert.fail("request was answered");
+            }
+            catch(ExecutionException e)
+            {
+                //expected
+            }
+        }
+        finally
+        {
+            release.countDown();
+            watchdog.disconnect();
+            handler.deactivate();
+            connector.shutdownNow();
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.util;
+
+import java.util.Map;
+
+import javax.websocket.WebSocketContainer;
+
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
+import org.glassfish.tyrus.client.ClientManager;
+import org.glassfish.tyrus.container.grizzly.GrizzlyClientSocket;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test for the factory creating preconfigured websocket containers.
+ */
+public class ContainerFactoryTest
+{
+    /**
+     * Tests that buffer sizes and thread counts are applied to new containers.
+     */
+    @Test
+    public void configTest()
+    {
+        ContainerFactory factory = new ContainerFactory();
+        factory.setMaxBinaryBufferSize(1024);
+        factory.setMaxTextBufferSize(2048);
+        factory.setSelectorThreads(1);
+        factory.setWorkerThreads(3);
+
+        WebSocketContainer container = factory.create();
+        Assert.assertEquals(1024,
+            container.getDefaultMaxBinaryMessageBufferSize());
+        Assert.assertEquals(2048,
+            container.getDefaultMaxTextMessageBufferSize());
+
+        Map<String, Object> props =
+            ((ClientManager) container).getProperties();
+        ThreadPoolConfig selector = (ThreadPoolConfig) props.get(
+            GrizzlyClientSocket.SELECTOR_THREAD_POOL_CONFIG);
+        Assert.assertEquals(1, selector.getMaxPoolSize());
+        ThreadPoolConfig worker = (ThreadPoolConfig) props.get(
+            GrizzlyClientSocket.WORKER_THREAD_POOL_CONFIG);
+        Assert.assertEquals(3, worker.getCorePoolSize());
+        Assert.assertEquals(3, worker.getMaxPoolSize());
+
+        //defaults leave the container's thread pools alone
+        container = new ContainerFactory().create();
+        Assert.assertEquals(Integer.MAX_VALUE,
+            container.getDefaultMaxBinaryMessageBufferSize());
+        props = ((ClientManager) container).getProperties();
+        Assert.assertNull(props.get(
+            GrizzlyClientSocket.SELECTOR_THREAD_POOL_CONFIG));
+        Assert.assertNull(props.get(
+            GrizzlyClientSocket.WORKER_THREAD_POOL_CONFIG));
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.util;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+
+/**
+ * Fake remote endpoint of a session, usable as blocking and as asynchronous
+ * remote endpoint, recording written messages and called methods.
+ * Writes can be held back by a gate, failed by their content and completed
+ * on an executor or on the writing thread.
+ */
+public class FakeRemote implements InvocationHandler
+{
+    private final List<Object> fWritten;
+    private final List<String> fCalls;
+
+    private volatile boolean fRecording;
+    private volatile CountDownLatch fGate;
+    private volatile String fFailPrefix;
+    private volatile Executor fCompleter;
+    private volatile Runnable fWriteTask;
+    private volatile boolean fHoldFirst;
+    private volatile SendHandler fHeld;
+
+    /**
+     * Creates a fake remote endpoint recording messages and completing
+     * writes right away.
+     */
+    public FakeRemote()
+    {
+        fWritten = Collections.synchronizedList(new ArrayList<Object>());
+        fCalls = Collections.synchronizedList(new ArrayList<String>());
+
+        fRecording = true;
+        fGate = new CountDownLatch(0);
+    }
+
+    /**
+     * @return blocking view of this fake remote endpoint
+     */
+    public RemoteEndpoint.Basic getBasic()
+    {
+        return (RemoteEndpoint.Basic) Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] {RemoteEndpoint.Basic.class}, this);
+    }
+
+    /**
+     * @return asynchronous view of this fake remote endpoint
+     */
+    public RemoteEndpoint.Async getAsync()
+    {
+        return (RemoteEndpoint.Async) Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] {RemoteEndpoint.Async.class}, this);
+    }
+
+    /**
+     * @return messages written so far, in order
+     */
+    public List<Object> getWritten()
+    {
+        return fWritten;
+    }
+
+    /**
+     * @return names of the methods called so far, in order
+     */
+    public List<String> getCalls()
+    {
+        return fCalls;
+    }
+
+    /**
+     * Sets whether messages and calls are recorded, defaults to true.
+     *
+     * @param recording whether to record messages and calls
+     */
+    public void setRecording(boolean recording)
+    {
+        fRecording = recording;
+    }
+
+    /**
+     * Sets a latch writes wait for before completing. Blocking writes wait
+     * on the writing thread, asynchronous ones where they are completed.
+     *
+     * @param gate latch to wait for, must not be null
+     */
+    public void setGate(CountDownLatch gate)
+    {
+        fGate = gate;
+    }
+
+    /**
+     * Lets writes of messages starting with the given prefix fail, with an
+     * empty prefix failing all writes.
+     *
+     * @param prefix prefix of failing messages or null for none
+     */
+    public void setFailing(String prefix)
+    {
+        fFailPrefix = prefix;
+    }
+
+    /**
+     * Sets the executor completing asynchronous writes, which are completed
+     * on the writing thread if it is null.
+     *
+     * @param executor executor completing writes or null
+     */
+    public void setCompleter(Executor executor)
+    {
+        fCompleter = executor;
+    }
+
+    /**
+     * Sets a task run for every call, such as simulated work.
+     *
+     * @param task task to run or null
+     */
+    public void setWriteTask(Runnable task)
+    {
+        fWriteTask = task;
+    }
+
+    /**
+     * Lets the first asynchronous write be recorded but not completed until
+     * its held back handler is called.
+     *
+     * @param hold whether to hold back the first write
+     */
+    public void setHoldFirst(boolean hold)
+    {
+        fHoldFirst = hold;
+    }
+
+    /**
+     * @return handler of the held back write or null
+     */
+    public SendHandler getHeld()
+    {
+        return fHeld;
+    }
+
+    /**
+     * Waits until the given number of messages has been written or ten
+     * seconds have passed.
+     *
+     * @param count number of messages to wait for
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitWritten(int count) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while(fWritten.size() < count
+            && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, final Object[] args)
+        throws Throwable
+    {
+        final String name = method.getName();
+        if(fRecording)
+        {
+            fCalls.add(name);
+        }
+
+        final Runnable task = fWriteTask;
+        if(task != null)
+        {
+            task.run();
+        }
+
+        if(!name.startsWith("send") || name.equals("sendPing")
+            || name.equals("sendPong"))
+        {
+            return method.getReturnType() == boolean.class ? false : null;
+        }
+
+        final Object last = args[args.length - 1];
+        if(!(last instanceof SendHandler))
+        {
+            //blocking write
+            fGate.await();
+            if(isFailing(args[0]))
+            {
+                throw new IOException("write failed");
+            }
+            record(args[0]);
+            return null;
+        }
+
+        final SendHandler handler = (SendHandler) last;
+        final Runnable completion = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    fGate.await();
+                }
+                catch(InterruptedException e)
+                {
+                    return;
+                }
+
+                if(isFailing(args[0]))
+                {
+                    handler.onResult(new SendResult(
+                        new IOException("write failed")));
+                }
+                else
+                {
+                    record(args[0]);
+                    handler.onResult(new SendResult());
+                }
+            }
+        };
+
+        synchronized(this)
+        {
+            if(fHoldFirst && fHeld == null)
+            {
+                record(args[0]);
+                fHeld = handler;
+                return null;
+            }
+        }
+
+        final Executor completer = fCompleter;
+        if(completer != null)
+        {
+            completer.execute(completion);
+        }
+        else
+        {
+            completion.run();
+        }
+        return null;
+    }
+
+    private boolean isFailing(final Object message)
+    {
+        final String prefix = fFailPrefix;
+        return prefix != null && message.toString().startsWith(prefix);
+    }
+
+    private void record(final Object message)
+    {
+        if(fRecording)
+        {
+            fWritten.add(message);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+
+/**
+ * Test for the queueing facade over asynchronous remote endpoints.
+ */
+public class QueuedAsyncRemoteTest
+{
+    private static final int MESSAGES = 10000;
+    private static final int THREADS = 4;
+
+    private ExecutorService fWriter;
+    private FakeRemote fRemote;
+    private List<Object> fWritten;
+
+    /**
+     * Creates a fake asynchronous endpoint completing writes on a separate
+     * thread and failing messages starting with "fail".
+     */
+    @Before
+    public void setUp()
+    {
+        fWriter = Executors.newCachedThreadPool();
+
+        fRemote = new FakeRemote();
+        fRemote.setCompleter(fWriter);
+        fRemote.setFailing("fail");
+        fWritten = fRemote.getWritten();
+    }
+
+    /**
+     * Stops the writer thread of the fake endpoint.
+     */
+    @After
+    public void tearDown()
+    {
+        fWriter.shutdownNow();
+    }
+
+    /**
+     * Tests that concurrently queued messages are all written, one at a time
+     * and in the order each thread queued them.
+     */
+    @Test
+    public void orderTest() throws Exception
+    {
+        final QueuedAsyncRemote remote = new QueuedAsyncRemote(
+            fRemote.getAsync(), fRemote.getBasic(), MESSAGES * THREADS, null);
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        for(int i = 0; i < THREADS; ++i)
+        {
+            final int thread = i;
+            threads.add(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for(int j = 0; j < MESSAGES; ++j)
+                        {
+                            remote.sendText(thread + ":" + j);
+                        }
+                    }
+                    catch(IOException e)
+                    {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+
+        for(Thread thread : threads)
+        {
+            thread.start();
+        }
+        for(Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        fRemote.awaitWritten(MESSAGES * THREADS);
+        Assert.assertEquals(MESSAGES * THREADS, fWritten.size());
+
+        final int[] next = new int[THREADS];
+        String[] parts = null;
+        for(Object frame : fWritten)
+        {
+            parts = frame.toString().split(":");
+            final int thread = Integer.parseInt(parts[0]);
+
+            Assert.assertEquals(next[thread]++, Integer.parseInt(parts[1]));
+        }
+    }
+
+    /**
+     * Tests that a full queue rejects messages and that failed writes are
+     * reported with the failed message.
+     */
+    @Test
+    public void failureTest() throws Exception
+    {
+        final List<Object> failed =
+            Collections.synchronizedList(new ArrayList<Object>());
+        final CountDownLatch reported = new CountDownLatch(1);
+
+        //hold back writes until released
+        final CountDownLatch gate = new CountDownLatch(1);
+        fRemote.setGate(gate);
+
+        final QueuedAsyncRemote remote = new QueuedAsyncRemote(
+            fRemote.getAsync(), fRemote.getBasic(), 2,
+            new ISendFailureHandler()
+            {
+                @Override
+                public void sendFailed(Object frame, WebsockQuery query,
+                    Throwable cause)
+                {
+                    failed.add(frame);
+                    reported.countDown();
+                }
+            });
+
+        //first message is being written, two more fit into the queue
+        remote.sendText("fail");
+        remote.sendBinary(ByteBuffer.wrap(new byte[] {1}));
+        remote.sendText("last");
+
+        try
+        {
+            remote.sendText("rejected");
+            Assert.fail("full queue accepted message");
+        }
+        catch(IOException e)
+        {
+            //expected
+        }
+
+        gate.countDown();
+        Assert.assertTrue(reported.await(5, TimeUnit.SECONDS));
+
+        fRemote.awaitWritten(2);
+
+        Assert.assertEquals(1, failed.size());
+        Assert.assertEquals("fail", failed.get(0));
+        Assert.assertEquals(2, fWritten.size());
+        Assert.assertEquals("last", fWritten.get(1));
+        Assert.assertEquals(0, remote.getQueued());
+    }
+
+    /**
+     * Tests that partial messages are written through the blocking endpoint
+     * after all previously queued messages and before later ones.
+     */
+    @Test
+    public void partialTest() throws Exception
+    {
+        //hold back queued writes until released
+        final CountDownLatch gate = new CountDownLatch(1);
+        fRemote.setGate(gate);
+
+        final QueuedAsyncRemote remote = new QueuedAsyncRemote(
+            fRemote.getAsync(), fRemote.getBasic(), 16, null);
+        remote.sendText("a");
+        remote.sendText("b");
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread partial = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    remote.sendText("c1", false);
+                    remote.sendText("c2", true);
+                    done.countDown();
+                }
+                catch(IOException e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        partial.start();
+
+        Assert.assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(fWritten.isEmpty());
+
+        gate.countDown();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        remote.sendText("d");
+
+        fRemote.awaitWritten(5);
+
+        Assert.assertEquals(5, fWritten.size());
+        Assert.assertEquals("a", fWritten.get(0));
+        Assert.assertEquals("b", fWritten.get(1));
+        Assert.assertEquals("c1", fWritten.get(2));
+        Assert.assertEquals("c2", fWritten.get(3));
+        Assert.assertEquals("d", fWritten.get(4));
+    }
+}
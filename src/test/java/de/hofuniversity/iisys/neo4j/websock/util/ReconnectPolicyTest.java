@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test for the exponential reconnect policy.
+ */
+public class ReconnectPolicyTest
+{
+    /**
+     * Tests the growth and cap of delays without jitter.
+     */
+    @Test
+    public void growthTest()
+    {
+        ReconnectPolicy policy = new ReconnectPolicy(100, 3.0, 1000, false);
+
+        Assert.assertEquals(100, policy.getDelay(1));
+        Assert.assertEquals(300, policy.getDelay(2));
+        Assert.assertEquals(900, policy.getDelay(3));
+        Assert.assertEquals(1000, policy.getDelay(4));
+        Assert.assertEquals(1000, policy.getDelay(1000));
+    }
+
+    /**
+     * Tests that delays with full jitter stay below the current maximum and
+     * are spread out.
+     */
+    @Test
+    public void jitterTest()
+    {
+        ReconnectPolicy policy = new ReconnectPolicy(1000, 2.0, 4000, true);
+
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for(int i = 0; i < 1000; ++i)
+        {
+            final long delay = policy.getDelay(2);
+            Assert.assertTrue(delay >= 0 && delay <= 2000);
+
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+
+        Assert.assertTrue(min < 500);
+        Assert.assertTrue(max > 1500);
+    }
+
+    /**
+     * Tests that invalid parameters are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidTest()
+    {
+        new ReconnectPolicy(100, 0.5, 1000, true);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.util;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.websocket.RemoteEndpoint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmark comparing the throughput of many threads writing to one
+ * connection directly, serialized by a lock as in blocking remote endpoints,
+ * to handing messages to a single writer thread.
+ * Each write costs a fixed amount of CPU work.
+ * Not run as part of the unit tests, start via main method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class SendModeBenchmark
+{
+    private static final long WRITE_COST = 200;
+    private static final int QUEUE_SIZE = 4096;
+
+    private static final String MESSAGE = "{\"type\":\"DIRECT_CYPHER\"}";
+
+    private RemoteEndpoint.Basic fDirect;
+    private SingleWriterRemote fWriter;
+
+    /**
+     * Creates a fake remote endpoint serializing writes like a blocking
+     * remote endpoint and a single writer on top of another one.
+     */
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        fDirect = createRemote();
+        fWriter = new SingleWriterRemote(createRemote(), QUEUE_SIZE, false,
+            null);
+    }
+
+    /**
+     * Stops the writer thread.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        fWriter.close();
+    }
+
+    private RemoteEndpoint.Basic createRemote()
+    {
+        final Object lock = new Object();
+
+        final FakeRemote remote = new FakeRemote();
+        remote.setRecording(false);
+        remote.setWriteTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized(lock)
+                {
+                    Blackhole.consumeCPU(WRITE_COST);
+                }
+            }
+        });
+
+        return remote.getBasic();
+    }
+
+    /**
+     * Writes a message directly from the calling thread.
+     *
+     * @throws IOException if writing fails
+     */
+    @Benchmark
+    public void direct() throws IOException
+    {
+        fDirect.sendText(MESSAGE);
+    }
+
+    /**
+     * Hands a message to the writer thread, retrying while its queue is
+     * full, so the measured rate is the rate of written messages.
+     */
+    @Benchmark
+    public void writer()
+    {
+        while(true)
+        {
+            try
+            {
+                fWriter.sendText(MESSAGE);
+                return;
+            }
+            catch(IOException e)
+            {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args ignored
+     * @throws Exception if the benchmark fails
+     */
+    public static void main(String[] args) throws Exception
+    {
+        new Runner(new OptionsBuilder()
+            .include(SendModeBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ *  Copyright 2015 Institute of Information Systems, Hof University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.hofuniversity.iisys.neo4j.websock.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.hofuniversity.iisys.neo4j.websock.query.WebsockQuery;
+
+/**
+ * Test for the single writer remote endpoint facade and its queue.
+ */
+public class SingleWriterRemoteTest
+{
+    private static final int MESSAGES = 10000;
+    private static final int THREADS = 4;
+
+    private final FakeRemote fRemote = new FakeRemote();
+    private final List<Object> fWritten = fRemote.getWritten();
+    private final List<String> fCalls = fRemote.getCalls();
+
+    /**
+     * Tests the queue with concurrent producers.
+     */
+    @Test
+    public void queueTest() throws Exception
+    {
+        final MpscQueue<Integer> queue = new MpscQueue<Integer>();
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertNull(queue.poll());
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        for(int i = 0; i < THREADS; ++i)
+        {
+            final int thread = i;
+            threads.add(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for(int j = 0; j < MESSAGES; ++j)
+                    {
+                        queue.offer(thread * MESSAGES + j);
+                    }
+                }
+            });
+        }
+
+        for(Thread thread : threads)
+        {
+            thread.start();
+        }
+
+        //consume concurrently, checking per-producer order
+        final int[] next = new int[THREADS];
+        int count = 0;
+        Integer value = null;
+        while(count < MESSAGES * THREADS)
+        {
+            value = queue.poll();
+            if(value != null)
+            {
+                Assert.assertEquals(next[value / MESSAGES]++,
+                    value % MESSAGES);
+                ++count;
+            }
+        }
+
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    /**
+     * Tests that concurrently queued messages are all written in the order
+     * each thread queued them and that batches are flushed.
+     */
+    @Test
+    public void orderTest() throws Exception
+    {
+        final SingleWriterRemote remote = new SingleWriterRemote(
+            fRemote.getBasic(), MESSAGES * THREADS, true, null);
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        for(int i = 0; i < THREADS; ++i)
+        {
+            final int thread = i;
+            threads.add(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for(int j = 0; j < MESSAGES; ++j)
+                        {
+                            remote.sendText(thread + ":" + j);
+                        }
+                    }
+                    catch(IOException e)
+                    {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+
+        for(Thread thread : threads)
+        {
+            thread.start();
+        }
+        for(Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        fRemote.awaitWritten(MESSAGES * THREADS);
+        Assert.assertEquals(MESSAGES * THREADS, fWritten.size());
+
+        final int[] next = new int[THREADS];
+        String[] parts = null;
+        for(Object frame : fWritten)
+        {
+            parts = frame.toString().split(":");
+            Assert.assertEquals(next[Integer.parseInt(parts[0])]++,
+                Integer.parseInt(parts[1]));
+        }
+
+        //wait for the writer to run out of messages
+        final long deadline = System.currentTimeMillis() + 5000;
+        while(!fCalls.contains("flushBatch")
+            && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(fCalls.contains("setBatchingAllowed"));
+        Assert.assertTrue(fCalls.contains("flushBatch"));
+
+        remote.close();
+    }
+
+    /**
+     * Tests that a full queue rejects messages and that messages still
+     * queued when closing are reported as failed.
+     */
+    @Test
+    public void closeTest() throws Exception
+    {
+        final List<Object> failed =
+            Collections.synchronizedList(new ArrayList<Object>());
+        final CountDownLatch reported = new CountDownLatch(2);
+
+        //hold back writes until released
+        final CountDownLatch gate = new CountDownLatch(1);
+        fRemote.setGate(gate);
+
+        final SingleWriterRemote remote = new SingleWriterRemote(
+            fRemote.getBasic(), 2, false, new ISendFailureHandler()
+            {
+                @Override
+                public void sendFailed(Object frame, WebsockQuery query,
+                    Throwable cause)
+                {
+                    failed.add(frame);
+                    reported.countDown();
+                }
+            });
+
+        //wait for the writer to take the first message
+        remote.sendText("first");
+        final long deadline = System.currentTimeMillis() + 5000;
+        while(remote.getQueued() > 0
+            && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(1);
+        }
+
+        remote.sendText("second");
+        remote.sendText("third");
+        try
+        {
+            remote.sendText("rejected");
+            Assert.fail("full queue accepted message");
+        }
+        catch(IOException e)
+        {
+            //expected
+        }
+
+        remote.close();
+        gate.countDown();
+
+        Assert.assertTrue(reported.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, failed.size());
+        Assert.assertEquals("second", failed.get(0));
+        Assert.assertEquals("third", failed.get(1));
+
+        fRemote.awaitWritten(1);
+        Assert.assertEquals(1, fWritten.size());
+        Assert.assertEquals("first", fWritten.get(0));
+
+        try
+        {
+            remote.sendText("closed");
+            Assert.fail("closed writer accepted message");
+        }
+        catch(IOException e)
+        {
+            //expected
+        }
+    }
+
+    /**
+     * Tests that every message accepted while the writer is closed
+     * concurrently is either written or reported as failed.
+     */
+    @Test
+    public void concurrentCloseTest() throws Exception
+    {
+        final List<Object> failed =
+            Collections.synchronizedList(new ArrayList<Object>());
+
+        final SingleWriterRemote remote = new SingleWriterRemote(
+            fRemote.getBasic(), MESSAGES * THREADS, false,
+            new ISendFailureHandler()
+            {
+                @Override
+                public void sendFailed(Object frame, WebsockQuery query,
+                    Throwable cause)
+                {
+                    failed.add(frame);
+                }
+            });
+
+        final AtomicInteger accepted = new AtomicInteger();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for(int i = 0; i < THREADS; ++i)
+        {
+            threads.add(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for(int j = 0; j < MESSAGES; ++j)
+                        {
+                            remote.sendText("message");
+                            accepted.incrementAndGet();
+                        }
+                    }
+                    catch(IOException e)
+                    {
+                        //closed
+                    }
+                }
+            });
+        }
+
+        for(Thread thread : threads)
+        {
+            thread.start();
+        }
+        Thread.sleep(5);
+        remote.close();
+        for(Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while(fWritten.size() + failed.size() < accepted.get()
+            && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(accepted.get(), fWritten.size() + failed.size());
+    }
+
+    /**
+     * Tests that partial messages and batching changes are passed to the
+     * remote endpoint in order with queued messages.
+     */
+    @Test
+    public void delegationTest() throws Exception
+    {
+        //hold back writes until released
+        final CountDownLatch gate = new CountDownLatch(1);
+        fRemote.setGate(gate);
+
+        final SingleWriterRemote remote = new SingleWriterRemote(
+            fRemote.getBasic(), 16, false, null);
+        remote.sendText("a");
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread partial = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    remote.sendText("b1", false);
+                    remote.sendText("b2", true);
+                    remote.setBatchingAllowed(true);
+                    done.countDown();
+                }
+                catch(IOException e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        partial.start();
+
+        Assert.assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+
+        gate.countDown();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        remote.sendText("c");
+
+        fRemote.awaitWritten(4);
+        Assert.assertEquals(4, fWritten.size());
+        Assert.assertEquals("a", fWritten.get(0));
+        Assert.assertEquals("b1", fWritten.get(1));
+        Assert.assertEquals("b2", fWritten.get(2));
+        Assert.assertEquals("c", fWritten.get(3));
+        Assert.assertTrue(fCalls.contains("setBatchingAllowed"));
+
+        remote.close();
+    }
+
+    /**
+     * Tests that the writer runs on a given executor and hands its thread
+     * back when closed.
+     */
+    @Test
+    public void executorTest() throws Exception
+    {
+        final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new NamedThreadFactory("test writer", true));
+
+        try
+        {
+            final SingleWriterRemote remote = new SingleWriterRemote(
+                fRemote.getBasic(), MESSAGES, false, null, executor);
+
+            for(int i = 0; i < MESSAGES; ++i)
+            {
+                remote.sendText("message " + i);
+            }
+            fRemote.awaitWritten(MESSAGES);
+            Assert.assertEquals(MESSAGES, fWritten.size());
+
+            //the only thread is free again once the writer is closed
+            remote.close();
+            final String[] name = new String[1];
+            executor.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    name[0] = Thread.currentThread().getName();
+                }
+            }).get(5, TimeUnit.SECONDS);
+            Assert.assertEquals("test writer 1", name[0]);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}